@@ -0,0 +1,32 @@
+import os
+import re
+runCommand = "java -Xms4G -Xmx8G -cp ./dist/ConcurrentSet.jar se.chalmers.dcs.bapic.concurrentset.test.BenchMark" 
+algorithms = ["KBST", "TrevorBrown", "EFRBLFBST"]
+threads = [1, 2, 4, 8, 16, 32, 48, 64, 96, 128]
+# -m 0 makes one shard per available processor
+layouts = [["Single", " -m 1"], ["Sharded", " -m 0"]]
+workload = " -k 1000000 -i 10 -r 80 -x 10"
+
+# Benchmark Tests
+print("Running Scaling Tests")
+os.system("mkdir -p ShardedScaling")
+for algo in algorithms:
+	for layout in layouts:
+		directory = "ShardedScaling/" + algo + "/" + layout[0] + "/"
+		os.system("mkdir -p " + directory[:-1])
+		for thread in threads:
+			command = runCommand + " -a " + algo + " -n " + str(thread) + layout[1] + workload
+			outputFile = directory + str(thread) + "_" + "Threads" + ".txt"
+			os.system(command + " > " + outputFile + " 2>&1")
+		print(algo + layout[0] + " Run successful")
+
+# Scaling curves, throughput in Ops/sec per number of threads
+print("threads\t" + "\t".join(algo + layout[0] for algo in algorithms for layout in layouts))
+for thread in threads:
+	row = [str(thread)]
+	for algo in algorithms:
+		for layout in layouts:
+			outputFile = "ShardedScaling/" + algo + "/" + layout[0] + "/" + str(thread) + "_" + "Threads" + ".txt"
+			match = re.search(r"Throughput = (\d+)", open(outputFile).read())
+			row.append(match.group(1) if match else "-")
+	print("\t".join(row))
@@ -0,0 +1,102 @@
+package se.chalmers.dcs.bapic.concurrentset.jmh;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import se.chalmers.dcs.bapic.concurrentset.utils.K;
+import se.chalmers.dcs.bapic.concurrentset.utils.KeySearch;
+
+/**
+ * Cost of finding the child index in a node of a given key count: the
+ * linear scan over K objects the trees used to do, and the linear and
+ * branchless binary searches of KeySearch over the primitive keys. Each call
+ * searches one of nodeCount nodes; with a single node it stays in L1, with
+ * many nodes it is usually a cache miss, as on a descent through a large
+ * tree. See KeySearch for how this compares with whole tree descents.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class NodeSearchBenchmark {
+
+    private static final int PROBES = 1 << 16;
+
+    @Param({"3", "7", "15", "31", "63", "127", "255"})
+    public int keyCount;
+
+    @Param({"1", "16384"})
+    public int nodeCount;
+
+    private K[][] keys;
+    private double[][] values;
+    private int[] probeNodes;
+    private K[] probeKeys;
+    private double[] probes;
+    private int next;
+
+    /**
+     *
+     */
+    @Setup
+    public void createNode() {
+        Random random = new Random(0);
+        keys = new K[nodeCount][keyCount];
+        values = new double[nodeCount][keyCount];
+        for (int n = 0; n < nodeCount; n ++) {
+            for (int i = 0; i < keyCount; i ++) {
+                values[n][i] = 2 * i + 1;
+                keys[n][i] = new K(values[n][i]);
+            }
+        }
+        probeNodes = new int[PROBES];
+        probeKeys = new K[PROBES];
+        probes = new double[PROBES];
+        for (int i = 0; i < PROBES; i ++) {
+            probeNodes[i] = random.nextInt(nodeCount);
+            probes[i] = random.nextInt(2 * keyCount + 1);
+            probeKeys[i] = new K(probes[i]);
+        }
+    }
+
+    /**
+     *
+     * @return
+     */
+    @Benchmark
+    public int objectLinear() {
+        int probe = next ++ & (PROBES - 1);
+        K key = probeKeys[probe];
+        K[] node = keys[probeNodes[probe]];
+        int i = 0;
+        while (i < keyCount) {
+            if (key.compareTo(node[i])) {
+                break;
+            }
+            i ++;
+        }
+        return i;
+    }
+
+    /**
+     *
+     * @return
+     */
+    @Benchmark
+    public int primitiveLinear() {
+        int probe = next ++ & (PROBES - 1);
+        return KeySearch.linearUpperBound(values[probeNodes[probe]], keyCount, probes[probe]);
+    }
+
+    /**
+     *
+     * @return
+     */
+    @Benchmark
+    public int primitiveBinary() {
+        int probe = next ++ & (PROBES - 1);
+        return KeySearch.binaryUpperBound(values[probeNodes[probe]], keyCount, probes[probe]);
+    }
+}
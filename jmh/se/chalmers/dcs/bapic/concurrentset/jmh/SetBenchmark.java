@@ -0,0 +1,117 @@
+package se.chalmers.dcs.bapic.concurrentset.jmh;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.ThreadParams;
+import se.chalmers.dcs.bapic.concurrentset.Sets.DoubleKBST;
+import se.chalmers.dcs.bapic.concurrentset.test.BenchMark;
+import se.chalmers.dcs.bapic.concurrentset.utils.*;
+
+/**
+ * JMH version of test.BenchMark: every thread runs the same
+ * insert/delete/search mix as RunOperations over uniformly random keys in
+ * [0, keyRange), on a set that starts half full with the keys of
+ * BenchMark.initializeSet(). The set is rebuilt before every iteration, so
+ * iterations of add-heavy mixes start from the same size. The defaults are
+ * those of BenchMark; use -t for the thread count, -p for the parameters and
+ * -prof gc for allocation per operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Threads(2)
+@Fork(1)
+public class SetBenchmark {
+
+    @Param({"LazyList", "HarrisLinkedList", "HelpAwareInternalLFBST", "HelpOptimalLFList", "HelpOptimalSimpleLFBST", "HelpOptimalLFBST",
+            "HelpOptimalLocalRestartLFBST", "NMLFBST", "EFRBLFBST", "ScapegoatLFBST", "LFSkipList", "KBST", "DoubleKBST", "OffHeapKBST",
+            "TrevorBrown"})
+    public String algorithm;
+
+    @Param({"100"})
+    public int keyRange;
+
+    @Param({"80"})
+    public int addPercent;
+
+    @Param({"0"})
+    public int removePercent;
+
+    private SetADT set;
+    private DoubleKBST primitiveSet;
+
+    /**
+     *
+     */
+    @Setup(Level.Iteration)
+    public void initializeSet() {
+        if (addPercent < 0 || removePercent < 0 || addPercent + removePercent > 100) {
+            throw new IllegalArgumentException("addPercent + removePercent must be within [0, 100]");
+        }
+        set = BenchMark.newSet(algorithm);
+        if (set == null) {
+            throw new IllegalArgumentException("Unknown algorithm " + algorithm);
+        }
+        primitiveSet = (set instanceof DoubleKBST) ? (DoubleKBST) set : null;
+
+        Random rd = new Random(0);
+        for (int i = 0; i < keyRange / 2;) {
+            if (set.add(new K(rd.nextInt(keyRange)))) {
+                i ++;
+            }
+        }
+    }
+
+    /**
+     * Per thread random streams, seeded with the thread index as in
+     * RunOperations.
+     */
+    @State(Scope.Thread)
+    public static class ThreadState {
+
+        Random randOp;
+        Random randKey;
+
+        /**
+         *
+         * @param params
+         */
+        @Setup(Level.Trial)
+        public void seed(ThreadParams params) {
+            randOp = new Random(params.getThreadIndex());
+            randKey = new Random(params.getThreadIndex());
+        }
+    }
+
+    /**
+     * One operation of the mix. The result is returned so that JMH consumes
+     * it and the call cannot be eliminated.
+     *
+     * @param thread
+     * @return
+     */
+    @Benchmark
+    public boolean operation(ThreadState thread) {
+        int chooseOperation = thread.randOp.nextInt(100);
+        double key = Tools.randomInRange(thread.randKey, 0, keyRange);
+        if (primitiveSet != null) {
+            if (chooseOperation < addPercent) {
+                return primitiveSet.add(key);
+            }
+            else if (chooseOperation < addPercent + removePercent) {
+                return primitiveSet.remove(key);
+            }
+            return primitiveSet.contains(key);
+        }
+        if (chooseOperation < addPercent) {
+            return set.add(new K(key));
+        }
+        else if (chooseOperation < addPercent + removePercent) {
+            return set.remove(new K(key));
+        }
+        return set.contains(new K(key));
+    }
+}
@@ -0,0 +1,114 @@
+package se.chalmers.dcs.bapic.concurrentset.Sets;
+
+import se.chalmers.dcs.bapic.concurrentset.utils.*;
+
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.BiFunction;
+
+/**
+ * MapADT on the ConcurrentSkipListMap of Java, to compare KBSTMap and
+ * LockFreeKSTRQMap with.
+ *
+ * @param <V> the type of the values
+ */
+public class ConcSkipListMapWrapper<V> implements MapADT<V> {
+
+    ConcurrentSkipListMap<Double, V> map;
+
+    /**
+     *
+     */
+    public ConcSkipListMapWrapper() {
+        this.map = new ConcurrentSkipListMap<>();
+    }
+
+    /**
+     *
+     * @param key
+     * @return
+     */
+    @Override
+    public V get(K key) {
+        return map.get(key.getValue());
+    }
+
+    /**
+     *
+     * @param key
+     * @param value
+     * @return
+     */
+    @Override
+    public V putIfAbsent(K key, V value) {
+        MapADT.checkValue(value);
+        return map.putIfAbsent(key.getValue(), value);
+    }
+
+    /**
+     *
+     * @param key
+     * @param expected
+     * @param value
+     * @return
+     */
+    @Override
+    public boolean replace(K key, V expected, V value) {
+        MapADT.checkValue(expected);
+        MapADT.checkValue(value);
+        return map.replace(key.getValue(), expected, value);
+    }
+
+    /**
+     *
+     * @param key
+     * @param expected
+     * @return
+     */
+    @Override
+    public boolean remove(K key, V expected) {
+        MapADT.checkValue(expected);
+        return map.remove(key.getValue(), expected);
+    }
+
+    /**
+     *
+     * @param key
+     * @param value
+     * @return
+     */
+    @Override
+    public V put(K key, V value) {
+        MapADT.checkValue(value);
+        return map.put(key.getValue(), value);
+    }
+
+    /**
+     *
+     * @param key
+     * @return
+     */
+    @Override
+    public V remove(K key) {
+        return map.remove(key.getValue());
+    }
+
+    /**
+     *
+     * @param key
+     * @param remapping
+     * @return
+     */
+    @Override
+    public V compute(K key, BiFunction<? super K, ? super V, ? extends V> remapping) {
+        return map.compute(key.getValue(), (k, v) -> remapping.apply(key, v));
+    }
+
+    /**
+     *
+     * @return
+     */
+    @Override
+    public SetADT keySet() {
+        return new ConcSkipListWrapper(map.keySet());
+    }
+}
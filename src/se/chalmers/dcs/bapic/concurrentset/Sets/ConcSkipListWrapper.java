@@ -29,7 +29,11 @@ package se.chalmers.dcs.bapic.concurrentset.Sets;
 
 import se.chalmers.dcs.bapic.concurrentset.utils.*;
 
+import java.util.Iterator;
+import java.util.NavigableSet;
+import java.util.PrimitiveIterator;
 import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.Consumer;
 
 /**
  *
@@ -37,7 +41,7 @@ import java.util.concurrent.ConcurrentSkipListSet;
  */
 public class ConcSkipListWrapper implements SetADT {
 
-    ConcurrentSkipListSet<Double> sl;
+    NavigableSet<Double> sl;
 
     /**
      *
@@ -46,6 +50,29 @@ public class ConcSkipListWrapper implements SetADT {
         this.sl = new ConcurrentSkipListSet<>();
     }
 
+    /**
+     * Fills the skip list from ascending keys, such as those of a Snapshot.
+     * ConcurrentSkipListSet has no linear time constructor from sorted keys,
+     * so they are added in turn, each at the end of the list.
+     *
+     * @param sortedKeys strictly ascending keys
+     */
+    public ConcSkipListWrapper(PrimitiveIterator.OfDouble sortedKeys) {
+        this();
+        while (sortedKeys.hasNext()) {
+            sl.add(sortedKeys.nextDouble());
+        }
+    }
+
+    /**
+     * Wraps the keys of a skip list map, see ConcSkipListMapWrapper.
+     *
+     * @param keys
+     */
+    ConcSkipListWrapper(NavigableSet<Double> keys) {
+        this.sl = keys;
+    }
+
     /**
      *
      * @param key
@@ -86,4 +113,128 @@ public class ConcSkipListWrapper implements SetADT {
         return true;
     }
 
+    /**
+     *
+     * @param lo
+     * @param hi
+     * @param consumer
+     */
+    @Override
+    public void rangeScan(K lo, K hi, Consumer<K> consumer) {
+        for (Double key : sl.subSet(lo.getValue(), true, hi.getValue(), true)) {
+            consumer.accept(new K(key));
+        }
+    }
+
+    /**
+     *
+     * @param from
+     * @param limit
+     * @param consumer
+     * @return
+     */
+    @Override
+    public K scanChunk(K from, int limit, Consumer<K> consumer) {
+        int count = 0;
+        for (Double key : sl.tailSet(from.getValue(), true)) {
+            if (count == limit) {
+                return new K(key);
+            }
+            consumer.accept(new K(key));
+            count ++;
+        }
+        return null;
+    }
+
+    /**
+     * Iterates over the skip list itself, so it is weakly consistent, but
+     * each key it returns is a new K.
+     *
+     * @param from
+     * @return
+     */
+    @Override
+    public Iterator<K> iterator(K from) {
+        return keysOf(sl.tailSet(from.getValue(), true).iterator());
+    }
+
+    /**
+     * Iterates over the head set of the skip list backwards, like iterator(K).
+     *
+     * @param from
+     * @return
+     */
+    @Override
+    public Iterator<K> descendingIterator(K from) {
+        return keysOf(sl.headSet(from.getValue(), true).descendingIterator());
+    }
+
+    private static Iterator<K> keysOf(Iterator<Double> keys) {
+        return new Iterator<K>() {
+            @Override
+            public boolean hasNext() {
+                return keys.hasNext();
+            }
+
+            @Override
+            public K next() {
+                return new K(keys.next());
+            }
+        };
+    }
+
+    /**
+     *
+     * @param key
+     * @return
+     */
+    @Override
+    public K ceiling(K key) {
+        return keyOf(sl.ceiling(key.getValue()));
+    }
+
+    /**
+     *
+     * @param key
+     * @return
+     */
+    @Override
+    public K higher(K key) {
+        return keyOf(sl.higher(key.getValue()));
+    }
+
+    /**
+     *
+     * @param key
+     * @return
+     */
+    @Override
+    public K floor(K key) {
+        return keyOf(sl.floor(key.getValue()));
+    }
+
+    /**
+     *
+     * @param key
+     * @return
+     */
+    @Override
+    public K lower(K key) {
+        return keyOf(sl.lower(key.getValue()));
+    }
+
+    /**
+     * Removes the first key of the skip list in one step, unlike the
+     * default of SetADT.
+     *
+     * @return
+     */
+    @Override
+    public K pollFirst() {
+        return keyOf(sl.pollFirst());
+    }
+
+    private static K keyOf(Double key) {
+        return key == null ? null : new K(key);
+    }
 }
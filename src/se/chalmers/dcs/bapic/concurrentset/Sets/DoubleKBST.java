@@ -0,0 +1,705 @@
+package se.chalmers.dcs.bapic.concurrentset.Sets;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.PrimitiveIterator;
+import java.util.function.Consumer;
+import java.util.function.DoubleConsumer;
+import se.chalmers.dcs.bapic.concurrentset.utils.*;
+
+/**
+ * Primitive specialization of {@link KBST} for double keys.
+ *
+ * The algorithm is exactly that of KBST, but the keys of a node are held in a
+ * double[] and the public operations take raw doubles, so a lookup does not
+ * allocate and the keys of a leaf are contiguous in memory. Long keys can be
+ * passed directly; they widen to double exactly up to 2^53.
+ *
+ * The SetADT methods unwrap the K and delegate to the primitive ones. The
+ * child slots, flags and tags and the freezing of nodes are KBST's own, see
+ * KBSTNode.
+ */
+public class DoubleKBST implements SetADT {
+
+    static final double INFINITY = Double.MAX_VALUE;
+
+    final Node root;
+    final int numChildren;
+    final SizeCounter size = new SizeCounter();
+
+    public DoubleKBST(int numChildren) {
+        this.numChildren = numChildren;
+        root = new Node(numChildren, true);
+    }
+
+    /**
+     * Bulk loading constructor, see KBST.bulkLoad().
+     *
+     * @param numChildren
+     * @param sortedKeys strictly ascending keys
+     */
+    public DoubleKBST(int numChildren, double[] sortedKeys) {
+        this(numChildren, Arrays.stream(sortedKeys).iterator());
+    }
+
+    /**
+     * Bulk loading constructor, see KBST.bulkLoad().
+     *
+     * @param numChildren
+     * @param sortedKeys strictly ascending keys
+     */
+    public DoubleKBST(int numChildren, PrimitiveIterator.OfDouble sortedKeys) {
+        this(numChildren);
+        // the tree is not published yet, so a plain write is enough
+        root.child(0).children[0] = bulkLoad(numChildren, size.counting(sortedKeys));
+    }
+
+    static Node bulkLoad(int numChildren, PrimitiveIterator.OfDouble sortedKeys) {
+        ArrayList<Node> level = new ArrayList<>();
+        // smallest key under each node of the level, indexed like level
+        double[] minKeys = new double[16];
+        double[] leafKeys = new double[numChildren - 1];
+        int count = 0;
+        double previous = -INFINITY;
+        boolean first = true;
+
+        while (sortedKeys.hasNext()) {
+            double key = sortedKeys.nextDouble();
+            if (!first && !(previous < key)) {
+                throw new IllegalArgumentException("keys are not strictly ascending at " + key);
+            }
+            first = false;
+            previous = key;
+            leafKeys[count++] = key;
+            if (count == numChildren - 1) {
+                minKeys = append(minKeys, level.size(), leafKeys[0]);
+                level.add(new Node(Arrays.copyOf(leafKeys, count), null));
+                count = 0;
+            }
+        }
+        if (count > 0) {
+            minKeys = append(minKeys, level.size(), leafKeys[0]);
+            level.add(new Node(Arrays.copyOf(leafKeys, count), null));
+        }
+        if (level.isEmpty()) {
+            return new Node();
+        }
+
+        while (level.size() > 1) {
+            ArrayList<Node> parents = new ArrayList<>();
+            double[] parentMinKeys = new double[level.size() / numChildren + 1];
+            for (int firstChild = 0; firstChild < level.size(); firstChild += numChildren) {
+                int used = Math.min(numChildren, level.size() - firstChild);
+                double[] keys = new double[numChildren - 1];
+                Node[] children = new Node[numChildren];
+                for (int j = 0; j < numChildren; j++) {
+                    children[j] = (j < used) ? level.get(firstChild + j) : new Node();
+                }
+                // child j holds the keys in [keys[j-1], keys[j])
+                for (int j = 0; j < numChildren - 1; j++) {
+                    keys[j] = (j + 1 < used) ? minKeys[firstChild + j + 1] : INFINITY;
+                }
+                parentMinKeys[parents.size()] = minKeys[firstChild];
+                parents.add(new Node(keys, children));
+            }
+            level = parents;
+            minKeys = parentMinKeys;
+        }
+        return level.get(0);
+    }
+
+    private static double[] append(double[] a, int size, double value) {
+        if (size == a.length) {
+            a = Arrays.copyOf(a, 2 * size);
+        }
+        a[size] = value;
+        return a;
+    }
+
+    boolean isInternalNode(Node n) {
+        return n.children != null;
+    }
+
+    Node getChild(final Node n, double key) {
+        return n.child(getChildIndex(n, key));
+    }
+
+    int getChildIndex(final Node n, double key) {
+        return KeySearch.upperBound(n.keys, n.kcount, key);
+    }
+
+    @Override
+    public final boolean contains(final K key) {
+        return contains(key.getValue());
+    }
+
+    @Override
+    public final boolean add(final K key) {
+        return add(key.getValue());
+    }
+
+    @Override
+    public final boolean remove(final K key) {
+        return remove(key.getValue());
+    }
+
+    public final boolean contains(final double key) {
+        Node current = root;
+        while (isInternalNode(current)) {
+            current = getChild(current, key);
+        }
+        return (current.hasKey(key));
+    }
+
+    public final boolean add(final double key) {
+        Node newNode, parent, ancestor, terminal, successor;
+
+        int depth = -1;
+        while (true) {
+            ContentionStats.restart(depth);
+            depth = 0;
+            ancestor = root;
+            successor = parent = root.child(0);
+            terminal = parent.child(0);
+
+            while (isInternalNode(terminal)) {
+                depth++;
+
+                /**
+                 * The While loop implements the seek() method of the paper
+                 */
+                if (!terminal.isTagged()) {
+                    ancestor = parent;
+                    successor = terminal;
+                }
+
+                parent = terminal;
+                terminal = getChild(parent, key);
+            }
+            if (terminal.hasKey(key)) {
+                return false;
+            }
+
+            OperationType operationType;
+            if (terminal.kcount == numChildren - 1) {
+                operationType = OperationType.SPROUTING_INSERT;
+            } else {
+                operationType = OperationType.SIMPLE_INSERT;
+            }
+            newNode = new Node(key, terminal, operationType);
+
+            int terminalIndex = getChildIndex(parent, key);
+
+            if (terminal.isClean()) {
+                if (parent.casChild(terminalIndex, terminal, newNode)) {
+                    size.increment();
+                    return true;
+                }
+            }
+            else if (terminal == parent.child(terminalIndex) && !terminal.isClean()) {
+                ContentionStats.help();
+                cleanUp(ancestor, successor, parent, key);
+            }
+        }
+    }
+
+    public final boolean remove(final double key) {
+        int mode = 1;    // 1:- INJECTION, 2:- CLEANUP
+        Node parent, terminal, ancestor, successor, newNode = null;
+        int depth = -1;
+        while (true) {
+            ContentionStats.restart(depth);
+            depth = 0;
+            ancestor = root;
+            successor = parent = root.child(0);
+            terminal = parent.child(0);
+
+            while (isInternalNode(terminal)) {
+                depth++;
+
+                /**
+                 * The While loop implements the seek() method of the paper
+                 */
+                if (!terminal.isTagged()) {
+                    ancestor = parent;
+                    successor = terminal;
+                }
+
+                parent = terminal;
+                terminal = getChild(parent, key);
+            }
+
+            if (mode == 1) {
+                if (!terminal.hasKey(key)) {
+                    return false;
+                }
+                boolean isSimpleDelete = false;
+                if (terminal.kcount > 1 || parent.getNonEmptyChildCount() != 2) {
+                    isSimpleDelete = true;
+                    newNode = new Node(key, terminal, OperationType.SIMPLE_DELETE);
+                }
+                else {
+                    newNode = new Node(terminal, true);
+                }
+                int terminalIndex = getChildIndex(parent, key);
+                if (terminal.isClean()) {
+                    if (parent.casChild(terminalIndex, terminal, newNode)) {
+                        if (isSimpleDelete) {
+                            size.decrement();
+                            return true;
+                        }
+                        else {
+                            mode = 2;
+                            if (cleanUp(ancestor, successor, parent, key)) {
+                                size.decrement();
+                                return true;
+                            }
+                        }
+                    }
+                }
+                else if (terminal == parent.child(terminalIndex) && !terminal.isClean()) {
+                    ContentionStats.help();
+                    cleanUp(ancestor, successor, parent, key);
+                }
+            }
+            else { // Pruning Delete: mode == 2
+                // a leaf with key that is not flagged means the flagged one is gone
+                if (!terminal.hasKey(key) || !terminal.isFlagged()) {
+                    size.decrement();
+                    return true;
+                }
+                else if (cleanUp(ancestor, successor, parent, key)) {
+                    size.decrement();
+                    return true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Replaces successor in ancestor by its collapsed copy, see
+     * KBST.cleanUp().
+     *
+     * @param ancestor
+     * @param successor
+     * @param parent
+     * @param key
+     * @return true if parent, and so the terminal of the seek, was replaced
+     */
+    protected final boolean cleanUp(Node ancestor, Node successor, Node parent, double key) {
+        if (ancestor == root) {
+            return false;    // root.c0 is never frozen
+        }
+        int index = getChildIndex(ancestor, key);
+        return ancestor.freezeChild(index, successor) && ancestor.casChild(index, successor, collapsed(successor)) && successor == parent;
+    }
+
+    /**
+     * The replacement of internal node n, whose children are frozen, see
+     * KBST.collapsed().
+     */
+    private Node collapsed(Node n) {
+        Node only = null;
+        int nonEmpty = 0;
+        for (int i = 0; i < n.children.length; i++) {
+            Node child = n.child(i);
+            if (child.isFlagged() || child.kcount == 0) continue;
+            only = child;
+            nonEmpty++;
+        }
+        if (nonEmpty <= 1) {
+            return (only == null) ? new Node() : new Node(only, false);
+        }
+        Node[] children = new Node[n.children.length];
+        for (int i = 0; i < children.length; i++) {
+            Node child = n.child(i);
+            children[i] = child.isFlagged() ? new Node() : new Node(child, false);
+        }
+        return new Node(n.keys, children);
+    }
+
+    public boolean traversalTest() {
+        return true;
+    }
+
+    @Override
+    public long estimatedSize() {
+        return size.sum();
+    }
+
+    /**
+     * Exact and linearizable: the count of a KBST.rangeScan over all keys. The
+     * scan is only retried after another update has succeeded, so it is
+     * lock-free.
+     */
+    @Override
+    public long size() {
+        return countRange(K.MinValue0, K.MaxValue0);
+    }
+
+    @Override
+    public void rangeScan(K lo, K hi, Consumer<K> consumer) {
+        rangeScan(lo.getValue(), hi.getValue(), key -> consumer.accept(new K(key)));
+    }
+
+    @Override
+    public int countRange(K lo, K hi) {
+        return countRange(lo.getValue(), hi.getValue());
+    }
+
+    /**
+     * Linearizable range scan by double collect, see KBST.rangeScan.
+     *
+     * @param lo
+     * @param hi
+     * @param consumer
+     */
+    public void rangeScan(double lo, double hi, DoubleConsumer consumer) {
+        for (Node n : snapshotRange(lo, hi)) {
+            if (isInternalNode(n)) {
+                continue;
+            }
+            for (int i = 0; i < n.kcount; i++) {
+                if (lo <= n.keys[i] && n.keys[i] <= hi) {
+                    consumer.accept(n.keys[i]);
+                }
+            }
+        }
+    }
+
+    public int countRange(double lo, double hi) {
+        int count = 0;
+        for (Node n : snapshotRange(lo, hi)) {
+            if (isInternalNode(n)) {
+                continue;
+            }
+            for (int i = 0; i < n.kcount; i++) {
+                if (lo <= n.keys[i] && n.keys[i] <= hi) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public K ceiling(K key) {
+        return keyOf(ceiling(key.getValue()));
+    }
+
+    @Override
+    public K higher(K key) {
+        return keyOf(higher(key.getValue()));
+    }
+
+    @Override
+    public K floor(K key) {
+        return keyOf(floor(key.getValue()));
+    }
+
+    @Override
+    public K lower(K key) {
+        return keyOf(lower(key.getValue()));
+    }
+
+    /**
+     * Linearizable, see KBST.pollFirst().
+     *
+     * @return
+     */
+    @Override
+    public K pollFirst() {
+        while (true) {
+            double key = ceiling(K.MinValue0.getValue());
+            if (Double.isNaN(key) || remove(key)) {
+                return keyOf(key);
+            }
+        }
+    }
+
+    private static K keyOf(double key) {
+        return Double.isNaN(key) ? null : new K(key);
+    }
+
+    /**
+     * The smallest key >= key, or NaN if there is none, found by double
+     * collect as in KBST.nearest.
+     *
+     * @param key
+     * @return
+     */
+    public double ceiling(double key) {
+        return nearest(key, true, true);
+    }
+
+    public double higher(double key) {
+        return nearest(key, true, false);
+    }
+
+    public double floor(double key) {
+        return nearest(key, false, true);
+    }
+
+    public double lower(double key) {
+        return nearest(key, false, false);
+    }
+
+    /**
+     * Double collect as in KBST.nearest.
+     */
+    private double nearest(double key, boolean ascending, boolean inclusive) {
+        ArrayList<Node> previous = new ArrayList<>();
+        double found = collectNearest(key, ascending, inclusive, previous);
+        while (true) {
+            ArrayList<Node> current = new ArrayList<>();
+            double again = collectNearest(key, ascending, inclusive, current);
+            if (Node.sameNodes(previous, current)) {
+                return found;
+            }
+            previous = current;
+            found = again;
+        }
+    }
+
+    private double collectNearest(double key, boolean ascending, boolean inclusive, ArrayList<Node> visited) {
+        ArrayDeque<Node> stack = new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            Node n = stack.pop();
+            visited.add(n);
+            if (isInternalNode(n)) {
+                // child i holds the keys in [keys[i-1], keys[i]), and the
+                // child to be walked first is pushed last
+                if (ascending) {
+                    for (int i = n.kcount; i >= 0; i--) {
+                        if (i == n.kcount || key < n.keys[i]) {
+                            stack.push(n.child(i));
+                        }
+                    }
+                }
+                else {
+                    for (int i = 0; i <= n.kcount; i++) {
+                        if (i == 0 || n.keys[i - 1] <= key) {
+                            stack.push(n.child(i));
+                        }
+                    }
+                }
+                continue;
+            }
+            double best = Double.NaN;
+            for (int i = 0; i < n.kcount; i++) {
+                double k = n.keys[i];
+                if (inclusive && k == key) {
+                    return k;
+                }
+                if ((ascending ? key < k : k < key) && (Double.isNaN(best) || (ascending ? k < best : best < k))) {
+                    best = k;
+                }
+            }
+            if (!Double.isNaN(best)) {
+                return best;
+            }
+        }
+        return Double.NaN;
+    }
+
+    private ArrayList<Node> snapshotRange(double lo, double hi) {
+        ArrayList<Node> previous = collectRange(lo, hi);
+        while (true) {
+            ArrayList<Node> current = collectRange(lo, hi);
+            if (Node.sameNodes(previous, current)) {
+                return current;
+            }
+            previous = current;
+        }
+    }
+
+    private ArrayList<Node> collectRange(double lo, double hi) {
+        ArrayList<Node> visited = new ArrayList<>();
+        ArrayDeque<Node> stack = new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            Node n = stack.pop();
+            visited.add(n);
+            if (isInternalNode(n)) {
+                // child i holds the keys in [keys[i-1], keys[i])
+                for (int i = n.kcount; i >= 0; i--) {
+                    if ((i == 0 || n.keys[i - 1] <= hi) && (i == n.kcount || lo < n.keys[i])) {
+                        stack.push(n.child(i));
+                    }
+                }
+            }
+        }
+        return visited;
+    }
+
+    public void treeString(StringBuffer sb, Node n) {
+        if (n == null) {
+            sb.append("*");
+            return;
+        }
+        sb.append("(");
+        sb.append(n.kcount);
+        sb.append(" keys");
+        sb.append(" tagged " + n.isTagged());
+        sb.append(" flagged " + n.isFlagged());
+        for (int i=0; i < n.kcount; i++) {
+            sb.append(",");
+            sb.append(n.keys[i]);
+        }
+        if (n.children != null) {
+            for (int i=0; i < n.children.length; i++) {
+                treeString(sb, n.child(i));
+                sb.append(",");
+            }
+        }
+        sb.append(")");
+    }
+
+    public void treeString(StringBuffer sb) {
+        treeString(sb, root);
+    }
+
+    protected enum OperationType {SIMPLE_INSERT, SPROUTING_INSERT, SIMPLE_DELETE};
+
+    protected static class Node extends KBSTNode<Node> {
+
+        final double[] keys;
+
+        /**
+         * Constructor for leaf with zero keys.
+         */
+        Node () {
+            super(0, null, 0);
+            keys = null;
+        }
+
+        /**
+         * Constructor for newly created leaves with one key.
+         */
+        Node(final double key) {
+            super(1, null, 0);
+            keys = new double[]{key};
+        }
+
+        /**
+         * Constructor for nodes built by bulkLoad() and cleanUp(): a leaf
+         * when children is null, otherwise an internal node with
+         * keys.length + 1 children.
+         */
+        Node(final double[] keys, final Node[] children) {
+            super(keys.length, children, 0);
+            this.keys = keys;
+        }
+
+        /**
+         * Constructor for the root of the tree, see KBST.Node.
+         *
+         * @param root if true, the root is created otherwise, if false,
+         *             the root's child root.c0 is created.
+         */
+        Node(int numChildren, boolean root) {
+            super(numChildren - 1, new Node[numChildren], 0);
+            keys = new double[numChildren - 1];
+            for (int i = 0; i < kcount; i++) {
+                keys[i] = INFINITY;
+            }
+            if (root) {
+                children[0] = new Node(numChildren, false);
+                for (int i = 1; i < numChildren; i++) {
+                    children[i] = new Node();
+                }
+            } else {
+                for (int i = 0; i < numChildren; i++) {
+                    children[i] = new Node();
+                }
+            }
+        }
+
+        // Constructor for the operations simple insert, sprouting insert and simple delete
+        Node(final double knew, final Node l, final OperationType operationType) {
+            super(kcountAfter(l, operationType), (operationType == OperationType.SPROUTING_INSERT) ? new Node[l.kcount + 1] : null, 0);
+            if (operationType == OperationType.SPROUTING_INSERT) {
+                // determine which elements of l.k should precede knew (will be 0...i-1)
+                int i = KeySearch.upperBound(l.keys, kcount, knew);
+                // add children with keys preceding knew
+                for (int j = 0; j < i; j++) {
+                    children[j] = new Node(l.keys[j]);
+                }
+                // add knew
+                children[i] = new Node(knew);
+                // add children with keys following knew
+                for (int j = i; j < kcount; j++) {
+                    children[j + 1] = new Node(l.keys[j]);
+                }
+                keys = new double[kcount];
+                for (int j=0; j < kcount; j++) {
+                    keys[j] = children[j+1].keys[0];
+                }
+            } else if (operationType == OperationType.SIMPLE_INSERT) {
+                keys = new double[kcount];
+                // determine which keys precede knew
+                // l.k[0...i-1] will all precede knew.
+                int i = KeySearch.upperBound(l.keys, l.kcount, knew);
+                // knew precedes l.k[i], but all of l.k[0...i-1] precede knew.
+                if (i > 0) {
+                    System.arraycopy(l.keys, 0, keys, 0, i);
+                }
+                keys[i] = knew;
+                if (i < l.kcount) {
+                    System.arraycopy(l.keys, i, keys, i + 1, l.kcount - i);
+                }
+            } else { // SIMPLE_DELETION
+                if (kcount == 0) {
+                    keys = null;
+                } else {
+                    keys = new double[kcount];
+                    for (int i = 0, j = 0; i < l.kcount; i++) {
+                        if (knew == l.keys[i]) continue;
+                        keys[j] = l.keys[i];
+                        j++;
+                    }
+                }
+            }
+        }
+
+        /**
+         * The key count of the node that operationType makes of leaf l.
+         */
+        private static int kcountAfter(Node l, OperationType operationType) {
+            switch (operationType) {
+                case SIMPLE_INSERT:
+                    return l.kcount + 1;
+                case SIMPLE_DELETE:
+                    return l.kcount - 1;
+                default:
+                    return l.kcount;
+            }
+        }
+
+        // Constructor to create flagged node
+        // @param b we set isFlagged to b
+        Node(Node n, boolean b) {
+            this(n, b ? FLAGGED : 0);
+        }
+
+        /**
+         * Constructor for a copy of n in the given state, sharing its keys
+         * and children.
+         */
+        private Node(Node n, int state) {
+            super(n.kcount, n.children, state);
+            this.keys = n.keys;
+        }
+
+        @Override
+        Node copy(int state) {
+            return new Node(this, state);
+        }
+
+        boolean hasKey(double key) {
+            return KeySearch.contains(keys, kcount, key);
+        }
+    }
+}
@@ -7,9 +7,12 @@
  */
 package se.chalmers.dcs.bapic.concurrentset.Sets;
 
+import java.util.ArrayDeque;
+import java.util.Iterator;
 import java.util.LinkedList;
 import se.chalmers.dcs.bapic.concurrentset.utils.*;
 import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.function.Consumer;
 
 /**
  *
@@ -92,7 +95,10 @@ public class EFRBLFBST implements SetADT {
          */
         newNode = new Node(key);
 
+        int depth = -1;
         while (true) {
+            ContentionStats.restart(depth);
+            depth = 0;
 
             /**
              * SEARCH
@@ -102,6 +108,7 @@ public class EFRBLFBST implements SetADT {
             l = p.left;
 
             while (l.left != null) {
+                depth ++;
                 p = l;
                 l = key.compareTo(l.key)
                     ? l.left
@@ -137,7 +144,7 @@ public class EFRBLFBST implements SetADT {
                 final IInfo newPInfo = new IInfo(l, p, newInternal);
 
                 // try to IFlag parent
-                if (infoUpdater.compareAndSet(p, pinfo, newPInfo)) {
+                if (ContentionStats.cas(infoUpdater.compareAndSet(p, pinfo, newPInfo))) {
                     helpInsert(newPInfo);
 
                     return true;
@@ -174,7 +181,10 @@ public class EFRBLFBST implements SetADT {
         /**
          * END SEARCH VARIABLES
          */
+        int depth = -1;
         while (true) {
+            ContentionStats.restart(depth);
+            depth = 0;
 
             /**
              * SEARCH
@@ -186,6 +196,7 @@ public class EFRBLFBST implements SetADT {
             l = p.left;
 
             while (l.left != null) {
+                depth ++;
                 gp = p;
                 p = l;
                 l = (key.compareTo(l.key))
@@ -228,7 +239,7 @@ public class EFRBLFBST implements SetADT {
                 // try to DFlag grandparent
                 final DInfo newGPInfo = new DInfo(l, p, gp, pinfo);
 
-                if (infoUpdater.compareAndSet(gp, gpinfo, newGPInfo)) {
+                if (ContentionStats.cas(infoUpdater.compareAndSet(gp, gpinfo, newGPInfo))) {
                     if (helpDelete(newGPInfo)) {
                         return true;
                     }
@@ -248,16 +259,16 @@ public class EFRBLFBST implements SetADT {
 //   - helpDelete
 //  --------------------------------------------------------------------------------
     private void helpInsert(final IInfo info) {
-        ((info.p.left == info.l)
-         ? leftUpdater
-         : rightUpdater).compareAndSet(info.p, info.l, info.newInternal);
-        infoUpdater.compareAndSet(info.p, info, new Clean());
+        ContentionStats.cas(((info.p.left == info.l)
+                             ? leftUpdater
+                             : rightUpdater).compareAndSet(info.p, info.l, info.newInternal));
+        ContentionStats.cas(infoUpdater.compareAndSet(info.p, info, new Clean()));
     }
 
     private boolean helpDelete(final DInfo info) {
         final boolean result;
 
-        result = infoUpdater.compareAndSet(info.p, info.pinfo, new Mark(info));
+        result = ContentionStats.cas(infoUpdater.compareAndSet(info.p, info.pinfo, new Mark(info)));
 
         final Info currentPInfo = info.p.info;
 
@@ -269,13 +280,14 @@ public class EFRBLFBST implements SetADT {
         }
         else {
             help(currentPInfo);
-            infoUpdater.compareAndSet(info.gp, info, new Clean());
+            ContentionStats.cas(infoUpdater.compareAndSet(info.gp, info, new Clean()));
 
             return false;
         }
     }
 
     private void help(final Info info) {
+        ContentionStats.help();
         if (info.getClass() == IInfo.class) {
             helpInsert((IInfo) info);
         }
@@ -292,10 +304,10 @@ public class EFRBLFBST implements SetADT {
                            ? info.p.left
                            : info.p.right;
 
-        ((info.gp.left == info.p)
-         ? leftUpdater
-         : rightUpdater).compareAndSet(info.gp, info.p, other);
-        infoUpdater.compareAndSet(info.gp, info, new Clean());
+        ContentionStats.cas(((info.gp.left == info.p)
+                             ? leftUpdater
+                             : rightUpdater).compareAndSet(info.gp, info.p, other));
+        ContentionStats.cas(infoUpdater.compareAndSet(info.gp, info, new Clean()));
     }
 
     /**
@@ -357,12 +369,18 @@ public class EFRBLFBST implements SetADT {
     }
 
     private void inorder(Node node, LinkedList<K> list) {
-        if (node.left == null) {
-            list.add(node.key);
-            return;
+        // an explicit stack, so a degenerate tree does not overflow the call stack
+        ArrayDeque<Node> stack = new ArrayDeque<>();
+        stack.push(node);
+        while ( ! stack.isEmpty()) {
+            node = stack.pop();
+            if (node.left == null) {
+                list.add(node.key);
+                continue;
+            }
+            stack.push(node.right);
+            stack.push(node.left);
         }
-        inorder(node.left, list);
-        inorder(node.right, list);
     }
 
     /**
@@ -380,6 +398,147 @@ public class EFRBLFBST implements SetADT {
         return true;
     }
 
+    /**
+     *
+     * @param lo
+     * @param hi
+     * @param consumer
+     */
+    @Override
+    public void rangeScan(K lo, K hi, Consumer<K> consumer) {
+        rangeScan(root.left, lo, hi, consumer);
+    }
+
+    private void rangeScan(Node node, K lo, K hi, Consumer<K> consumer) {
+        // an explicit stack like inorder(), with the right child pushed first
+        ArrayDeque<Node> stack = new ArrayDeque<>();
+        stack.push(node);
+        while ( ! stack.isEmpty()) {
+            node = stack.pop();
+            if (node.left == null) {
+                // the sentinel leaves hold keys from K.MaxValue2 up, which are not in the set
+                if ( ! node.key.compareTo(lo) &&  ! hi.compareTo(node.key) && node.key.compareTo(K.MaxValue2)) {
+                    consumer.accept(node.key);
+                }
+                continue;
+            }
+            if ( ! hi.compareTo(node.key)) {
+                stack.push(node.right);
+            }
+            if (lo.compareTo(node.key)) {
+                stack.push(node.left);
+            }
+        }
+    }
+
+    /**
+     * Weakly consistent iterator, see TreeIterator.
+     *
+     * @param from
+     * @return
+     */
+    @Override
+    public Iterator<K> iterator(K from) {
+        return new KeyIterator(from, false);
+    }
+
+    /**
+     *
+     * @return
+     */
+    @Override
+    public int height() {
+        return new KeyIterator(null, false).height();
+    }
+
+    /**
+     * Walks the tree like height(), see TreeIterator.shape(). The bytes of a node are the node and
+     * its Info record.
+     *
+     * @return
+     */
+    @Override
+    public TreeShape shape() {
+        return new KeyIterator(null, false).shape();
+    }
+
+    /**
+     * Weakly consistent like iterator(K), walking the tree backwards.
+     *
+     * @param from
+     * @return
+     */
+    @Override
+    public Iterator<K> descendingIterator(K from) {
+        return new KeyIterator(from, true);
+    }
+
+    /**
+     * Best effort: the first key of a weakly consistent iterator.
+     *
+     * @param key
+     * @return
+     */
+    @Override
+    public K ceiling(K key) {
+        return new KeyIterator(key, false).nextOrNull();
+    }
+
+    @Override
+    public K higher(K key) {
+        return new KeyIterator(key, false).nextExcept(key);
+    }
+
+    @Override
+    public K floor(K key) {
+        return new KeyIterator(key, true).nextOrNull();
+    }
+
+    @Override
+    public K lower(K key) {
+        return new KeyIterator(key, true).nextExcept(key);
+    }
+
+    private final class KeyIterator extends TreeIterator<Node> {
+
+        KeyIterator(K from, boolean descending) {
+            super(root, from, descending);
+        }
+
+        @Override
+        protected boolean isLeaf(Node n) {
+            return n.left == null;
+        }
+
+        @Override
+        protected int childCount(Node n) {
+            return 2;
+        }
+
+        @Override
+        protected Node child(Node n, int i) {
+            return i == 0 ? n.left : n.right;
+        }
+
+        @Override
+        protected int childIndex(Node n, K key) {
+            return key.compareTo(n.key) ? 0 : 1;
+        }
+
+        @Override
+        protected void keys(Node n) {
+            // the sentinel leaves hold keys from K.MaxValue2 up, which are not in the set
+            if (n.key.compareTo(K.MaxValue2)) {
+                buffer(n.key);
+            }
+        }
+
+        @Override
+        protected long bytes(Node n) {
+            return ObjectLayout.sizeOf(n) + ObjectLayout.sizeOf(n.info);
+        }
+    }
+
     /**
      *
      */
@@ -8,6 +8,7 @@ package se.chalmers.dcs.bapic.concurrentset.Sets;
 
 import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 import se.chalmers.dcs.bapic.concurrentset.utils.*;
+import java.util.function.Consumer;
 
 /**
  *
@@ -31,7 +32,7 @@ public class HarrisLinkedList implements SetADT {
         }
 
         private boolean casNext(Node o, Node n) {
-            return nextUpdater.compareAndSet(this, o, n);
+            return ContentionStats.cas(nextUpdater.compareAndSet(this, o, n));
         }
     }
 
@@ -66,9 +67,12 @@ public class HarrisLinkedList implements SetADT {
      */
     public boolean add(K key) {
         Node pred = null, curr = null, succ = null;
+        int depth = -1;
         retry:
         // purpose of outermost while loop is for implementing goto only..
         while (true) {
+            ContentionStats.restart(depth);
+            depth = 0;
             // initialization
             pred = head;
             curr = pred.next;
@@ -76,6 +80,7 @@ public class HarrisLinkedList implements SetADT {
             while (true) {
                 succ = curr.next;
                 while (succ instanceof Marker) {
+                    ContentionStats.help();
                     succ = succ.next;
                     // snip curr and marker
                     if ( ! pred.casNext(curr, succ)) {
@@ -88,6 +93,7 @@ public class HarrisLinkedList implements SetADT {
                 if (curr.key.compareTo(key)) {
                     pred = curr;
                     curr = succ;
+                    depth ++;
                 } // key exists
                 else if (curr.key.equals(key)) {
                     return false;
@@ -115,9 +121,12 @@ public class HarrisLinkedList implements SetADT {
     public boolean remove(K key) {
         Node pred = null, curr = null, succ = null;
 //        boolean[] marked = {false};
+        int depth = -1;
         retry:
         // purpose of outermost while loop is for implementing goto only..
         while (true) {
+            ContentionStats.restart(depth);
+            depth = 0;
             // initialization
             pred = head;
             curr = pred.next;
@@ -125,6 +134,7 @@ public class HarrisLinkedList implements SetADT {
             while (true) {
                 succ = curr.next;
                 while (succ instanceof Marker) {
+                    ContentionStats.help();
                     succ = succ.next;
                     if ( ! pred.casNext(curr, succ)) {
                         continue retry;
@@ -136,6 +146,7 @@ public class HarrisLinkedList implements SetADT {
                 if (curr.key.compareTo(key)) {
                     pred = curr;
                     curr = succ;
+                    depth ++;
                 } // key found: do remove
                 else if (curr.key.equals(key)) {
                     if ( ! curr.casNext(succ, new Marker(succ))) {
@@ -187,6 +198,24 @@ public class HarrisLinkedList implements SetADT {
         return (key.equals(curr.key) && ( ! (curr.next instanceof Marker)));
     }
 
+    /**
+     *
+     * @param lo
+     * @param hi
+     * @param consumer
+     */
+    @Override
+    public void rangeScan(K lo, K hi, Consumer<K> consumer) {
+        Node curr = head.next;
+        while (curr != tail &&  ! hi.compareTo(curr.key)) {
+            Node succ = curr.next;
+            if ( ! (curr instanceof Marker) &&  ! (succ instanceof Marker) &&  ! curr.key.compareTo(lo)) {
+                consumer.accept(curr.key);
+            }
+            curr = succ;
+        }
+    }
+
     /**
      *
      */
@@ -30,6 +30,7 @@ package se.chalmers.dcs.bapic.concurrentset.Sets;
 import java.util.LinkedList;
 import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 import se.chalmers.dcs.bapic.concurrentset.utils.*;
+import java.util.function.Consumer;
 
 /**
  *
@@ -329,6 +330,40 @@ public class HelpAwareInternalLFBST implements SetADT {
         return true;
     }
 
+    /**
+     *
+     * @param lo
+     * @param hi
+     * @param consumer
+     */
+    @Override
+    public void rangeScan(K lo, K hi, Consumer<K> consumer) {
+        rangeScan(root.left, lo, hi, consumer);
+    }
+
+    /**
+     * In-order walk of the internal tree. Keys at or above K.MaxValue2 are
+     * order links and markers, which end a path; K.MinValue0 nodes are
+     * splices standing for their right child.
+     */
+    private void rangeScan(Node node, K lo, K hi, Consumer<K> consumer) {
+        while (node.key.equals(K.MinValue0)) {
+            node = node.right;
+        }
+        if ( ! node.key.compareTo(K.MaxValue2)) {
+            return;
+        }
+        if (lo.compareTo(node.key)) {
+            rangeScan(node.left, lo, hi, consumer);
+        }
+        if (node.preLink == null &&  ! node.key.compareTo(lo) &&  ! hi.compareTo(node.key)) {
+            consumer.accept(node.key);
+        }
+        if ( ! hi.compareTo(node.key)) {
+            rangeScan(node.right, lo, hi, consumer);
+        }
+    }
+
     protected static class Node {
 
         final K key;
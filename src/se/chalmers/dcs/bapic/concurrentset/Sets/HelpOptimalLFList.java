@@ -29,6 +29,7 @@ package se.chalmers.dcs.bapic.concurrentset.Sets;
 
 import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 import se.chalmers.dcs.bapic.concurrentset.utils.*;
+import java.util.function.Consumer;
 
 /**
  *
@@ -101,6 +102,7 @@ public class HelpOptimalLFList implements SetADT {
             if (pre.casNext(suc, new Node(key, cur))) {
                 return true;
             }
+            ContentionStats.retry();
             suc = pre.next;
             while (suc.back != null) {
                 pre = suc.back;
@@ -145,6 +147,7 @@ public class HelpOptimalLFList implements SetADT {
                         mode = false;
                         break;
                     }
+                    ContentionStats.retry();
                     nex = cur.next;
                     if (nex.back != null) {
                         return false;
@@ -155,6 +158,7 @@ public class HelpOptimalLFList implements SetADT {
                 return true;
             }
 
+            ContentionStats.retry();
             suc = pre.next;
             while (suc.back != null) {
                 pre = suc.back;
@@ -182,6 +186,24 @@ public class HelpOptimalLFList implements SetADT {
         return true;
     }
 
+    /**
+     *
+     * @param lo
+     * @param hi
+     * @param consumer
+     */
+    @Override
+    public void rangeScan(K lo, K hi, Consumer<K> consumer) {
+        Node cur = getNext(headNext);
+        while (cur != tail &&  ! hi.compareTo(cur.key)) {
+            Node nex = cur.next;
+            if (cur.back == null && nex.back == null &&  ! cur.key.compareTo(lo)) {
+                consumer.accept(cur.key);
+            }
+            cur = nex;
+        }
+    }
+
     /**
      *
      */
@@ -221,7 +243,7 @@ public class HelpOptimalLFList implements SetADT {
                                                                      = AtomicReferenceFieldUpdater.newUpdater(Node.class, Node.class, "next");
 
         private boolean casNext(Node o, Node n) {
-            return this.next == o && nextUpdater.compareAndSet(this, o, n);
+            return this.next == o && ContentionStats.cas(nextUpdater.compareAndSet(this, o, n));
         }
     }
 }
@@ -27,10 +27,17 @@
  */
 package se.chalmers.dcs.bapic.concurrentset.Sets;
 
+import java.util.ArrayDeque;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import se.chalmers.dcs.bapic.concurrentset.utils.ContentionStats;
 import se.chalmers.dcs.bapic.concurrentset.utils.K;
+import se.chalmers.dcs.bapic.concurrentset.utils.ObjectLayout;
 import se.chalmers.dcs.bapic.concurrentset.utils.SetADT;
+import se.chalmers.dcs.bapic.concurrentset.utils.TreeIterator;
+import se.chalmers.dcs.bapic.concurrentset.utils.TreeShape;
+import java.util.function.Consumer;
 
 /**
  *
@@ -76,8 +83,8 @@ public class HelpOptimalLocalRestartLFBST implements SetADT {
 
     boolean casChild(Node n, Node cmp, Node newNode, boolean childDir) {
         return childDir
-               ? (n.left == cmp ? leftUpdater.compareAndSet(n, cmp, newNode) : false)
-               : (n.right == cmp ? rightUpdater.compareAndSet(n, cmp, newNode) : false);
+               ? (n.left == cmp ? ContentionStats.cas(leftUpdater.compareAndSet(n, cmp, newNode)) : false)
+               : (n.right == cmp ? ContentionStats.cas(rightUpdater.compareAndSet(n, cmp, newNode)) : false);
     }
 
     private Node getNull(K key) {
@@ -104,6 +111,7 @@ public class HelpOptimalLocalRestartLFBST implements SetADT {
             if (child.back != null || casChild(parent, child, getFlagged(child, ancestor), childDir)) {
                 return child;
             }
+            ContentionStats.retry();
         }
     }
 
@@ -171,6 +179,8 @@ public class HelpOptimalLocalRestartLFBST implements SetADT {
                     }
                 }
                 else {
+                    // child is being removed, finish its removal with the insertion
+                    ContentionStats.help();
                     Node sibling = getRef(appendFlag(parent, ancestor,  ! childDir));
                     newInternal = sibling.right == sibling ? new Node(key)
                                   : (key.compareTo(sibling.key)
@@ -182,6 +192,7 @@ public class HelpOptimalLocalRestartLFBST implements SetADT {
                 }
             }
 
+            ContentionStats.retry();
             successor = getChild(ancestor, key.compareTo(ancestor.key));
             while (successor.back != null) {
                 ancestor = successor.back;
@@ -248,6 +259,7 @@ public class HelpOptimalLocalRestartLFBST implements SetADT {
                     return true;
                 }
             }
+            ContentionStats.retry();
             successor = getChild(ancestor, key.compareTo(ancestor.key));
             while (successor.back != null) {
                 ancestor = successor.back;
@@ -259,14 +271,20 @@ public class HelpOptimalLocalRestartLFBST implements SetADT {
     }
 
     private void inorder(Node node, LinkedList<K> list) {
-        if (node.left == null) {
-            if (node.right == null) {
-                list.add(node.key);
+        // an explicit stack, so a degenerate tree does not overflow the call stack
+        ArrayDeque<Node> stack = new ArrayDeque<>();
+        stack.push(node);
+        while ( ! stack.isEmpty()) {
+            node = stack.pop();
+            if (node.left == null) {
+                if (node.right == null) {
+                    list.add(node.key);
+                }
+                continue;
             }
-            return;
+            stack.push(node.right);
+            stack.push(node.left);
         }
-        inorder(node.left, list);
-        inorder(node.right, list);
     }
 
     /**
@@ -284,6 +302,151 @@ public class HelpOptimalLocalRestartLFBST implements SetADT {
         return true;
     }
 
+    /**
+     *
+     * @param lo
+     * @param hi
+     * @param consumer
+     */
+    @Override
+    public void rangeScan(K lo, K hi, Consumer<K> consumer) {
+        rangeScan(cRoot, lo, hi, consumer);
+    }
+
+    /**
+     * Splice nodes carry K.MinValue0 as their key, so the walk always goes
+     * right from them, into the node they stand for.
+     */
+    private void rangeScan(Node node, K lo, K hi, Consumer<K> consumer) {
+        // an explicit stack like inorder(), with the right child pushed first
+        ArrayDeque<Node> stack = new ArrayDeque<>();
+        stack.push(node);
+        while ( ! stack.isEmpty()) {
+            node = stack.pop();
+            if (node.left == null) {
+                K key = getKey(node);
+                // the sentinel leaves hold keys from K.MaxValue2 up, which are not in the set
+                if (node.right != node &&  ! key.compareTo(lo) &&  ! hi.compareTo(key) && key.compareTo(K.MaxValue2)) {
+                    consumer.accept(key);
+                }
+                continue;
+            }
+            if ( ! hi.compareTo(node.key)) {
+                stack.push(node.right);
+            }
+            if (lo.compareTo(node.key)) {
+                stack.push(node.left);
+            }
+        }
+    }
+
+    /**
+     * Weakly consistent iterator, see TreeIterator.
+     *
+     * @param from
+     * @return
+     */
+    @Override
+    public Iterator<K> iterator(K from) {
+        return new KeyIterator(from, false);
+    }
+
+    /**
+     *
+     * @return
+     */
+    @Override
+    public int height() {
+        return new KeyIterator(null, false).height();
+    }
+
+    /**
+     * Walks the tree like height(), see TreeIterator.shape(). The bytes of a node are the node.
+     *
+     * @return
+     */
+    @Override
+    public TreeShape shape() {
+        return new KeyIterator(null, false).shape();
+    }
+
+    /**
+     * Weakly consistent like iterator(K), walking the tree backwards.
+     *
+     * @param from
+     * @return
+     */
+    @Override
+    public Iterator<K> descendingIterator(K from) {
+        return new KeyIterator(from, true);
+    }
+
+    /**
+     * Best effort: the first key of a weakly consistent iterator.
+     *
+     * @param key
+     * @return
+     */
+    @Override
+    public K ceiling(K key) {
+        return new KeyIterator(key, false).nextOrNull();
+    }
+
+    @Override
+    public K higher(K key) {
+        return new KeyIterator(key, false).nextExcept(key);
+    }
+
+    @Override
+    public K floor(K key) {
+        return new KeyIterator(key, true).nextOrNull();
+    }
+
+    @Override
+    public K lower(K key) {
+        return new KeyIterator(key, true).nextExcept(key);
+    }
+
+    private final class KeyIterator extends TreeIterator<Node> {
+
+        KeyIterator(K from, boolean descending) {
+            super(cRoot, from, descending);
+        }
+
+        @Override
+        protected boolean isLeaf(Node n) {
+            return n.left == null;
+        }
+
+        @Override
+        protected int childCount(Node n) {
+            return 2;
+        }
+
+        @Override
+        protected Node child(Node n, int i) {
+            return i == 0 ? n.left : n.right;
+        }
+
+        @Override
+        protected int childIndex(Node n, K key) {
+            return key.compareTo(n.key) ? 0 : 1;
+        }
+
+        @Override
+        protected void keys(Node n) {
+            K key = getKey(n);
+            if (n.right != n && key.compareTo(K.MaxValue2)) {
+                buffer(key);
+            }
+        }
+
+        @Override
+        protected long bytes(Node n) {
+            return ObjectLayout.sizeOf(n);
+        }
+    }
+
     /**
      *
      */
@@ -1,17 +1,154 @@
 package se.chalmers.dcs.bapic.concurrentset.Sets;
 
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.PrimitiveIterator;
+import java.util.Spliterator;
+import java.util.function.Consumer;
 import se.chalmers.dcs.bapic.concurrentset.utils.*;
 
 public class KBST implements SetADT{
 
     final Node root;
     final int numChildren;
+    // null unless leaves are recycled, leaves of i keys are in bucket i
+    final EpochReclaimer<Node> reclaimer;
+    final SizeCounter size = new SizeCounter();
 
     public KBST(int numChildren) {
+        this(numChildren, false);
+    }
+
+    /**
+     * With recycleNodes, leaves replaced by add() and remove() are reused
+     * for new leaves of the same size once no operation can still hold
+     * them, see EpochReclaimer. Every operation then pays for announcing
+     * its epoch, in exchange for allocating far less.
+     *
+     * @param numChildren
+     * @param recycleNodes
+     */
+    public KBST(int numChildren, boolean recycleNodes) {
         this.numChildren = numChildren;
         root = new Node(numChildren, true);
+        reclaimer = recycleNodes ? new EpochReclaimer<>(numChildren) : null;
+    }
+
+    /**
+     * Bulk loading constructor, see bulkLoad().
+     *
+     * @param numChildren
+     * @param sortedKeys strictly ascending keys
+     */
+    public KBST(int numChildren, double[] sortedKeys) {
+        this(numChildren, Arrays.stream(sortedKeys).iterator());
+    }
+
+    /**
+     * Bulk loading constructor, see bulkLoad().
+     *
+     * @param numChildren
+     * @param sortedKeys strictly ascending keys
+     */
+    public KBST(int numChildren, PrimitiveIterator.OfDouble sortedKeys) {
+        this(numChildren, sortedKeys, false);
+    }
+
+    /**
+     * Bulk loading constructor, see bulkLoad() and KBST(int, boolean).
+     *
+     * @param numChildren
+     * @param sortedKeys strictly ascending keys
+     * @param recycleNodes
+     */
+    public KBST(int numChildren, PrimitiveIterator.OfDouble sortedKeys, boolean recycleNodes) {
+        this(numChildren, recycleNodes);
+        // the tree is not published yet, so a plain write is enough
+        root.child(0).children[0] = bulkLoad(numChildren, size.counting(sortedKeys));
+    }
+
+    /**
+     * Builds a packed tree over the sorted keys bottom-up in O(n), without
+     * any CAS. Every leaf but the last holds numChildren - 1 keys, and every
+     * internal node but the last of its level has numChildren non-empty
+     * children. The last internal node of a level is padded with empty
+     * leaves behind K.MaxValue0 routing keys, which no real key reaches.
+     *
+     * @throws IllegalArgumentException if the keys are not strictly ascending
+     */
+    static Node bulkLoad(int numChildren, PrimitiveIterator.OfDouble sortedKeys) {
+        ArrayList<Node> level = new ArrayList<>();
+        ArrayList<K> minKeys = new ArrayList<>();
+        K[] leafKeys = new K[numChildren - 1];
+        int count = 0;
+        K previous = null;
+
+        while (sortedKeys.hasNext()) {
+            K key = new K(sortedKeys.nextDouble());
+            if (previous != null && !previous.compareTo(key)) {
+                throw new IllegalArgumentException("keys are not strictly ascending at " + key.getValue());
+            }
+            previous = key;
+            leafKeys[count++] = key;
+            if (count == numChildren - 1) {
+                level.add(new Node(Arrays.copyOf(leafKeys, count), null));
+                minKeys.add(leafKeys[0]);
+                count = 0;
+            }
+        }
+        if (count > 0) {
+            level.add(new Node(Arrays.copyOf(leafKeys, count), null));
+            minKeys.add(leafKeys[0]);
+        }
+        if (level.isEmpty()) {
+            return new Node();
+        }
+        return buildLevels(numChildren, level, minKeys);
+    }
+
+    /**
+     * Builds a packed subtree over strictly ascending keys, for a batch that
+     * overflows a single leaf. Same shape as bulkLoad().
+     */
+    static Node buildSubtree(int numChildren, K[] sortedKeys) {
+        ArrayList<Node> level = new ArrayList<>();
+        ArrayList<K> minKeys = new ArrayList<>();
+        for (int first = 0; first < sortedKeys.length; first += numChildren - 1) {
+            int last = Math.min(first + numChildren - 1, sortedKeys.length);
+            level.add(new Node(Arrays.copyOfRange(sortedKeys, first, last), null));
+            minKeys.add(sortedKeys[first]);
+        }
+        return buildLevels(numChildren, level, minKeys);
+    }
+
+    /**
+     * Stacks internal levels over a non-empty level of nodes, given the
+     * smallest key below each node, until a single node remains.
+     */
+    private static Node buildLevels(int numChildren, ArrayList<Node> level, ArrayList<K> minKeys) {
+        while (level.size() > 1) {
+            ArrayList<Node> parents = new ArrayList<>();
+            ArrayList<K> parentMinKeys = new ArrayList<>();
+            for (int first = 0; first < level.size(); first += numChildren) {
+                int used = Math.min(numChildren, level.size() - first);
+                K[] keys = new K[numChildren - 1];
+                Node[] children = new Node[numChildren];
+                for (int j = 0; j < numChildren; j++) {
+                    children[j] = (j < used) ? level.get(first + j) : new Node();
+                }
+                // child j holds the keys in [keys[j-1], keys[j])
+                for (int j = 0; j < numChildren - 1; j++) {
+                    keys[j] = (j + 1 < used) ? minKeys.get(first + j + 1) : K.MaxValue0;
+                }
+                parents.add(new Node(keys, children));
+                parentMinKeys.add(minKeys.get(first));
+            }
+            level = parents;
+            minKeys = parentMinKeys;
+        }
+        return level.get(0);
     }
 
     boolean isInternalNode(Node n) {
@@ -19,36 +156,180 @@ public class KBST implements SetADT{
     }
 
     Node getChild(final Node n, K key) {
-        int i = 0;
-        while (i < n.kcount) {
-            if (key.compareTo(n.keys[i])) {
-                break;
-            }
-            i++;
-        }
-        return n.children.get(i);
+        return n.child(getChildIndex(n, key));
     }
 
     int getChildIndex(final Node n, K key) {
-        int i = 0;
-        while (i < n.kcount) {
-            if (key.compareTo(n.keys[i])) {
-                break;
-            }
-            i++;
+        return KeySearch.upperBound(n.keyValues, n.kcount, key.getValue());
+    }
+
+    private EpochReclaimer.Participant<Node> enter() {
+        return (reclaimer == null) ? null : reclaimer.enter();
+    }
+
+    private static void exit(EpochReclaimer.Participant<Node> pool) {
+        if (pool != null) {
+            pool.exit();
         }
-        return i;
     }
 
     public final boolean contains(final K key) {
-        Node current = root;
-        while (isInternalNode(current)) {
-            current = getChild(current, key);
+        EpochReclaimer.Participant<Node> pool = enter();
+        try {
+            Node current = root;
+            while (isInternalNode(current)) {
+                current = getChild(current, key);
+            }
+            return (current.hasKey(key));
+        }
+        finally {
+            exit(pool);
         }
-        return (current.hasKey(key));
     }
 
     public final boolean add(K key) {
+        EpochReclaimer.Participant<Node> pool = enter();
+        try {
+            if (add(key, null, pool) == null) {
+                size.increment();
+                return true;
+            }
+            return false;
+        }
+        finally {
+            exit(pool);
+        }
+    }
+
+    public final boolean remove(K key) {
+        EpochReclaimer.Participant<Node> pool = enter();
+        try {
+            if (remove(key, null, pool)) {
+                size.decrement();
+                return true;
+            }
+            return false;
+        }
+        finally {
+            exit(pool);
+        }
+    }
+
+    /**
+     * The value of key, or null if it is absent, for KBSTMap. Linearized at
+     * the read of the leaf, like contains().
+     */
+    final Object getValue(K key) {
+        EpochReclaimer.Participant<Node> pool = enter();
+        try {
+            Node current = root;
+            while (isInternalNode(current)) {
+                current = getChild(current, key);
+            }
+            return current.valueOf(key);
+        }
+        finally {
+            exit(pool);
+        }
+    }
+
+    /**
+     * Adds key with value unless key is present, for KBSTMap.
+     *
+     * @return the value key already had, or null if it was added
+     */
+    final Object putValueIfAbsent(K key, Object value) {
+        EpochReclaimer.Participant<Node> pool = enter();
+        try {
+            Node present = add(key, value, pool);
+            if (present == null) {
+                size.increment();
+                return null;
+            }
+            return present.valueOf(key);
+        }
+        finally {
+            exit(pool);
+        }
+    }
+
+    /**
+     * Removes key if its value equals expected, for KBSTMap.
+     */
+    final boolean removeValue(K key, Object expected) {
+        EpochReclaimer.Participant<Node> pool = enter();
+        try {
+            if (remove(key, expected, pool)) {
+                size.decrement();
+                return true;
+            }
+            return false;
+        }
+        finally {
+            exit(pool);
+        }
+    }
+
+    /**
+     * Gives key the value value if its value equals expected, for KBSTMap.
+     */
+    final boolean replaceValue(K key, Object expected, Object value) {
+        EpochReclaimer.Participant<Node> pool = enter();
+        try {
+            return replace(key, expected, value, pool);
+        }
+        finally {
+            exit(pool);
+        }
+    }
+
+    /**
+     * The leaf or sprouted subtree that replaces l in add() and remove(),
+     * built from recycled leaves where the pool has some.
+     */
+    private static Node newNode(K key, Object value, Node l, OperationType operationType, EpochReclaimer.Participant<Node> pool) {
+        // leaves with values are not recycled
+        if (pool != null && value == null && l.values == null) {
+            if (operationType == OperationType.SIMPLE_INSERT) {
+                Node n = pool.reuse(l.kcount + 1);
+                if (n != null) {
+                    return n.reuseWith(key, l);
+                }
+            }
+            else if (operationType == OperationType.SIMPLE_DELETE) {
+                Node n = pool.reuse(l.kcount - 1);
+                if (n != null) {
+                    return n.reuseWithout(key, l);
+                }
+            }
+        }
+        return new Node(key, value, l, operationType, pool);
+    }
+
+    private static Node emptyLeaf(EpochReclaimer.Participant<Node> pool) {
+        Node n = (pool == null) ? null : pool.reuse(0);
+        return (n == null) ? new Node() : n.reuseEmpty();
+    }
+
+    /**
+     * Hands a leaf that the calling thread has just replaced by a CAS over
+     * to its pool. Only clean leaves get here: the arrays of a leaf are
+     * shared with its flagged and tagged copies, which are never retired.
+     * Leaves with values share their keys with the copies that replace their
+     * values, so they are not recycled either.
+     */
+    private static void retire(Node leaf, EpochReclaimer.Participant<Node> pool) {
+        if (pool != null && leaf.values == null) {
+            pool.retire(leaf, leaf.kcount);
+        }
+    }
+
+    /**
+     * Adds key, with value unless that is null.
+     *
+     * @return null if key was added, otherwise the leaf that holds it
+     */
+    private Node add(K key, Object value, EpochReclaimer.Participant<Node> pool) {
         // StringBuffer sb = new StringBuffer();
         // treeString(sb);
         // System.out.println(sb);
@@ -56,17 +337,21 @@ public class KBST implements SetADT{
 
         Node newNode, parent, ancestor, terminal, successor;
 
+        int depth = -1;
         while (true) {
+            ContentionStats.restart(depth);
+            depth = 0;
             ancestor = root;
-            successor = parent = root.children.get(0);
-            terminal = parent.children.get(0);
+            successor = parent = root.child(0);
+            terminal = parent.child(0);
 
             while (isInternalNode(terminal)) {
+                depth++;
 
                 /**
                  * The While loop implements the seek() method of the paper
                  */
-                if (!terminal.isTagged.get()) {
+                if (!terminal.isTagged()) {
                     ancestor = parent;
                     successor = terminal;
                 }
@@ -75,7 +360,7 @@ public class KBST implements SetADT{
                 terminal = getChild(parent, key);
             }
             if (terminal.hasKey(key)) {
-                return false;
+                return terminal;
             }
 
             OperationType operationType;
@@ -84,22 +369,28 @@ public class KBST implements SetADT{
             } else {
                 operationType = OperationType.SIMPLE_INSERT;
             }
-            newNode = new Node(key, terminal, operationType);
+            newNode = newNode(key, value, terminal, operationType, pool);
 
             int terminalIndex = getChildIndex(parent, key);
 
-            if (!terminal.isFlagged.get() && !terminal.isTagged.get()) {
-                if (parent.children.compareAndSet(terminalIndex, terminal, newNode)) {
-                    return true;
+            if (terminal.isClean()) {
+                if (parent.casChild(terminalIndex, terminal, newNode)) {
+                    retire(terminal, pool);
+                    return null;
                 }
             }
-            else if (terminal == parent.children.get(terminalIndex) && (terminal.isFlagged.get() || terminal.isTagged.get())) {
-                cleanUp(ancestor, successor, parent, key);
+            else if (terminal == parent.child(terminalIndex) && !terminal.isClean()) {
+                ContentionStats.help();
+                cleanUp(ancestor, successor, parent, key, pool);
             }
         }
     }
 
-    public final boolean remove(K key) {
+    /**
+     * Removes key, if expected is not null only while its value equals
+     * expected.
+     */
+    private boolean remove(K key, Object expected, EpochReclaimer.Participant<Node> pool) {
         // StringBuffer sb = new StringBuffer();
         // treeString(sb);
         // System.out.println(sb);
@@ -107,17 +398,21 @@ public class KBST implements SetADT{
 
         int mode = 1;    // 1:- INJECTION, 2:- CLEANUP
         Node parent, terminal, ancestor, successor, newNode = null;
+        int depth = -1;
         while (true) {
+            ContentionStats.restart(depth);
+            depth = 0;
             ancestor = root;
-            successor = parent = root.children.get(0);
-            terminal = parent.children.get(0);
+            successor = parent = root.child(0);
+            terminal = parent.child(0);
 
             while (isInternalNode(terminal)) {
+                depth++;
 
                 /**
                  * The While loop implements the seek() method of the paper
                  */
-                if (!terminal.isTagged.get()) {
+                if (!terminal.isTagged()) {
                     ancestor = parent;
                     successor = terminal;
                 }
@@ -127,41 +422,44 @@ public class KBST implements SetADT{
             }
 
             if (mode == 1) {
-                if (!terminal.hasKey(key)) {
+                if (!terminal.hasKey(key) || (expected != null && !expected.equals(terminal.valueOf(key)))) {
                     return false;
                 }
                 boolean isSimpleDelete = false;
                 if (terminal.kcount > 1 || parent.getNonEmptyChildCount() != 2) {
                     isSimpleDelete = true;
-                    newNode = new Node(key, terminal, OperationType.SIMPLE_DELETE);
+                    newNode = newNode(key, null, terminal, OperationType.SIMPLE_DELETE, pool);
                 } 
                 else {
                     newNode = new Node(terminal, true);
                 }
                 int terminalIndex = getChildIndex(parent, key);
-                if (!terminal.isFlagged.get() && !terminal.isTagged.get()) {
-                    if (parent.children.compareAndSet(terminalIndex, terminal, newNode)) {
+                if (terminal.isClean()) {
+                    if (parent.casChild(terminalIndex, terminal, newNode)) {
                         if (isSimpleDelete) {
+                            retire(terminal, pool);
+                            compactAfterDelete(ancestor, successor, parent, newNode, key, pool);
                             return true;
                         }
                         else {
                             mode = 2;
-                            if (cleanUp(ancestor, successor, parent, key)) {
+                            if (cleanUp(ancestor, successor, parent, key, pool)) {
                                 return true;
                             }
                         }
                     }
                 }
-                else if (terminal == parent.children.get(terminalIndex) 
-                        && (terminal.isFlagged.get() || terminal.isTagged.get())) {
-                    cleanUp(ancestor, successor, parent, key);
+                else if (terminal == parent.child(terminalIndex) && !terminal.isClean()) {
+                    ContentionStats.help();
+                    cleanUp(ancestor, successor, parent, key, pool);
                 }
             }
             else { // Pruning Delete: mode == 2
-                if (!terminal.hasKey(key)) {
+                // a leaf with key that is not flagged means the flagged one is gone
+                if (!terminal.hasKey(key) || !terminal.isFlagged()) {
                     return true;
                 }
-                else if (cleanUp(ancestor, successor, parent, key)) {
+                else if (cleanUp(ancestor, successor, parent, key, pool)) {
                     return true;
                 }
             }
@@ -169,44 +467,456 @@ public class KBST implements SetADT{
     }
 
     /**
+     * Gives key the value value while its value equals expected, by
+     * replacing its leaf with a copy that differs in that value only. The
+     * copy shares the keys of the leaf, and the CAS that installs it is the
+     * linearization point, as for a simple insert.
+     */
+    private boolean replace(K key, Object expected, Object value, EpochReclaimer.Participant<Node> pool) {
+        Node parent, ancestor, terminal, successor;
+
+        int depth = -1;
+        while (true) {
+            ContentionStats.restart(depth);
+            depth = 0;
+            ancestor = root;
+            successor = parent = root.child(0);
+            terminal = parent.child(0);
+
+            while (isInternalNode(terminal)) {
+                depth++;
+                if (!terminal.isTagged()) {
+                    ancestor = parent;
+                    successor = terminal;
+                }
+
+                parent = terminal;
+                terminal = getChild(parent, key);
+            }
+            if (!terminal.hasKey(key) || !expected.equals(terminal.valueOf(key))) {
+                return false;
+            }
+
+            int terminalIndex = getChildIndex(parent, key);
+
+            if (terminal.isClean()) {
+                if (parent.casChild(terminalIndex, terminal, terminal.withValue(key, value))) {
+                    return true;
+                }
+            }
+            else if (terminal == parent.child(terminalIndex) && !terminal.isClean()) {
+                ContentionStats.help();
+                cleanUp(ancestor, successor, parent, key, pool);
+            }
+        }
+    }
+
+    /**
+     * Adds a batch of keys. The keys that fall into the same leaf are
+     * installed together with one node replacement, a leaf if they fit and a
+     * packed subtree otherwise, and the seek for the next leaf reuses the
+     * part of the previous path that still covers the next key. Each key is
+     * linearized at the CAS that installs it, or at the read of the leaf
+     * that already holds it.
+     *
+     * @param sortedKeys strictly ascending keys
+     * @return the number of keys added
+     */
+    @Override
+    public final int addAll(K[] sortedKeys) {
+        Tools.checkAscending(sortedKeys);
+        EpochReclaimer.Participant<Node> pool = enter();
+        try {
+            int added = addAll(sortedKeys, pool);
+            size.add(added);
+            return added;
+        }
+        finally {
+            exit(pool);
+        }
+    }
+
+    private int addAll(K[] sortedKeys, EpochReclaimer.Participant<Node> pool) {
+        BatchPath path = new BatchPath();
+        int added = 0;
+        int next = 0;
+        while (next < sortedKeys.length) {
+            path.seek(sortedKeys[next]);
+            Node parent = path.parent, terminal = path.terminal;
+            int end = path.groupEnd(sortedKeys, next);
+            K[] keys = terminal.keysWith(sortedKeys, next, end);
+            if (keys.length == terminal.kcount) {
+                next = end;
+                continue;
+            }
+            Node newNode = (keys.length < numChildren) ? new Node(keys, null) : buildSubtree(numChildren, keys);
+            if (terminal.isClean()) {
+                if (parent.casChild(path.terminalIndex, terminal, newNode)) {
+                    retire(terminal, pool);
+                    added += keys.length - terminal.kcount;
+                    next = end;
+                    continue;
+                }
+            }
+            else if (terminal == parent.child(path.terminalIndex) && !terminal.isClean()) {
+                ContentionStats.help();
+                cleanUp(path.ancestor, path.successor, parent, sortedKeys[next], pool);
+            }
+            path.reset();
+        }
+        return added;
+    }
+
+    /**
+     * Removes a batch of keys, replacing each leaf once for all of its keys
+     * in the batch. A leaf that would become empty while its parent has only
+     * one other non-empty child needs a pruning delete; those keys go
+     * through remove() one at a time.
+     *
+     * @param sortedKeys strictly ascending keys
+     * @return the number of keys removed
+     */
+    @Override
+    public final int removeAll(K[] sortedKeys) {
+        Tools.checkAscending(sortedKeys);
+        EpochReclaimer.Participant<Node> pool = enter();
+        try {
+            int removed = removeAll(sortedKeys, pool);
+            size.add(-removed);
+            return removed;
+        }
+        finally {
+            exit(pool);
+        }
+    }
+
+    private int removeAll(K[] sortedKeys, EpochReclaimer.Participant<Node> pool) {
+        BatchPath path = new BatchPath();
+        int removed = 0;
+        int next = 0;
+        while (next < sortedKeys.length) {
+            path.seek(sortedKeys[next]);
+            Node parent = path.parent, terminal = path.terminal;
+            int end = path.groupEnd(sortedKeys, next);
+            K[] keys = terminal.keysWithout(sortedKeys, next, end);
+            if (keys.length == terminal.kcount) {
+                next = end;
+                continue;
+            }
+            if (keys.length == 0 && parent.getNonEmptyChildCount() == 2) {
+                for (int i = next; i < end; i++) {
+                    if (remove(sortedKeys[i], null, pool)) {
+                        removed++;
+                    }
+                }
+                path.reset();
+                next = end;
+                continue;
+            }
+            Node newNode = (keys.length == 0) ? emptyLeaf(pool) : new Node(keys, null);
+            if (terminal.isClean()) {
+                if (parent.casChild(path.terminalIndex, terminal, newNode)) {
+                    retire(terminal, pool);
+                    removed += terminal.kcount - keys.length;
+                    compactAfterDelete(path.ancestor, path.successor, parent, newNode, sortedKeys[next], pool);
+                    next = end;
+                    continue;
+                }
+            }
+            else if (terminal == parent.child(path.terminalIndex) && !terminal.isClean()) {
+                ContentionStats.help();
+                cleanUp(path.ancestor, path.successor, parent, sortedKeys[next], pool);
+            }
+            path.reset();
+        }
+        return removed;
+    }
+
+    /**
+     * True if every key of the batch is present, each leaf being read once
+     * for all of its keys in the batch. Not atomic as a whole.
+     *
+     * @param sortedKeys strictly ascending keys
+     * @return
+     */
+    @Override
+    public final boolean containsAll(K[] sortedKeys) {
+        Tools.checkAscending(sortedKeys);
+        EpochReclaimer.Participant<Node> pool = enter();
+        try {
+            BatchPath path = new BatchPath();
+            int next = 0;
+            while (next < sortedKeys.length) {
+                path.seek(sortedKeys[next]);
+                int end = path.groupEnd(sortedKeys, next);
+                for (int i = next; i < end; i++) {
+                    if (!path.terminal.hasKey(sortedKeys[i])) {
+                        return false;
+                    }
+                }
+                next = end;
+            }
+            return true;
+        }
+        finally {
+            exit(pool);
+        }
+    }
+
+    /**
+     * The seek() of add() and remove() for ascending batches. The internal
+     * nodes of the last path are kept with the slot they were reached
+     * through and the upper bound of their key range. A later key below the
+     * bound of a recorded node takes the recorded slot at each level without
+     * comparing keys, and only the slots are re-read, top-down as in a fresh
+     * seek, so a node that was replaced in between is simply not reused.
+     */
+    private final class BatchPath {
+
+        private Node[] nodes = new Node[8];
+        private int[] slots = new int[8];
+        private K[] bounds = new K[8];    // exclusive upper bound of nodes[d], null is infinity
+        private int depth;
+
+        Node ancestor, successor, parent, terminal;
+        int terminalIndex;
+        private K terminalBound;
+
+        void reset() {
+            depth = 0;
+        }
+
+        void seek(K key) {
+            ancestor = root;
+            successor = parent = root.child(0);
+            boolean reuse = depth > 0 && nodes[0] == parent;
+            nodes[0] = parent;
+            bounds[0] = null;
+            K bound = null;
+            int d = 0;
+
+            while (true) {
+                int i;
+                if (reuse && d + 1 < depth && (bounds[d + 1] == null || key.compareTo(bounds[d + 1]))) {
+                    i = slots[d + 1];
+                    bound = bounds[d + 1];
+                }
+                else {
+                    reuse = false;
+                    i = getChildIndex(parent, key);
+                    // the K.MaxValue0 padding of bulk loaded nodes may exceed the inherited bound
+                    if (i < parent.kcount && (bound == null || parent.keys[i].compareTo(bound))) {
+                        bound = parent.keys[i];
+                    }
+                }
+                Node child = parent.child(i);
+                if (reuse && child != nodes[d + 1]) {
+                    reuse = false;
+                }
+                if (!isInternalNode(child)) {
+                    terminal = child;
+                    terminalIndex = i;
+                    terminalBound = bound;
+                    depth = d + 1;
+                    return;
+                }
+                if (!child.isTagged()) {
+                    ancestor = parent;
+                    successor = child;
+                }
+                parent = child;
+                d++;
+                if (d == nodes.length) {
+                    nodes = Arrays.copyOf(nodes, 2 * d);
+                    slots = Arrays.copyOf(slots, 2 * d);
+                    bounds = Arrays.copyOf(bounds, 2 * d);
+                }
+                nodes[d] = child;
+                slots[d] = i;
+                bounds[d] = bound;
+            }
+        }
+
+        /**
+         * End (exclusive) of the keys from sortedKeys[from] on that fall into
+         * the terminal of the last seek.
+         */
+        int groupEnd(K[] sortedKeys, int from) {
+            int end = from + 1;
+            while (end < sortedKeys.length && (terminalBound == null || sortedKeys[end].compareTo(terminalBound))) {
+                end++;
+            }
+            return end;
+        }
+    }
+
+    /**
+     * Replaces successor, the lowest untagged internal node on the path of
+     * the seek of key, in ancestor by its collapsed copy, see collapse().
+     * Below successor the path only has tagged nodes, so the children of
+     * successor are being frozen, and parent's are once it is successor.
      *
      * @param ancestor
      * @param successor
      * @param parent
      * @param key
-     * @return
+     * @param pool source of the empty leaves, or null
+     * @return true if parent, and so the terminal of the seek, was replaced
      */
-    protected final boolean cleanUp(Node ancestor, Node successor, Node parent, K key) {
-        for (int i = 0; i < parent.children.length(); i++) {
-            parent.children.get(i).isTagged.set(true);
+    protected final boolean cleanUp(Node ancestor, Node successor, Node parent, K key, EpochReclaimer.Participant<Node> pool) {
+        if (ancestor == root) {
+            return false;    // root.c0 is never frozen
         }
-        Node siblingChild = new Node();
-        int count = 0;
-        for (int i = 0; i < parent.children.length(); i++) {
-            if (!parent.children.get(i).isFlagged.get() && parent.children.get(i).kcount > 0) {
-                siblingChild = new Node(parent.children.get(i), false);
-                count++;
+        return collapse(ancestor, getChildIndex(ancestor, key), successor, pool) && successor == parent;
+    }
+
+    /**
+     * Freezes the children of node, the child of ancestor at index, and
+     * replaces node with collapsed(node), see KBSTNode.freezeChild().
+     *
+     * @param ancestor
+     * @param index
+     * @param node
+     * @param pool source of the empty leaves, or null
+     * @return true if this call replaced node
+     */
+    private boolean collapse(Node ancestor, int index, Node node, EpochReclaimer.Participant<Node> pool) {
+        return ancestor.freezeChild(index, node) && ancestor.casChild(index, node, collapsed(node, pool));
+    }
+
+    /**
+     * The replacement of internal node n, whose children are frozen: an
+     * empty leaf or a copy of its only non-empty child if it has at most
+     * one; a single leaf of all its keys if its children are leaves whose
+     * keys fit into one; and otherwise a copy of n over clean copies of its
+     * children. Flagged leaves, whose key a pruning delete has removed,
+     * count as empty. Replacing n rather than its children keeps every
+     * child slot written with a freshly allocated node.
+     */
+    private Node collapsed(Node n, EpochReclaimer.Participant<Node> pool) {
+        Node only = null;
+        int nonEmpty = 0, keyCount = 0;
+        boolean leaves = true, withValues = false;
+        for (int i = 0; i < n.children.length; i++) {
+            Node child = n.child(i);
+            if (child.isFlagged() || child.kcount == 0) continue;
+            only = child;
+            nonEmpty++;
+            if (isInternalNode(child)) {
+                leaves = false;
+            }
+            else {
+                keyCount += child.kcount;
+                withValues |= child.values != null;
             }
         }
-        if (count <= 1) {
-            int successorIndex = getChildIndex(ancestor, key);
-            if (ancestor.children.get(successorIndex) == successor && (!successor.isFlagged.get() && !successor.isTagged.get())) {
-                return ancestor.children.compareAndSet(successorIndex, successor, siblingChild);
+        if (nonEmpty <= 1) {
+            return (only == null) ? emptyLeaf(pool) : only.unflaggedCopy();
+        }
+        if (leaves && keyCount < numChildren) {
+            // the children cover ascending key ranges, so their keys concatenate in order
+            K[] keys = new K[keyCount];
+            Object[] values = withValues ? new Object[keyCount] : null;
+            for (int i = 0, m = 0; i < n.children.length; i++) {
+                Node child = n.child(i);
+                if (child.isFlagged() || child.kcount == 0) continue;
+                System.arraycopy(child.keys, 0, keys, m, child.kcount);
+                if (values != null && child.values != null) {
+                    System.arraycopy(child.values, 0, values, m, child.kcount);
+                }
+                m += child.kcount;
+            }
+            return new Node(keys, null, values);
+        }
+        Node[] children = new Node[n.children.length];
+        for (int i = 0; i < children.length; i++) {
+            Node child = n.child(i);
+            children[i] = child.isFlagged() ? emptyLeaf(pool) : child.unflaggedCopy();
+        }
+        return new Node(n.keys, children);
+    }
+
+    /**
+     * True if collapsing internal node n would shrink the tree: n has at
+     * most one non-empty child, or its children are leaves that hold at most
+     * numChildren / 2 keys. Half a node rather than a full leaf, so that it
+     * takes numChildren / 2 deletes to collapse what a sprouting insert
+     * built and again about as many inserts to sprout the merged leaf, not
+     * a single one each. The children are read one by one, without
+     * freezing them.
+     */
+    private boolean isSparse(Node n) {
+        int nonEmpty = 0, keyCount = 0;
+        boolean leaves = true;
+        for (int i = 0; i < n.children.length; i++) {
+            Node child = n.child(i);
+            if (child.isFlagged() || child.kcount == 0) continue;
+            nonEmpty++;
+            if (isInternalNode(child)) {
+                leaves = false;
             }
             else {
-                return false;
+                keyCount += child.kcount;
             }
-        } 
-        else {
-            for (int i = 0; i < parent.children.length(); i++) {
-                if (parent.children.get(i).isFlagged.get()) {
-                    parent.children.set(i, new Node());
+        }
+        return nonEmpty <= 1 || (leaves && 2 * keyCount <= numChildren);
+    }
+
+    /**
+     * The compaction that a delete piggybacks: once the leaf it installed
+     * holds at most numChildren / 2 keys, parent is collapsed if it is
+     * sparse, merging its leaves into one or dropping it from the path.
+     * The path came from the seek of key, ancestor being the parent of
+     * parent when the latter is successor.
+     */
+    private void compactAfterDelete(Node ancestor, Node successor, Node parent, Node leaf, K key, EpochReclaimer.Participant<Node> pool) {
+        if (2 * leaf.kcount <= numChildren && successor == parent && ancestor != root && isSparse(parent)) {
+            collapse(ancestor, getChildIndex(ancestor, key), parent, pool);
+        }
+    }
+
+    /**
+     * Collapses every sparse internal node, see isSparse(), bottom-up, so
+     * that a node whose children collapsed is considered afterwards. It is
+     * the compaction of remove() applied to the whole tree, lock-free like
+     * it, and meant for a background thread or for the end of a phase of
+     * deletes; nodes that change under the walk are left to later calls.
+     *
+     * @return the number of internal nodes that this call collapsed
+     */
+    public int compact() {
+        EpochReclaimer.Participant<Node> pool = enter();
+        try {
+            Node[] nodes = new Node[8];
+            int[] next = new int[8];    // index of the next child of nodes[d] to visit
+            int d = 0, collapsed = 0;
+            nodes[0] = root.child(0);
+            while (d >= 0) {
+                Node n = nodes[d];
+                if (next[d] < n.children.length) {
+                    Node child = n.child(next[d]++);
+                    if (isInternalNode(child)) {
+                        d++;
+                        if (d == nodes.length) {
+                            nodes = Arrays.copyOf(nodes, 2 * d);
+                            next = Arrays.copyOf(next, 2 * d);
+                        }
+                        nodes[d] = child;
+                        next[d] = 0;
+                    }
+                    continue;
                 }
-                else if (parent.children.get(i).isTagged.get()) {
-                    parent.children.get(i).isTagged.set(false);
+                nodes[d] = null;
+                d--;
+                // root.c0, at depth 0, stays
+                if (d >= 0 && isSparse(n) && collapse(nodes[d], next[d] - 1, n, pool)) {
+                    collapsed++;
                 }
             }
-            return true;
+            return collapsed;
+        }
+        finally {
+            exit(pool);
         }
     }
 
@@ -214,6 +924,404 @@ public class KBST implements SetADT{
         return true;
     }
 
+    @Override
+    public long estimatedSize() {
+        return size.sum();
+    }
+
+    /**
+     * Exact and linearizable: the count of a KBST.rangeScan over all keys. The
+     * scan is only retried after another update has succeeded, so it is
+     * lock-free.
+     */
+    @Override
+    public long size() {
+        return countRange(K.MinValue0, K.MaxValue0);
+    }
+
+    /**
+     * Linearizable range scan by double collect. The nodes covering [lo, hi]
+     * are collected until two consecutive collects read exactly the same
+     * nodes. A child slot is only ever written with a freshly allocated node,
+     * so a slot that returned the same node to both collects held it for the
+     * whole time in between. At the moment the second collect started the
+     * part of the tree covering the range was therefore exactly the one
+     * collected, and that is the linearization point of the scan. Recycled
+     * leaves keep this true, since none of them is reused while the scan is
+     * running.
+     *
+     * @param lo
+     * @param hi
+     * @param consumer
+     */
+    @Override
+    public void rangeScan(K lo, K hi, Consumer<K> consumer) {
+        EpochReclaimer.Participant<Node> pool = enter();
+        try {
+            ArrayList<Node> previous = collectRange(lo, hi);
+            while (true) {
+                ArrayList<Node> current = collectRange(lo, hi);
+                if (Node.sameNodes(previous, current)) {
+                    break;
+                }
+                previous = current;
+            }
+            for (Node n : previous) {
+                if (isInternalNode(n)) {
+                    continue;
+                }
+                for (int i = 0; i < n.kcount; i++) {
+                    if (!n.keys[i].compareTo(lo) && !hi.compareTo(n.keys[i])) {
+                        consumer.accept(n.keys[i]);
+                    }
+                }
+            }
+        }
+        finally {
+            exit(pool);
+        }
+    }
+
+    /**
+     * Depth first walk over the nodes whose key range intersects [lo, hi],
+     * in ascending key order.
+     */
+    private ArrayList<Node> collectRange(K lo, K hi) {
+        ArrayList<Node> visited = new ArrayList<>();
+        ArrayDeque<Node> stack = new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            Node n = stack.pop();
+            visited.add(n);
+            if (isInternalNode(n)) {
+                // child i holds the keys in [keys[i-1], keys[i])
+                for (int i = n.kcount; i >= 0; i--) {
+                    if ((i == 0 || !hi.compareTo(n.keys[i - 1])) && (i == n.kcount || lo.compareTo(n.keys[i]))) {
+                        stack.push(n.child(i));
+                    }
+                }
+            }
+        }
+        return visited;
+    }
+
+    /**
+     * Double collect as in rangeScan(), over the nodes from `from` on, up to
+     * the leaf at which the collected leaves hold limit keys.
+     *
+     * @param from
+     * @param limit
+     * @param consumer
+     * @return
+     */
+    @Override
+    public K scanChunk(K from, int limit, Consumer<K> consumer) {
+        EpochReclaimer.Participant<Node> pool = enter();
+        try {
+            ArrayList<Node> previous = new ArrayList<>();
+            K next = collectChunk(from, limit, previous);
+            while (true) {
+                ArrayList<Node> current = new ArrayList<>();
+                K bound = collectChunk(from, limit, current);
+                if (Node.sameNodes(previous, current)) {
+                    break;
+                }
+                previous = current;
+                next = bound;
+            }
+            for (Node n : previous) {
+                if (isInternalNode(n)) {
+                    continue;
+                }
+                for (int i = 0; i < n.kcount; i++) {
+                    if (!n.keys[i].compareTo(from)) {
+                        consumer.accept(n.keys[i]);
+                    }
+                }
+            }
+            return next;
+        }
+        finally {
+            exit(pool);
+        }
+    }
+
+    /**
+     * Walks like collectRange(), from `from` on, and stops at the leaf at
+     * which the collected leaves hold limit keys. Returns the upper bound of
+     * the keys of that leaf, or null if the walk reached the last leaf.
+     */
+    private K collectChunk(K from, int limit, ArrayList<Node> visited) {
+        ArrayDeque<Node> stack = new ArrayDeque<>();
+        // the upper bound of the keys of each node on the stack, null for none
+        ArrayList<K> bounds = new ArrayList<>();
+        stack.push(root);
+        bounds.add(null);
+        int keys = 0;
+        while (!stack.isEmpty()) {
+            Node n = stack.pop();
+            K bound = bounds.remove(bounds.size() - 1);
+            visited.add(n);
+            if (isInternalNode(n)) {
+                for (int i = n.kcount; i >= 0; i--) {
+                    if (i == n.kcount || from.compareTo(n.keys[i])) {
+                        stack.push(n.child(i));
+                        bounds.add(i == n.kcount ? bound : n.keys[i]);
+                    }
+                }
+            }
+            else {
+                keys += n.kcount;
+                if (keys >= limit && !stack.isEmpty()) {
+                    return bound;
+                }
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public K ceiling(K key) {
+        return nearest(key, true, true);
+    }
+
+    @Override
+    public K higher(K key) {
+        return nearest(key, true, false);
+    }
+
+    @Override
+    public K floor(K key) {
+        return nearest(key, false, true);
+    }
+
+    @Override
+    public K lower(K key) {
+        return nearest(key, false, false);
+    }
+
+    /**
+     * Removes the smallest key and returns it, or returns null if the set is
+     * empty. first() is linearizable here, so the key of the first() that
+     * the remove() of this call succeeds for was the smallest key at that
+     * first(), and it is returned by this call only. A remove() fails only
+     * after another update removed the key, so this is lock-free.
+     *
+     * @return
+     */
+    @Override
+    public K pollFirst() {
+        while (true) {
+            K key = first();
+            if (key == null || remove(key)) {
+                return key;
+            }
+        }
+    }
+
+    /**
+     * Linearizable search for the key next to key, by double collect as in
+     * rangeScan(): the nodes from key on, upwards or downwards, up to the
+     * first leaf that holds a key on that side are collected until two
+     * consecutive collects read exactly the same nodes. At the moment the
+     * second collect started no key lay between key and the one found.
+     *
+     * @param key
+     * @param ascending the smallest key above key, or the largest one below
+     * @param inclusive whether key itself counts
+     * @return
+     */
+    private K nearest(K key, boolean ascending, boolean inclusive) {
+        EpochReclaimer.Participant<Node> pool = enter();
+        try {
+            ArrayList<Node> previous = new ArrayList<>();
+            K found = collectNearest(key, ascending, inclusive, previous);
+            while (true) {
+                ArrayList<Node> current = new ArrayList<>();
+                K again = collectNearest(key, ascending, inclusive, current);
+                if (Node.sameNodes(previous, current)) {
+                    return found;
+                }
+                previous = current;
+                found = again;
+            }
+        }
+        finally {
+            exit(pool);
+        }
+    }
+
+    /**
+     * Walks like collectRange(), from key on in the given direction, and
+     * stops at the first leaf that holds a key on that side of key. Returns
+     * the key of that leaf next to key, or null if there is none.
+     */
+    private K collectNearest(K key, boolean ascending, boolean inclusive, ArrayList<Node> visited) {
+        ArrayDeque<Node> stack = new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            Node n = stack.pop();
+            visited.add(n);
+            if (isInternalNode(n)) {
+                // child i holds the keys in [keys[i-1], keys[i]), and the
+                // child to be walked first is pushed last
+                if (ascending) {
+                    for (int i = n.kcount; i >= 0; i--) {
+                        if (i == n.kcount || key.compareTo(n.keys[i])) {
+                            stack.push(n.child(i));
+                        }
+                    }
+                }
+                else {
+                    for (int i = 0; i <= n.kcount; i++) {
+                        if (i == 0 || !key.compareTo(n.keys[i - 1])) {
+                            stack.push(n.child(i));
+                        }
+                    }
+                }
+                continue;
+            }
+            K best = null;
+            for (int i = 0; i < n.kcount; i++) {
+                K k = n.keys[i];
+                if (inclusive && k.equals(key)) {
+                    return k;
+                }
+                if ((ascending ? key.compareTo(k) : k.compareTo(key)) && (best == null || (ascending ? k.compareTo(best) : best.compareTo(k)))) {
+                    best = k;
+                }
+            }
+            if (best != null) {
+                return best;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Weakly consistent iterator, see TreeIterator. Each step of the walk is
+     * pinned, so no leaf is recycled while its keys are copied.
+     *
+     * @param from
+     * @return
+     */
+    @Override
+    public Iterator<K> iterator(K from) {
+        return new KeyIterator(root, from, null, Long.MAX_VALUE);
+    }
+
+    @Override
+    public int height() {
+        return new KeyIterator(root, null, null, Long.MAX_VALUE).height();
+    }
+
+    /**
+     * Walks the tree like height(), see TreeIterator.shape(). The bytes of
+     * a node are the node and its arrays.
+     *
+     * @return
+     */
+    @Override
+    public TreeShape shape() {
+        return new KeyIterator(root, null, null, Long.MAX_VALUE).shape();
+    }
+
+    /**
+     * Weakly consistent like iterator(K), walking the tree backwards.
+     *
+     * @param from
+     * @return
+     */
+    @Override
+    public Iterator<K> descendingIterator(K from) {
+        return new KeyIterator(from, true);
+    }
+
+    /**
+     * Weakly consistent like iterator(), and splits at the internal nodes,
+     * numChildren ways per node, for parallel streams and ParallelScan.
+     *
+     * @param lo
+     * @param hi
+     * @return
+     */
+    @Override
+    public Spliterator<K> spliterator(K lo, K hi) {
+        return new KeyIterator(root, lo, hi, size.sum());
+    }
+
+    private final class KeyIterator extends TreeIterator<Node> {
+
+        private EpochReclaimer.Participant<Node> pool;
+
+        KeyIterator(Node node, K from, K to, long estimate) {
+            super(node, from, to, estimate);
+        }
+
+        KeyIterator(K from, boolean descending) {
+            super(root, from, descending);
+        }
+
+        @Override
+        protected boolean isLeaf(Node n) {
+            return !isInternalNode(n);
+        }
+
+        // children behind K.MaxValue0 routing keys, of the sentinel nodes
+        // and of the padding of bulkLoad(), hold no keys
+        @Override
+        protected int childCount(Node n) {
+            int count = n.kcount;
+            while (count > 0 && !n.keys[count - 1].compareTo(K.MaxValue0)) {
+                count--;
+            }
+            return count + 1;
+        }
+
+        @Override
+        protected Node child(Node n, int i) {
+            return n.child(i);
+        }
+
+        @Override
+        protected int childIndex(Node n, K key) {
+            return getChildIndex(n, key);
+        }
+
+        @Override
+        protected void keys(Node n) {
+            for (int i = 0; i < n.kcount; i++) {
+                buffer(n.keys[i]);
+            }
+        }
+
+        @Override
+        protected TreeIterator<Node> newPart(Node node, K from, K to, long estimate) {
+            return new KeyIterator(node, from, to, estimate);
+        }
+
+        @Override
+        protected long bytes(Node n) {
+            return ObjectLayout.sizeOf(n) + ObjectLayout.sizeOf(n.keys) + ObjectLayout.sizeOf(n.keyValues)
+                   + ObjectLayout.sizeOf(n.values) + ObjectLayout.sizeOf(n.children);
+        }
+
+        @Override
+        protected int leafCapacity() {
+            return numChildren - 1;
+        }
+
+        @Override
+        protected void pin() {
+            pool = enter();
+        }
+
+        @Override
+        protected void unpin() {
+            exit(pool);
+        }
+    }
+
     public void treeString(StringBuffer sb, Node n) {
         if (n == null) {
             sb.append("*");
@@ -222,15 +1330,15 @@ public class KBST implements SetADT{
         sb.append("(");
         sb.append(n.kcount);
         sb.append(" keys");
-        sb.append(" tagged " + n.isTagged.get());
-        sb.append(" flagged " + n.isFlagged.get());
+        sb.append(" tagged " + n.isTagged());
+        sb.append(" flagged " + n.isFlagged());
         for (int i=0; i < n.kcount; i++) {
             sb.append(",");
             sb.append(n.keys[i].getValue());
         }
         if (n.children != null) {
-            for (int i=0; i < n.children.length(); i++) {
-                treeString(sb, n.children.get(i));
+            for (int i=0; i < n.children.length; i++) {
+                treeString(sb, n.child(i));
                 sb.append(",");
             }
         }
@@ -243,34 +1351,68 @@ public class KBST implements SetADT{
 
     protected enum OperationType {SIMPLE_INSERT, SPROUTING_INSERT, SIMPLE_DELETE};
 
-    protected static class Node {
+    protected static class Node extends KBSTNode<Node> {
 
-        final int kcount;
         final K[] keys;
-        volatile AtomicReferenceArray<Node> children;
-        volatile AtomicBoolean isFlagged;
-        volatile AtomicBoolean isTagged;
+        // the values of keys, searched by KeySearch without touching the K objects
+        final double[] keyValues;
+        // the values of the keys of a leaf of KBSTMap, null in a set and in
+        // internal nodes; the batch operations of the set do not keep them
+        final Object[] values;
 
         /**
          * Constructor for leaf with zero keys.
          */
         Node () {
-            kcount = 0;
+            super(0, null, 0);
             keys = null;
-            children = null;
-            isFlagged = new AtomicBoolean();
-            isTagged = new AtomicBoolean();
+            keyValues = null;
+            values = null;
         }
 
         /**
          * Constructor for newly created leaves with one key.
          */
         Node(final K key) {
-            kcount = 1;
+            this(key, null);
+        }
+
+        /**
+         * Constructor for newly created leaves with one key and its value,
+         * or none if value is null.
+         */
+        Node(final K key, final Object value) {
+            super(1, null, 0);
             keys = new K[]{key};
-            children = null;
-            isFlagged = new AtomicBoolean();
-            isTagged = new AtomicBoolean();
+            keyValues = new double[]{key.getValue()};
+            values = (value == null) ? null : new Object[]{value};
+        }
+
+        /**
+         * Constructor for nodes built by bulkLoad() and cleanUp(): a leaf
+         * when children is null, otherwise an internal node with
+         * keys.length + 1 children.
+         */
+        Node(final K[] keys, final Node[] children) {
+            this(keys, children, null);
+        }
+
+        private Node(final K[] keys, final Node[] children, final Object[] values) {
+            super(keys.length, children, 0);
+            this.keys = keys;
+            this.keyValues = KeySearch.valuesOf(keys, kcount);
+            this.values = values;
+        }
+
+        /**
+         * Constructor for the copy of leaf l with other values, sharing the
+         * keys of l.
+         */
+        private Node(final Node l, final Object[] values) {
+            super(l.kcount, null, 0);
+            this.keys = l.keys;
+            this.keyValues = l.keyValues;
+            this.values = values;
         }
 
         /**
@@ -290,125 +1432,251 @@ public class KBST implements SetADT{
          *             the root's child root.c0 is created.
          */
         Node(int numChildren, boolean root) {
+            super(numChildren - 1, new Node[numChildren], 0);
+            values = null;
             keys = new K[numChildren - 1];
-            kcount = numChildren - 1;
             for (int i = 0; i < kcount; i++) {
                 keys[i] = K.MaxValue0;
             }
-            isFlagged = new AtomicBoolean();
-            isTagged = new AtomicBoolean();
             if (root) {
-                children = new AtomicReferenceArray<Node>(numChildren);
-                children.set(0, new Node(numChildren, false));
+                children[0] = new Node(numChildren, false);
                 for (int i = 1; i < numChildren; i++) {
-                    children.set(i, new Node());
+                    children[i] = new Node();
                 }
             } else {
-                children = new AtomicReferenceArray<Node>(numChildren);
                 for (int i = 0; i < numChildren; i++) {
-                    children.set(i, new Node());
+                    children[i] = new Node();
                 }
             }
+            keyValues = KeySearch.valuesOf(keys, kcount);
         }
 
         // Constructor for the operations simple insert, sprouting insert and simple delete
-        public Node(final K knew, final Node l, final OperationType operationType) {
-            isFlagged = new AtomicBoolean();
-            isTagged = new AtomicBoolean();
-
+        // the leaves of a sprouting insert come from pool where it has some
+        // vnew is the value of knew in an insert, or null for none
+        Node(final K knew, final Object vnew, final Node l, final OperationType operationType, EpochReclaimer.Participant<Node> pool) {
+            super(kcountAfter(l, operationType), (operationType == OperationType.SPROUTING_INSERT) ? new Node[l.kcount + 1] : null, 0);
             if (operationType == OperationType.SPROUTING_INSERT) {
-                kcount = l.kcount;                
+                values = null;
                 // determine which elements of l.k should precede knew (will be 0...i-1)
-                int i = 0;
-                while (i < kcount) {
-                    if (knew.compareTo(l.keys[i])){
-                        break;
-                    }
-                    i++;
-                }
-                children = new AtomicReferenceArray<Node>(kcount + 1);
+                int i = KeySearch.upperBound(l.keyValues, kcount, knew.getValue());
                 // add children with keys preceding knew
                 for (int j = 0; j < i; j++) {
-                    children.set(j, new Node(l.keys[j]));
+                    children[j] = leaf(l.keys[j], l.valueAt(j), pool);
                 }
                 // add knew
-                children.set(i, new Node(knew));
+                children[i] = leaf(knew, vnew, pool);
                 // add children with keys following knew
                 for (int j = i; j < kcount; j++) {
-                    children.set(j + 1, new Node(l.keys[j]));
+                    children[j + 1] = leaf(l.keys[j], l.valueAt(j), pool);
                 }
                 keys = new K[kcount];
                 for (int j=0; j < kcount; j++) {
-                    keys[j] = children.get(j+1).keys[0];
+                    keys[j] = children[j+1].keys[0];
                 }
+                keyValues = KeySearch.valuesOf(keys, kcount);
             } else if (operationType == OperationType.SIMPLE_INSERT) {
-                children = null;
-                kcount = l.kcount+1;
                 keys = new K[kcount];
-                // copy all keys and values from l
-                // writing knew in the process
-                // determine which keys precede knew
-                int i = 0;
-                while (i < l.kcount) {
-                    if (knew.compareTo(l.keys[i])) {
-                        break; // l.k[0...i-1] will all precede knew.
-                    }
-                    i++;
-                }
-                // write key preceding knew
-                // knew precedes l.k[i], but all of l.k[0...i-1] precede knew.
-                for (int j = 0; j < i; j++) {
-                    keys[j] = l.keys[j];
-                }
-                // write knew
-                keys[i] = knew;
-                // write key following knew
-                for (int j = i; j < l.kcount; j++) {
-                    keys[j+1] = l.keys[j];
-                }
+                keyValues = new double[kcount];
+                values = (vnew != null || l.values != null) ? new Object[kcount] : null;
+                fillWith(knew, vnew, l);
             } else { // SIMPLE_DELETION
-                children = null;
-                kcount = l.kcount - 1;
-                if (kcount == 0) {
-                    keys = null;
-                } else {
-                    keys = new K[kcount];
-                    for (int i = 0, j = 0; i < l.kcount; i++) {
-                        if (knew.equals(l.keys[i])) continue;
-                        keys[j] = l.keys[i];
-                        j++;
-                    }
+                keys = (kcount == 0) ? null : new K[kcount];
+                keyValues = (kcount == 0) ? null : new double[kcount];
+                values = (kcount == 0 || l.values == null) ? null : new Object[kcount];
+                fillWithout(knew, l);
+            }
+        }
+
+        /**
+         * The key count of the node that operationType makes of leaf l.
+         */
+        private static int kcountAfter(Node l, OperationType operationType) {
+            switch (operationType) {
+                case SIMPLE_INSERT:
+                    return l.kcount + 1;
+                case SIMPLE_DELETE:
+                    return l.kcount - 1;
+                default:
+                    return l.kcount;
+            }
+        }
+
+        /**
+         * Writes the keys of leaf l and knew, which l does not hold, into
+         * the arrays of this leaf of l.kcount + 1 keys, and their values if
+         * this leaf has them.
+         */
+        private void fillWith(K knew, Object vnew, Node l) {
+            // copy all keys from l, writing knew in the process
+            // l.k[0...i-1] will all precede knew.
+            int i = KeySearch.upperBound(l.keyValues, l.kcount, knew.getValue());
+            keys[i] = knew;
+            keyValues[i] = knew.getValue();
+            if (l.kcount > 0) {
+                System.arraycopy(l.keys, 0, keys, 0, i);
+                System.arraycopy(l.keyValues, 0, keyValues, 0, i);
+                System.arraycopy(l.keys, i, keys, i + 1, l.kcount - i);
+                System.arraycopy(l.keyValues, i, keyValues, i + 1, l.kcount - i);
+            }
+            if (values != null) {
+                values[i] = vnew;
+                if (l.values != null) {
+                    System.arraycopy(l.values, 0, values, 0, i);
+                    System.arraycopy(l.values, i, values, i + 1, l.kcount - i);
+                }
+            }
+        }
+
+        /**
+         * Writes the keys of leaf l but key, which l holds, into the arrays
+         * of this leaf of l.kcount - 1 keys.
+         */
+        private void fillWithout(K key, Node l) {
+            for (int i = 0, j = 0; i < l.kcount; i++) {
+                if (key.equals(l.keys[i])) continue;
+                keys[j] = l.keys[i];
+                keyValues[j] = l.keyValues[i];
+                if (values != null) {
+                    values[j] = l.values[i];
                 }
+                j++;
             }
         }
 
+        /**
+         * A leaf of one key, recycled from pool if it has one.
+         */
+        static Node leaf(K key, Object value, EpochReclaimer.Participant<Node> pool) {
+            Node n = (pool == null || value != null) ? null : pool.reuse(1);
+            if (n == null) {
+                return new Node(key, value);
+            }
+            n.keys[0] = key;
+            n.keyValues[0] = key.getValue();
+            return n;
+        }
+
+        // The reuse methods rewrite a recycled leaf, which nobody else can
+        // reach until the CAS that installs it publishes the new contents.
+        // Only clean leaves are retired, so its state is already 0.
+
+        Node reuseWith(K knew, Node l) {
+            fillWith(knew, null, l);
+            return this;
+        }
+
+        Node reuseWithout(K key, Node l) {
+            fillWithout(key, l);
+            return this;
+        }
+
+        Node reuseEmpty() {
+            return this;
+        }
+
+        /**
+         * The clean copy of this frozen node in the node that replaces its
+         * parent, see collapsed(). A leaf gets its own key arrays, so that
+         * no leaf in the tree shares them with a leaf that is retired.
+         */
+        Node unflaggedCopy() {
+            if (children == null && kcount > 0) {
+                return new Node(keys.clone(), null, (values == null) ? null : values.clone());
+            }
+            return new Node(this, false);
+        }
+
         // Constructor to create flagged node
         // @param b we set isFlagged to b
         public Node(Node n, boolean b) {
+            this(n, b ? FLAGGED : 0);
+        }
+
+        /**
+         * Constructor for a copy of n in the given state, sharing all of
+         * its arrays.
+         */
+        private Node(Node n, int state) {
+            super(n.kcount, n.children, state);
             this.keys = n.keys;
-            this.kcount = n.kcount;
-            this.children = n.children;
-            this.isFlagged = new AtomicBoolean(b);
-            this.isTagged = new AtomicBoolean();
+            this.keyValues = n.keyValues;
+            this.values = n.values;
+        }
+
+        @Override
+        Node copy(int state) {
+            return new Node(this, state);
         }
 
-        int getNonEmptyChildCount() {
-            int count = 0;
-            for (int i = 0; i < children.length(); i++) {
-                if (children.get(i).kcount > 0) {
-                    count++;
+        /**
+         * The keys of this leaf merged with batch[from..to), which are
+         * strictly ascending.
+         */
+        K[] keysWith(K[] batch, int from, int to) {
+            K[] merged = new K[kcount + to - from];
+            int i = 0, j = from, m = 0;
+            while (i < kcount || j < to) {
+                if (j == to || (i < kcount && keys[i].compareTo(batch[j]))) {
+                    merged[m++] = keys[i++];
+                }
+                else if (i < kcount && keys[i].equals(batch[j])) {
+                    merged[m++] = keys[i++];
+                    j++;
+                }
+                else {
+                    merged[m++] = batch[j++];
                 }
             }
-            return count;
+            return (m == merged.length) ? merged : Arrays.copyOf(merged, m);
         }
-        
-        boolean hasKey(K key) {
-            for (int i = 0; i < kcount; i++) {
-                if (key.equals(keys[i])) {
-                    return true;
+
+        /**
+         * The keys of this leaf that are not in batch[from..to), which are
+         * strictly ascending.
+         */
+        K[] keysWithout(K[] batch, int from, int to) {
+            K[] remaining = new K[kcount];
+            int m = 0;
+            for (int i = 0, j = from; i < kcount; i++) {
+                while (j < to && batch[j].compareTo(keys[i])) {
+                    j++;
+                }
+                if (j == to || !batch[j].equals(keys[i])) {
+                    remaining[m++] = keys[i];
                 }
             }
-            return false;
+            return (m == kcount) ? remaining : Arrays.copyOf(remaining, m);
+        }
+
+        boolean hasKey(K key) {
+            return KeySearch.contains(keyValues, kcount, key.getValue());
+        }
+
+        /**
+         * The value of key in this leaf, null if it has none or does not
+         * hold key.
+         */
+        Object valueOf(K key) {
+            if (values == null) {
+                return null;
+            }
+            int i = KeySearch.upperBound(keyValues, kcount, key.getValue());
+            return (i > 0 && keyValues[i - 1] == key.getValue()) ? values[i - 1] : null;
+        }
+
+        Object valueAt(int i) {
+            return (values == null) ? null : values[i];
+        }
+
+        /**
+         * A copy of this leaf, which holds key, in which key has the value
+         * value.
+         */
+        Node withValue(K key, Object value) {
+            Object[] copy = (values == null) ? new Object[kcount] : values.clone();
+            copy[KeySearch.upperBound(keyValues, kcount, key.getValue()) - 1] = value;
+            return new Node(this, copy);
         }
     }
 }
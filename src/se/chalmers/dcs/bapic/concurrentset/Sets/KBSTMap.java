@@ -0,0 +1,69 @@
+package se.chalmers.dcs.bapic.concurrentset.Sets;
+
+import se.chalmers.dcs.bapic.concurrentset.utils.*;
+
+/**
+ * A map on a KBST whose leaves carry the values of their keys next to
+ * them. A value is changed by replacing the leaf of its key with a copy
+ * that differs in that value only, with a single CAS, so put() and
+ * replace() on a present key neither remove nor sprout anything. Each
+ * operation is lock-free and linearizable, see MapADT.
+ *
+ * @param <V> the type of the values
+ */
+public class KBSTMap<V> implements MapADT<V> {
+
+    private final KBST tree;
+
+    public KBSTMap(int numChildren) {
+        this(numChildren, false);
+    }
+
+    /**
+     * With recycleNodes the tree recycles the leaves without values, see
+     * KBST(int, boolean); the map puts none there.
+     *
+     * @param numChildren
+     * @param recycleNodes
+     */
+    public KBSTMap(int numChildren, boolean recycleNodes) {
+        tree = new KBST(numChildren, recycleNodes);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(K key) {
+        return (V) tree.getValue(key);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V putIfAbsent(K key, V value) {
+        MapADT.checkValue(value);
+        return (V) tree.putValueIfAbsent(key, value);
+    }
+
+    @Override
+    public boolean replace(K key, V expected, V value) {
+        MapADT.checkValue(expected);
+        MapADT.checkValue(value);
+        return tree.replaceValue(key, expected, value);
+    }
+
+    @Override
+    public boolean remove(K key, V expected) {
+        MapADT.checkValue(expected);
+        return tree.removeValue(key, expected);
+    }
+
+    /**
+     * The tree itself, so the linearizable scans and navigation of KBST
+     * work on the keys of the map.
+     *
+     * @return
+     */
+    @Override
+    public SetADT keySet() {
+        return tree;
+    }
+}
@@ -0,0 +1,126 @@
+package se.chalmers.dcs.bapic.concurrentset.Sets;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import se.chalmers.dcs.bapic.concurrentset.utils.ContentionStats;
+
+/**
+ * The part of a node of KBST and DoubleKBST that does not depend on the type
+ * of the keys: the key count, the child slots, the FLAGGED and TAGGED state,
+ * and the freezing of internal nodes that cleanUp() builds on.
+ *
+ * @param <N> the node class of the tree
+ */
+abstract class KBSTNode<N extends KBSTNode<N>> {
+
+    static final int FLAGGED = 1;
+    static final int TAGGED = 2;
+
+    private static final VarHandle CHILDREN = MethodHandles.arrayElementVarHandle(KBSTNode[].class);
+
+    final int kcount;
+    // null in a leaf
+    final N[] children;
+    // FLAGGED and TAGGED; a node is published by the CAS that links it, and
+    // a tag is on the edge from the parent, see freeze()
+    final int state;
+
+    KBSTNode(int kcount, N[] children, int state) {
+        this.kcount = kcount;
+        this.children = children;
+        this.state = state;
+    }
+
+    /**
+     * A copy of this node in the given state, sharing all of its arrays.
+     */
+    abstract N copy(int state);
+
+    @SuppressWarnings("unchecked")
+    final N child(int i) {
+        return (N) CHILDREN.getVolatile(children, i);
+    }
+
+    final boolean casChild(int i, N expected, N update) {
+        return ContentionStats.cas(CHILDREN.compareAndSet(children, i, expected, update));
+    }
+
+    final boolean isFlagged() {
+        return (state & FLAGGED) != 0;
+    }
+
+    final boolean isTagged() {
+        return (state & TAGGED) != 0;
+    }
+
+    /**
+     * Neither flagged nor tagged.
+     */
+    final boolean isClean() {
+        return state == 0;
+    }
+
+    /**
+     * Tags the edges to all children of this internal node. A child that
+     * is not tagged yet is swapped for a tagged copy, so the CAS of any
+     * update that read the child fails from then on, and its flag goes
+     * with it. A tagged edge is never swapped back: once frozen, the
+     * children of this node never change again, and cleanUp() replaces
+     * the node as a whole.
+     */
+    final void freeze() {
+        for (int i = 0; i < children.length; i++) {
+            N child = child(i);
+            while (!child.isTagged() && !casChild(i, child, child.copy(child.state | TAGGED))) {
+                child = child(i);
+            }
+        }
+    }
+
+    /**
+     * Freezes node, the child of this internal node at index, so that it
+     * can be replaced by a copy computed from its children. From the freeze
+     * on the children of node no longer change, so every thread that helps
+     * computes a replacement with the same keys, and the first CAS installs
+     * it.
+     *
+     * @param index
+     * @param node
+     * @return false if node is no longer the child at index, or if the edge
+     *         to node is frozen itself and node goes with its parent
+     */
+    final boolean freezeChild(int index, N node) {
+        if (node.isTagged()) {
+            return false;
+        }
+        node.freeze();
+        return child(index) == node;
+    }
+
+    final int getNonEmptyChildCount() {
+        int count = 0;
+        for (int i = 0; i < children.length; i++) {
+            if (child(i).kcount > 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * True if the two collects of a double collect read exactly the same
+     * nodes.
+     */
+    static boolean sameNodes(ArrayList<? extends KBSTNode<?>> a, ArrayList<? extends KBSTNode<?>> b) {
+        if (a.size() != b.size()) {
+            return false;
+        }
+        for (int i = 0; i < a.size(); i++) {
+            if (a.get(i) != b.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -9,6 +9,7 @@ package se.chalmers.dcs.bapic.concurrentset.Sets;
 import se.chalmers.dcs.bapic.concurrentset.utils.*;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
 /**
  *
@@ -170,4 +171,24 @@ public class LazyList implements SetADT {
         }
         return true;
     }
+
+    /**
+     *
+     * @param lo
+     * @param hi
+     * @param consumer
+     */
+    @Override
+    public void rangeScan(K lo, K hi, Consumer<K> consumer) {
+        Node curr = head.next;
+        while (curr.key.compareTo(lo)) {
+            curr = curr.next;
+        }
+        while (curr != tail &&  ! hi.compareTo(curr.key)) {
+            if ( ! curr.marked) {
+                consumer.accept(curr.key);
+            }
+            curr = curr.next;
+        }
+    }
 }
@@ -18,10 +18,24 @@ package se.chalmers.dcs.bapic.concurrentset.Sets;
  *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
  */
 
+import se.chalmers.dcs.bapic.concurrentset.utils.ContentionStats;
 import se.chalmers.dcs.bapic.concurrentset.utils.K;
+import se.chalmers.dcs.bapic.concurrentset.utils.KeySearch;
+import se.chalmers.dcs.bapic.concurrentset.utils.ObjectLayout;
 import se.chalmers.dcs.bapic.concurrentset.utils.SetADT;
-
+import se.chalmers.dcs.bapic.concurrentset.utils.SizeCounter;
+import se.chalmers.dcs.bapic.concurrentset.utils.Tools;
+import se.chalmers.dcs.bapic.concurrentset.utils.TreeIterator;
+import se.chalmers.dcs.bapic.concurrentset.utils.TreeShape;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.PrimitiveIterator;
+import java.util.Spliterator;
 import java.util.concurrent.atomic.*;
+import java.util.function.Consumer;
 
 public class LockFreeKSTRQ implements SetADT {
 
@@ -30,15 +44,114 @@ public class LockFreeKSTRQ implements SetADT {
     private final Node root;
 
     private final int Knodes;
+    private final SizeCounter size = new SizeCounter();
 
     public LockFreeKSTRQ(final int K) {
         this(K, new Node(K, true));
     }
 
+    /**
+     * Bulk loading constructor, see bulkLoad().
+     * @param sortedKeys strictly ascending keys
+     */
+    public LockFreeKSTRQ(final int K, final double[] sortedKeys) {
+        this(K, Arrays.stream(sortedKeys).iterator());
+    }
+
+    /**
+     * Bulk loading constructor, see bulkLoad().
+     * @param sortedKeys strictly ascending keys
+     */
+    public LockFreeKSTRQ(final int K, final PrimitiveIterator.OfDouble sortedKeys) {
+        this(K, new Node(K, true));
+        // the tree is not published yet, so a plain write is enough
+        root.c.get(0).c.set(0, bulkLoad(K, size.counting(sortedKeys)));
+    }
+
     private LockFreeKSTRQ(final int K, final Node root) {
         this.Knodes = K;
         this.root = root;
     }
+
+    /**
+     * Builds a packed tree over the sorted keys bottom-up in O(n), without
+     * any CAS. Every leaf but the last holds arity-1 keys, and every internal
+     * node but the last of its level has arity non-empty children. The last internal
+     * node of a level is padded with empty leaves behind K.MaxValue0 routing
+     * keys, which no real key reaches (null keys would break the binary
+     * search in child()).
+     * @throws IllegalArgumentException if the keys are not strictly ascending
+     */
+    private static Node bulkLoad(final int arity, final PrimitiveIterator.OfDouble sortedKeys) {
+        ArrayList<Node> level = new ArrayList<>();
+        ArrayList<K> minKeys = new ArrayList<>();
+        final Object[] leafKeys = new Object[arity-1];
+        int count = 0;
+        K previous = null;
+
+        while (sortedKeys.hasNext()) {
+            final K key = new K(sortedKeys.nextDouble());
+            if (previous != null && !less(previous, key)) {
+                throw new IllegalArgumentException("keys are not strictly ascending at " + key.getValue());
+            }
+            previous = key;
+            leafKeys[count++] = key;
+            if (count == arity-1) {
+                level.add(new Node(Arrays.copyOf(leafKeys, count), Arrays.copyOf(leafKeys, count)));
+                minKeys.add((K)leafKeys[0]);
+                count = 0;
+            }
+        }
+        if (count > 0) {
+            level.add(new Node(Arrays.copyOf(leafKeys, count), Arrays.copyOf(leafKeys, count)));
+            minKeys.add((K)leafKeys[0]);
+        }
+        if (level.isEmpty()) return new Node();
+        return buildLevels(arity, level, minKeys);
+    }
+
+    /**
+     * Builds a packed subtree over strictly ascending keys and their values,
+     * for a batch that overflows a single leaf. Same shape as bulkLoad().
+     */
+    private static Node buildSubtree(final int arity, final Object[] keys, final Object[] values) {
+        final ArrayList<Node> level = new ArrayList<>();
+        final ArrayList<K> minKeys = new ArrayList<>();
+        for (int first=0;first<keys.length;first+=arity-1) {
+            final int last = Math.min(first+arity-1, keys.length);
+            level.add(new Node(Arrays.copyOfRange(keys, first, last), Arrays.copyOfRange(values, first, last)));
+            minKeys.add((K)keys[first]);
+        }
+        return buildLevels(arity, level, minKeys);
+    }
+
+    /**
+     * Stacks internal levels over a non-empty level of nodes, given the
+     * smallest key below each node, until a single node remains.
+     */
+    private static Node buildLevels(final int arity, ArrayList<Node> level, ArrayList<K> minKeys) {
+        while (level.size() > 1) {
+            final ArrayList<Node> parents = new ArrayList<>();
+            final ArrayList<K> parentMinKeys = new ArrayList<>();
+            for (int first=0;first<level.size();first+=arity) {
+                final int used = Math.min(arity, level.size()-first);
+                final Object[] keys = new Object[arity-1];
+                final Node[] children = new Node[arity];
+                for (int j=0;j<arity;j++) {
+                    children[j] = (j < used) ? level.get(first+j) : new Node();
+                }
+                // child j holds the keys in [keys[j-1], keys[j])
+                for (int j=0;j<arity-1;j++) {
+                    keys[j] = (j+1 < used) ? minKeys.get(first+j+1) : K.MaxValue0;
+                }
+                parents.add(new Node(children, keys));
+                parentMinKeys.add(minKeys.get(first));
+            }
+            level = parents;
+            minKeys = parentMinKeys;
+        }
+        return level.get(0);
+    }
     /**
      * Determines whether a key is present in the tree.
      * @return true if the key is present in the tree, and false otherwise
@@ -67,21 +180,27 @@ public class LockFreeKSTRQ implements SetADT {
      */
     @Override
     public final boolean add(K value){
-        K added = putIfAbsent(value, value);
-        return added == null;
+        Object added = putIfAbsent(value, value);
+        if (added != null) return false;
+        size.increment();
+        return true;
     }
-    private final K putIfAbsent(final K key, final K value) {
+    private final Object putIfAbsent(final K key, final Object value) {
         if (key == null) throw new NullPointerException();
         Node p, l, newchild;
         Info pinfo;
         int pindex; // index of the child of p that points to l
 
+        int depth = -1;
         while (true) {
+            ContentionStats.restart(depth);
+            depth = 0;
             // search
             p = root;
             pinfo = p.info; // TODO: NOTE THIS LINE IS UNNECESSARY
             l = p.c.get(0);
             while (l.c != null) {
+                depth++;
                 p = l;
                 l = child(key, l);
             }
@@ -91,15 +210,8 @@ public class LockFreeKSTRQ implements SetADT {
             // (so it is as if p.info were read first)
             // and also store the index of the child pointer of p that points to l
             pinfo = p.info;
-            Node currentL = p.c.get(p.kcount);
-            pindex = p.kcount;
-            for (int i=0;i<p.kcount;i++) {
-                if (less(key, (K)p.k[i])) {
-                    currentL = p.c.get(i);
-                    pindex = i;
-                    break;
-                }
-            }
+            pindex = p.childIndex(key);
+            Node currentL = p.c.get(pindex);
 
             if (l != currentL) continue;
 
@@ -121,7 +233,7 @@ public class LockFreeKSTRQ implements SetADT {
 
                 // flag and perform the insertion
                 final IInfo newPInfo = new IInfo(l, p, newchild, pindex);
-                if (infoUpdater.compareAndSet(p, pinfo, newPInfo)) {	    // [[ iflag CAS ]]
+                if (ContentionStats.cas(infoUpdater.compareAndSet(p, pinfo, newPInfo))) {	    // [[ iflag CAS ]]
                     helpInsert(newPInfo);
                     return null;
                 } else {
@@ -140,8 +252,81 @@ public class LockFreeKSTRQ implements SetADT {
      */
     @Override
     public final boolean remove(K value){
-        K removed = removeIfPresent(value);
-        return removed != null;
+        Object removed = removeIfPresent(value, null);
+        if (removed == null) return false;
+        size.decrement();
+        return true;
+    }
+
+    /**
+     * The value of key, or null if it is absent, for LockFreeKSTRQMap.
+     */
+    final Object getValue(final K key) {
+        if (key == null) throw new NullPointerException();
+        Node l = root.c.get(0);
+        while (l.c != null) l = child(key, l);
+        return l.getValue(key);
+    }
+
+    /**
+     * Adds key with value unless key is present, for LockFreeKSTRQMap.
+     * @return the value key already had, or null if it was added
+     */
+    final Object putValueIfAbsent(final K key, final Object value) {
+        final Object previous = putIfAbsent(key, value);
+        if (previous == null) size.increment();
+        return previous;
+    }
+
+    /**
+     * Removes key if its value equals expected, for LockFreeKSTRQMap.
+     */
+    final boolean removeValue(final K key, final Object expected) {
+        if (removeIfPresent(key, expected) == null) return false;
+        size.decrement();
+        return true;
+    }
+
+    /**
+     * Gives key the value value while its value equals expected, for
+     * LockFreeKSTRQMap. The leaf of key is replaced by a copy with the new
+     * value that shares its keys, flagged like a simple insertion.
+     */
+    final boolean replaceValue(final K key, final Object expected, final Object value) {
+        if (key == null) throw new NullPointerException();
+        Node p, l;
+        Info<?, ?> pinfo;
+        int pindex;
+
+        int depth = -1;
+        while (true) {
+            ContentionStats.restart(depth);
+            depth = 0;
+            p = root;
+            l = p.c.get(0);
+            while (l.c != null) {
+                depth++;
+                p = l;
+                l = child(key, l);
+            }
+
+            // as in putIfAbsent(), read pinfo and then verify the child pointer from p to l
+            pinfo = p.info;
+            pindex = p.childIndex(key);
+            if (l != p.c.get(pindex)) continue;
+
+            if (!l.hasKey(key) || !expected.equals(l.getValue(key))) return false;
+            else if (pinfo != null && pinfo.getClass() != Clean.class) help(pinfo);
+            else {
+                final IInfo<?, ?> newPInfo = new IInfo<>(l, p, new Node(key, value, l, true), pindex);
+                if (ContentionStats.cas(infoUpdater.compareAndSet(p, pinfo, newPInfo))) {	    // [[ iflag CAS ]]
+                    helpInsert(newPInfo);
+                    return true;
+                } else {
+                    help(p.info);
+                }
+            }
+        }
     }
 
     @Override
@@ -149,14 +334,536 @@ public class LockFreeKSTRQ implements SetADT {
         return true;
     }
 
-    private final K removeIfPresent(final K key) {
+    @Override
+    public long estimatedSize() {
+        return size.sum();
+    }
+
+    /**
+     * Exact and linearizable: the count of a rangeScan over all keys. The
+     * scan is only retried after another update has succeeded, so it is
+     * lock-free.
+     */
+    @Override
+    public long size() {
+        return countRange(K.MinValue0, K.MaxValue0);
+    }
+
+    /**
+     * Range query of the k-ary search tree with range queries.
+     * The leaves whose key range intersects [lo, hi] are collected by a
+     * depth first search. A leaf is marked dirty before it is replaced or
+     * pruned, so if none of the collected leaves is dirty afterwards, they
+     * were all in the tree together when the check started, and they are
+     * the only leaves covering the range. Otherwise the search is retried.
+     */
+    @Override
+    public void rangeScan(final K lo, final K hi, final Consumer<K> consumer) {
+        if (lo == null || hi == null) throw new NullPointerException();
+        final ArrayList<Node> leaves = new ArrayList<>();
+        final ArrayDeque<Node> stack = new ArrayDeque<>();
+
+        retry:
+        while (true) {
+            leaves.clear();
+            stack.push(root);
+            while (!stack.isEmpty()) {
+                final Node u = stack.pop();
+                if (u.c == null) {
+                    leaves.add(u);
+                    continue;
+                }
+                // child i holds the keys in [k[i-1], k[i]), and a null key is infinity
+                for (int i=u.kcount;i>=0;i--) {
+                    if ((i == 0 || !less(hi, (K)u.k[i-1])) && (i == u.kcount || less(lo, (K)u.k[i]))) {
+                        stack.push(u.c.get(i));
+                    }
+                }
+            }
+            for (Node leaf : leaves) {
+                if (leaf.dirty) continue retry;
+            }
+            break;
+        }
+
+        for (Node leaf : leaves) {
+            for (int i=0;i<leaf.kcount;i++) {
+                final K key = (K)leaf.k[i];
+                if (lessEqual(lo, key) && lessEqual(key, hi)) consumer.accept(key);
+            }
+        }
+    }
+
+    /**
+     * Range query as in rangeScan(), over the leaves from `from` on, up to
+     * the leaf at which the collected leaves hold limit keys.
+     * @return the upper bound of the keys of that leaf, or null if the
+     *         search reached the last leaf
+     */
+    @Override
+    public K scanChunk(final K from, final int limit, final Consumer<K> consumer) {
+        if (from == null) throw new NullPointerException();
+        final ArrayList<Node> leaves = new ArrayList<>();
+        final ArrayDeque<Node> stack = new ArrayDeque<>();
+        // the upper bound of the keys of each node on the stack, null for infinity
+        final ArrayList<K> bounds = new ArrayList<>();
+        K next;
+
+        retry:
+        while (true) {
+            leaves.clear();
+            stack.clear();
+            bounds.clear();
+            next = null;
+            stack.push(root);
+            bounds.add(null);
+            int keys = 0;
+            while (!stack.isEmpty()) {
+                final Node u = stack.pop();
+                final K bound = bounds.remove(bounds.size()-1);
+                if (u.c == null) {
+                    leaves.add(u);
+                    keys += u.kcount;
+                    if (keys >= limit && !stack.isEmpty()) {
+                        next = bound;
+                        break;
+                    }
+                    continue;
+                }
+                for (int i=u.kcount;i>=0;i--) {
+                    if (i == u.kcount || less(from, (K)u.k[i])) {
+                        stack.push(u.c.get(i));
+                        bounds.add(i == u.kcount ? bound : (K)u.k[i]);
+                    }
+                }
+            }
+            for (Node leaf : leaves) {
+                if (leaf.dirty) continue retry;
+            }
+            break;
+        }
+
+        for (Node leaf : leaves) {
+            for (int i=0;i<leaf.kcount;i++) {
+                final K key = (K)leaf.k[i];
+                if (lessEqual(from, key)) consumer.accept(key);
+            }
+        }
+        return next;
+    }
+
+    @Override
+    public K ceiling(final K key) {
+        return nearest(key, true, true);
+    }
+
+    @Override
+    public K higher(final K key) {
+        return nearest(key, true, false);
+    }
+
+    @Override
+    public K floor(final K key) {
+        return nearest(key, false, true);
+    }
+
+    @Override
+    public K lower(final K key) {
+        return nearest(key, false, false);
+    }
+
+    /**
+     * Removes the smallest key and returns it, or returns null if the set is
+     * empty. first() is linearizable here, so the key of the first() that
+     * the remove() of this call succeeds for was the smallest key at that
+     * first(), and it is returned by this call only. A remove() fails only
+     * after another update removed the key, so this is lock-free.
+     *
+     * @return
+     */
+    @Override
+    public K pollFirst() {
+        while (true) {
+            final K key = first();
+            if (key == null || remove(key)) {
+                return key;
+            }
+        }
+    }
+
+    /**
+     * Search for the key next to key, validated like rangeScan(): the leaves
+     * from key on, upwards or downwards, up to the first one that holds a
+     * key on that side are collected by a depth first search, and if none
+     * of them is dirty afterwards, no key lay between key and the one found
+     * when the check started. Otherwise the search is retried.
+     * @param ascending the smallest key above key, or the largest one below
+     * @param inclusive whether key itself counts
+     */
+    private K nearest(final K key, final boolean ascending, final boolean inclusive) {
+        if (key == null) throw new NullPointerException();
+        final ArrayList<Node> leaves = new ArrayList<>();
+        final ArrayDeque<Node> stack = new ArrayDeque<>();
+        K found;
+
+        retry:
+        while (true) {
+            leaves.clear();
+            stack.clear();
+            found = null;
+            stack.push(root);
+            while (!stack.isEmpty()) {
+                final Node u = stack.pop();
+                if (u.c == null) {
+                    leaves.add(u);
+                    for (int i=0;i<u.kcount;i++) {
+                        final K k = (K)u.k[i];
+                        if (inclusive && equal(key, k)) {
+                            found = k;
+                            break;
+                        }
+                        if ((ascending ? less(key, k) : less(k, key)) && (found == null || (ascending ? less(k, found) : less(found, k)))) found = k;
+                    }
+                    if (found != null) break;
+                    continue;
+                }
+                // child i holds the keys in [k[i-1], k[i]), a null key is
+                // infinity, and the child to be walked first is pushed last
+                if (ascending) {
+                    for (int i=u.kcount;i>=0;i--) {
+                        if (i == u.kcount || less(key, (K)u.k[i])) stack.push(u.c.get(i));
+                    }
+                } else {
+                    for (int i=0;i<=u.kcount;i++) {
+                        if (i == 0 || !less(key, (K)u.k[i-1])) stack.push(u.c.get(i));
+                    }
+                }
+            }
+            for (Node leaf : leaves) {
+                if (leaf.dirty) continue retry;
+            }
+            return found;
+        }
+    }
+
+    /**
+     * Weakly consistent iterator, see TreeIterator. Leaves are never changed
+     * once they are in the tree, so their keys are read without checking
+     * whether they are dirty.
+     */
+    @Override
+    public Iterator<K> iterator(final K from) {
+        return new KeyIterator(root, from, null, Long.MAX_VALUE);
+    }
+
+    @Override
+    public int height() {
+        return new KeyIterator(root, null, null, Long.MAX_VALUE).height();
+    }
+
+    /**
+     * Walks the tree like height(), see TreeIterator.shape(). The bytes of
+     * a node are the node, its arrays and its Info record.
+     */
+    @Override
+    public TreeShape shape() {
+        return new KeyIterator(root, null, null, Long.MAX_VALUE).shape();
+    }
+
+    /**
+     * Weakly consistent like iterator(K), walking the tree backwards.
+     */
+    @Override
+    public Iterator<K> descendingIterator(final K from) {
+        return new KeyIterator(root, from, true);
+    }
+
+    /**
+     * Weakly consistent like iterator(), and splits at the internal nodes,
+     * K ways per node, for parallel streams and ParallelScan.
+     */
+    @Override
+    public Spliterator<K> spliterator(final K lo, final K hi) {
+        return new KeyIterator(root, lo, hi, size.sum());
+    }
+
+    private final class KeyIterator extends TreeIterator<Node> {
+        KeyIterator(final Node node, final K from, final K to, final long estimate) {
+            super(node, from, to, estimate);
+        }
+
+        KeyIterator(final Node node, final K from, final boolean descending) {
+            super(node, from, descending);
+        }
+
+        @Override
+        protected boolean isLeaf(final Node n) {
+            return n.c == null;
+        }
+
+        // children behind null (infinite) or K.MaxValue0 routing keys, of the
+        // sentinel nodes and of the padding of bulkLoad(), hold no keys
+        @Override
+        protected int childCount(final Node n) {
+            int count = n.kcount;
+            while (count > 0 && (n.k[count-1] == null || !less((K)n.k[count-1], K.MaxValue0))) count--;
+            return count+1;
+        }
+
+        @Override
+        protected Node child(final Node n, final int i) {
+            return n.c.get(i);
+        }
+
+        @Override
+        protected int childIndex(final Node n, final K key) {
+            return n.childIndex(key);
+        }
+
+        @Override
+        protected void keys(final Node n) {
+            for (int i=0;i<n.kcount;i++) {
+                buffer((K)n.k[i]);
+            }
+        }
+
+        @Override
+        protected long bytes(final Node n) {
+            final long bytes = ObjectLayout.sizeOf(n) + ObjectLayout.sizeOf(n.k) + ObjectLayout.sizeOf(n.v) + ObjectLayout.sizeOf(n.kv) + ObjectLayout.sizeOf(n.info);
+            return (n.c == null) ? bytes : bytes + ObjectLayout.sizeOf(n.c) + ObjectLayout.referenceArray(n.c.length());
+        }
+
+        @Override
+        protected int leafCapacity() {
+            return Knodes-1;
+        }
+
+        @Override
+        protected TreeIterator<Node> newPart(final Node node, final K from, final K to, final long estimate) {
+            return new KeyIterator(node, from, to, estimate);
+        }
+    }
+
+    /**
+     * Adds a batch of keys. The keys that fall into the same leaf are
+     * installed with one IInfo, as a single leaf if they fit and as a packed
+     * subtree otherwise, and the search for the next leaf reuses the part of
+     * the previous path that still covers the next key. Each key is
+     * linearized at the child CAS that installs it, or at the read of the
+     * leaf that already holds it.
+     * @param sortedKeys strictly ascending keys
+     * @return the number of keys added
+     */
+    @Override
+    public final int addAll(final K[] sortedKeys) {
+        Tools.checkAscending(sortedKeys);
+        final BatchPath path = new BatchPath();
+        int added = 0;
+        int next = 0;
+        while (next < sortedKeys.length) {
+            path.search(sortedKeys[next]);
+            final Node p = path.p, l = path.l;
+
+            // as in putIfAbsent(), read pinfo and then verify the child pointer from p to l
+            final Info<?, ?> pinfo = p.info;
+            if (p.c.get(path.pindex) != l) {
+                path.reset();
+                continue;
+            }
+
+            final int end = path.groupEnd(sortedKeys, next);
+            final Node merged = l.withKeys(sortedKeys, next, end);
+            if (merged == l) {
+                next = end;
+            } else if (pinfo != null && pinfo.getClass() != Clean.class) {
+                help(pinfo);
+                path.reset();
+            } else {
+                final Node newchild = (merged.kcount < Knodes) ? merged : buildSubtree(Knodes, merged.k, merged.v);
+                final IInfo<?, ?> newPInfo = new IInfo<>(l, p, newchild, path.pindex);
+                if (ContentionStats.cas(infoUpdater.compareAndSet(p, pinfo, newPInfo))) {       // [[ iflag CAS ]]
+                    helpInsert(newPInfo);
+                    added += merged.kcount - l.kcount;
+                    next = end;
+                } else {
+                    help(p.info);
+                    path.reset();
+                }
+            }
+        }
+        size.add(added);
+        return added;
+    }
+
+    /**
+     * Removes a batch of keys, replacing each leaf once for all of its keys
+     * in the batch. A leaf that would become empty while p has only one
+     * other non-empty child needs a pruning deletion; those keys go through
+     * removeIfPresent() one at a time.
+     * @param sortedKeys strictly ascending keys
+     * @return the number of keys removed
+     */
+    @Override
+    public final int removeAll(final K[] sortedKeys) {
+        Tools.checkAscending(sortedKeys);
+        final BatchPath path = new BatchPath();
+        int removed = 0;
+        int next = 0;
+        while (next < sortedKeys.length) {
+            path.search(sortedKeys[next]);
+            final Node p = path.p, l = path.l;
+
+            final Info<?, ?> pinfo = p.info;
+            if (p.c.get(path.pindex) != l) {
+                path.reset();
+                continue;
+            }
+
+            final int end = path.groupEnd(sortedKeys, next);
+            final Node remaining = l.withoutKeys(sortedKeys, next, end);
+            if (remaining == l) {
+                next = end;
+                continue;
+            }
+
+            int ccount = 0;
+            if (remaining.kcount == 0) {
+                for (int i=0;i<=p.kcount;i++) {
+                    if (p.c.get(i).kcount > 0 && ++ccount > 2) break;
+                }
+            }
+            if (ccount == 2) {
+                for (int i=next;i<end;i++) {
+                    if (removeIfPresent(sortedKeys[i], null) != null) removed++;
+                }
+                path.reset();
+                next = end;
+            } else if (pinfo != null && pinfo.getClass() != Clean.class) {
+                help(pinfo);
+                path.reset();
+            } else {
+                final IInfo<?, ?> newPInfo = new IInfo<>(l, p, remaining, path.pindex);
+                if (ContentionStats.cas(infoUpdater.compareAndSet(p, pinfo, newPInfo))) {       // [[ kdflag CAS ]]
+                    helpInsert(newPInfo);
+                    removed += l.kcount - remaining.kcount;
+                    next = end;
+                } else {
+                    help(p.info);
+                    path.reset();
+                }
+            }
+        }
+        size.add(-removed);
+        return removed;
+    }
+
+    /**
+     * True if every key of the batch is present, each leaf being read once
+     * for all of its keys in the batch. Not atomic as a whole.
+     * @param sortedKeys strictly ascending keys
+     */
+    @Override
+    public final boolean containsAll(final K[] sortedKeys) {
+        Tools.checkAscending(sortedKeys);
+        final BatchPath path = new BatchPath();
+        int next = 0;
+        while (next < sortedKeys.length) {
+            path.search(sortedKeys[next]);
+            final int end = path.groupEnd(sortedKeys, next);
+            for (int i=next;i<end;i++) {
+                if (!path.l.hasKey(sortedKeys[i])) return false;
+            }
+            next = end;
+        }
+        return true;
+    }
+
+    /**
+     * The search of putIfAbsent() for ascending batches. The internal nodes
+     * of the last path are kept with the child index they were reached
+     * through and the upper bound of their key range. A later key below the
+     * bound of a recorded node takes the recorded index at each level without
+     * comparing keys; the child pointers are still re-read top-down as in a
+     * fresh search, and a node that was replaced in between ends the reuse.
+     */
+    private final class BatchPath {
+        private Node[] nodes = new Node[8];
+        private int[] slots = new int[8];
+        private K[] bounds = new K[8];   // exclusive upper bound of nodes[d], null is infinity
+        private int depth;
+
+        Node p, l;
+        int pindex;
+        private K lBound;
+
+        void reset() {
+            depth = 0;
+        }
+
+        void search(final K key) {
+            boolean reuse = depth > 0;
+            nodes[0] = root;
+            bounds[0] = null;
+            Node u = root;
+            K bound = null;
+            int d = 0;
+            while (true) {
+                int i;
+                if (reuse && d+1 < depth && less(key, bounds[d+1])) {
+                    i = slots[d+1];
+                    bound = bounds[d+1];
+                } else {
+                    reuse = false;
+                    i = u.childIndex(key);
+                    // the K.MaxValue0 padding of bulk loaded nodes may exceed the inherited bound
+                    if (i < u.kcount && u.k[i] != null && (bound == null || less((K)u.k[i], bound))) bound = (K)u.k[i];
+                }
+                final Node next = u.c.get(i);
+                if (reuse && next != nodes[d+1]) reuse = false;
+                if (next.c == null) {
+                    p = u;
+                    l = next;
+                    pindex = i;
+                    lBound = bound;
+                    depth = d+1;
+                    return;
+                }
+                u = next;
+                d++;
+                if (d == nodes.length) {
+                    nodes = Arrays.copyOf(nodes, 2*d);
+                    slots = Arrays.copyOf(slots, 2*d);
+                    bounds = Arrays.copyOf(bounds, 2*d);
+                }
+                nodes[d] = next;
+                slots[d] = i;
+                bounds[d] = bound;
+            }
+        }
+
+        /**
+         * End (exclusive) of the keys from sortedKeys[from] on that fall into
+         * the leaf l of the last search.
+         */
+        int groupEnd(final K[] sortedKeys, final int from) {
+            int end = from+1;
+            while (end < sortedKeys.length && less(sortedKeys[end], lBound)) end++;
+            return end;
+        }
+    }
+
+    // removes key, if expected is not null only while its value equals expected
+    private final Object removeIfPresent(final K key, final Object expected) {
         if (key == null) throw new NullPointerException();
         Node gp, p, l, newchild;
         Info gpinfo, pinfo;
         int pindex;  // index of the child of p that points to l
         int gpindex; // index of the child of gp that points to p
 
+        int depth = -1;
         while (true) {
+            ContentionStats.restart(depth);
+            depth = 0;
             // search
             gp = null;
             gpinfo = null;
@@ -164,6 +871,7 @@ public class LockFreeKSTRQ implements SetADT {
             pinfo = p.info;
             l = p.c.get(0);
             while (l.c != null) {
+                depth++;
                 gp = p;
                 p = l;
                 l = child(key, l);
@@ -174,33 +882,19 @@ public class LockFreeKSTRQ implements SetADT {
             // (so it is as if gp.info were read first)
             // and also store the index of the child pointer of gp that points to p
             gpinfo = gp.info;
-            Node currentP = gp.c.get(gp.kcount);
-            gpindex = gp.kcount;
-            for (int i=0;i<gp.kcount;i++) {
-                if (less(key, (K)gp.k[i])) {
-                    currentP = gp.c.get(i);
-                    gpindex = i;
-                    break;
-                }
-            }
+            gpindex = gp.childIndex(key);
+            Node currentP = gp.c.get(gpindex);
 
             if (p != currentP) continue;
 
             // - then do the same for pinfo and the child pointer from p to l
             pinfo = p.info;
-            Node currentL = p.c.get(p.kcount);
-            pindex = p.kcount;
-            for (int i=0;i<p.kcount;i++) {
-                if (less(key, (K)p.k[i])) {
-                    currentL = p.c.get(i);
-                    pindex = i;
-                    break;
-                }
-            }
+            pindex = p.childIndex(key);
+            Node currentL = p.c.get(pindex);
             if (l != currentL) continue;
 
             // if the key is not in the tree, return null
-            if (!l.hasKey(key))
+            if (!l.hasKey(key) || (expected != null && !expected.equals(l.getValue(key))))
                 return null;
             else if (gpinfo != null && gpinfo.getClass() != Clean.class)
                 help(gpinfo);
@@ -221,7 +915,7 @@ public class LockFreeKSTRQ implements SetADT {
                 // PRUNING DELETION
                 if (l.kcount == 1 && ccount == 2) {
                     final DInfo newGPInfo = new DInfo(l, p, gp, pinfo, gpindex);
-                    if (infoUpdater.compareAndSet(gp, gpinfo, newGPInfo)) { // [[ dflag CAS ]]
+                    if (ContentionStats.cas(infoUpdater.compareAndSet(gp, gpinfo, newGPInfo))) { // [[ dflag CAS ]]
                         if (helpDelete(newGPInfo)) return l.getValue(key);
                     } else {
                         help(gp.info);
@@ -234,7 +928,7 @@ public class LockFreeKSTRQ implements SetADT {
 
                     // flag and perform the key deletion (like insertion)
                     final IInfo newPInfo = new IInfo(l, p, newchild, pindex);
-                    if (infoUpdater.compareAndSet(p, pinfo, newPInfo)) {	// [[ kdflag CAS ]]
+                    if (ContentionStats.cas(infoUpdater.compareAndSet(p, pinfo, newPInfo))) {	// [[ kdflag CAS ]]
                         helpInsert(newPInfo);
                         return l.getValue(key);
                     } else {
@@ -282,24 +976,11 @@ public class LockFreeKSTRQ implements SetADT {
     }
 
     private Node child(final K key, final Node l) {
-        if (l.k[0] == null) return l.c.get(0);
-
-        int left = 0, right = l.kcount-1;
-        while (right > left) {
-            int mid = (left+right)/2;
-            if (key.compareTo((K)l.k[mid])) {
-                right = mid;
-            } else {
-                left = mid+1;
-            }
-        }
-        if (left == l.kcount-1 && !key.compareTo((K)l.k[left])) {
-            return l.c.get(l.kcount);
-        }
-        return l.c.get(left);
+        return l.c.get(l.childIndex(key));
     }
 
     private void help(final Info info) {
+        ContentionStats.help();
         if (info.getClass() == IInfo.class)      helpInsert((IInfo) info);
         else if (info.getClass() == DInfo.class) helpDelete((DInfo) info);
         else if (info.getClass() == Mark.class)  helpMarked(((Mark) info).dinfo);
@@ -309,13 +990,13 @@ public class LockFreeKSTRQ implements SetADT {
         info.oldchild.dirty = true;
 
         // CAS the correct child pointer of p from oldchild to newchild
-        info.p.c.compareAndSet(info.pindex, info.oldchild, info.newchild);      // [[ ichild CAS ]]
-        infoUpdater.compareAndSet(info.p, info, new Clean());              // [[ iunflag CAS ]]
+        ContentionStats.cas(info.p.c.compareAndSet(info.pindex, info.oldchild, info.newchild)); // [[ ichild CAS ]]
+        ContentionStats.cas(infoUpdater.compareAndSet(info.p, info, new Clean()));         // [[ iunflag CAS ]]
     }
 
     private boolean helpDelete(final DInfo info) {
-        final boolean markSuccess = infoUpdater.compareAndSet(
-                info.p, info.pinfo, new Mark(info));                       // [[ mark CAS ]]
+        final boolean markSuccess = ContentionStats.cas(infoUpdater.compareAndSet(
+                info.p, info.pinfo, new Mark(info)));                      // [[ mark CAS ]]
         final Info currentPInfo = info.p.info;
         if (markSuccess || (currentPInfo.getClass() == Mark.class
                 && ((Mark) currentPInfo).dinfo == info)) {
@@ -323,7 +1004,7 @@ public class LockFreeKSTRQ implements SetADT {
             return true;
         } else {
             help(currentPInfo);
-            infoUpdater.compareAndSet(info.gp, info, new Clean());         // [[ backtrack CAS ]]
+            ContentionStats.cas(infoUpdater.compareAndSet(info.gp, info, new Clean())); // [[ backtrack CAS ]]
             return false;
         }
     }
@@ -340,14 +1021,14 @@ public class LockFreeKSTRQ implements SetADT {
             }
         }
 
-        for (int i=0;i<info.p.kcount;i++) {
+        for (int i=0;i<=info.p.kcount;i++) {
             final Node u = info.p.c.get(i);
             if (u != other) u.dirty = true;
         }
 
         // CAS the correct child pointer of info.gp from info.p to other
-        info.gp.c.compareAndSet(info.gpindex, info.p, other);                   // [[ dchild CAS ]]
-        infoUpdater.compareAndSet(info.gp, info, new Clean());             // [[ dunflag CAS ]]
+        ContentionStats.cas(info.gp.c.compareAndSet(info.gpindex, info.p, other)); // [[ dchild CAS ]]
+        ContentionStats.cas(infoUpdater.compareAndSet(info.gp, info, new Clean())); // [[ dunflag CAS ]]
     }
 
     public void treeString(StringBuffer sb){
@@ -385,6 +1066,7 @@ public class LockFreeKSTRQ implements SetADT {
         public final int kcount;                          // key count
         public final Object[] k;                          // keys
         public final Object[] v;                          // values
+        public final double[] kv;                         // key values, null keys as infinity
         public final AtomicReferenceArray<Node> c;        // children
         public volatile Info info = null;
         public volatile boolean dirty = false;
@@ -394,6 +1076,7 @@ public class LockFreeKSTRQ implements SetADT {
          */
         Node() {
             this.k = null;
+            this.kv = null;
             this.v = null;
             this.c = null;
             kcount = 0;
@@ -404,11 +1087,35 @@ public class LockFreeKSTRQ implements SetADT {
          */
         public Node(final Object key, final Object value) {
             this.k = new Object[]{key};
+            this.kv = new double[]{((K)key).getValue()};
             this.v = new Object[]{value};
             this.c = null;
             this.kcount = 1;
         }
 
+        /**
+         * Constructor for leaves built from sorted key and value arrays.
+         */
+        Node(final Object[] keys, final Object[] values) {
+            this.kcount = keys.length;
+            this.k = keys;
+            this.kv = KeySearch.valuesOf(keys, kcount);
+            this.v = values;
+            this.c = null;
+        }
+
+        /**
+         * Constructor for internal nodes built by bulkLoad(), with
+         * keys.length+1 children.
+         */
+        Node(final Node[] children, final Object[] keys) {
+            this.kcount = keys.length;
+            this.k = keys;
+            this.kv = KeySearch.valuesOf(keys, kcount);
+            this.v = null;
+            this.c = new AtomicReferenceArray<Node>(children);
+        }
+
         /**
          * Constructor for the root of the tree.
          *
@@ -429,6 +1136,7 @@ public class LockFreeKSTRQ implements SetADT {
             this.k = new Object[K-1];
             this.v = null;
             this.kcount = K-1;
+            this.kv = KeySearch.valuesOf(k, kcount);
             if (root) {
                 this.c = new AtomicReferenceArray<Node>(K);
                 this.c.set(0, new Node(K, false));
@@ -453,10 +1161,7 @@ public class LockFreeKSTRQ implements SetADT {
             this.kcount = l.kcount;
 
             // determine which elements of l.k should precede knew (will be 0...i-1)
-            int i = 0;
-            for (;i<kcount;i++) {
-                if (less(knew, (K)l.k[i])) break;
-            }
+            int i = l.childIndex(knew);
             this.c = new AtomicReferenceArray<Node>(kcount+1);
             // add children with keys preceding knew
             for (int j=0;j<i;j++) {
@@ -473,6 +1178,7 @@ public class LockFreeKSTRQ implements SetADT {
             for (int j=0;j<kcount;j++) {
                 this.k[j] = this.c.get(j+1).k[0];
             }
+            this.kv = KeySearch.valuesOf(k, kcount);
             this.v = null; // internal node, so no values are stored here.
         }
 
@@ -485,11 +1191,12 @@ public class LockFreeKSTRQ implements SetADT {
          * @param l the leaf into which the key is being inserted
          * @param haskey indicates whether l already has <code>knew</code> as a key
          */
-        public Node(final K knew, final K vnew, final Node l, final boolean haskey) {
+        public Node(final K knew, final Object vnew, final Node l, final boolean haskey) {
             this.c = null;
             if (haskey) {
                 this.kcount = l.kcount;
                 this.k = l.k; // all keys are the same (and keys of a node never change)
+                this.kv = l.kv;
                 this.v = new Object[kcount];
                 for (int i=0;i<kcount;i++) {
                     // copy all values from l, writing vnew in the process
@@ -510,12 +1217,8 @@ public class LockFreeKSTRQ implements SetADT {
                 // writing <knew,vnew> in the process
 
                 // determine which keys precede knew
-                int i = 0;
-                for (;i<l.kcount;i++) {
-                    if (less(knew, (K)l.k[i])) {
-                        break; // l.k[0...i-1] will all precede knew.
-                    }
-                }
+                // l.k[0...i-1] will all precede knew.
+                int i = l.childIndex(knew);
 
                 // write <key,val> pairs preceding <knew,vnew>
                 // knew precedes l.k[i], but all of l.k[0...i-1] precede knew.
@@ -531,6 +1234,7 @@ public class LockFreeKSTRQ implements SetADT {
                     this.k[j+1] = l.k[j];
                     this.v[j+1] = l.v[j];
                 }
+                this.kv = KeySearch.valuesOf(k, kcount);
             }
         }
 
@@ -558,22 +1262,70 @@ public class LockFreeKSTRQ implements SetADT {
                     }
                 }
             }
+            this.kv = KeySearch.valuesOf(k, kcount);
+        }
+
+        /**
+         * A leaf with the pairs of this leaf and the keys of batch[from..to),
+         * which are strictly ascending, each new key being its own value, or
+         * this leaf if it already holds all of them.
+         */
+        Node withKeys(final K[] batch, final int from, final int to) {
+            final Object[] keys = new Object[kcount+to-from];
+            final Object[] values = new Object[keys.length];
+            int i = 0, j = from, m = 0;
+            while (i < kcount || j < to) {
+                if (j == to || (i < kcount && less((K)k[i], batch[j]))) {
+                    keys[m] = k[i];
+                    values[m++] = v[i++];
+                } else if (i < kcount && equal(batch[j], (K)k[i])) {
+                    keys[m] = k[i];
+                    values[m++] = v[i++];
+                    j++;
+                } else {
+                    keys[m] = batch[j];
+                    values[m++] = batch[j++];
+                }
+            }
+            if (m == kcount) return this;
+            return new Node(Arrays.copyOf(keys, m), Arrays.copyOf(values, m));
+        }
+
+        /**
+         * A leaf with the pairs of this leaf whose keys are not in
+         * batch[from..to), which are strictly ascending, or this leaf if it
+         * holds none of them.
+         */
+        Node withoutKeys(final K[] batch, final int from, final int to) {
+            final Object[] keys = new Object[kcount];
+            final Object[] values = new Object[kcount];
+            int m = 0;
+            for (int i=0, j=from;i<kcount;i++) {
+                while (j < to && less(batch[j], (K)k[i])) j++;
+                if (j == to || !equal(batch[j], (K)k[i])) {
+                    keys[m] = k[i];
+                    values[m++] = v[i];
+                }
+            }
+            if (m == kcount) return this;
+            return new Node(Arrays.copyOf(keys, m), Arrays.copyOf(values, m));
         }
 
         // Precondition: key is not null
         final boolean hasKey(final K key) {
-            for (int i=0;i<kcount;i++) {
-                if (equal(key, (K)k[i])) return true;
-            }
-            return false;
+            return KeySearch.contains(kv, kcount, key.getValue());
         }
 
         // Precondition: key is not null
-        K getValue(final K key) {
-            for (int i=0;i<kcount;i++) {
-                if (equal(key, (K)k[i])) return (K)v[i];
-            }
-            return null;
+        Object getValue(final K key) {
+            final int i = childIndex(key);
+            return (i > 0 && kv[i-1] == key.getValue()) ? v[i-1] : null;
+        }
+
+        // Precondition: key is not null
+        // index of the child whose subtree holds key, or in a leaf the number of keys <= key
+        final int childIndex(final K key) {
+            return KeySearch.upperBound(kv, kcount, key.getValue());
         }
 
         @Override
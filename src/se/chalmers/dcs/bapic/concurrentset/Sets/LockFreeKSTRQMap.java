@@ -0,0 +1,56 @@
+package se.chalmers.dcs.bapic.concurrentset.Sets;
+
+import se.chalmers.dcs.bapic.concurrentset.utils.K;
+import se.chalmers.dcs.bapic.concurrentset.utils.MapADT;
+import se.chalmers.dcs.bapic.concurrentset.utils.SetADT;
+
+/**
+ * A map on a LockFreeKSTRQ, whose leaves hold a value for each key. A
+ * value is changed by flagging the parent of its leaf and replacing the
+ * leaf with a copy that differs in that value only, as a simple insertion
+ * does, so put() and replace() on a present key never go through a
+ * deletion. Each operation is lock-free and linearizable, see MapADT.
+ * @param <V> the type of the values
+ */
+public class LockFreeKSTRQMap<V> implements MapADT<V> {
+    private final LockFreeKSTRQ tree;
+
+    public LockFreeKSTRQMap(final int K) {
+        tree = new LockFreeKSTRQ(K);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(final K key) {
+        return (V) tree.getValue(key);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V putIfAbsent(final K key, final V value) {
+        MapADT.checkValue(value);
+        return (V) tree.putValueIfAbsent(key, value);
+    }
+
+    @Override
+    public boolean replace(final K key, final V expected, final V value) {
+        MapADT.checkValue(expected);
+        MapADT.checkValue(value);
+        return tree.replaceValue(key, expected, value);
+    }
+
+    @Override
+    public boolean remove(final K key, final V expected) {
+        MapADT.checkValue(expected);
+        return tree.removeValue(key, expected);
+    }
+
+    /**
+     * The tree itself, so the linearizable scans and navigation of
+     * LockFreeKSTRQ work on the keys of the map.
+     */
+    @Override
+    public SetADT keySet() {
+        return tree;
+    }
+}
@@ -0,0 +1,272 @@
+package se.chalmers.dcs.bapic.concurrentset.Sets;
+
+import se.chalmers.dcs.bapic.concurrentset.utils.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.PrimitiveIterator;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * A set whose successful add() and remove() calls are appended to a
+ * ChangeLog, so that the snapshot it was started from and the log give the
+ * set back after a restart, see recover(). The batch operations are those
+ * of SetADT, one logged call per key, and so is pollFirst(), which removes
+ * through remove().
+ */
+public class LoggedSet implements SetADT {
+
+    private final SetADT set;
+    private final ChangeLog log;
+
+    /**
+     *
+     * @param set
+     * @param log
+     */
+    public LoggedSet(SetADT set, ChangeLog log) {
+        this.set = set;
+        this.log = log;
+    }
+
+    /**
+     * Rebuilds a set from snapshot and log, and starts to log its updates
+     * from there. The rebuilt set is written to snapshot before the log
+     * starts over, while nothing updates it yet. Should the process stop
+     * in between, the next recovery applies the old log to a snapshot that
+     * holds its updates already, which gives the same keys.
+     *
+     * @param snapshot
+     * @param log
+     * @param bulkLoad builds the set from ascending keys, e.g.
+     *                 keys -> new KBST(4, keys)
+     * @param policy
+     * @param batchSize
+     * @return
+     * @throws IOException
+     */
+    public static LoggedSet recover(Path snapshot, Path log, Function<PrimitiveIterator.OfDouble, SetADT> bulkLoad,
+                                    ChangeLog.FsyncPolicy policy, int batchSize) throws IOException {
+        SetADT set = bulkLoad.apply(ChangeLog.recover(snapshot, log));
+        Snapshot.write(set, snapshot);
+        return new LoggedSet(set, new ChangeLog(log, policy, batchSize));
+    }
+
+    /**
+     *
+     * @return
+     */
+    public ChangeLog getLog() {
+        return log;
+    }
+
+    /**
+     *
+     * @param key
+     * @return
+     */
+    @Override
+    public boolean contains(K key) {
+        return set.contains(key);
+    }
+
+    /**
+     *
+     * @param key
+     * @return
+     */
+    @Override
+    public boolean add(K key) {
+        if (set.add(key)) {
+            log.append(ChangeLog.ADD, key.getValue());
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     *
+     * @param key
+     * @return
+     */
+    @Override
+    public boolean remove(K key) {
+        if (set.remove(key)) {
+            log.append(ChangeLog.REMOVE, key.getValue());
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     *
+     * @return
+     */
+    @Override
+    public boolean traversalTest() {
+        return set.traversalTest();
+    }
+
+    /**
+     *
+     * @param lo
+     * @param hi
+     * @param consumer
+     */
+    @Override
+    public void rangeScan(K lo, K hi, Consumer<K> consumer) {
+        set.rangeScan(lo, hi, consumer);
+    }
+
+    /**
+     *
+     * @param lo
+     * @param hi
+     * @return
+     */
+    @Override
+    public int countRange(K lo, K hi) {
+        return set.countRange(lo, hi);
+    }
+
+    /**
+     *
+     * @return
+     */
+    @Override
+    public long size() {
+        return set.size();
+    }
+
+    /**
+     *
+     * @return
+     */
+    @Override
+    public long scanSize() {
+        return set.scanSize();
+    }
+
+    /**
+     *
+     * @return
+     */
+    @Override
+    public long estimatedSize() {
+        return set.estimatedSize();
+    }
+
+    /**
+     *
+     * @return
+     */
+    @Override
+    public int height() {
+        return set.height();
+    }
+
+    /**
+     *
+     * @return
+     */
+    @Override
+    public TreeShape shape() {
+        return set.shape();
+    }
+
+    /**
+     *
+     * @param from
+     * @param limit
+     * @param consumer
+     * @return
+     */
+    @Override
+    public K scanChunk(K from, int limit, Consumer<K> consumer) {
+        return set.scanChunk(from, limit, consumer);
+    }
+
+    /**
+     *
+     * @param from
+     * @return
+     */
+    @Override
+    public Iterator<K> iterator(K from) {
+        return set.iterator(from);
+    }
+
+    /**
+     *
+     * @param from
+     * @return
+     */
+    @Override
+    public Iterator<K> descendingIterator(K from) {
+        return set.descendingIterator(from);
+    }
+
+    /**
+     *
+     * @param key
+     * @return
+     */
+    @Override
+    public K ceiling(K key) {
+        return set.ceiling(key);
+    }
+
+    /**
+     *
+     * @param key
+     * @return
+     */
+    @Override
+    public K higher(K key) {
+        return set.higher(key);
+    }
+
+    /**
+     *
+     * @param key
+     * @return
+     */
+    @Override
+    public K floor(K key) {
+        return set.floor(key);
+    }
+
+    /**
+     *
+     * @param key
+     * @return
+     */
+    @Override
+    public K lower(K key) {
+        return set.lower(key);
+    }
+
+    /**
+     *
+     * @param lo
+     * @param hi
+     * @return
+     */
+    @Override
+    public Spliterator<K> spliterator(K lo, K hi) {
+        return set.spliterator(lo, hi);
+    }
+
+    /**
+     *
+     * @param sortedKeys
+     * @return
+     */
+    @Override
+    public boolean containsAll(K[] sortedKeys) {
+        return set.containsAll(sortedKeys);
+    }
+}
@@ -27,10 +27,13 @@
  */
 package se.chalmers.dcs.bapic.concurrentset.Sets;
 
+import java.util.ArrayDeque;
+import java.util.Iterator;
 import java.util.LinkedList;
 import se.chalmers.dcs.bapic.concurrentset.utils.*;
 
 import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.function.Consumer;
 
 /**
  *
@@ -105,8 +108,8 @@ public class NMLFBST implements SetADT {
 
     boolean casChild(Node n, Node cmp, Node newNode, boolean childDir) {
         return childDir
-               ? (n.left == cmp ? leftUpdater.compareAndSet(n, cmp, newNode) : false)
-               : (n.right == cmp ? rightUpdater.compareAndSet(n, cmp, newNode) : false);
+               ? (n.left == cmp ? ContentionStats.cas(leftUpdater.compareAndSet(n, cmp, newNode)) : false)
+               : (n.right == cmp ? ContentionStats.cas(rightUpdater.compareAndSet(n, cmp, newNode)) : false);
     }
 
     /**
@@ -142,6 +145,7 @@ public class NMLFBST implements SetADT {
             else if (casChild(n, child, flag(child), childDir)) {
                 return child;
             }
+            ContentionStats.retry();
         }
     }
 
@@ -168,12 +172,16 @@ public class NMLFBST implements SetADT {
     public final boolean add(K key) {
         Node newInternal, parent, leafLink, ancestor, child, leaf, successor;
 
+        int depth = -1;
         while (true) {
+            ContentionStats.restart(depth);
+            depth = 0;
             ancestor = pRoot;
             successor = parent = cRoot;
             leafLink = parent.left;
 
             while (isRoute(leafLink)) {
+                depth ++;
 
                 /**
                  * The While loop implements the seek() method of the paper
@@ -202,6 +210,7 @@ public class NMLFBST implements SetADT {
                 }
             }
             else if (getRef(child) == leaf && (child.left == child || leaf.right == leaf)) {
+                ContentionStats.help();
                 cleanUp(ancestor, successor, parent, key);
             }
         }
@@ -217,12 +226,16 @@ public class NMLFBST implements SetADT {
         Node parent, leafLink, ancestor, successor,
                 marker = null, child, leaf;
 
+        int depth = -1;
         while (true) {
+            ContentionStats.restart(depth);
+            depth = 0;
             ancestor = pRoot;
             successor = parent = cRoot;
             leafLink = parent.left;
 
             while (isRoute(leafLink)) {
+                depth ++;
 
                 /**
                  * The While loop implements the seek() method of the paper
@@ -256,6 +269,7 @@ public class NMLFBST implements SetADT {
                     }
                 }
                 else if (getRef(child) == leaf && (child.left == child || leaf.right == leaf)) {
+                    ContentionStats.help();
                     cleanUp(ancestor, successor, parent, key);
                 }
             }
@@ -295,14 +309,20 @@ public class NMLFBST implements SetADT {
     }
 
     private void inorder(Node node, LinkedList<K> list) {
-        if (node.left == null) {
-            if (node.right == null) {//if the node is not removed and is leaf
-                list.add(node.key);
+        // an explicit stack, so a degenerate tree does not overflow the call stack
+        ArrayDeque<Node> stack = new ArrayDeque<>();
+        stack.push(node);
+        while ( ! stack.isEmpty()) {
+            node = stack.pop();
+            if (node.left == null) {
+                if (node.right == null) {//if the node is not removed and is leaf
+                    list.add(node.key);
+                }
+                continue;
             }
-            return;
+            stack.push(node.right);
+            stack.push(node.left);
         }
-        inorder(node.left, list);
-        inorder(node.right, list);
     }
 
     /**
@@ -320,6 +340,146 @@ public class NMLFBST implements SetADT {
         return true;
     }
 
+    /**
+     *
+     * @param lo
+     * @param hi
+     * @param consumer
+     */
+    @Override
+    public void rangeScan(K lo, K hi, Consumer<K> consumer) {
+        rangeScan(cRoot, lo, hi, consumer);
+    }
+
+    private void rangeScan(Node node, K lo, K hi, Consumer<K> consumer) {
+        // an explicit stack like inorder(), with the right child pushed first
+        ArrayDeque<Node> stack = new ArrayDeque<>();
+        stack.push(node);
+        while ( ! stack.isEmpty()) {
+            node = stack.pop();
+            if (node.left == null) {
+                // the sentinel leaves hold keys from K.MaxValue2 up, which are not in the set
+                if (node.right == null &&  ! node.key.compareTo(lo) &&  ! hi.compareTo(node.key) && node.key.compareTo(K.MaxValue2)) {
+                    consumer.accept(node.key);
+                }
+                continue;
+            }
+            if ( ! hi.compareTo(node.key)) {
+                stack.push(getChild(node, false));
+            }
+            if (lo.compareTo(node.key)) {
+                stack.push(getChild(node, true));
+            }
+        }
+    }
+
+    /**
+     * Weakly consistent iterator, see TreeIterator.
+     *
+     * @param from
+     * @return
+     */
+    @Override
+    public Iterator<K> iterator(K from) {
+        return new KeyIterator(from, false);
+    }
+
+    /**
+     *
+     * @return
+     */
+    @Override
+    public int height() {
+        return new KeyIterator(null, false).height();
+    }
+
+    /**
+     * Walks the tree like height(), see TreeIterator.shape(). The bytes of a node are the node;
+     * the nodes that mark edges during a delete are left out.
+     *
+     * @return
+     */
+    @Override
+    public TreeShape shape() {
+        return new KeyIterator(null, false).shape();
+    }
+
+    /**
+     * Weakly consistent like iterator(K), walking the tree backwards.
+     *
+     * @param from
+     * @return
+     */
+    @Override
+    public Iterator<K> descendingIterator(K from) {
+        return new KeyIterator(from, true);
+    }
+
+    /**
+     * Best effort: the first key of a weakly consistent iterator.
+     *
+     * @param key
+     * @return
+     */
+    @Override
+    public K ceiling(K key) {
+        return new KeyIterator(key, false).nextOrNull();
+    }
+
+    @Override
+    public K higher(K key) {
+        return new KeyIterator(key, false).nextExcept(key);
+    }
+
+    @Override
+    public K floor(K key) {
+        return new KeyIterator(key, true).nextOrNull();
+    }
+
+    @Override
+    public K lower(K key) {
+        return new KeyIterator(key, true).nextExcept(key);
+    }
+
+    private final class KeyIterator extends TreeIterator<Node> {
+
+        KeyIterator(K from, boolean descending) {
+            super(cRoot, from, descending);
+        }
+
+        @Override
+        protected boolean isLeaf(Node n) {
+            return n.left == null;
+        }
+
+        @Override
+        protected int childCount(Node n) {
+            return 2;
+        }
+
+        @Override
+        protected Node child(Node n, int i) {
+            return i == 0 ? getChild(n, true) : getChild(n, false);
+        }
+
+        @Override
+        protected int childIndex(Node n, K key) {
+            return key.compareTo(n.key) ? 0 : 1;
+        }
+
+        @Override
+        protected void keys(Node n) {
+            if (n.right == null && n.key.compareTo(K.MaxValue2)) {
+                buffer(n.key);
+            }
+        }
+
+        @Override
+        protected long bytes(Node n) {
+            return ObjectLayout.sizeOf(n);
+        }
+    }
+
     /**
      *
      */
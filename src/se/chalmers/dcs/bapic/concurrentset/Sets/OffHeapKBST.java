@@ -0,0 +1,996 @@
+package se.chalmers.dcs.bapic.concurrentset.Sets;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.PrimitiveIterator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.DoubleConsumer;
+import se.chalmers.dcs.bapic.concurrentset.utils.*;
+
+/**
+ * {@link DoubleKBST} with its nodes outside the Java heap.
+ *
+ * The nodes live in an arena of direct ByteBuffer slabs and refer to their
+ * children by 64-bit offsets into it. The state word and the child slots of
+ * a node are read and CASed through byte buffer view VarHandles, so the
+ * algorithm is exactly that of KBST. The heap only holds the arena itself,
+ * which the GC neither traces nor copies however large the tree gets.
+ *
+ * An offset has the slab in its upper bits and the position inside the slab
+ * in the lower SLAB_SHIFT bits. A node is laid out as
+ *
+ *   META      kcount, plus INTERNAL if the node has children
+ *   STATE     FLAGGED and TAGGED bits, written when the node is created
+ *   KEYS      numChildren - 1 doubles
+ *   BLOCK     offset of the numChildren child slots, internal nodes only
+ *
+ * so every leaf has the same size, and every internal node too. The child
+ * slots are a block of their own because a tagged or collapsed copy of a
+ * node shares them, as the copy of a KBST.Node shares its children array.
+ *
+ * As in KBST, the tags are on the edges: freeze() swaps each child of a node
+ * for a tagged copy, so a CAS of an update that read the child fails, and
+ * cleanUp() replaces the frozen node as a whole, see KBST.Node.freeze().
+ *
+ * Nothing is collected, so every node that gets unlinked is retired into an
+ * EpochReclaimer and reused once no operation can still read it, and every
+ * operation is pinned. A node is unlinked by exactly one successful CAS,
+ * and the thread that made it retires the node. The offsets a thread
+ * retires are only reused by that thread, and the slabs are only freed with
+ * the whole set.
+ */
+public class OffHeapKBST implements SetADT {
+
+    static final double INFINITY = Double.MAX_VALUE;
+
+    static final int SLAB_SHIFT = 20;
+    static final int SLAB_SIZE = 1 << SLAB_SHIFT;
+
+    private static final int META = 0;
+    private static final int STATE = 8;
+    private static final int KEYS = 16;
+
+    private static final long INTERNAL = 1L << 32;
+    static final long FLAGGED = 1;
+    static final long TAGGED = 2;
+
+    // buckets of the reclaimer
+    private static final int LEAF = 0;
+    private static final int INTERNAL_NODE = 1;
+    private static final int CHILDREN = 2;
+
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+    private static final VarHandle DOUBLES = MethodHandles.byteBufferViewVarHandle(double[].class, ByteOrder.nativeOrder());
+
+    final long root;
+    final int numChildren;
+    private final int block;
+    private final int[] sizes;
+    final EpochReclaimer<Void> reclaimer = new EpochReclaimer<>(3);
+
+    // offset 0 is never a node, so it can stand for none
+    private final AtomicLong top = new AtomicLong(8);
+    final SizeCounter size = new SizeCounter();
+    private volatile ByteBuffer[] slabs = new ByteBuffer[0];
+
+    public OffHeapKBST(int numChildren) {
+        this.numChildren = numChildren;
+        block = KEYS + 8 * (numChildren - 1);
+        // indexed by bucket
+        sizes = new int[]{block, block + 8, 8 * numChildren};
+        if (sizes[CHILDREN] > SLAB_SIZE) {
+            throw new IllegalArgumentException("nodes of " + numChildren + " children do not fit into a slab");
+        }
+        root = newRoot(true);
+    }
+
+    /**
+     * Bulk loading constructor, see KBST.bulkLoad().
+     *
+     * @param numChildren
+     * @param sortedKeys strictly ascending keys
+     */
+    public OffHeapKBST(int numChildren, double[] sortedKeys) {
+        this(numChildren, Arrays.stream(sortedKeys).iterator());
+    }
+
+    /**
+     * Bulk loading constructor, see KBST.bulkLoad().
+     *
+     * @param numChildren
+     * @param sortedKeys strictly ascending keys
+     */
+    public OffHeapKBST(int numChildren, PrimitiveIterator.OfDouble sortedKeys) {
+        this(numChildren);
+        long empty = child(child(root, 0), 0);
+        // the tree is not published yet, so a plain write is enough
+        initChild(child(root, 0), 0, bulkLoad(size.counting(sortedKeys)));
+        EpochReclaimer.Participant<Void> pool = reclaimer.enter();
+        retire(empty, pool);
+        pool.exit();
+    }
+
+    /**
+     * Bytes taken by the slabs of the arena, whether they hold live nodes,
+     * reusable ones or nothing yet.
+     *
+     * @return
+     */
+    public long residentBytes() {
+        return (long) slabs.length * SLAB_SIZE;
+    }
+
+    private long bulkLoad(PrimitiveIterator.OfDouble sortedKeys) {
+        long[] level = new long[16];
+        int levelSize = 0;
+        // smallest key under each node of the level, indexed like level
+        double[] minKeys = new double[16];
+        double[] leafKeys = new double[numChildren - 1];
+        int count = 0;
+        double previous = -INFINITY;
+        boolean first = true;
+
+        while (sortedKeys.hasNext()) {
+            double key = sortedKeys.nextDouble();
+            if (!first && !(previous < key)) {
+                throw new IllegalArgumentException("keys are not strictly ascending at " + key);
+            }
+            first = false;
+            previous = key;
+            leafKeys[count++] = key;
+            if (count == numChildren - 1) {
+                minKeys = append(minKeys, levelSize, leafKeys[0]);
+                level = append(level, levelSize++, newLeaf(leafKeys, count, null));
+                count = 0;
+            }
+        }
+        if (count > 0) {
+            minKeys = append(minKeys, levelSize, leafKeys[0]);
+            level = append(level, levelSize++, newLeaf(leafKeys, count, null));
+        }
+        if (levelSize == 0) {
+            return emptyLeaf(null);
+        }
+
+        while (levelSize > 1) {
+            int parents = (levelSize + numChildren - 1) / numChildren;
+            long[] parentLevel = new long[parents];
+            double[] parentMinKeys = new double[parents];
+            for (int p = 0; p < parents; p++) {
+                int firstChild = p * numChildren;
+                int used = Math.min(numChildren, levelSize - firstChild);
+                long n = newInternal(numChildren - 1, null);
+                for (int j = 0; j < numChildren; j++) {
+                    initChild(n, j, (j < used) ? level[firstChild + j] : emptyLeaf(null));
+                }
+                // child j holds the keys in [keys[j-1], keys[j])
+                for (int j = 0; j < numChildren - 1; j++) {
+                    setKey(n, j, (j + 1 < used) ? minKeys[firstChild + j + 1] : INFINITY);
+                }
+                parentLevel[p] = n;
+                parentMinKeys[p] = minKeys[firstChild];
+            }
+            level = parentLevel;
+            levelSize = parents;
+            minKeys = parentMinKeys;
+        }
+        return level[0];
+    }
+
+    private static double[] append(double[] a, int size, double value) {
+        if (size == a.length) {
+            a = Arrays.copyOf(a, 2 * size);
+        }
+        a[size] = value;
+        return a;
+    }
+
+    private static long[] append(long[] a, int size, long value) {
+        if (size == a.length) {
+            a = Arrays.copyOf(a, 2 * size);
+        }
+        a[size] = value;
+        return a;
+    }
+
+    /**
+     * The root of the tree, see KBST.Node(int, boolean).
+     */
+    private long newRoot(boolean root) {
+        long n = newInternal(numChildren - 1, null);
+        for (int i = 0; i < numChildren - 1; i++) {
+            setKey(n, i, INFINITY);
+        }
+        for (int i = 0; i < numChildren; i++) {
+            initChild(n, i, (root && i == 0) ? newRoot(false) : emptyLeaf(null));
+        }
+        return n;
+    }
+
+    // Arena
+
+    private ByteBuffer slab(long n) {
+        return slabs[(int) (n >>> SLAB_SHIFT)];
+    }
+
+    private static int position(long n) {
+        return (int) n & (SLAB_SIZE - 1);
+    }
+
+    /**
+     * Bump allocation from the arena. A node never straddles two slabs, the
+     * end of a slab that is too short for it is left unused.
+     */
+    private long allocate(int size) {
+        while (true) {
+            long start = top.getAndAdd(size);
+            int slab = (int) (start >>> SLAB_SHIFT);
+            if (slab == (int) ((start + size - 1) >>> SLAB_SHIFT)) {
+                if (slab >= slabs.length) {
+                    addSlabs(slab);
+                }
+                return start;
+            }
+        }
+    }
+
+    private synchronized void addSlabs(int last) {
+        ByteBuffer[] current = slabs;
+        if (last < current.length) {
+            return;
+        }
+        ByteBuffer[] grown = Arrays.copyOf(current, last + 1);
+        for (int i = current.length; i <= last; i++) {
+            grown[i] = ByteBuffer.allocateDirect(SLAB_SIZE);
+        }
+        slabs = grown;
+    }
+
+    private long allocate(int bucket, EpochReclaimer.Participant<Void> pool) {
+        long n = (pool == null) ? -1 : pool.reuseOffset(bucket);
+        if (n < 0) {
+            n = allocate(sizes[bucket]);
+        }
+        return n;
+    }
+
+    // Nodes, written with plain accesses until a CAS publishes them
+
+    private long newLeaf(int kcount, long state, EpochReclaimer.Participant<Void> pool) {
+        long n = allocate(LEAF, pool);
+        ByteBuffer b = slab(n);
+        int p = position(n);
+        LONGS.set(b, p + META, (long) kcount);
+        LONGS.set(b, p + STATE, state);
+        return n;
+    }
+
+    private long newLeaf(double[] keys, int count, EpochReclaimer.Participant<Void> pool) {
+        long n = newLeaf(count, 0, pool);
+        for (int i = 0; i < count; i++) {
+            setKey(n, i, keys[i]);
+        }
+        return n;
+    }
+
+    private long emptyLeaf(EpochReclaimer.Participant<Void> pool) {
+        return newLeaf(0, 0, pool);
+    }
+
+    private long newInternal(int kcount, EpochReclaimer.Participant<Void> pool) {
+        return newInternal(kcount, allocate(CHILDREN, pool), 0, pool);
+    }
+
+    private long newInternal(int kcount, long children, long state, EpochReclaimer.Participant<Void> pool) {
+        long n = allocate(INTERNAL_NODE, pool);
+        ByteBuffer b = slab(n);
+        int p = position(n);
+        LONGS.set(b, p + META, INTERNAL | kcount);
+        LONGS.set(b, p + STATE, state);
+        LONGS.set(b, p + block, children);
+        return n;
+    }
+
+    /**
+     * A node with the keys of n and the given state, and for an internal
+     * node the same child slots.
+     */
+    private long copy(long n, long state, EpochReclaimer.Participant<Void> pool) {
+        if (!isInternalNode(n)) {
+            return copyLeaf(n, state, pool);
+        }
+        int kcount = kcount(n);
+        long c = newInternal(kcount, children(n), state, pool);
+        for (int i = 0; i < kcount; i++) {
+            setKey(c, i, key(n, i));
+        }
+        return c;
+    }
+
+    /**
+     * A leaf with the keys of l and the given state.
+     */
+    private long copyLeaf(long l, long state, EpochReclaimer.Participant<Void> pool) {
+        int kcount = kcount(l);
+        long n = newLeaf(kcount, state, pool);
+        for (int i = 0; i < kcount; i++) {
+            setKey(n, i, key(l, i));
+        }
+        return n;
+    }
+
+    // Constructor for the operations simple insert, sprouting insert and simple delete
+    private long newNode(double knew, long l, OperationType operationType, EpochReclaimer.Participant<Void> pool) {
+        int lcount = kcount(l);
+        long n;
+        if (operationType == OperationType.SPROUTING_INSERT) {
+            n = newInternal(lcount, pool);
+            // l.k[0...i-1] precede knew
+            int i = getChildIndex(l, knew);
+            for (int j = 0; j <= lcount; j++) {
+                double key = (j < i) ? key(l, j) : (j == i) ? knew : key(l, j - 1);
+                long leaf = newLeaf(1, 0, pool);
+                setKey(leaf, 0, key);
+                initChild(n, j, leaf);
+                if (j > 0) {
+                    setKey(n, j - 1, key);
+                }
+            }
+        } else if (operationType == OperationType.SIMPLE_INSERT) {
+            n = newLeaf(lcount + 1, 0, pool);
+            int i = getChildIndex(l, knew);
+            for (int j = 0; j < i; j++) {
+                setKey(n, j, key(l, j));
+            }
+            setKey(n, i, knew);
+            for (int j = i; j < lcount; j++) {
+                setKey(n, j + 1, key(l, j));
+            }
+        } else { // SIMPLE_DELETION
+            n = newLeaf(lcount - 1, 0, pool);
+            for (int i = 0, j = 0; i < lcount; i++) {
+                double key = key(l, i);
+                if (knew == key) continue;
+                setKey(n, j, key);
+                j++;
+            }
+        }
+        return n;
+    }
+
+    private int kcount(long n) {
+        return (int) (long) LONGS.get(slab(n), position(n) + META);
+    }
+
+    boolean isInternalNode(long n) {
+        return ((long) LONGS.get(slab(n), position(n) + META) & INTERNAL) != 0;
+    }
+
+    private double key(long n, int i) {
+        return (double) DOUBLES.get(slab(n), position(n) + KEYS + 8 * i);
+    }
+
+    private void setKey(long n, int i, double key) {
+        DOUBLES.set(slab(n), position(n) + KEYS + 8 * i, key);
+    }
+
+    private long children(long n) {
+        return (long) LONGS.get(slab(n), position(n) + block);
+    }
+
+    long child(long n, int i) {
+        long c = children(n);
+        return (long) LONGS.getVolatile(slab(c), position(c) + 8 * i);
+    }
+
+    private void initChild(long n, int i, long child) {
+        long c = children(n);
+        LONGS.set(slab(c), position(c) + 8 * i, child);
+    }
+
+    boolean casChild(long n, int i, long expected, long update) {
+        long c = children(n);
+        return ContentionStats.cas(LONGS.compareAndSet(slab(c), position(c) + 8 * i, expected, update));
+    }
+
+    private long state(long n) {
+        return (long) LONGS.get(slab(n), position(n) + STATE);
+    }
+
+    boolean isFlagged(long n) {
+        return (state(n) & FLAGGED) != 0;
+    }
+
+    boolean isTagged(long n) {
+        return (state(n) & TAGGED) != 0;
+    }
+
+    /**
+     * Neither flagged nor tagged.
+     */
+    boolean isClean(long n) {
+        return state(n) == 0;
+    }
+
+    /**
+     * Tags the edges to all children of internal node n, see
+     * KBST.Node.freeze(). The tagged copy of an internal child shares its
+     * child slots, so only the node itself is retired.
+     */
+    private void freeze(long n, EpochReclaimer.Participant<Void> pool) {
+        for (int i = 0; i < numChildren; i++) {
+            long child = child(n, i);
+            while (!isTagged(child)) {
+                long tagged = copy(child, state(child) | TAGGED, pool);
+                if (casChild(n, i, child, tagged)) {
+                    retire(child, pool);
+                    break;
+                }
+                retire(tagged, pool);
+                child = child(n, i);
+            }
+        }
+    }
+
+    int getNonEmptyChildCount(long n) {
+        int count = 0;
+        for (int i = 0; i < numChildren; i++) {
+            if (kcount(child(n, i)) > 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Index of the first key of n greater than key, see KeySearch.upperBound.
+     */
+    int getChildIndex(long n, double key) {
+        ByteBuffer b = slab(n);
+        int p = position(n);
+        int kcount = (int) (long) LONGS.get(b, p + META);
+        int i = 0;
+        while (i < kcount && (double) DOUBLES.get(b, p + KEYS + 8 * i) <= key) {
+            i++;
+        }
+        return i;
+    }
+
+    long getChild(long n, double key) {
+        return child(n, getChildIndex(n, key));
+    }
+
+    boolean hasKey(long n, double key) {
+        ByteBuffer b = slab(n);
+        int p = position(n);
+        int kcount = (int) (long) LONGS.get(b, p + META);
+        for (int i = 0; i < kcount; i++) {
+            if ((double) DOUBLES.get(b, p + KEYS + 8 * i) == key) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Reclamation
+
+    /**
+     * Hands a node that is no longer reachable from the root, or that was
+     * never published, over to the pool. The child slots of an internal
+     * node are not, they may belong to a copy of it.
+     */
+    private void retire(long n, EpochReclaimer.Participant<Void> pool) {
+        pool.retire(n, isInternalNode(n) ? INTERNAL_NODE : LEAF);
+    }
+
+    /**
+     * Gives back a node made by newNode() that failed to be published,
+     * with the leaves of a sprouting insert.
+     */
+    private void discard(long n, EpochReclaimer.Participant<Void> pool) {
+        if (isInternalNode(n)) {
+            for (int i = 0; i < numChildren; i++) {
+                retire(child(n, i), pool);
+            }
+            pool.retire(children(n), CHILDREN);
+        }
+        retire(n, pool);
+    }
+
+    // SetADT
+
+    @Override
+    public final boolean contains(final K key) {
+        return contains(key.getValue());
+    }
+
+    @Override
+    public final boolean add(final K key) {
+        return add(key.getValue());
+    }
+
+    @Override
+    public final boolean remove(final K key) {
+        return remove(key.getValue());
+    }
+
+    public final boolean contains(final double key) {
+        EpochReclaimer.Participant<Void> pool = reclaimer.enter();
+        try {
+            long current = root;
+            while (isInternalNode(current)) {
+                current = getChild(current, key);
+            }
+            return hasKey(current, key);
+        }
+        finally {
+            pool.exit();
+        }
+    }
+
+    public final boolean add(final double key) {
+        EpochReclaimer.Participant<Void> pool = reclaimer.enter();
+        try {
+            if (add(key, pool)) {
+                size.increment();
+                return true;
+            }
+            return false;
+        }
+        finally {
+            pool.exit();
+        }
+    }
+
+    public final boolean remove(final double key) {
+        EpochReclaimer.Participant<Void> pool = reclaimer.enter();
+        try {
+            if (remove(key, pool)) {
+                size.decrement();
+                return true;
+            }
+            return false;
+        }
+        finally {
+            pool.exit();
+        }
+    }
+
+    private boolean add(final double key, EpochReclaimer.Participant<Void> pool) {
+        long parent, ancestor, terminal, successor;
+
+        int depth = -1;
+        while (true) {
+            ContentionStats.restart(depth);
+            depth = 0;
+            ancestor = root;
+            successor = parent = child(root, 0);
+            terminal = child(parent, 0);
+
+            while (isInternalNode(terminal)) {
+                depth++;
+
+                /**
+                 * The While loop implements the seek() method of the paper
+                 */
+                if (!isTagged(terminal)) {
+                    ancestor = parent;
+                    successor = terminal;
+                }
+
+                parent = terminal;
+                terminal = getChild(parent, key);
+            }
+            if (hasKey(terminal, key)) {
+                return false;
+            }
+
+            int terminalIndex = getChildIndex(parent, key);
+
+            if (isClean(terminal)) {
+                OperationType operationType;
+                if (kcount(terminal) == numChildren - 1) {
+                    operationType = OperationType.SPROUTING_INSERT;
+                } else {
+                    operationType = OperationType.SIMPLE_INSERT;
+                }
+                long newNode = newNode(key, terminal, operationType, pool);
+                if (casChild(parent, terminalIndex, terminal, newNode)) {
+                    retire(terminal, pool);
+                    return true;
+                }
+                discard(newNode, pool);
+            }
+            else if (terminal == child(parent, terminalIndex) && !isClean(terminal)) {
+                ContentionStats.help();
+                cleanUp(ancestor, successor, parent, key, pool);
+            }
+        }
+    }
+
+    private boolean remove(final double key, EpochReclaimer.Participant<Void> pool) {
+        int mode = 1;    // 1:- INJECTION, 2:- CLEANUP
+        long parent, terminal, ancestor, successor;
+        int depth = -1;
+        while (true) {
+            ContentionStats.restart(depth);
+            depth = 0;
+            ancestor = root;
+            successor = parent = child(root, 0);
+            terminal = child(parent, 0);
+
+            while (isInternalNode(terminal)) {
+                depth++;
+
+                /**
+                 * The While loop implements the seek() method of the paper
+                 */
+                if (!isTagged(terminal)) {
+                    ancestor = parent;
+                    successor = terminal;
+                }
+
+                parent = terminal;
+                terminal = getChild(parent, key);
+            }
+
+            if (mode == 1) {
+                if (!hasKey(terminal, key)) {
+                    return false;
+                }
+                int terminalIndex = getChildIndex(parent, key);
+                if (isClean(terminal)) {
+                    boolean isSimpleDelete = kcount(terminal) > 1 || getNonEmptyChildCount(parent) != 2;
+                    long newNode = isSimpleDelete
+                                   ? newNode(key, terminal, OperationType.SIMPLE_DELETE, pool)
+                                   : copyLeaf(terminal, FLAGGED, pool);
+                    if (casChild(parent, terminalIndex, terminal, newNode)) {
+                        retire(terminal, pool);
+                        if (isSimpleDelete) {
+                            return true;
+                        }
+                        else {
+                            mode = 2;
+                            if (cleanUp(ancestor, successor, parent, key, pool)) {
+                                return true;
+                            }
+                        }
+                    }
+                    else {
+                        discard(newNode, pool);
+                    }
+                }
+                else if (terminal == child(parent, terminalIndex) && !isClean(terminal)) {
+                    ContentionStats.help();
+                    cleanUp(ancestor, successor, parent, key, pool);
+                }
+            }
+            else { // Pruning Delete: mode == 2
+                // a leaf with key that is not flagged means the flagged one is gone
+                if (!hasKey(terminal, key) || !isFlagged(terminal)) {
+                    return true;
+                }
+                else if (cleanUp(ancestor, successor, parent, key, pool)) {
+                    return true;
+                }
+            }
+        }
+    }
+
+    /**
+     * See KBST.cleanUp().
+     *
+     * @param ancestor
+     * @param successor
+     * @param parent
+     * @param key
+     * @param pool
+     * @return true if parent, and so the terminal of the seek, was replaced
+     */
+    protected final boolean cleanUp(long ancestor, long successor, long parent, double key, EpochReclaimer.Participant<Void> pool) {
+        if (ancestor == root) {
+            return false;    // root.c0 is never frozen
+        }
+        return collapse(ancestor, getChildIndex(ancestor, key), successor, pool) && successor == parent;
+    }
+
+    /**
+     * Freezes node, the child of ancestor at index, and replaces it by an
+     * empty leaf or a clean copy of its only non-empty child if it has at
+     * most one, and otherwise by a copy of it over clean copies of its
+     * children, see KBST.collapse(). The thread whose CAS installs the
+     * replacement retires node, its child slots and its frozen children;
+     * the child slots of those that are internal go with their copies.
+     *
+     * @return true if this call replaced node
+     */
+    private boolean collapse(long ancestor, int index, long node, EpochReclaimer.Participant<Void> pool) {
+        if (isTagged(node)) {
+            return false;    // the edge to node is frozen itself
+        }
+        freeze(node, pool);
+        if (child(ancestor, index) != node) {
+            return false;
+        }
+        long only = 0;
+        int nonEmpty = 0;
+        for (int i = 0; i < numChildren; i++) {
+            long child = child(node, i);
+            if (isFlagged(child) || kcount(child) == 0) continue;
+            only = child;
+            nonEmpty++;
+        }
+        long replacement;
+        if (nonEmpty <= 1) {
+            replacement = (only == 0) ? emptyLeaf(pool) : copy(only, 0, pool);
+        }
+        else {
+            int kcount = kcount(node);
+            replacement = newInternal(kcount, pool);
+            for (int i = 0; i < kcount; i++) {
+                setKey(replacement, i, key(node, i));
+            }
+            for (int i = 0; i < numChildren; i++) {
+                long child = child(node, i);
+                initChild(replacement, i, isFlagged(child) ? emptyLeaf(pool) : copy(child, 0, pool));
+            }
+        }
+        if (casChild(ancestor, index, node, replacement)) {
+            for (int i = 0; i < numChildren; i++) {
+                retire(child(node, i), pool);
+            }
+            pool.retire(children(node), CHILDREN);
+            retire(node, pool);
+            return true;
+        }
+        if (nonEmpty > 1) {
+            discard(replacement, pool);
+        }
+        else {
+            retire(replacement, pool);
+        }
+        return false;
+    }
+
+    public boolean traversalTest() {
+        return true;
+    }
+
+    @Override
+    public long estimatedSize() {
+        return size.sum();
+    }
+
+    /**
+     * Exact and linearizable: the count of a KBST.rangeScan over all keys. The
+     * scan is only retried after another update has succeeded, so it is
+     * lock-free.
+     */
+    @Override
+    public long size() {
+        return countRange(K.MinValue0, K.MaxValue0);
+    }
+
+    @Override
+    public void rangeScan(K lo, K hi, Consumer<K> consumer) {
+        rangeScan(lo.getValue(), hi.getValue(), key -> consumer.accept(new K(key)));
+    }
+
+    @Override
+    public int countRange(K lo, K hi) {
+        return countRange(lo.getValue(), hi.getValue());
+    }
+
+    /**
+     * Linearizable range scan by double collect, see KBST.rangeScan. The scan
+     * is pinned, so no node it has collected is reused before it is done.
+     *
+     * @param lo
+     * @param hi
+     * @param consumer
+     */
+    public void rangeScan(double lo, double hi, DoubleConsumer consumer) {
+        EpochReclaimer.Participant<Void> pool = reclaimer.enter();
+        try {
+            long[] nodes = snapshotRange(lo, hi);
+            for (int j = 1; j <= nodes[0]; j++) {
+                long n = nodes[j];
+                if (isInternalNode(n)) {
+                    continue;
+                }
+                int kcount = kcount(n);
+                for (int i = 0; i < kcount; i++) {
+                    double key = key(n, i);
+                    if (lo <= key && key <= hi) {
+                        consumer.accept(key);
+                    }
+                }
+            }
+        }
+        finally {
+            pool.exit();
+        }
+    }
+
+    public int countRange(double lo, double hi) {
+        int[] count = new int[1];
+        rangeScan(lo, hi, key -> count[0]++);
+        return count[0];
+    }
+
+    @Override
+    public K ceiling(K key) {
+        return keyOf(ceiling(key.getValue()));
+    }
+
+    @Override
+    public K higher(K key) {
+        return keyOf(higher(key.getValue()));
+    }
+
+    @Override
+    public K floor(K key) {
+        return keyOf(floor(key.getValue()));
+    }
+
+    @Override
+    public K lower(K key) {
+        return keyOf(lower(key.getValue()));
+    }
+
+    /**
+     * Linearizable, see KBST.pollFirst().
+     *
+     * @return
+     */
+    @Override
+    public K pollFirst() {
+        while (true) {
+            double key = ceiling(K.MinValue0.getValue());
+            if (Double.isNaN(key) || remove(key)) {
+                return keyOf(key);
+            }
+        }
+    }
+
+    private static K keyOf(double key) {
+        return Double.isNaN(key) ? null : new K(key);
+    }
+
+    /**
+     * The smallest key >= key, or NaN if there is none, found by double
+     * collect as in KBST.nearest.
+     *
+     * @param key
+     * @return
+     */
+    public double ceiling(double key) {
+        return nearest(key, true, true);
+    }
+
+    public double higher(double key) {
+        return nearest(key, true, false);
+    }
+
+    public double floor(double key) {
+        return nearest(key, false, true);
+    }
+
+    public double lower(double key) {
+        return nearest(key, false, false);
+    }
+
+    /**
+     * Double collect as in KBST.nearest, pinned like rangeScan().
+     */
+    private double nearest(double key, boolean ascending, boolean inclusive) {
+        EpochReclaimer.Participant<Void> pool = reclaimer.enter();
+        try {
+            long[] previous = collectNearest(key, ascending, inclusive);
+            while (true) {
+                long[] current = collectNearest(key, ascending, inclusive);
+                if (Arrays.equals(previous, 0, (int) previous[0] + 2, current, 0, (int) current[0] + 2)) {
+                    return Double.longBitsToDouble(current[1]);
+                }
+                previous = current;
+            }
+        }
+        finally {
+            pool.exit();
+        }
+    }
+
+    /**
+     * Walks like collectRange() from key on in the given direction, up to
+     * the first leaf holding a key on that side. Element 0 of the result is
+     * the number of nodes, element 1 the bits of that key or of NaN, and the
+     * nodes follow.
+     */
+    private long[] collectNearest(double key, boolean ascending, boolean inclusive) {
+        long[] visited = new long[16];
+        long[] stack = new long[16];
+        int size = 1;
+        int depth = 0;
+        stack[depth++] = root;
+        double best = Double.NaN;
+        while (depth > 0 && Double.isNaN(best)) {
+            long n = stack[--depth];
+            visited = append(visited, ++size, n);
+            if (isInternalNode(n)) {
+                int kcount = kcount(n);
+                // child i holds the keys in [keys[i-1], keys[i]), and the
+                // child to be walked first is pushed last
+                if (ascending) {
+                    for (int i = kcount; i >= 0; i--) {
+                        if (i == kcount || key < key(n, i)) {
+                            stack = append(stack, depth++, child(n, i));
+                        }
+                    }
+                }
+                else {
+                    for (int i = 0; i <= kcount; i++) {
+                        if (i == 0 || key(n, i - 1) <= key) {
+                            stack = append(stack, depth++, child(n, i));
+                        }
+                    }
+                }
+                continue;
+            }
+            int kcount = kcount(n);
+            for (int i = 0; i < kcount; i++) {
+                double k = key(n, i);
+                if ((inclusive && k == key) || ((ascending ? key < k : k < key) && (Double.isNaN(best) || (ascending ? k < best : best < k)))) {
+                    best = k;
+                }
+            }
+        }
+        visited[0] = size - 1;
+        visited[1] = Double.doubleToRawLongBits(best);
+        return visited;
+    }
+
+    private long[] snapshotRange(double lo, double hi) {
+        long[] previous = collectRange(lo, hi);
+        while (true) {
+            long[] current = collectRange(lo, hi);
+            if (Arrays.equals(previous, 0, (int) previous[0] + 1, current, 0, (int) current[0] + 1)) {
+                return current;
+            }
+            previous = current;
+        }
+    }
+
+    /**
+     * Depth first walk over the nodes whose key range intersects [lo, hi],
+     * in ascending key order. Element 0 of the result is the number of
+     * nodes, which follow it.
+     */
+    private long[] collectRange(double lo, double hi) {
+        long[] visited = new long[16];
+        long[] stack = new long[16];
+        int size = 0;
+        int depth = 0;
+        stack[depth++] = root;
+        while (depth > 0) {
+            long n = stack[--depth];
+            visited = append(visited, ++size, n);
+            if (isInternalNode(n)) {
+                int kcount = kcount(n);
+                // child i holds the keys in [keys[i-1], keys[i])
+                for (int i = kcount; i >= 0; i--) {
+                    if ((i == 0 || key(n, i - 1) <= hi) && (i == kcount || lo < key(n, i))) {
+                        stack = append(stack, depth++, child(n, i));
+                    }
+                }
+            }
+        }
+        visited[0] = size;
+        return visited;
+    }
+
+    protected enum OperationType {SIMPLE_INSERT, SPROUTING_INSERT, SIMPLE_DELETE};
+}
@@ -0,0 +1,715 @@
+package se.chalmers.dcs.bapic.concurrentset.Sets;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import se.chalmers.dcs.bapic.concurrentset.utils.*;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.function.Consumer;
+
+/**
+ * A lock-free external BST that stays balanced when its keys come in
+ * ascending order, which turns EFRBLFBST and the other BSTs into lists.
+ *
+ * The tree has the shape of EFRBLFBST: keys are in the leaves, an internal
+ * node sends keys below its own to the left, and the root has two sentinel
+ * leaves. Updates generalize the Info records of EFRBLFBST to SCX records
+ * (the LLX/SCX primitives of Brown, Ellen and Ruppert, on which Brown's
+ * chromatic tree is built): an update reads the info field of every node
+ * it depends on with llx(), then flags all of them top down by a CAS of
+ * that info field to its record, marks the ones it takes out of the tree,
+ * swings a single child pointer and commits. Anyone who meets a record in
+ * progress helps it to the end, as help() does in EFRBLFBST. An insert
+ * flags the parent of the leaf, a delete the grandparent, the parent and
+ * an internal sibling, which it marks like the parent. As in the chromatic
+ * tree, the child pointer is swung to new nodes only: an insert puts a
+ * copy of the leaf it splits under the new internal node, and a delete
+ * moves up a copy of the sibling, so a pointer never gets back a node it
+ * held before, and a helper that swings it late fails rather than put a
+ * removed node back into the tree.
+ *
+ * Balance is restored lazily, as in a scapegoat tree: an insert whose leaf
+ * is deeper than log of the size to the base 1/ALPHA walks back up its path
+ * to the lowest node one of whose children holds more than ALPHA of its
+ * leaves, and replaces the internal nodes below that node with a perfectly
+ * balanced copy over the same leaves, with one SCX that flags and marks
+ * all of them. As for the sequential scapegoat tree this costs amortized
+ * O(log n) per insert. The walk up collects the subtree below it as it
+ * goes, each sibling once, so the scapegoat is found and rebuilt in time
+ * linear in its size. A rebuild that fails because an update got into
+ * its subtree first is retried from the root up to REBUILD_ATTEMPTS
+ * times and then abandoned, which ContentionStats counts, and the next
+ * deep insert tries again, so the bound on the height is relaxed while
+ * updates contend. Deletes do not rebalance, as removing leaves never
+ * deepens the tree.
+ */
+public class ScapegoatLFBST implements SetADT {
+
+    private static final AtomicReferenceFieldUpdater<Node, Node> leftUpdater
+                                                                 = AtomicReferenceFieldUpdater.newUpdater(Node.class, Node.class, "left");
+    private static final AtomicReferenceFieldUpdater<Node, Node> rightUpdater
+                                                                 = AtomicReferenceFieldUpdater.newUpdater(Node.class, Node.class, "right");
+    private static final AtomicReferenceFieldUpdater<Node, SCXRecord> infoUpdater
+                                                                      = AtomicReferenceFieldUpdater.newUpdater(Node.class, SCXRecord.class, "info");
+
+    // a child holding more than ALPHA of the leaves of its parent is too heavy
+    private static final double ALPHA = 0.7;
+    private static final double LOG_INVERSE_ALPHA = Math.log(1 / ALPHA);
+    // leaves up to this depth never start a rebuild, so that inserts into a
+    // small tree do not read the size
+    private static final int MIN_REBUILD_DEPTH = 8;
+    // a rebuild whose subtree changes under it is tried this often in all
+    private static final int REBUILD_ATTEMPTS = 4;
+
+    private static final int IN_PROGRESS = 0;
+    private static final int COMMITTED = 1;
+    private static final int ABORTED = 2;
+
+    // the info of a node that no SCX has flagged yet
+    private static final SCXRecord DUMMY = new SCXRecord();
+
+    final Node root;
+    private final SizeCounter size = new SizeCounter();
+
+    /**
+     *
+     */
+    public ScapegoatLFBST() {
+        root = new Node(K.MaxValue0, new Node(K.MaxValue1), new Node(K.MaxValue0));
+    }
+
+    /**
+     *
+     * @param key
+     * @return
+     */
+    @Override
+    public final boolean contains(final K key) {
+        if (key == null) {
+            throw new NullPointerException();
+        }
+
+        Node l = root.left;
+
+        while (l.left != null) {
+            l = key.compareTo(l.key)
+                ? l.left
+                : l.right;
+        }
+
+        return key.equals(l.key);
+    }
+
+    /**
+     *
+     * @param key
+     * @return
+     */
+    @Override
+    public final boolean add(final K key) {
+        final Node newLeaf = new Node(key);
+
+        int depth = -1;
+        while (true) {
+            ContentionStats.restart(depth);
+            depth = 0;
+
+            Node p = root;
+            Node l = p.left;
+
+            while (l.left != null) {
+                depth ++;
+                p = l;
+                l = key.compareTo(l.key)
+                    ? l.left
+                    : l.right;
+            }
+
+            if (key.equals(l.key)) {
+                return false;
+            }
+
+            final SCXRecord pinfo = llx(p);
+
+            if (pinfo == null) {
+                continue;
+            }
+
+            // read after llx(), the child is checked by the SCX, which fails
+            // if p changed since then
+            final boolean left = p.left == l;
+
+            if ( ! left && p.right != l) {
+                continue;
+            }
+
+            // with a copy of l, which never comes back to the pointer, see above
+            final Node newInternal = key.compareTo(l.key)
+                                     ? new Node(l.key, newLeaf, new Node(l.key))
+                                     : new Node(key, new Node(l.key), newLeaf);
+
+            if (help(new SCXRecord(new Node[] {p}, new SCXRecord[] {pinfo}, left, l, newInternal))) {
+                size.increment();
+                // the new leaf is at depth + 2, below root.left at depth + 1
+                if (depth + 1 >= MIN_REBUILD_DEPTH && depth + 1 > Math.log(size.sum() + 1) / LOG_INVERSE_ALPHA) {
+                    rebuildScapegoat(key);
+                }
+                return true;
+            }
+        }
+    }
+
+    /**
+     *
+     * @param key
+     * @return
+     */
+    @Override
+    public final boolean remove(final K key) {
+        int depth = -1;
+        while (true) {
+            ContentionStats.restart(depth);
+            depth = 0;
+
+            Node gp = null;
+            Node p = root;
+            Node l = p.left;
+
+            while (l.left != null) {
+                depth ++;
+                gp = p;
+                p = l;
+                l = key.compareTo(l.key)
+                    ? l.left
+                    : l.right;
+            }
+
+            // gp is null only if root.left is a leaf, which is the sentinel
+            if (gp == null ||  ! key.equals(l.key)) {
+                return false;
+            }
+
+            final SCXRecord gpinfo = llx(gp);
+
+            if (gpinfo == null) {
+                continue;
+            }
+
+            final boolean left = gp.left == p;
+
+            if ( ! left && gp.right != p) {
+                continue;
+            }
+
+            final SCXRecord pinfo = llx(p);
+
+            if (pinfo == null) {
+                continue;
+            }
+
+            final Node sibling;
+
+            if (p.left == l) {
+                sibling = p.right;
+            }
+            else if (p.right == l) {
+                sibling = p.left;
+            }
+            else {
+                continue;
+            }
+
+            final SCXRecord[] infos;
+            final Node[] nodes;
+
+            if (sibling.left == null) {
+                nodes = new Node[] {gp, p};
+                infos = new SCXRecord[] {gpinfo, pinfo};
+            }
+            else {
+                final SCXRecord sinfo = llx(sibling);
+
+                if (sinfo == null) {
+                    continue;
+                }
+                nodes = new Node[] {gp, p, sibling};
+                infos = new SCXRecord[] {gpinfo, pinfo, sinfo};
+            }
+
+            // the children of an internal sibling are read after its llx()
+            final Node copy = new Node(sibling.key, sibling.left, sibling.right);
+
+            if (help(new SCXRecord(nodes, infos, left, p, copy))) {
+                size.decrement();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * The LLX of Brown, Ellen and Ruppert without the snapshot: the caller
+     * reads the children of r after it, and the SCX that r is passed to
+     * checks that r has not changed since.
+     *
+     * @param r
+     * @return the info of r, or null if r is being changed or is out of
+     *         the tree
+     */
+    private SCXRecord llx(final Node r) {
+        final SCXRecord rinfo = r.info;
+        final int state = rinfo.state;
+
+        if (state == ABORTED || (state == COMMITTED &&  ! r.marked)) {
+            return rinfo;
+        }
+        if (state == IN_PROGRESS) {
+            ContentionStats.help();
+            help(rinfo);
+        }
+        return null;
+    }
+
+    /**
+     * Flags the nodes of op in order, marks all but the first, swings the
+     * child of the first and commits.
+     *
+     * @param op
+     * @return false if op was aborted because one of its nodes had changed
+     */
+    private boolean help(final SCXRecord op) {
+        for (int i = 0; i < op.nodes.length; i ++) {
+            final Node v = op.nodes[i];
+
+            if ( ! ContentionStats.cas(infoUpdater.compareAndSet(v, op.infos[i], op)) && v.info != op) {
+                if (op.allFrozen) {
+                    // another helper flagged all of them, and then v moved on
+                    return true;
+                }
+                op.state = ABORTED;
+                return false;
+            }
+        }
+        op.allFrozen = true;
+        for (int i = 1; i < op.nodes.length; i ++) {
+            op.nodes[i].marked = true;
+        }
+        ContentionStats.cas((op.left
+                             ? leftUpdater
+                             : rightUpdater).compareAndSet(op.nodes[0], op.old, op.replacement));
+        op.state = COMMITTED;
+        return true;
+    }
+
+    /**
+     * Rebuilds the scapegoat on the path to key, if there is one, giving up
+     * after REBUILD_ATTEMPTS attempts.
+     *
+     * @param key
+     */
+    private void rebuildScapegoat(final K key) {
+        for (int attempt = 0; attempt < REBUILD_ATTEMPTS; attempt ++) {
+            if (attempt > 0) {
+                ContentionStats.retry();
+            }
+            if (tryRebuildScapegoat(key)) {
+                return;
+            }
+        }
+        ContentionStats.rebuild(false);
+    }
+
+    /**
+     * Finds the scapegoat on the path to key from below and rebuilds it.
+     * On the way up the leaves and the internal nodes, in preorder with
+     * their llx(), of the subtree below the current node are carried
+     * along, and each level only adds those of the sibling, so the weights
+     * come from the collected leaves and the rebuild reuses all of it.
+     *
+     * @param key
+     * @return false if a node was being changed or the rebuild failed
+     */
+    private boolean tryRebuildScapegoat(final K key) {
+        final ArrayList<Node> path = new ArrayList<>();
+        Node l = root;
+
+        while (l.left != null) {
+            path.add(l);
+            l = key.compareTo(l.key)
+                ? l.left
+                : l.right;
+        }
+
+        final ArrayDeque<Node> leaves = new ArrayDeque<>();
+        final ArrayDeque<Node> nodes = new ArrayDeque<>();
+        final ArrayDeque<SCXRecord> infos = new ArrayDeque<>();
+        final ArrayList<Node> otherLeaves = new ArrayList<>();
+        final ArrayList<Node> otherNodes = new ArrayList<>();
+        final ArrayList<SCXRecord> otherInfos = new ArrayList<>();
+
+        leaves.add(l);
+        // path.get(0) is the root, which is never rebuilt
+        for (int i = path.size() - 1; i > 0; i --) {
+            final Node p = path.get(i);
+            final SCXRecord pinfo = llx(p);
+
+            if (pinfo == null) {
+                return false;
+            }
+
+            final boolean left = p.left == l;
+
+            if ( ! left && p.right != l) {
+                return false;
+            }
+
+            final long weight = leaves.size();
+
+            otherLeaves.clear();
+            otherNodes.clear();
+            otherInfos.clear();
+            if ( ! collect(left ? p.right : p.left, otherLeaves, otherNodes, otherInfos)) {
+                return false;
+            }
+            if (left) {
+                leaves.addAll(otherLeaves);
+                nodes.addAll(otherNodes);
+                infos.addAll(otherInfos);
+            }
+            else {
+                for (int j = otherLeaves.size() - 1; j >= 0; j --) {
+                    leaves.addFirst(otherLeaves.get(j));
+                }
+                for (int j = otherNodes.size() - 1; j >= 0; j --) {
+                    nodes.addFirst(otherNodes.get(j));
+                    infos.addFirst(otherInfos.get(j));
+                }
+            }
+            nodes.addFirst(p);
+            infos.addFirst(pinfo);
+
+            if (weight > ALPHA * leaves.size()) {
+                return rebuild(path.get(i - 1), p, nodes, infos, leaves);
+            }
+            l = p;
+        }
+        return true;
+    }
+
+    /**
+     * Adds the leaves of the subtree n in ascending order, and its internal
+     * nodes in preorder with their llx().
+     *
+     * @return false if an internal node is being changed
+     */
+    private boolean collect(final Node n, final ArrayList<Node> leaves, final ArrayList<Node> nodes, final ArrayList<SCXRecord> infos) {
+        final ArrayDeque<Node> stack = new ArrayDeque<>();
+
+        stack.push(n);
+        while ( ! stack.isEmpty()) {
+            final Node u = stack.pop();
+
+            if (u.left == null) {
+                leaves.add(u);
+                continue;
+            }
+
+            final SCXRecord uinfo = llx(u);
+
+            if (uinfo == null) {
+                return false;
+            }
+            nodes.add(u);
+            infos.add(uinfo);
+            stack.push(u.right);
+            stack.push(u.left);
+        }
+        return true;
+    }
+
+    /**
+     * Replaces the internal nodes below the child n of p with a balanced
+     * copy, by one SCX over p and those nodes in preorder, which is top
+     * down and consistent with the order of every other SCX.
+     *
+     * @param p
+     * @param n
+     * @param nodes the internal nodes of n in preorder
+     * @param infos their llx()
+     * @param leaves the leaves of n in ascending order
+     * @return false if a node is being changed
+     */
+    private boolean rebuild(final Node p, final Node n, final ArrayDeque<Node> nodes, final ArrayDeque<SCXRecord> infos, final ArrayDeque<Node> leaves) {
+        final SCXRecord pinfo = llx(p);
+
+        if (pinfo == null) {
+            return false;
+        }
+
+        final boolean left = p.left == n;
+
+        if ( ! left && p.right != n) {
+            return false;
+        }
+        nodes.addFirst(p);
+        infos.addFirst(pinfo);
+
+        final Node balanced = balanced(new ArrayList<>(leaves), 0, leaves.size());
+
+        if (help(new SCXRecord(nodes.toArray(new Node[nodes.size()]), infos.toArray(new SCXRecord[infos.size()]), left, n, balanced))) {
+            ContentionStats.rebuild(true);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * A perfectly balanced subtree over leaves from (inclusive) to to
+     * (exclusive), which are in ascending order.
+     */
+    private static Node balanced(final ArrayList<Node> leaves, final int from, final int to) {
+        if (to - from == 1) {
+            return leaves.get(from);
+        }
+
+        final int middle = (from + to) >>> 1;
+
+        return new Node(leaves.get(middle).key, balanced(leaves, from, middle), balanced(leaves, middle, to));
+    }
+
+    private void inorder(Node node, LinkedList<K> list) {
+        // an explicit stack, so a degenerate tree does not overflow the call stack
+        ArrayDeque<Node> stack = new ArrayDeque<>();
+        stack.push(node);
+        while ( ! stack.isEmpty()) {
+            node = stack.pop();
+            if (node.left == null) {
+                list.add(node.key);
+                continue;
+            }
+            stack.push(node.right);
+            stack.push(node.left);
+        }
+    }
+
+    /**
+     *
+     * @return
+     */
+    @Override
+    public boolean traversalTest() {
+        LinkedList<K> keys = new LinkedList<>();
+        inorder(root, keys);
+        K previous = null;
+        for (K key : keys) {
+            if (previous != null &&  ! previous.compareTo(key)) {
+                return false;
+            }
+            previous = key;
+        }
+        return true;
+    }
+
+    /**
+     *
+     * @param lo
+     * @param hi
+     * @param consumer
+     */
+    @Override
+    public void rangeScan(K lo, K hi, Consumer<K> consumer) {
+        // an explicit stack like inorder(), with the right child pushed first
+        ArrayDeque<Node> stack = new ArrayDeque<>();
+        stack.push(root.left);
+        while ( ! stack.isEmpty()) {
+            Node node = stack.pop();
+            if (node.left == null) {
+                // the sentinel leaves hold keys from K.MaxValue2 up, which are not in the set
+                if ( ! node.key.compareTo(lo) &&  ! hi.compareTo(node.key) && node.key.compareTo(K.MaxValue2)) {
+                    consumer.accept(node.key);
+                }
+                continue;
+            }
+            if ( ! hi.compareTo(node.key)) {
+                stack.push(node.right);
+            }
+            if (lo.compareTo(node.key)) {
+                stack.push(node.left);
+            }
+        }
+    }
+
+    /**
+     *
+     * @return
+     */
+    @Override
+    public long estimatedSize() {
+        return size.sum();
+    }
+
+    /**
+     * Weakly consistent iterator, see TreeIterator.
+     *
+     * @param from
+     * @return
+     */
+    @Override
+    public Iterator<K> iterator(K from) {
+        return new KeyIterator(from, false);
+    }
+
+    /**
+     *
+     * @return
+     */
+    @Override
+    public int height() {
+        return new KeyIterator(null, false).height();
+    }
+
+    /**
+     * Walks the tree like height(), see TreeIterator.shape(). The bytes of a node are the node and
+     * its SCX record with the arrays of that, unless it is the shared
+     * DUMMY.
+     *
+     * @return
+     */
+    @Override
+    public TreeShape shape() {
+        return new KeyIterator(null, false).shape();
+    }
+
+    /**
+     * Weakly consistent like iterator(K), walking the tree backwards.
+     *
+     * @param from
+     * @return
+     */
+    @Override
+    public Iterator<K> descendingIterator(K from) {
+        return new KeyIterator(from, true);
+    }
+
+    /**
+     * Best effort: the first key of a weakly consistent iterator.
+     *
+     * @param key
+     * @return
+     */
+    @Override
+    public K ceiling(K key) {
+        return new KeyIterator(key, false).nextOrNull();
+    }
+
+    @Override
+    public K higher(K key) {
+        return new KeyIterator(key, false).nextExcept(key);
+    }
+
+    @Override
+    public K floor(K key) {
+        return new KeyIterator(key, true).nextOrNull();
+    }
+
+    @Override
+    public K lower(K key) {
+        return new KeyIterator(key, true).nextExcept(key);
+    }
+
+    private final class KeyIterator extends TreeIterator<Node> {
+
+        KeyIterator(K from, boolean descending) {
+            super(root, from, descending);
+        }
+
+        @Override
+        protected boolean isLeaf(Node n) {
+            return n.left == null;
+        }
+
+        @Override
+        protected int childCount(Node n) {
+            return 2;
+        }
+
+        @Override
+        protected Node child(Node n, int i) {
+            return i == 0 ? n.left : n.right;
+        }
+
+        @Override
+        protected int childIndex(Node n, K key) {
+            return key.compareTo(n.key) ? 0 : 1;
+        }
+
+        @Override
+        protected void keys(Node n) {
+            // the sentinel leaves hold keys from K.MaxValue2 up, which are not in the set
+            if (n.key.compareTo(K.MaxValue2)) {
+                buffer(n.key);
+            }
+        }
+
+        @Override
+        protected long bytes(Node n) {
+            SCXRecord info = n.info;
+            if (info == DUMMY) {
+                return ObjectLayout.sizeOf(n);
+            }
+            return ObjectLayout.sizeOf(n) + ObjectLayout.sizeOf(info) + ObjectLayout.sizeOf(info.nodes) + ObjectLayout.sizeOf(info.infos);
+        }
+    }
+
+    /**
+     * An SCX: flags nodes, marks all of them but the first, and replaces
+     * the child old of the first one.
+     */
+    protected final static class SCXRecord {
+
+        final Node[] nodes;
+        // the info fields that the llx() of nodes read
+        final SCXRecord[] infos;
+        final boolean left;
+        final Node old;
+        final Node replacement;
+        volatile int state;
+        volatile boolean allFrozen;
+
+        SCXRecord() {
+            this(new Node[0], new SCXRecord[0], false, null, null);
+            this.state = ABORTED;
+        }
+
+        SCXRecord(final Node[] nodes, final SCXRecord[] infos, final boolean left, final Node old, final Node replacement) {
+            this.nodes = nodes;
+            this.infos = infos;
+            this.left = left;
+            this.old = old;
+            this.replacement = replacement;
+            this.state = IN_PROGRESS;
+        }
+    }
+
+    /**
+     *
+     */
+    protected final static class Node {
+
+        final K key;
+        volatile Node left;
+        volatile Node right;
+        volatile SCXRecord info = DUMMY;
+        volatile boolean marked;
+
+        Node(final K key) {
+            this(key, null, null);
+        }
+
+        Node(final K key, final Node left, final Node right) {
+            this.key = key;
+            this.left = left;
+            this.right = right;
+        }
+    }
+}
@@ -0,0 +1,610 @@
+package se.chalmers.dcs.bapic.concurrentset.Sets;
+
+import se.chalmers.dcs.bapic.concurrentset.utils.*;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * A set split by key ranges into independent inner sets, the shards, so
+ * that threads working on different ranges do not meet at a common root.
+ * Shard i holds the keys in [splits[i-1], splits[i]), the first one also
+ * those below splits[0] and the last one those from its last split on.
+ *
+ * An operation on one key is an operation of its shard, with the same
+ * guarantees. A range scan or a batch that spans shards is a scan or a
+ * batch of each shard in turn, in key order, so a scan is a snapshot of
+ * each shard only. Ranges rather than hashes decide the shard because scans
+ * then visit each shard once and deliver its keys in order.
+ */
+public class ShardedSet implements SetADT {
+
+    private final double[] splits;
+    private final SetADT[] shards;
+
+    /**
+     *
+     * @param splits strictly ascending, one less than shards
+     * @param shards
+     */
+    public ShardedSet(double[] splits, SetADT[] shards) {
+        if (splits.length != shards.length - 1) {
+            throw new IllegalArgumentException("there must be one split less than shards");
+        }
+        for (int i = 1; i < splits.length; i ++) {
+            if (splits[i - 1] >= splits[i]) {
+                throw new IllegalArgumentException("splits are not strictly ascending at " + splits[i]);
+            }
+        }
+        this.splits = splits.clone();
+        this.shards = shards.clone();
+    }
+
+    /**
+     * count empty shards of equal width over [lo, hi).
+     *
+     * @param count
+     * @param lo
+     * @param hi
+     * @param newShard
+     */
+    public ShardedSet(int count, double lo, double hi, Supplier<SetADT> newShard) {
+        this(evenSplits(count, lo, hi), newShards(count, newShard));
+    }
+
+    /**
+     * Shards as in ShardedSet(count, lo, hi, newShard), each built from its
+     * part of the sorted keys by a bulk loading constructor.
+     *
+     * @param count
+     * @param lo
+     * @param hi
+     * @param sortedKeys strictly ascending keys
+     * @param bulkLoad   builds a shard from ascending keys, e.g.
+     *                   keys -> new KBST(4, keys)
+     * @return
+     */
+    public static ShardedSet bulkLoad(int count, double lo, double hi, PrimitiveIterator.OfDouble sortedKeys,
+                                      Function<PrimitiveIterator.OfDouble, SetADT> bulkLoad) {
+        double[] splits = evenSplits(count, lo, hi);
+        SetADT[] shards = new SetADT[count];
+        KeysBelow keys = new KeysBelow(sortedKeys);
+        for (int i = 0; i < count; i ++) {
+            keys.end = (i < splits.length) ? splits[i] : Double.POSITIVE_INFINITY;
+            shards[i] = bulkLoad.apply(keys);
+        }
+        return new ShardedSet(splits, shards);
+    }
+
+    /**
+     * One shard per available processor.
+     *
+     * @return
+     */
+    public static int defaultShardCount() {
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * The count - 1 splits that divide [lo, hi) into ranges of equal width.
+     *
+     * @param count
+     * @param lo
+     * @param hi
+     * @return
+     */
+    public static double[] evenSplits(int count, double lo, double hi) {
+        if (count < 1 ||  ! (lo < hi)) {
+            throw new IllegalArgumentException("need at least one shard and lo < hi");
+        }
+        double[] splits = new double[count - 1];
+        for (int i = 0; i < splits.length; i ++) {
+            splits[i] = lo + (hi - lo) * (i + 1) / count;
+        }
+        return splits;
+    }
+
+    private static SetADT[] newShards(int count, Supplier<SetADT> newShard) {
+        SetADT[] shards = new SetADT[count];
+        for (int i = 0; i < count; i ++) {
+            shards[i] = newShard.get();
+        }
+        return shards;
+    }
+
+    /**
+     *
+     * @return
+     */
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    private int shardOf(double key) {
+        return KeySearch.upperBound(splits, splits.length, key);
+    }
+
+    /**
+     *
+     * @param key
+     * @return
+     */
+    @Override
+    public boolean contains(K key) {
+        return shards[shardOf(key.getValue())].contains(key);
+    }
+
+    /**
+     *
+     * @param key
+     * @return
+     */
+    @Override
+    public boolean add(K key) {
+        return shards[shardOf(key.getValue())].add(key);
+    }
+
+    /**
+     *
+     * @param key
+     * @return
+     */
+    @Override
+    public boolean remove(K key) {
+        return shards[shardOf(key.getValue())].remove(key);
+    }
+
+    /**
+     *
+     * @return
+     */
+    @Override
+    public boolean traversalTest() {
+        boolean passed = true;
+        for (SetADT shard : shards) {
+            passed &= shard.traversalTest();
+        }
+        return passed;
+    }
+
+    /**
+     *
+     * @param lo
+     * @param hi
+     * @param consumer
+     */
+    @Override
+    public void rangeScan(K lo, K hi, Consumer<K> consumer) {
+        for (int i = shardOf(lo.getValue()), last = shardOf(hi.getValue()); i <= last; i ++) {
+            shards[i].rangeScan(lo, hi, consumer);
+        }
+    }
+
+    /**
+     *
+     * @param lo
+     * @param hi
+     * @return
+     */
+    @Override
+    public int countRange(K lo, K hi) {
+        int count = 0;
+        for (int i = shardOf(lo.getValue()), last = shardOf(hi.getValue()); i <= last; i ++) {
+            count += shards[i].countRange(lo, hi);
+        }
+        return count;
+    }
+
+    /**
+     * Sum of the sizes of the shards. Each of them has the consistency of
+     * size() of its set, the sum is not atomic across the shards.
+     *
+     * @return
+     */
+    @Override
+    public long size() {
+        long size = 0;
+        for (SetADT shard : shards) {
+            size += shard.size();
+        }
+        return size;
+    }
+
+    /**
+     * Sum of scanSize() of the shards, one shard after the other.
+     *
+     * @return
+     */
+    @Override
+    public long scanSize() {
+        long size = 0;
+        for (SetADT shard : shards) {
+            size += shard.scanSize();
+        }
+        return size;
+    }
+
+    /**
+     *
+     * @return
+     */
+    @Override
+    public long estimatedSize() {
+        long size = 0;
+        for (SetADT shard : shards) {
+            size += shard.estimatedSize();
+        }
+        return size;
+    }
+
+    /**
+     * The height of the highest shard.
+     *
+     * @return
+     */
+    @Override
+    public int height() {
+        int height = - 1;
+        for (SetADT shard : shards) {
+            height = Math.max(height, shard.height());
+        }
+        return height;
+    }
+
+    /**
+     * The shapes of the shards added up, or null if they have none.
+     *
+     * @return
+     */
+    @Override
+    public TreeShape shape() {
+        TreeShape shape = null;
+        for (SetADT shard : shards) {
+            TreeShape s = shard.shape();
+            if (s == null) {
+                return null;
+            }
+            if (shape == null) {
+                shape = s;
+            }
+            else {
+                shape.add(s);
+            }
+        }
+        return shape;
+    }
+
+    /**
+     * A chunk of the shard of from. Where that shard ends, the next chunk
+     * starts at the next shard.
+     *
+     * @param from
+     * @param limit
+     * @param consumer
+     * @return
+     */
+    @Override
+    public K scanChunk(K from, int limit, Consumer<K> consumer) {
+        int i = shardOf(from.getValue());
+        K next = shards[i].scanChunk(from, limit, consumer);
+        if (i < splits.length && (next == null || next.getValue() >= splits[i])) {
+            return new K(splits[i]);
+        }
+        return next;
+    }
+
+    /**
+     * The iterators of the shards from the shard of from on, one after the
+     * other.
+     *
+     * @param from
+     * @return
+     */
+    @Override
+    public Iterator<K> iterator(K from) {
+        return new Iterator<K>() {
+            private int shard = shardOf(from.getValue());
+            private Iterator<K> keys = shards[shard].iterator(from);
+
+            @Override
+            public boolean hasNext() {
+                while ( ! keys.hasNext() && shard + 1 < shards.length) {
+                    keys = shards[++ shard].iterator(from);
+                }
+                return keys.hasNext();
+            }
+
+            @Override
+            public K next() {
+                if ( ! hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return keys.next();
+            }
+        };
+    }
+
+    /**
+     * The descending iterators of the shards from the shard of from down,
+     * one after the other.
+     *
+     * @param from
+     * @return
+     */
+    @Override
+    public Iterator<K> descendingIterator(K from) {
+        return new Iterator<K>() {
+            private int shard = shardOf(from.getValue());
+            private Iterator<K> keys = shards[shard].descendingIterator(from);
+
+            @Override
+            public boolean hasNext() {
+                while ( ! keys.hasNext() && shard > 0) {
+                    keys = shards[-- shard].descendingIterator(from);
+                }
+                return keys.hasNext();
+            }
+
+            @Override
+            public K next() {
+                if ( ! hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return keys.next();
+            }
+        };
+    }
+
+    /**
+     * The ceiling of the shard of key, or of the first shard above that is
+     * not empty. Each shard answers with its own guarantees, the search as
+     * a whole is not atomic across the shards.
+     *
+     * @param key
+     * @return
+     */
+    @Override
+    public K ceiling(K key) {
+        K found = null;
+        for (int i = shardOf(key.getValue()); found == null && i < shards.length; i ++) {
+            found = shards[i].ceiling(key);
+        }
+        return found;
+    }
+
+    /**
+     *
+     * @param key
+     * @return
+     */
+    @Override
+    public K higher(K key) {
+        K found = null;
+        for (int i = shardOf(key.getValue()); found == null && i < shards.length; i ++) {
+            found = shards[i].higher(key);
+        }
+        return found;
+    }
+
+    /**
+     * The floor of the shard of key, or of the first shard below that is not
+     * empty, see ceiling().
+     *
+     * @param key
+     * @return
+     */
+    @Override
+    public K floor(K key) {
+        K found = null;
+        for (int i = shardOf(key.getValue()); found == null && i >= 0; i --) {
+            found = shards[i].floor(key);
+        }
+        return found;
+    }
+
+    /**
+     *
+     * @param key
+     * @return
+     */
+    @Override
+    public K lower(K key) {
+        K found = null;
+        for (int i = shardOf(key.getValue()); found == null && i >= 0; i --) {
+            found = shards[i].lower(key);
+        }
+        return found;
+    }
+
+    /**
+     * Splits among the shards the range covers first, then within a shard
+     * as its own spliterator does.
+     *
+     * @param lo
+     * @param hi
+     * @return
+     */
+    @Override
+    public Spliterator<K> spliterator(K lo, K hi) {
+        return new ShardSpliterator(shardOf(lo.getValue()), shardOf(hi.getValue()) + 1, lo, hi);
+    }
+
+    /**
+     * The spliterators of the shards next to end - 1, one after the other.
+     */
+    private final class ShardSpliterator implements Spliterator<K> {
+
+        private int next;
+        private final int end;
+        private final K lo, hi;
+        private Spliterator<K> current;
+
+        ShardSpliterator(int next, int end, K lo, K hi) {
+            this.next = next;
+            this.end = end;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super K> action) {
+            while (true) {
+                if (current == null) {
+                    if (next == end) {
+                        return false;
+                    }
+                    current = shards[next ++].spliterator(lo, hi);
+                }
+                if (current.tryAdvance(action)) {
+                    return true;
+                }
+                current = null;
+            }
+        }
+
+        @Override
+        public void forEachRemaining(Consumer<? super K> action) {
+            if (current != null) {
+                current.forEachRemaining(action);
+                current = null;
+            }
+            while (next < end) {
+                shards[next ++].spliterator(lo, hi).forEachRemaining(action);
+            }
+        }
+
+        @Override
+        public Spliterator<K> trySplit() {
+            if (current == null && end - next > 1) {
+                int middle = (next + end) >>> 1;
+                ShardSpliterator first = new ShardSpliterator(next, middle, lo, hi);
+                next = middle;
+                return first;
+            }
+            if (current == null && end - next == 1) {
+                current = shards[next ++].spliterator(lo, hi);
+            }
+            return (current == null || next < end) ? null : current.trySplit();
+        }
+
+        /**
+         * Only known once a single shard is left.
+         *
+         * @return
+         */
+        @Override
+        public long estimateSize() {
+            return (current != null && next == end) ? current.estimateSize() : Long.MAX_VALUE;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | DISTINCT | NONNULL | CONCURRENT;
+        }
+    }
+
+    /**
+     *
+     * @param sortedKeys strictly ascending keys
+     * @return the number of keys that were added
+     */
+    @Override
+    public int addAll(K[] sortedKeys) {
+        Tools.checkAscending(sortedKeys);
+        int added = 0;
+        for (int start = 0, end; start < sortedKeys.length; start = end) {
+            end = shardEnd(sortedKeys, start);
+            added += shards[shardOf(sortedKeys[start].getValue())].addAll(Arrays.copyOfRange(sortedKeys, start, end));
+        }
+        return added;
+    }
+
+    /**
+     *
+     * @param sortedKeys strictly ascending keys
+     * @return the number of keys that were removed
+     */
+    @Override
+    public int removeAll(K[] sortedKeys) {
+        Tools.checkAscending(sortedKeys);
+        int removed = 0;
+        for (int start = 0, end; start < sortedKeys.length; start = end) {
+            end = shardEnd(sortedKeys, start);
+            removed += shards[shardOf(sortedKeys[start].getValue())].removeAll(Arrays.copyOfRange(sortedKeys, start, end));
+        }
+        return removed;
+    }
+
+    /**
+     *
+     * @param sortedKeys strictly ascending keys
+     * @return
+     */
+    @Override
+    public boolean containsAll(K[] sortedKeys) {
+        Tools.checkAscending(sortedKeys);
+        for (int start = 0, end; start < sortedKeys.length; start = end) {
+            end = shardEnd(sortedKeys, start);
+            if ( ! shards[shardOf(sortedKeys[start].getValue())].containsAll(Arrays.copyOfRange(sortedKeys, start, end))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The end of the run of sorted keys from start on that falls into the
+     * shard of sortedKeys[start].
+     */
+    private int shardEnd(K[] sortedKeys, int start) {
+        int shard = shardOf(sortedKeys[start].getValue());
+        if (shard == splits.length) {
+            return sortedKeys.length;
+        }
+        int end = start + 1;
+        while (end < sortedKeys.length && sortedKeys[end].getValue() < splits[shard]) {
+            end ++;
+        }
+        return end;
+    }
+
+    /**
+     * The sorted keys below end, read from an iterator that is shared by
+     * the shards of a bulk load and moved to the next shard by raising end.
+     */
+    private static final class KeysBelow implements PrimitiveIterator.OfDouble {
+
+        private final PrimitiveIterator.OfDouble keys;
+        private boolean peeked;
+        private double next;
+        double end;
+
+        KeysBelow(PrimitiveIterator.OfDouble keys) {
+            this.keys = keys;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if ( ! peeked && keys.hasNext()) {
+                next = keys.nextDouble();
+                peeked = true;
+            }
+            return peeked && next < end;
+        }
+
+        @Override
+        public double nextDouble() {
+            if ( ! hasNext()) {
+                throw new NoSuchElementException();
+            }
+            peeked = false;
+            return next;
+        }
+    }
+}
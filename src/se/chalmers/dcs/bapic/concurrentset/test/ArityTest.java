@@ -0,0 +1,117 @@
+package se.chalmers.dcs.bapic.concurrentset.test;
+
+import java.util.ArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReference;
+import se.chalmers.dcs.bapic.concurrentset.utils.*;
+
+/**
+ * Runs the k-ary trees at arities other than the default 4, the smallest
+ * and the largest the sweep of BenchMark -p tries included, with single key
+ * updates (see StressTest) and with batches. In the batch run thread t owns
+ * the keys k with k % threads == t, like in StressTest, and adds or removes
+ * random ascending batches of them, so the batches of all threads share
+ * leaves, and each batch has exactly one right count.
+ *
+ * Usage: ArityTest [threads [millis]], by default 4 threads and 300 ms per
+ * run. Exits with status 1 after the first wrong answer.
+ */
+public class ArityTest {
+
+    static final int[] ARITIES = {2, 3, 5, 16, 64};
+    // keys per thread
+    static final int KEYS = 256;
+
+    public static void main(String[] args) throws InterruptedException {
+        int threads = (args.length > 0) ? Integer.parseInt(args[0]) : 4;
+        long millis = (args.length > 1) ? Integer.parseInt(args[1]) : 300;
+        boolean passed = true;
+        for (String setType : new String[]{"KBST", "DoubleKBST", "OffHeapKBST", "TrevorBrown"}) {
+            for (int arity : ARITIES) {
+                String failure = StressTest.run(BenchMark.newSet(setType, arity, false), threads, millis);
+                if (failure == null) {
+                    failure = runBatches(BenchMark.newSet(setType, arity, false), threads, millis);
+                }
+                System.out.println(setType + " arity " + arity + ": " + ((failure == null) ? "passed" : failure));
+                passed &= failure == null;
+            }
+        }
+        System.exit(passed ? 0 : 1);
+    }
+
+    /**
+     * @return the first wrong answer, or null if there was none
+     */
+    static String runBatches(SetADT set, int threads, long millis) throws InterruptedException {
+        AtomicReference<String> failure = new AtomicReference<>();
+        long end = System.currentTimeMillis() + millis;
+        Thread[] workers = new Thread[threads];
+        boolean[][] models = new boolean[threads][KEYS];
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            workers[t] = new Thread(() -> {
+                boolean[] model = models[id];
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                ArrayList<K> batch = new ArrayList<>();
+                long batches = 0;
+                while (failure.get() == null && System.currentTimeMillis() < end) {
+                    batches++;
+                    // a run of neighbouring keys, some of them skipped
+                    int first = random.nextInt(KEYS), last = Math.min(KEYS, first + 1 + random.nextInt(64));
+                    batch.clear();
+                    for (int i = first; i < last; i++) {
+                        if (random.nextInt(4) != 0) {
+                            batch.add(new K(i * threads + id));
+                        }
+                    }
+                    K[] keys = batch.toArray(new K[batch.size()]);
+                    boolean add = random.nextBoolean();
+                    int expected = 0;
+                    boolean all = true;
+                    for (K key : keys) {
+                        int i = (int) key.getValue() / threads;
+                        all &= model[i];
+                        if (model[i] != add) {
+                            expected++;
+                            model[i] = add;
+                        }
+                    }
+                    boolean contained = set.containsAll(keys);
+                    int result = add ? set.addAll(keys) : set.removeAll(keys);
+                    if (contained != all) {
+                        failure.compareAndSet(null, "containsAll of " + keys.length + " keys from " + first + " = " + contained
+                                                    + " in batch " + batches + " of thread " + id);
+                    }
+                    else if (result != expected) {
+                        failure.compareAndSet(null, (add ? "addAll" : "removeAll") + " of " + keys.length + " keys from " + first
+                                                    + " = " + result + " instead of " + expected + " in batch " + batches + " of thread " + id);
+                    }
+                }
+            });
+        }
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        if (failure.get() != null) {
+            return failure.get();
+        }
+        long present = 0;
+        for (int t = 0; t < threads; t++) {
+            for (int i = 0; i < KEYS; i++) {
+                if (set.contains(new K(i * threads + t)) != models[t][i]) {
+                    return "contains(" + (i * threads + t) + ") = " + !models[t][i] + " after the batches";
+                }
+                if (models[t][i]) {
+                    present++;
+                }
+            }
+        }
+        if (set.scanSize() != present || set.estimatedSize() != present) {
+            return "scanSize() = " + set.scanSize() + ", estimatedSize() = " + set.estimatedSize() + " instead of " + present;
+        }
+        return null;
+    }
+}
@@ -32,7 +32,15 @@ import gnu.getopt.LongOpt;
 import se.chalmers.dcs.bapic.concurrentset.utils.*;
 import se.chalmers.dcs.bapic.concurrentset.Sets.*;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.PrimitiveIterator;
 import java.util.Random;
+import java.util.function.DoubleConsumer;
+import java.util.stream.DoubleStream;
+import java.util.stream.IntStream;
 
 /**
  *
@@ -40,76 +48,217 @@ import java.util.Random;
  */
 public class BenchMark {
 
+    private static final int DEFAULT_ARITY = 4;
+    // arities within this fraction of the best throughput count as equally fast
+    private static final double SWEEP_TOLERANCE = 0.05;
+
     private static int numberOfThreads = 2;
     private static int maxRunningTime = 2;
     private static int addPercent = 80;
     private static int searchPercent = 20;
     private static int removePercent = 0;
+    private static int navigatePercent = 0;
     private static int keyRange = 100;
     private static int seed = 0;
     private static boolean testSanity = false;
     private static String setType = "KBST";
     private static int warmuptime = 2;
-    private static double begin;
-    private static double end;
+    // windows of the measured run before and after the measured one, in seconds
+    private static int warmupWindow = 0;
+    private static int cooldownWindow = 0;
+    private static int sampleInterval = 1000;
+    private static boolean bulkLoad = false;
+    private static boolean measureLatency = false;
+    private static boolean contentionStats = false;
+    private static String keyDistribution = "uniform";
+    private static double zipfExponent = 1.0;
+    private static String traceFile = null;
+    private static double[] trace;
+    private static int arity = DEFAULT_ARITY;
+    private static boolean aritySweep = false;
+    private static int[] sweepArities = {2, 3, 4, 6, 8, 12, 16, 24, 32, 48, 64};
+    private static boolean recycleNodes = false;
+    private static String snapshotFile = null;
+    private static ChangeLog.FsyncPolicy logPolicy = null;
+    private static int logBatch = 256;
+    // shards of [0, keyRange), 1 for a single set
+    private static int shardCount = 1;
+    // whether the set is a MapSet on the map of the algorithm
+    private static boolean mapMode = false;
+    // whether runBenchMark() logs the updates of the measured run
+    private static boolean logging = false;
+    private static Path logSnapshot;
+    private static Path logFile;
+    // keys the set is initialized with, keyRange / 2 unless they come from a snapshot
+    private static long initialKeys;
+    // from the node layout when the set has a shape, otherwise measured by GC
+    private static long setFootprint;
+    // the part of setFootprint in direct buffers
+    private static long offHeapFootprint;
+    private static long memoryFootprint;
+    private static int treeHeight;
+    // null for the sets that do not report it
+    private static TreeShape initialShape;
+    private static TreeShape treeShape;
     private static double throughput;
+    // throughput of every sampling interval of the measured run, and the window it was taken in
+    private static double[] throughputSamples;
+    private static int[] samplePhases;
     private static double fairness;
     private static int[] results;
+    private static long[] allocations;
+    private static LatencyHistogram[][] latencies;
+    private static double allocationRate;
     private static int[][] sanityAdds;
     private static int[][] sanityRemoves;
     private static int[] presentKeys;
     private static SetADT set;
 
-    private static void defineSet() {
+    /**
+     * The set named by an -a/--algo value, or null for an unknown name.
+     * Shared with the JMH benchmarks.
+     *
+     * @param setType
+     * @return
+     */
+    public static SetADT newSet(String setType) {
+        return newSet(setType, DEFAULT_ARITY);
+    }
+
+    /**
+     * Same as newSet(setType), with the number of children of the nodes of
+     * KBST, DoubleKBST, OffHeapKBST and TrevorBrown; the other sets ignore
+     * arity.
+     *
+     * @param setType
+     * @param arity
+     * @return
+     */
+    public static SetADT newSet(String setType, int arity) {
+        return newSet(setType, arity, false);
+    }
+
+    /**
+     * Same as newSet(setType, arity), with KBST recycling its leaves when
+     * recycleNodes is set.
+     *
+     * @param setType
+     * @param arity
+     * @param recycleNodes
+     * @return
+     */
+    public static SetADT newSet(String setType, int arity, boolean recycleNodes) {
+        SetADT s;
         switch (setType) {
             case "LazyList":
-                set = new LazyList();
+                s = new LazyList();
                 break;
             case "HarrisLinkedList":
-                set = new HarrisLinkedList();
+                s = new HarrisLinkedList();
                 break;
             case "HelpAwareInternalLFBST":
-                set = new HelpAwareInternalLFBST();
+                s = new HelpAwareInternalLFBST();
                 break;
             case "HelpOptimalLFList":
-                set = new HelpOptimalLFList();
+                s = new HelpOptimalLFList();
                 break;
             case "HelpOptimalSimpleLFBST":
-                set = new HelpOptimalSimpleLFBST();
+                s = new HelpOptimalSimpleLFBST();
                 break;
             case "HelpOptimalLFBST":
-                set = new HelpOptimalLFBST();
+                s = new HelpOptimalLFBST();
                 break;
             case "HelpOptimalLocalRestartLFBST":
-                set = new HelpOptimalLocalRestartLFBST();
+                s = new HelpOptimalLocalRestartLFBST();
                 break;
             case "NMLFBST":
-                set = new NMLFBST();
+                s = new NMLFBST();
                 break;
             case "EFRBLFBST":
-                set = new EFRBLFBST();
+                s = new EFRBLFBST();
+                break;
+            case "ScapegoatLFBST":
+                s = new ScapegoatLFBST();
                 break;
             case "LFSkipList":
-                set = new ConcSkipListWrapper();
+                s = new ConcSkipListWrapper();
                 break;
             case "KBST":
-                set = new KBST(4);
+                s = new KBST(arity, recycleNodes);
+                break;
+            case "DoubleKBST":
+                s = new DoubleKBST(arity);
+                break;
+            case "OffHeapKBST":
+                s = new OffHeapKBST(arity);
                 break;
             case "TrevorBrown":
-                set = new LockFreeKSTRQ(4);
+                s = new LockFreeKSTRQ(arity);
                 break;
             default:
-                set = null;
+                s = null;
+                break;
+        }
+        return s;
+    }
+
+    /**
+     * The map of an -a/--algo value with -v/--map, or null if the algorithm
+     * has none.
+     *
+     * @param setType
+     * @param arity
+     * @param recycleNodes
+     * @return
+     */
+    public static MapADT<K> newMap(String setType, int arity, boolean recycleNodes) {
+        MapADT<K> m;
+        switch (setType) {
+            case "LFSkipList":
+                m = new ConcSkipListMapWrapper<>();
+                break;
+            case "KBST":
+                m = new KBSTMap<>(arity, recycleNodes);
+                break;
+            case "TrevorBrown":
+                m = new LockFreeKSTRQMap<>(arity);
+                break;
+            default:
+                m = null;
                 break;
         }
+        return m;
+    }
+
+    private static SetADT newBenchMarkSet() {
+        return mapMode
+               ? new MapSet(newMap(setType, arity, recycleNodes))
+               : newSet(setType, arity, recycleNodes);
+    }
+
+    private static void defineSet() {
+        set = (shardCount == 1)
+              ? newBenchMarkSet()
+              : new ShardedSet(shardCount, 0, keyRange, BenchMark::newBenchMarkSet);
     }
 
     private static void initializeSet() {
+        if (snapshotFile != null && Files.exists(Paths.get(snapshotFile))) {
+            loadSnapshot(Paths.get(snapshotFile));
+            return;
+        }
         Random rd = new Random(0);
+        boolean[] chosen = new boolean[keyRange];
+        // the ascending distribution starts from the smallest keys in order
+        boolean ascending = keyDistribution.equals("ascending");
+        long start = System.nanoTime();
 
         for (int i = 0; i < keyRange / 2;) {
-            int key = rd.nextInt(keyRange);
-            boolean added = set.add(new K(key));
+            int key = ascending ? i : rd.nextInt(keyRange);
+            boolean added = bulkLoad
+                            ?  ! chosen[key]
+                            : set.add(new K(key));
+            chosen[key] = true;
             if (added) {
                 i ++;
             }
@@ -117,10 +266,105 @@ public class BenchMark {
                 presentKeys[key] ++;
             }
         }
+
+        if (bulkLoad) {
+            double[] sortedKeys = new double[keyRange / 2];
+            for (int key = 0, i = 0; key < keyRange; key ++) {
+                if (chosen[key]) {
+                    sortedKeys[i ++] = key;
+                }
+            }
+            bulkLoadSet(Arrays.stream(sortedKeys).iterator());
+        }
+        initialKeys = keyRange / 2;
+        System.err.printf("Initialized the set with %d keys in %.0f ms\n", initialKeys, (System.nanoTime() - start) * Math.pow(10, -6));
+
+        if (snapshotFile != null) {
+            start = System.nanoTime();
+            try {
+                long written = Snapshot.write(set, Paths.get(snapshotFile));
+                System.err.printf("Wrote %d keys to the snapshot %s in %.0f ms\n", written, snapshotFile, (System.nanoTime() - start) * Math.pow(10, -6));
+            }
+            catch (IOException e) {
+                System.err.println("Could not write the snapshot " + snapshotFile + ": " + e.getMessage());
+                System.exit(1);
+            }
+        }
+    }
+
+    /**
+     * Initializes the set from a snapshot written by an earlier run, through
+     * the bulk loading constructors.
+     */
+    private static void loadSnapshot(Path file) {
+        long start = System.nanoTime();
+        try {
+            initialKeys = Snapshot.size(file);
+            bulkLoadSet(Snapshot.read(file));
+            System.err.printf("Loaded the set with %d keys from the snapshot %s in %.0f ms\n", initialKeys, file, (System.nanoTime() - start) * Math.pow(10, -6));
+            if (testSanity) {
+                PrimitiveIterator.OfDouble keys = Snapshot.read(file);
+                while (keys.hasNext()) {
+                    double key = keys.nextDouble();
+                    if (key < 0 || key >= keyRange || key != (int) key) {
+                        System.err.println("The snapshot " + file + " has the key " + key + ", which the sanity test can not check with -k " + keyRange);
+                        System.exit(1);
+                    }
+                    presentKeys[(int) key] ++;
+                }
+            }
+        }
+        catch (IOException e) {
+            System.err.println("Could not read the snapshot " + file + ": " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private static boolean hasArity() {
+        return supportsBulkLoad();
+    }
+
+    private static boolean supportsSnapshot() {
+        return supportsBulkLoad() || setType.equals("LFSkipList");
+    }
+
+    private static boolean supportsBulkLoad() {
+        switch (setType) {
+            case "KBST":
+            case "DoubleKBST":
+            case "OffHeapKBST":
+            case "TrevorBrown":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static void bulkLoadSet(PrimitiveIterator.OfDouble sortedKeys) {
+        set = (shardCount == 1)
+              ? bulkLoadShard(sortedKeys)
+              : ShardedSet.bulkLoad(shardCount, 0, keyRange, sortedKeys, BenchMark::bulkLoadShard);
+    }
+
+    private static SetADT bulkLoadShard(PrimitiveIterator.OfDouble sortedKeys) {
+        switch (setType) {
+            case "KBST":
+                return new KBST(arity, sortedKeys, recycleNodes);
+            case "DoubleKBST":
+                return new DoubleKBST(arity, sortedKeys);
+            case "OffHeapKBST":
+                return new OffHeapKBST(arity, sortedKeys);
+            case "TrevorBrown":
+                return new LockFreeKSTRQ(arity, sortedKeys);
+            case "LFSkipList":
+                return new ConcSkipListWrapper(sortedKeys);
+            default:
+                return null;
+        }
     }
 
     private static void InitializeTest(String[] args) {
-        LongOpt[] longopts = new LongOpt[11];
+        LongOpt[] longopts = new LongOpt[30];
 
         longopts[0] = new LongOpt("help", LongOpt.NO_ARGUMENT, null, 'h');
         longopts[1] = new LongOpt("duration", LongOpt.REQUIRED_ARGUMENT, null, 'd');
@@ -133,8 +377,27 @@ public class BenchMark {
         longopts[8] = new LongOpt("algo", LongOpt.REQUIRED_ARGUMENT, null, 'a');
         longopts[9] = new LongOpt("sanity", LongOpt.REQUIRED_ARGUMENT, null, 't');
         longopts[10] = new LongOpt("warm", LongOpt.REQUIRED_ARGUMENT, null, 'w');
-
-        Getopt g = new Getopt("", args, "hd:n:s:r:i:x:k:a:t:w:", longopts);
+        longopts[11] = new LongOpt("bulk-load", LongOpt.REQUIRED_ARGUMENT, null, 'b');
+        longopts[12] = new LongOpt("latency", LongOpt.REQUIRED_ARGUMENT, null, 'l');
+        longopts[13] = new LongOpt("contention", LongOpt.REQUIRED_ARGUMENT, null, 'c');
+        longopts[14] = new LongOpt("key-distribution", LongOpt.REQUIRED_ARGUMENT, null, 'g');
+        longopts[15] = new LongOpt("zipf-exponent", LongOpt.REQUIRED_ARGUMENT, null, 'z');
+        longopts[16] = new LongOpt("trace-file", LongOpt.REQUIRED_ARGUMENT, null, 'f');
+        longopts[17] = new LongOpt("arity", LongOpt.REQUIRED_ARGUMENT, null, 'y');
+        longopts[18] = new LongOpt("arity-sweep", LongOpt.REQUIRED_ARGUMENT, null, 'p');
+        longopts[19] = new LongOpt("recycle", LongOpt.REQUIRED_ARGUMENT, null, 'e');
+        longopts[20] = new LongOpt("snapshot", LongOpt.REQUIRED_ARGUMENT, null, 'o');
+        longopts[21] = new LongOpt("change-log", LongOpt.REQUIRED_ARGUMENT, null, 'j');
+        longopts[22] = new LongOpt("log-batch", LongOpt.REQUIRED_ARGUMENT, null, 'u');
+        longopts[23] = new LongOpt("shards", LongOpt.REQUIRED_ARGUMENT, null, 'm');
+        longopts[24] = new LongOpt("navigate-fraction", LongOpt.REQUIRED_ARGUMENT, null, 'q');
+        longopts[25] = new LongOpt("map", LongOpt.REQUIRED_ARGUMENT, null, 'v');
+        longopts[26] = new LongOpt("warmup-window", LongOpt.REQUIRED_ARGUMENT, null, 'W');
+        longopts[27] = new LongOpt("cooldown-window", LongOpt.REQUIRED_ARGUMENT, null, 'C');
+        longopts[28] = new LongOpt("sample-interval", LongOpt.REQUIRED_ARGUMENT, null, 'I');
+        longopts[29] = new LongOpt("sweep-arities", LongOpt.REQUIRED_ARGUMENT, null, 'P');
+
+        Getopt g = new Getopt("", args, "hd:n:s:r:i:x:k:a:t:w:b:l:c:g:z:f:y:p:P:e:o:j:u:m:q:v:W:C:I:", longopts);
         int c;
         String arg = null;
 
@@ -204,6 +467,123 @@ public class BenchMark {
 
                     break;
 
+                case 'b':
+                    arg = g.getOptarg();
+                    bulkLoad = Boolean.parseBoolean(arg);
+
+                    break;
+
+                case 'l':
+                    arg = g.getOptarg();
+                    measureLatency = Boolean.parseBoolean(arg);
+
+                    break;
+
+                case 'c':
+                    arg = g.getOptarg();
+                    contentionStats = Boolean.parseBoolean(arg);
+
+                    break;
+
+                case 'g':
+                    keyDistribution = g.getOptarg();
+
+                    break;
+
+                case 'z':
+                    arg = g.getOptarg();
+                    zipfExponent = Double.parseDouble(arg);
+
+                    break;
+
+                case 'f':
+                    traceFile = g.getOptarg();
+
+                    break;
+
+                case 'y':
+                    arg = g.getOptarg();
+                    arity = Integer.parseInt(arg);
+
+                    break;
+
+                case 'p':
+                    arg = g.getOptarg();
+                    aritySweep = Boolean.parseBoolean(arg);
+
+                    break;
+
+                case 'P':
+                    arg = g.getOptarg();
+                    sweepArities = parseArities(arg);
+
+                    break;
+
+                case 'e':
+                    arg = g.getOptarg();
+                    recycleNodes = Boolean.parseBoolean(arg);
+
+                    break;
+
+                case 'o':
+                    snapshotFile = g.getOptarg();
+
+                    break;
+
+                case 'j':
+                    arg = g.getOptarg();
+                    try {
+                        logPolicy = ChangeLog.FsyncPolicy.valueOf(arg.toUpperCase());
+                    }
+                    catch (IllegalArgumentException e) {
+                        System.err.println("Unknown fsync policy " + arg);
+                        System.exit(1);
+                    }
+
+                    break;
+
+                case 'u':
+                    arg = g.getOptarg();
+                    logBatch = Integer.parseInt(arg);
+
+                    break;
+
+                case 'm':
+                    arg = g.getOptarg();
+                    shardCount = Integer.parseInt(arg);
+
+                    break;
+
+                case 'q':
+                    arg = g.getOptarg();
+                    navigatePercent = Integer.parseInt(arg);
+
+                    break;
+
+                case 'v':
+                    arg = g.getOptarg();
+                    mapMode = Boolean.parseBoolean(arg);
+
+                    break;
+
+                case 'W':
+                    arg = g.getOptarg();
+                    warmupWindow = Integer.parseInt(arg);
+
+                    break;
+
+                case 'C':
+                    arg = g.getOptarg();
+                    cooldownWindow = Integer.parseInt(arg);
+
+                    break;
+
+                case 'I':
+                    arg = g.getOptarg();
+                    sampleInterval = Integer.parseInt(arg);
+
+                    break;
+
                 case '?':
                     System.err.println("Use -h or --help for help\n");
                     helpUser();
@@ -213,12 +593,123 @@ public class BenchMark {
             }
         }
 
-        if ((addPercent + removePercent + searchPercent) > 100) {
-            System.err.println("(addPercent+removePercent+searchPercent) > 100");
+        if ((addPercent + removePercent + navigatePercent + searchPercent) > 100) {
+            System.err.println("(addPercent+removePercent+navigatePercent+searchPercent) > 100");
+            System.exit(1);
+        }
+
+        if (contentionStats) {
+            // must happen before ContentionStats is initialized, which reads it once
+            System.setProperty("concurrentset.stats", "true");
+            if ( ! ContentionStats.ENABLED) {
+                System.err.println("Contention statistics could not be enabled");
+                System.exit(1);
+            }
+        }
+
+        if ( ! Arrays.asList(KeyGenerator.DISTRIBUTIONS).contains(keyDistribution)) {
+            System.err.println("Unknown key distribution " + keyDistribution);
+            System.exit(1);
+        }
+
+        if (keyDistribution.equals("zipf") && zipfExponent <= 0) {
+            System.err.println("The Zipf exponent must be positive");
+            System.exit(1);
+        }
+
+        if (keyDistribution.equals("trace")) {
+            if (traceFile == null) {
+                System.err.println("The trace distribution needs -f/--trace-file");
+                System.exit(1);
+            }
+            try {
+                trace = KeyGenerator.readTrace(traceFile);
+            }
+            catch (IOException | NumberFormatException e) {
+                System.err.println("Could not read the trace file " + traceFile + ": " + e.getMessage());
+                System.exit(1);
+            }
+            if (trace.length == 0) {
+                System.err.println("The trace file " + traceFile + " has no keys");
+                System.exit(1);
+            }
+        }
+
+        if ((arity != DEFAULT_ARITY || aritySweep) &&  ! hasArity()) {
+            System.err.println("The arity is only configurable for KBST, DoubleKBST, OffHeapKBST and TrevorBrown");
+            System.exit(1);
+        }
+
+        if (recycleNodes &&  ! setType.equals("KBST")) {
+            System.err.println("Node recycling is only available for KBST");
+            System.exit(1);
+        }
+
+        if (arity < 2 || Arrays.stream(sweepArities).anyMatch(a -> a < 2)) {
+            System.err.println("The arity must be at least 2");
+            System.exit(1);
+        }
+
+        if (sweepArities.length == 0) {
+            System.err.println("The arity sweep needs at least one arity");
+            System.exit(1);
+        }
+
+        if (aritySweep && testSanity) {
+            System.err.println("The arity sweep is a benchmark, it does not run with the sanity test");
+            System.exit(1);
+        }
+
+        if (aritySweep) {
+            arity = sweepArities[0];
+        }
+
+        if (bulkLoad &&  ! supportsBulkLoad()) {
+            System.err.println("Bulk loading is only available for KBST, DoubleKBST, OffHeapKBST and TrevorBrown");
+            System.exit(1);
+        }
+
+        if (logPolicy != null && (testSanity || aritySweep)) {
+            System.err.println("The change log comparison is a benchmark of its own, it does not run with the sanity test or the arity sweep");
+            System.exit(1);
+        }
+
+        if (shardCount < 0) {
+            System.err.println("The number of shards must not be negative");
+            System.exit(1);
+        }
+
+        if (shardCount == 0) {
+            shardCount = ShardedSet.defaultShardCount();
+        }
+
+        if (warmupWindow < 0 || cooldownWindow < 0 || sampleInterval < 0) {
+            System.err.println("The windows and the sampling interval must not be negative");
+            System.exit(1);
+        }
+
+        if (logBatch < 1) {
+            System.err.println("The log batch size must be positive");
+            System.exit(1);
+        }
+
+        if (snapshotFile != null &&  ! supportsSnapshot()) {
+            System.err.println("Snapshots are only available for KBST, DoubleKBST, OffHeapKBST, TrevorBrown and LFSkipList");
+            System.exit(1);
+        }
+
+        if (mapMode && newMap(setType, arity, false) == null) {
+            System.err.println("The map is only available for KBST, TrevorBrown and LFSkipList");
+            System.exit(1);
+        }
+
+        if (mapMode && (bulkLoad || snapshotFile != null || logPolicy != null)) {
+            System.err.println("The map is not bulk loaded, snapshotted or logged, it does not run with -b, -o or -j");
             System.exit(1);
         }
 
         results = new int[numberOfThreads];
+        allocations = new long[numberOfThreads];
 
         if (testSanity) {
             presentKeys = new int[keyRange];
@@ -230,21 +721,19 @@ public class BenchMark {
     }
 
     private static void warmupVM() {
-        RunController.startFlag = RunController.stopFlag = false;
         try {
+            RunController controller = new RunController(numberOfThreads);
             Thread[] threads = new Thread[numberOfThreads];
 
             for (int i = 0; i < threads.length; i ++) {
-                threads[i] = new Thread(new RunOperations(set, i, addPercent, removePercent, keyRange, results, sanityAdds, sanityRemoves, false));
+                threads[i] = new Thread(new RunOperations(set, i, addPercent, removePercent, navigatePercent, keyRange, newKeyGenerator(i), results, allocations, newLatencies(), sanityAdds, sanityRemoves, false, controller));
             }
 
             for (Thread thread : threads) {
                 thread.start();
             }
 
-            RunController.startFlag = true;
-            Thread.sleep(warmuptime * 1000);
-            RunController.stopFlag = true;
+            controller.run(0, warmuptime * 1000, 0, 0);
 
             for (Thread thread : threads) {
                 thread.join();
@@ -257,38 +746,34 @@ public class BenchMark {
         finally {
             System.gc();
         }
-
-        RunController.startFlag = RunController.stopFlag = false;
     }
 
     private static void SanityTest() {
-        RunController.startFlag = RunController.stopFlag = false;
         try {
+            RunController controller = new RunController(numberOfThreads);
             Thread[] threads = new Thread[numberOfThreads];
 
             for (int i = 0; i < threads.length; i ++) {
-                threads[i] = new Thread(new RunOperations(set, i, addPercent, removePercent, keyRange, results, sanityAdds, sanityRemoves, true));
+                threads[i] = new Thread(new RunOperations(set, i, addPercent, removePercent, navigatePercent, keyRange, null, results, allocations, null, sanityAdds, sanityRemoves, true, controller));
             }
 
             for (Thread thread : threads) {
                 thread.start();
             }
 
-            RunController.startFlag = true;
-            Thread.sleep(maxRunningTime * 1000);
-            RunController.stopFlag = true;
+            controller.run(0, maxRunningTime * 1000, 0, 0);
 
             for (Thread thread : threads) {
                 thread.join();
             }
 
             System.gc();
-
-            RunController.startFlag = RunController.stopFlag = false;
         }
         catch (IOException | InterruptedException e) {
         }
         boolean failedSanity = false;
+        int keysPresent = 0;
+        boolean[] present = new boolean[keyRange];
         for (int k = 0; k < keyRange; k ++) {
             int keyAdded = presentKeys[k];
             int keyRemoved = 0;
@@ -299,6 +784,8 @@ public class BenchMark {
             }
 
             if (set.contains(new K(k))) {
+                keysPresent ++;
+                present[k] = true;
                 if (keyAdded != keyRemoved + 1) {
                     System.out.printf("\u001B[32m" + "First Sanity Test passed at key %d, keyAdded = %d, keyRemoved = %d.\n", k,
                             keyAdded, keyRemoved);
@@ -316,43 +803,90 @@ public class BenchMark {
             System.out.println("Sanity Test Complete");
         }
         System.out.printf("Traversal Test = %b\n", set.traversalTest());
+        System.out.printf("Range Scan Test = %b\n", set.countRange(new K(0), new K(keyRange - 1)) == keysPresent);
+        System.out.printf("Size Test = %b\n", set.size() == keysPresent && set.estimatedSize() == keysPresent);
+        System.out.printf("Navigation Test = %b\n", navigationTest(present));
+    }
+
+    /**
+     * Compares ceiling(), floor(), higher() and lower() at up to 1000 keys
+     * spread over the key range, and first(), last() and pollFirst(), with
+     * the keys found present after the sanity run. pollFirst() puts the key
+     * it removes back.
+     *
+     * @param present
+     * @return
+     */
+    private static boolean navigationTest(boolean[] present) {
+        int n = present.length;
+        // the nearest present key at or above, and at or below each key, -1 for none
+        int[] above = new int[n + 1], below = new int[n + 1];
+        above[n] = -1;
+        for (int k = n - 1; k >= 0; k --) {
+            above[k] = present[k] ? k : above[k + 1];
+        }
+        for (int k = 0; k < n; k ++) {
+            below[k + 1] = present[k] ? k : (k == 0 ? -1 : below[k]);
+        }
+        below[0] = -1;
+        boolean passed = sameKey(set.first(), above[0]) && sameKey(set.last(), below[n]);
+        for (int k = 0; k < n; k += Math.max(1, n / 1000)) {
+            passed &= sameKey(set.ceiling(new K(k)), above[k]);
+            passed &= sameKey(set.higher(new K(k)), above[k + 1]);
+            passed &= sameKey(set.floor(new K(k)), below[k + 1]);
+            passed &= sameKey(set.lower(new K(k)), below[k]);
+        }
+        K first = set.pollFirst();
+        passed &= sameKey(first, above[0]);
+        if (first != null) {
+            passed &= ! set.contains(first) && set.add(first);
+        }
+        return passed;
     }
 
+    private static boolean sameKey(K key, int expected) {
+        return (key == null) ? expected == -1 : key.getValue() == expected;
+    }
+
+    /**
+     * Runs the threads through the warm up, measured and cool down windows;
+     * throughput, fairness, allocations and latencies only count the
+     * operations of the measured window.
+     */
     private static void BenchMark() {
-        double totalOps = 0, maxOps = 0, minOps;
-        RunController.startFlag = RunController.stopFlag = false;
+        double totalOps = 0, maxOps = 0, minOps, totalAllocated = 0;
+        RunController controller = new RunController(numberOfThreads);
+        latencies = newLatencies();
+        ContentionStats.reset();
         try {
             Thread[] threads = new Thread[numberOfThreads];
 
             for (int i = 0; i < threads.length; i ++) {
-                threads[i] = new Thread(new RunOperations(set, i, addPercent, removePercent, keyRange, results, sanityAdds, sanityRemoves, false));
+                threads[i] = new Thread(new RunOperations(set, i, addPercent, removePercent, navigatePercent, keyRange, newKeyGenerator(i), results, allocations, latencies, sanityAdds, sanityRemoves, false, controller));
             }
 
             for (Thread thread : threads) {
                 thread.start();
             }
 
-            begin = System.nanoTime();
-            RunController.startFlag = true;
-            Thread.sleep(maxRunningTime * 1000);
-            RunController.stopFlag = true;
+            controller.run(warmupWindow * 1000, maxRunningTime * 1000, cooldownWindow * 1000, sampleInterval);
 
             for (Thread thread : threads) {
                 thread.join();
             }
 
-            end = System.nanoTime();
             System.gc();
-
-            RunController.startFlag = RunController.stopFlag = false;
         }
         catch (IOException | InterruptedException e) {
         }
 
-        double exactTime = (end - begin) * Math.pow(10, -9);
+        double exactTime = controller.getMeasuredTime();
+        throughputSamples = controller.getSamples();
+        samplePhases = controller.getSamplePhases();
 
         for (int i = 0; i < numberOfThreads; i ++) {
             totalOps += results[i];
+            totalAllocated += allocations[i];
             maxOps = (maxOps < results[i])
                      ? results[i]
                      : maxOps;
@@ -367,13 +901,83 @@ public class BenchMark {
         }
 
         throughput = (totalOps) / exactTime;
+        allocationRate = totalAllocated / exactTime;
         fairness = Math.min((numberOfThreads * minOps) / totalOps, totalOps / (numberOfThreads * maxOps));
     }
 
+    /**
+     * The keys of thread threadId under the chosen -g/--key-distribution.
+     */
+    private static KeyGenerator newKeyGenerator(int threadId) {
+        return KeyGenerator.create(keyDistribution, threadId, numberOfThreads, keyRange, zipfExponent, trace);
+    }
+
+    /**
+     * Empty latency histograms for every thread and operation type, or null
+     * when latencies are not measured.
+     */
+    private static LatencyHistogram[][] newLatencies() {
+        if ( ! measureLatency) {
+            return null;
+        }
+        LatencyHistogram[][] histograms = new LatencyHistogram[numberOfThreads][RunOperations.OPERATION_NAMES.length];
+        for (int i = 0; i < numberOfThreads; i ++) {
+            for (int j = 0; j < RunOperations.OPERATION_NAMES.length; j ++) {
+                histograms[i][j] = new LatencyHistogram();
+            }
+        }
+        return histograms;
+    }
+
+    /**
+     * Merges the per thread histograms of each operation type and prints
+     * their percentiles in nanoseconds.
+     */
+    private static void printLatencies() {
+        for (int op = 0; op < RunOperations.OPERATION_NAMES.length; op ++) {
+            LatencyHistogram merged = new LatencyHistogram();
+            for (int i = 0; i < numberOfThreads; i ++) {
+                merged.add(latencies[i][op]);
+            }
+            if (merged.getTotalCount() == 0) {
+                continue;
+            }
+            System.out.printf("Latency of %s on %s (ns): count = %d, p50 = %d, p90 = %d, p99 = %d, p99.9 = %d, max = %d\n",
+                              RunOperations.OPERATION_NAMES[op], setType, merged.getTotalCount(),
+                              merged.getValueAtPercentile(50), merged.getValueAtPercentile(90), merged.getValueAtPercentile(99),
+                              merged.getValueAtPercentile(99.9), merged.getMaxValue());
+        }
+    }
+
+    /**
+     * Prints the contention counters of the measured run, per operation
+     * where that is the natural unit.
+     */
+    private static void printContentionStats() {
+        long[] stats = ContentionStats.snapshot();
+        double totalOps = 0;
+        for (int i = 0; i < numberOfThreads; i ++) {
+            totalOps += results[i];
+        }
+        long attempts = stats[ContentionStats.CAS_ATTEMPTS], restarts = stats[ContentionStats.RESTARTS];
+        System.out.printf("CAS attempts = %d (%.3f/op), CAS failures = %d (%.2f percent)\n",
+                          attempts, attempts / totalOps, stats[ContentionStats.CAS_FAILURES],
+                          attempts == 0 ? 0 : 100.0 * stats[ContentionStats.CAS_FAILURES] / attempts);
+        System.out.printf("Retries = %d (%.3f/op), Helps = %d (%.3f/op), Restarts = %d (%.3f/op, mean depth %.1f)\n",
+                          stats[ContentionStats.RETRIES], stats[ContentionStats.RETRIES] / totalOps,
+                          stats[ContentionStats.HELPS], stats[ContentionStats.HELPS] / totalOps,
+                          restarts, restarts / totalOps,
+                          restarts == 0 ? 0 : (double) stats[ContentionStats.RESTART_DEPTH] / restarts);
+        if (stats[ContentionStats.REBUILDS] + stats[ContentionStats.ABANDONED_REBUILDS] > 0) {
+            System.out.printf("Rebuilds = %d, abandoned rebuilds = %d\n",
+                              stats[ContentionStats.REBUILDS], stats[ContentionStats.ABANDONED_REBUILDS]);
+        }
+    }
+
     private static void helpUser() {
         String help = "Concurrent Set Implementation\n" + "\n" + "Usage:\n" + "  BenchMark [options...]\n" + "\n" + "Options:\n"
                       + "  -h, --help\n" + "        Print this message\n" + "  -a, --algo  <Algorithm> (default=" + setType + ")\n"
-                      + "        Available Algorithms <LazyList HarrisLinkedList HelpOptimalLFList HelpOptimalSimpleLFBST HelpOptimalLFBST HelpOptimalLocalRestartLFBST NMLFBST EFRBLFBST LFSkipList KBST TrevorBrown>\n" + "  -t, --test-sanity <Boolean>\n"
+                      + "        Available Algorithms <LazyList HarrisLinkedList HelpOptimalLFList HelpOptimalSimpleLFBST HelpOptimalLFBST HelpOptimalLocalRestartLFBST NMLFBST EFRBLFBST ScapegoatLFBST LFSkipList KBST DoubleKBST OffHeapKBST TrevorBrown>\n" + "  -t, --test-sanity <Boolean>\n"
                       + "        Sanity check (default=" + testSanity + ")\n" + "  -d, --duration <int>\n"
                       + "        Test duration in seconds (0=infinite, default=" + maxRunningTime + "s)\n"
                       + "  -n, --num-threads <int>\n" + "        Number of threads (default=" + numberOfThreads + ")\n"
@@ -382,8 +986,46 @@ public class BenchMark {
                       + searchPercent + "%)\n" + "  -i, --insert-update-fraction <int>\n"
                       + "        Fraction of insert/add operations (default=" + addPercent + "%)\n"
                       + "  -x, --delete-fraction <int>\n" + "        Fraction of delete operations (default="
-                      + removePercent + "%)\n" + "  -w, --warm <int>\n"
+                      + removePercent + "%)\n" + "  -q, --navigate-fraction <int>\n"
+                      + "        Fraction of navigation queries, ceiling floor higher lower first last in turn (default="
+                      + navigatePercent + "%)\n" + "  -w, --warm <int>\n"
                       + "        JVM warm up time in seconds(default=" + warmuptime + "s)\n"
+                      + "  -W, --warmup-window <int>\n"
+                      + "        Seconds the threads of the measured run run before its operations are counted (default=" + warmupWindow + "s)\n"
+                      + "  -C, --cooldown-window <int>\n"
+                      + "        Seconds the threads of the measured run go on after the measured window (default=" + cooldownWindow + "s)\n"
+                      + "  -I, --sample-interval <int>\n"
+                      + "        Milliseconds between two throughput samples of the measured run (0=none, default=" + sampleInterval + "ms)\n"
+                      + "  -b, --bulk-load <Boolean>\n"
+                      + "        Build the initial KBST, DoubleKBST, OffHeapKBST or TrevorBrown set from sorted keys (default=" + bulkLoad + ")\n"
+                      + "  -l, --latency <Boolean>\n"
+                      + "        Time every operation and print latency percentiles per operation type (default=" + measureLatency + ")\n"
+                      + "  -c, --contention <Boolean>\n"
+                      + "        Count CAS attempts and failures, retries, helps and restarts of the lock-free sets (default=" + contentionStats + ")\n"
+                      + "  -g, --key-distribution <Distribution> (default=" + keyDistribution + ")\n"
+                      + "        Available Distributions <uniform zipf hotspot sequential ascending trace>\n"
+                      + "  -z, --zipf-exponent <double>\n"
+                      + "        Exponent of the zipf distribution (default=" + zipfExponent + ")\n"
+                      + "  -f, --trace-file <path>\n"
+                      + "        Keys replayed by the trace distribution, one per line\n"
+                      + "  -y, --arity <int>\n"
+                      + "        Children per node of KBST, DoubleKBST, OffHeapKBST and TrevorBrown (default=" + arity + ")\n"
+                      + "  -p, --arity-sweep <Boolean>\n"
+                      + "        Benchmark KBST, DoubleKBST, OffHeapKBST or TrevorBrown with every arity of the sweep and recommend one (default=" + aritySweep + ")\n"
+                      + "  -P, --sweep-arities <list>\n"
+                      + "        Arities of the sweep, single ones and ranges, e.g. 2-64 for every arity from 2 to 64 or 2,4,8-16 (default=" + Arrays.toString(sweepArities) + ")\n"
+                      + "  -e, --recycle <Boolean>\n"
+                      + "        Reuse the leaves KBST replaces, with epoch based reclamation (default=" + recycleNodes + ")\n"
+                      + "  -o, --snapshot <path>\n"
+                      + "        Load the initial KBST, DoubleKBST, OffHeapKBST, TrevorBrown or LFSkipList set from this snapshot, or write it there if it does not exist\n"
+                      + "  -j, --change-log <Policy>\n"
+                      + "        Benchmark without and then with a change log of the updates, whose groups are forced to the disk with batch and not with never\n"
+                      + "  -u, --log-batch <int>\n"
+                      + "        Records a thread appends to the change log before the commit thread is woken (default=" + logBatch + ")\n"
+                      + "  -m, --shards <int>\n"
+                      + "        Split the key range into this many sets of the algorithm (0=one per processor, default=" + shardCount + ")\n"
+                      + "  -v, --map <Boolean>\n"
+                      + "        Run on the map of KBST, TrevorBrown or LFSkipList, whose inserts put the key as its value (default=" + mapMode + ")\n"
                       + "  -k, --keyspace-size <int>\n" + "       Number of possible keys (default=" + keyRange + ")\n";
 
         System.out.println(help);
@@ -401,38 +1043,228 @@ public class BenchMark {
         InitializeTest(args);
 
         System.err.printf(
-                "The experiment: Algo:%s, Distribution: search %d insert %d delete %d, Duration(s):%d, Threads:%d, KeyRange(starting at 0):%d\n",
-                setType, searchPercent, addPercent, removePercent, maxRunningTime, numberOfThreads, keyRange);
+                "The experiment: Algo:%s%s%s%s, Distribution: search %d insert %d delete %d navigate %d, Duration(s):%d, Threads:%d, KeyRange(starting at 0):%d, Keys:%s\n",
+                setType, hasArity() && ! aritySweep ? "(" + arity + (recycleNodes ? ", recycled" : "") + ")" : "", mapMode ? " map" : "", shardCount > 1 ? " in " + shardCount + " shards" : "", searchPercent, addPercent, removePercent, navigatePercent, maxRunningTime, numberOfThreads, keyRange,
+                keyDistribution.equals("zipf") ? "zipf(" + zipfExponent + ")" : keyDistribution);
         initializeSet();
 
         if (testSanity) {
             SanityTest();
         }
+        else if (aritySweep) {
+            aritySweep();
+        }
+        else if (logPolicy != null) {
+            logComparison();
+        }
         else {
-            System.err.println("Starting warm up");
+            runBenchMark();
+            printResults();
+        }
+    }
+
+    /**
+     * Warms up on the initialized set, then measures a freshly defined and
+     * initialized one.
+     */
+    private static void runBenchMark() {
+        System.err.println("Starting warm up");
 
-            long memTree = Tools.getMemUsed();
+        long memTree = Tools.getMemUsed();
 
-            Tools.cleanMem(memTree);
-            memTree = Tools.getMemUsed();
-            warmupVM();
-            Tools.cleanMem(memTree);
-            System.err.println("End of warm up phase");
-            set = null;
-            defineSet();
+        Tools.cleanMem(memTree);
+        memTree = Tools.getMemUsed();
+        warmupVM();
+        Tools.cleanMem(memTree);
+        System.err.println("End of warm up phase");
+        set = null;
+        defineSet();
 
-            Tools.cleanMem(memTree);
-            memTree = Tools.getMemUsed();
-            initializeSet();
+        Tools.cleanMem(memTree);
+        memTree = Tools.getMemUsed();
+        long direct = Tools.getDirectMemUsed();
+        initializeSet();
+
+        // a set with a shape is measured by walking it, which takes neither
+        // several collections nor a quiet heap
+        initialShape = set.shape();
+        if (initialShape == null) {
+            setFootprint = Tools.cleanMem(memTree);
+        }
+        else {
+            System.gc();
+            setFootprint = initialShape.getBytes();
+        }
+        offHeapFootprint = Tools.getDirectMemUsed() - direct;
+        if (logging) {
+            openChangeLog();
+        }
+        memTree = Tools.getMemUsed();
+        BenchMark();
 
-            Tools.cleanMem(memTree);
-            memTree = Tools.getMemUsed();
-            BenchMark();
+        treeHeight = set.height();
+        treeShape = set.shape();
+        if (treeShape == null) {
+            memoryFootprint = Tools.cleanMem(memTree);
+        }
+        else {
+            memoryFootprint = treeShape.getBytes() - initialShape.getBytes();
+        }
+    }
 
-            long memOnFinish = Tools.cleanMem(memTree);
-            System.out.printf("Throughput = %.0f Ops/sec\n", throughput);
-            System.out.printf("Memory-footprint of operations = %d bytes\n", memOnFinish);
-            System.out.printf("Fairness = %.0f percent\n", fairness * 100);
+    private static void printResults() {
+        System.out.printf("Throughput = %.0f Ops/sec\n", throughput);
+        if (throughputSamples.length > 0) {
+            printThroughputSamples();
+        }
+        String source = (treeShape == null) ? "measured by GC" : "from the node layout";
+        System.out.printf("Memory-footprint of operations = %d bytes (%s)\n", memoryFootprint, source);
+        System.out.printf("Memory-footprint of the initial set = %d bytes (%.1f bytes/key, %s)\n", setFootprint, (double) setFootprint / initialKeys, source);
+        if (offHeapFootprint != 0) {
+            System.out.printf("  of which off-heap = %d bytes (%.1f bytes/key)\n", offHeapFootprint, (double) offHeapFootprint / initialKeys);
+        }
+        System.out.printf("Fairness = %.0f percent\n", fairness * 100);
+        System.out.printf("Allocation rate = %.0f bytes/sec (%.1f bytes/op)\n", allocationRate, allocationRate / throughput);
+        if (treeHeight >= 0) {
+            System.out.printf("Height of the tree = %d (log2 of the keys = %.1f)\n", treeHeight, Math.log(Math.max(1, set.estimatedSize())) / Math.log(2));
+        }
+        if (treeShape != null) {
+            System.out.println("Shape of the tree = " + treeShape);
+        }
+        if (measureLatency) {
+            printLatencies();
+        }
+        if (contentionStats) {
+            printContentionStats();
+        }
+    }
+
+    /**
+     * Prints the throughput of every sampling interval, the samples of the
+     * warm up and cool down windows in parentheses.
+     */
+    private static void printThroughputSamples() {
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < throughputSamples.length; i ++) {
+            boolean measured = samplePhases[i] == RunController.MEASURE;
+            line.append(i == 0 ? "" : " ").append(measured ? "" : "(").append(String.format("%.0f", throughputSamples[i])).append(measured ? "" : ")");
+        }
+        System.out.printf("Throughput every %d ms = %s Ops/sec\n", sampleInterval, line);
+    }
+
+    /**
+     * Runs the benchmark without and then with a ChangeLog of the updates,
+     * and checks that the log recovers the set.
+     */
+    private static void logComparison() {
+        System.out.println("Without change log:");
+        runBenchMark();
+        printResults();
+        double unlogged = throughput;
+
+        logging = true;
+        System.out.printf("With change log (fsync %s, batch %d):\n", logPolicy.name().toLowerCase(), logBatch);
+        runBenchMark();
+        printResults();
+        closeChangeLog();
+        System.out.printf("Throughput with change log = %.0f percent of without\n", 100 * throughput / unlogged);
+    }
+
+    /**
+     * Snapshots the initialized set and wraps it into a LoggedSet, both
+     * files being temporary.
+     */
+    private static void openChangeLog() {
+        try {
+            logSnapshot = Files.createTempFile("benchmark", ".snapshot");
+            logFile = Files.createTempFile("benchmark", ".log");
+            Snapshot.write(set, logSnapshot);
+            set = new LoggedSet(set, new ChangeLog(logFile, logPolicy, logBatch));
+        }
+        catch (IOException e) {
+            System.err.println("Could not start the change log: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Closes the log and checks that snapshot and log recover the keys the
+     * set holds.
+     */
+    private static void closeChangeLog() {
+        try {
+            ((LoggedSet) set).getLog().close();
+            System.out.printf("Change log = %d bytes\n", Files.size(logFile));
+            DoubleStream.Builder recovered = DoubleStream.builder();
+            ChangeLog.recover(logSnapshot, logFile).forEachRemaining((DoubleConsumer) recovered);
+            DoubleStream.Builder present = DoubleStream.builder();
+            set.rangeScan(K.MinValue0, K.MaxValue0, key -> present.add(key.getValue()));
+            System.out.printf("Recovery Test = %b\n", Arrays.equals(recovered.build().toArray(), present.build().toArray()));
+            Files.delete(logSnapshot);
+            Files.delete(logFile);
+        }
+        catch (IOException e) {
+            System.err.println("Could not recover from the change log: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * The arities of a list such as "2-64" or "2,4,8-16": single arities and
+     * ranges of every arity from one to the other, separated by commas.
+     *
+     * @param list
+     * @return
+     */
+    private static int[] parseArities(String list) {
+        return Arrays.stream(list.split(",")).flatMapToInt(part -> {
+            String[] range = part.trim().split("-", 2);
+            int lo = Integer.parseInt(range[0].trim());
+            return IntStream.rangeClosed(lo, (range.length > 1) ? Integer.parseInt(range[1].trim()) : lo);
+        }).toArray();
+    }
+
+    /**
+     * Runs the benchmark once per arity of sweepArities and recommends the
+     * arity with the smallest initial set among those whose throughput is
+     * within SWEEP_TOLERANCE of the best one, since a few percent of
+     * throughput are within the noise of a single run.
+     */
+    private static void aritySweep() {
+        double[] throughputs = new double[sweepArities.length];
+        long[] setFootprints = new long[sweepArities.length];
+        long[] memoryFootprints = new long[sweepArities.length];
+
+        for (int i = 0; i < sweepArities.length; i ++) {
+            if (i > 0) {
+                arity = sweepArities[i];
+                set = null;
+                defineSet();
+                initializeSet();
+            }
+            System.out.printf("Arity = %d\n", arity);
+            runBenchMark();
+            printResults();
+            throughputs[i] = throughput;
+            setFootprints[i] = setFootprint;
+            memoryFootprints[i] = memoryFootprint;
+        }
+
+        double bestThroughput = 0;
+        for (double t : throughputs) {
+            bestThroughput = Math.max(bestThroughput, t);
+        }
+        int recommended = -1;
+        System.out.printf("Arity sweep of %s:\n", setType);
+        for (int i = 0; i < sweepArities.length; i ++) {
+            System.out.printf("  arity %2d: throughput = %.0f Ops/sec (%.0f%%), initial set = %.1f bytes/key, operations = %d bytes\n",
+                              sweepArities[i], throughputs[i], 100 * throughputs[i] / bestThroughput,
+                              (double) setFootprints[i] / initialKeys, memoryFootprints[i]);
+            if (throughputs[i] >= (1 - SWEEP_TOLERANCE) * bestThroughput
+                && (recommended < 0 || setFootprints[i] < setFootprints[recommended])) {
+                recommended = i;
+            }
         }
+        System.out.printf("Recommended arity = %d\n", sweepArities[recommended]);
     }
 }
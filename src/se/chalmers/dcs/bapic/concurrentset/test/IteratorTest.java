@@ -0,0 +1,171 @@
+package se.chalmers.dcs.bapic.concurrentset.test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import se.chalmers.dcs.bapic.concurrentset.Sets.*;
+import se.chalmers.dcs.bapic.concurrentset.utils.*;
+
+/**
+ * Checks the iterators and spliterators of the sets while other threads
+ * update them. The even keys of [0, RANGE) are added first and never
+ * removed, the updaters add and remove odd keys only. So every pass,
+ * whatever it runs into, must see its keys in strict order, must see all
+ * even keys of its range, and may see odd keys of its range only. A pass
+ * is an ascending and a descending iterator from a random key, a
+ * spliterator over a random range split down to single keys, and a
+ * parallel stream over all keys. Once the updaters have stopped, all of
+ * them must see exactly the keys of the set.
+ *
+ * Usage: IteratorTest [setType [threads [millis]]], by default the tree
+ * sets, LFSkipList, ConcSkipListWrapper and a ShardedSet of KBST, with 2
+ * updaters and 500 ms each. Exits with status 1 after the first wrong
+ * answer.
+ */
+public class IteratorTest {
+
+    static final int RANGE = 4096;
+
+    public static void main(String[] args) throws InterruptedException {
+        String[] setTypes = (args.length > 0) ? new String[]{args[0]}
+                            : new String[]{"KBST", "DoubleKBST", "OffHeapKBST", "TrevorBrown", "EFRBLFBST", "NMLFBST", "ScapegoatLFBST",
+                                           "HelpOptimalLFBST", "LFSkipList", "ConcSkipListWrapper", "ShardedKBST"};
+        int threads = (args.length > 1) ? Integer.parseInt(args[1]) : 2;
+        long millis = (args.length > 2) ? Integer.parseInt(args[2]) : 500;
+        boolean passed = true;
+        for (String setType : setTypes) {
+            SetADT set = setType.equals("ConcSkipListWrapper") ? new ConcSkipListWrapper()
+                         : setType.equals("ShardedKBST") ? new ShardedSet(4, 0, RANGE, () -> new KBST(4))
+                           : BenchMark.newSet(setType, 4, false);
+            String failure = run(set, threads, millis);
+            System.out.println(setType + ": " + ((failure == null) ? "passed" : failure));
+            passed &= failure == null;
+        }
+        System.exit(passed ? 0 : 1);
+    }
+
+    /**
+     * @return the first wrong answer, or null if there was none
+     */
+    static String run(SetADT set, int threads, long millis) throws InterruptedException {
+        for (int key = 0; key < RANGE; key += 2) {
+            set.add(new K(key));
+        }
+        AtomicBoolean stop = new AtomicBoolean();
+        Thread[] updaters = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            updaters[t] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                while ( ! stop.get()) {
+                    K key = new K(2 * random.nextInt(RANGE / 2) + 1);
+                    if (random.nextBoolean()) {
+                        set.add(key);
+                    }
+                    else {
+                        set.remove(key);
+                    }
+                }
+            });
+            updaters[t].start();
+        }
+        String failure = null;
+        long end = System.currentTimeMillis() + millis;
+        try {
+            while (failure == null && System.currentTimeMillis() < end) {
+                failure = pass(set, false);
+            }
+        }
+        finally {
+            stop.set(true);
+            for (Thread updater : updaters) {
+                updater.join();
+            }
+        }
+        return (failure != null) ? failure : pass(set, true);
+    }
+
+    /**
+     * @param quiescent if no update runs, so that every odd key of the set
+     *                  must be seen, and no other
+     * @return the first wrong answer, or null if there was none
+     */
+    static String pass(SetADT set, boolean quiescent) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int from = random.nextInt(RANGE);
+        ArrayList<K> keys = new ArrayList<>();
+        set.iterator(new K(from)).forEachRemaining(keys::add);
+        String failure = check("iterator(" + from + ")", set, keys, from, RANGE - 1, true, quiescent);
+        if (failure != null) {
+            return failure;
+        }
+        keys.clear();
+        Iterator<K> descending = set.descendingIterator(new K(from));
+        descending.forEachRemaining(keys::add);
+        failure = check("descendingIterator(" + from + ")", set, keys, 0, from, false, quiescent);
+        if (failure != null) {
+            return failure;
+        }
+        int lo = random.nextInt(RANGE), hi = lo + random.nextInt(RANGE - lo);
+        keys.clear();
+        split(set.spliterator(new K(lo), new K(hi)), keys);
+        failure = check("spliterator(" + lo + ", " + hi + ")", set, keys, lo, hi, true, quiescent);
+        if (failure != null) {
+            return failure;
+        }
+        keys.clear();
+        keys.addAll(set.parallelStream().collect(Collectors.toList()));
+        return check("parallelStream()", set, keys, 0, RANGE - 1, true, quiescent);
+    }
+
+    /**
+     * Splits keys as far as it goes, depth first with the prefix first, so
+     * that the keys end up in encounter order.
+     */
+    static void split(Spliterator<K> keys, ArrayList<K> out) {
+        Spliterator<K> prefix = keys.trySplit();
+        if (prefix != null) {
+            split(prefix, out);
+            split(keys, out);
+        }
+        else {
+            keys.forEachRemaining(out::add);
+        }
+    }
+
+    static String check(String name, SetADT set, ArrayList<K> keys, int lo, int hi, boolean ascending, boolean quiescent) {
+        int expected = ascending ? lo + (lo & 1) : hi - (hi & 1);
+        for (int i = 0; i < keys.size(); i++) {
+            int key = (int) keys.get(i).getValue();
+            if (key < lo || key > hi) {
+                return name + " returned " + key;
+            }
+            if (i > 0 && (ascending ? key <= keys.get(i - 1).getValue() : key >= keys.get(i - 1).getValue())) {
+                return name + " returned " + key + " after " + keys.get(i - 1).getValue();
+            }
+            if ((key & 1) == 1) {
+                if (quiescent && ! set.contains(keys.get(i))) {
+                    return name + " returned the removed key " + key;
+                }
+                continue;
+            }
+            if (key != expected) {
+                return name + " missed the key " + expected;
+            }
+            expected += ascending ? 2 : -2;
+        }
+        if (ascending ? expected <= hi : expected >= lo) {
+            return name + " missed the key " + expected;
+        }
+        if (quiescent) {
+            int[] count = new int[1];
+            set.rangeScan(new K(lo), new K(hi), key -> count[0]++);
+            if (count[0] != keys.size()) {
+                return name + " returned " + keys.size() + " keys of " + count[0];
+            }
+        }
+        return null;
+    }
+}
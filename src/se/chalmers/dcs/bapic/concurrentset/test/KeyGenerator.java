@@ -0,0 +1,189 @@
+package se.chalmers.dcs.bapic.concurrentset.test;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import org.apache.commons.math3.distribution.ZipfDistribution;
+import org.apache.commons.math3.random.Well19937c;
+import se.chalmers.dcs.bapic.concurrentset.utils.Tools;
+
+/**
+ * Source of the keys of one benchmark thread. Skewed distributions are
+ * sampled up front into an array that is then replayed cyclically, so that
+ * the benchmark loop only reads an array element and neither allocates nor
+ * pays for commons-math sampling per operation.
+ */
+public abstract class KeyGenerator {
+
+    /**
+     * Names accepted by create().
+     */
+    public static final String[] DISTRIBUTIONS = {"uniform", "zipf", "hotspot", "sequential", "ascending", "trace"};
+
+    // keys sampled up front per thread (8 MB)
+    private static final int PRECOMPUTED_KEYS = 1 << 20;
+
+    // the hotspot covers HOTSPOT_KEYS_PERCENT of the keys, receives
+    // HOTSPOT_OPS_PERCENT of the operations, and moves on by its own width
+    // every HOTSPOT_PERIOD keys
+    private static final int HOTSPOT_KEYS_PERCENT = 10;
+    private static final int HOTSPOT_OPS_PERCENT = 90;
+    private static final int HOTSPOT_PERIOD = 1 << 16;
+
+    /**
+     *
+     * @return the next key
+     */
+    public abstract double nextKey();
+
+    /**
+     * The generator of thread threadId for a distribution:
+     * uniform: uniformly random keys in [0, keyRange).
+     * zipf: Zipf distributed ranks with the given exponent; rank r is key r-1,
+     * so the hot keys are the smallest ones.
+     * hotspot: HOTSPOT_OPS_PERCENT of the keys fall into a window of
+     * HOTSPOT_KEYS_PERCENT of the key range that moves forward over time,
+     * the others are uniform.
+     * sequential: the threads together visit 0, 1, 2, ... in ascending order,
+     * thread t taking every numberOfThreads-th key from t on, wrapping at
+     * keyRange.
+     * ascending: like sequential, but from keyRange / 2 on, the first key
+     * above the initial set, which BenchMark fills in ascending order for
+     * this distribution; the keys grow like timestamps until they wrap.
+     * trace: replays the keys of a trace, thread t starting at its own
+     * offset.
+     *
+     * @param distribution one of DISTRIBUTIONS
+     * @param threadId
+     * @param numberOfThreads
+     * @param keyRange
+     * @param zipfExponent
+     * @param trace keys read by readTrace(), only used for "trace"
+     * @return
+     * @throws IllegalArgumentException on an unknown distribution, or a
+     *                                  missing or empty trace
+     */
+    public static KeyGenerator create(String distribution, int threadId, int numberOfThreads, int keyRange, double zipfExponent, double[] trace) {
+        switch (distribution) {
+            case "uniform":
+                return new Uniform(new Random(threadId), keyRange);
+            case "zipf": {
+                ZipfDistribution zipf = new ZipfDistribution(new Well19937c(threadId), keyRange, zipfExponent);
+                double[] keys = new double[PRECOMPUTED_KEYS];
+                for (int i = 0; i < keys.length; i ++) {
+                    keys[i] = zipf.sample() - 1;
+                }
+                return new Replay(keys, 0);
+            }
+            case "hotspot": {
+                Random random = new Random(threadId);
+                double width = Math.max(1, (double) keyRange * HOTSPOT_KEYS_PERCENT / 100);
+                double[] keys = new double[PRECOMPUTED_KEYS];
+                for (int i = 0; i < keys.length; i ++) {
+                    if (random.nextInt(100) < HOTSPOT_OPS_PERCENT) {
+                        double start = (i / HOTSPOT_PERIOD) * width;
+                        keys[i] = (start + random.nextDouble() * width) % keyRange;
+                    }
+                    else {
+                        keys[i] = Tools.randomInRange(random, 0, keyRange);
+                    }
+                }
+                return new Replay(keys, 0);
+            }
+            case "sequential":
+                return new Sequential(threadId, numberOfThreads, keyRange, 0);
+            case "ascending":
+                return new Sequential(threadId, numberOfThreads, keyRange, keyRange / 2);
+            case "trace":
+                if (trace == null || trace.length == 0) {
+                    throw new IllegalArgumentException("The trace distribution needs a non-empty trace file");
+                }
+                return new Replay(trace, (int) ((long) trace.length * threadId / numberOfThreads));
+            default:
+                throw new IllegalArgumentException("Unknown key distribution " + distribution);
+        }
+    }
+
+    /**
+     * Reads a key trace: one key per line, blank lines and lines starting
+     * with # are skipped.
+     *
+     * @param path
+     * @return
+     * @throws IOException
+     */
+    public static double[] readTrace(String path) throws IOException {
+        double[] keys = new double[1024];
+        int count = 0;
+        try (BufferedReader reader = new BufferedReader(new FileReader(path))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                if (count == keys.length) {
+                    keys = Arrays.copyOf(keys, 2 * count);
+                }
+                keys[count ++] = Double.parseDouble(line);
+            }
+        }
+        return Arrays.copyOf(keys, count);
+    }
+
+    private static final class Uniform extends KeyGenerator {
+
+        private final Random random;
+        private final int keyRange;
+
+        Uniform(Random random, int keyRange) {
+            this.random = random;
+            this.keyRange = keyRange;
+        }
+
+        @Override
+        public double nextKey() {
+            return Tools.randomInRange(random, 0, keyRange);
+        }
+    }
+
+    private static final class Replay extends KeyGenerator {
+
+        private final double[] keys;
+        private int next;
+
+        Replay(double[] keys, int start) {
+            this.keys = keys;
+            this.next = start;
+        }
+
+        @Override
+        public double nextKey() {
+            double key = keys[next];
+            next = (next + 1 == keys.length) ? 0 : next + 1;
+            return key;
+        }
+    }
+
+    private static final class Sequential extends KeyGenerator {
+
+        private final int step;
+        private final int keyRange;
+        private int next;
+
+        Sequential(int threadId, int numberOfThreads, int keyRange, int start) {
+            this.step = numberOfThreads;
+            this.keyRange = keyRange;
+            this.next = (int) (((long) start + threadId) % keyRange);
+        }
+
+        @Override
+        public double nextKey() {
+            int key = next;
+            next = (int) (((long) next + step) % keyRange);
+            return key;
+        }
+    }
+}
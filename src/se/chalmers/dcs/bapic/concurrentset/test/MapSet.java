@@ -0,0 +1,206 @@
+package se.chalmers.dcs.bapic.concurrentset.test;
+
+import se.chalmers.dcs.bapic.concurrentset.utils.*;
+
+import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * Runs the benchmark on a map: add() puts the key as its own value, so on
+ * a present key it replaces the value, remove() removes the key and
+ * contains() reads its value. Scans and navigation go to the keys of the
+ * map.
+ */
+public class MapSet implements SetADT {
+
+    private final MapADT<K> map;
+
+    /**
+     *
+     * @param map
+     */
+    public MapSet(MapADT<K> map) {
+        this.map = map;
+    }
+
+    /**
+     *
+     * @param key
+     * @return
+     */
+    @Override
+    public boolean contains(K key) {
+        return map.get(key) != null;
+    }
+
+    /**
+     *
+     * @param key
+     * @return true if key was absent
+     */
+    @Override
+    public boolean add(K key) {
+        return map.put(key, key) == null;
+    }
+
+    /**
+     *
+     * @param key
+     * @return
+     */
+    @Override
+    public boolean remove(K key) {
+        return map.remove(key) != null;
+    }
+
+    /**
+     *
+     * @return
+     */
+    @Override
+    public boolean traversalTest() {
+        return map.keySet().traversalTest();
+    }
+
+    /**
+     *
+     * @param lo
+     * @param hi
+     * @param consumer
+     */
+    @Override
+    public void rangeScan(K lo, K hi, Consumer<K> consumer) {
+        map.keySet().rangeScan(lo, hi, consumer);
+    }
+
+    /**
+     *
+     * @param lo
+     * @param hi
+     * @return
+     */
+    @Override
+    public int countRange(K lo, K hi) {
+        return map.keySet().countRange(lo, hi);
+    }
+
+    /**
+     *
+     * @return
+     */
+    @Override
+    public long size() {
+        return map.keySet().size();
+    }
+
+    /**
+     *
+     * @return
+     */
+    @Override
+    public long estimatedSize() {
+        return map.size();
+    }
+
+    /**
+     *
+     * @return
+     */
+    @Override
+    public int height() {
+        return map.keySet().height();
+    }
+
+    /**
+     *
+     * @return
+     */
+    @Override
+    public TreeShape shape() {
+        return map.keySet().shape();
+    }
+
+    /**
+     *
+     * @param from
+     * @param limit
+     * @param consumer
+     * @return
+     */
+    @Override
+    public K scanChunk(K from, int limit, Consumer<K> consumer) {
+        return map.keySet().scanChunk(from, limit, consumer);
+    }
+
+    /**
+     *
+     * @param from
+     * @return
+     */
+    @Override
+    public Iterator<K> iterator(K from) {
+        return map.keySet().iterator(from);
+    }
+
+    /**
+     *
+     * @param from
+     * @return
+     */
+    @Override
+    public Iterator<K> descendingIterator(K from) {
+        return map.keySet().descendingIterator(from);
+    }
+
+    /**
+     *
+     * @param key
+     * @return
+     */
+    @Override
+    public K ceiling(K key) {
+        return map.ceilingKey(key);
+    }
+
+    /**
+     *
+     * @param key
+     * @return
+     */
+    @Override
+    public K higher(K key) {
+        return map.higherKey(key);
+    }
+
+    /**
+     *
+     * @param key
+     * @return
+     */
+    @Override
+    public K floor(K key) {
+        return map.floorKey(key);
+    }
+
+    /**
+     *
+     * @param key
+     * @return
+     */
+    @Override
+    public K lower(K key) {
+        return map.lowerKey(key);
+    }
+
+    /**
+     *
+     * @param lo
+     * @param hi
+     * @return
+     */
+    @Override
+    public Spliterator<K> spliterator(K lo, K hi) {
+        return map.keySet().spliterator(lo, hi);
+    }
+}
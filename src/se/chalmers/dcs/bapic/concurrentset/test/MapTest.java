@@ -0,0 +1,208 @@
+package se.chalmers.dcs.bapic.concurrentset.test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+import se.chalmers.dcs.bapic.concurrentset.Sets.*;
+import se.chalmers.dcs.bapic.concurrentset.utils.*;
+
+/**
+ * Checks the maps with random operations against a TreeMap, in two runs
+ * per map. In the first, one thread uses all of MapADT and the key
+ * navigation of the map. In the second, thread t owns the keys k with
+ * k % threads == t and keeps its own TreeMap of them, as in StressTest, so
+ * every result has exactly one right answer while the keys of all threads
+ * share the leaves; meanwhile all threads count up COUNTERS shared keys
+ * with compute(), which must not lose an increment.
+ *
+ * Usage: MapTest [threads [millis]], by default 4 threads and 1000 ms.
+ * Exits with status 1 after the first wrong answer.
+ */
+public class MapTest {
+
+    // keys per thread
+    static final int KEYS = 64;
+    static final int COUNTERS = 4;
+
+    public static void main(String[] args) throws InterruptedException {
+        int threads = (args.length > 0) ? Integer.parseInt(args[0]) : 4;
+        long millis = (args.length > 1) ? Integer.parseInt(args[1]) : 1000;
+        String[] names = {"KBSTMap", "KBSTMap+recycling", "LockFreeKSTRQMap", "ConcSkipListMapWrapper"};
+        List<Supplier<MapADT<Integer>>> maps = Arrays.asList(
+            () -> new KBSTMap<>(4), () -> new KBSTMap<>(4, true), () -> new LockFreeKSTRQMap<>(4), () -> new ConcSkipListMapWrapper<>());
+        boolean passed = true;
+        for (int i = 0; i < names.length; i++) {
+            String failure = runSequential(maps.get(i).get());
+            if (failure == null) {
+                failure = runConcurrent(maps.get(i).get(), threads, millis);
+            }
+            System.out.println(names[i] + ": " + ((failure == null) ? "passed" : failure));
+            passed &= failure == null;
+        }
+        System.exit(passed ? 0 : 1);
+    }
+
+    static String runSequential(MapADT<Integer> map) {
+        try {
+            map.put(new K(0), null);
+            return "put(0, null) did not throw";
+        }
+        catch (NullPointerException expected) {
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        TreeMap<Double, Integer> model = new TreeMap<>();
+        for (long ops = 1; ops <= 100000; ops++) {
+            String failure = step(map, model, new K(random.nextInt(KEYS)), random, ops);
+            if (failure == null) {
+                double key = random.nextInt(KEYS + 2) - 1;
+                failure = compare("ceilingKey", key, map.ceilingKey(new K(key)), model.ceilingKey(key), ops);
+                if (failure == null) {
+                    failure = compare("floorKey", key, map.floorKey(new K(key)), model.floorKey(key), ops);
+                }
+                if (failure == null) {
+                    failure = compare("higherKey", key, map.higherKey(new K(key)), model.higherKey(key), ops);
+                }
+                if (failure == null) {
+                    failure = compare("lowerKey", key, map.lowerKey(new K(key)), model.lowerKey(key), ops);
+                }
+            }
+            if (failure != null) {
+                return failure;
+            }
+        }
+        return (map.size() == model.size()) ? null : "size() = " + map.size() + " instead of " + model.size();
+    }
+
+    static String compare(String name, double key, K result, Double expected, long ops) {
+        Double value = (result == null) ? null : result.getValue();
+        return Objects.equals(value, expected) ? null : name + "(" + key + ") = " + value + " instead of " + expected + " after " + ops + " operations";
+    }
+
+    /**
+     * One random operation on key, which the calling thread owns, checked
+     * against its model.
+     *
+     * @return the wrong answer, or null
+     */
+    static String step(MapADT<Integer> map, TreeMap<Double, Integer> model, K key, ThreadLocalRandom random, long ops) {
+        double k = key.getValue();
+        Integer value = random.nextInt(4), previous = model.get(k);
+        String name;
+        Object result, expected;
+        switch (random.nextInt(9)) {
+            case 0:
+                name = "put";
+                result = map.put(key, value);
+                expected = model.put(k, value);
+                break;
+            case 1:
+                name = "putIfAbsent";
+                result = map.putIfAbsent(key, value);
+                expected = model.putIfAbsent(k, value);
+                break;
+            case 2:
+                name = "replace";
+                result = map.replace(key, value);
+                expected = model.replace(k, value);
+                break;
+            case 3:
+                // the current value half of the time, if there is one
+                Integer old = (previous != null && random.nextBoolean()) ? previous : (Integer) random.nextInt(4);
+                name = "replace(" + old + ")";
+                result = map.replace(key, old, value);
+                expected = model.replace(k, old, value);
+                break;
+            case 4:
+                name = "remove";
+                result = map.remove(key);
+                expected = model.remove(k);
+                break;
+            case 5:
+                Integer gone = (previous != null && random.nextBoolean()) ? previous : (Integer) random.nextInt(4);
+                name = "remove(" + gone + ")";
+                result = map.remove(key, gone);
+                expected = model.remove(k, gone);
+                break;
+            case 6:
+                name = "compute";
+                result = map.compute(key, (x, v) -> next(v));
+                expected = model.compute(k, (x, v) -> next(v));
+                break;
+            case 7:
+                name = "computeIfAbsent";
+                result = map.computeIfAbsent(key, x -> value);
+                expected = model.computeIfAbsent(k, x -> value);
+                break;
+            default:
+                name = "containsKey";
+                result = map.containsKey(key);
+                expected = model.containsKey(k);
+        }
+        if ( ! Objects.equals(result, expected)) {
+            return name + "(" + k + ", " + value + ") = " + result + " instead of " + expected + " after " + ops + " operations";
+        }
+        return Objects.equals(map.get(key), model.get(k)) ? null : "get(" + k + ") = " + map.get(key) + " after " + name + ", " + ops + " operations";
+    }
+
+    /**
+     * Counts from 0 to 3, and then starts over from absent.
+     */
+    static Integer next(Integer value) {
+        if (value == null) {
+            return 0;
+        }
+        return (value < 3) ? Integer.valueOf(value + 1) : null;
+    }
+
+    /**
+     * @return the first wrong answer, or null if there was none
+     */
+    static String runConcurrent(MapADT<Integer> map, int threads, long millis) throws InterruptedException {
+        AtomicReference<String> failure = new AtomicReference<>();
+        long end = System.currentTimeMillis() + millis;
+        long[] increments = new long[threads];
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            workers[t] = new Thread(() -> {
+                TreeMap<Double, Integer> model = new TreeMap<>();
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long ops = 0;
+                while (failure.get() == null && ((++ops & 1023) != 0 || System.currentTimeMillis() < end)) {
+                    if ((ops & 15) == 0) {
+                        // the counters are below the keys of the threads
+                        map.compute(new K(-1 - random.nextInt(COUNTERS)), (x, v) -> (v == null) ? 1 : v + 1);
+                        increments[id]++;
+                        continue;
+                    }
+                    String wrong = step(map, model, new K(random.nextInt(KEYS) * threads + id), random, ops);
+                    if (wrong != null) {
+                        failure.compareAndSet(null, wrong + " of thread " + id);
+                    }
+                }
+            });
+        }
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        if (failure.get() != null) {
+            return failure.get();
+        }
+        long expected = 0, counted = 0;
+        for (long count : increments) {
+            expected += count;
+        }
+        for (int c = 0; c < COUNTERS; c++) {
+            Integer count = map.get(new K(-1 - c));
+            counted += (count == null) ? 0 : count;
+        }
+        return (counted == expected) ? null : "the counters add up to " + counted + " instead of " + expected;
+    }
+}
@@ -0,0 +1,252 @@
+package se.chalmers.dcs.bapic.concurrentset.test;
+
+import java.util.ArrayList;
+import java.util.TreeSet;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import se.chalmers.dcs.bapic.concurrentset.Sets.*;
+import se.chalmers.dcs.bapic.concurrentset.utils.*;
+
+/**
+ * Checks ceiling, floor, higher, lower, first, last and pollFirst, in three
+ * runs per set:
+ *
+ * - against a TreeSet, on a set that nobody else updates;
+ * - while updaters add and remove the odd keys of [0, RANGE) and the even
+ *   keys stay, so that the answer for a key must be the even key a TreeSet
+ *   of the even keys gives, or an odd key between that one and the key;
+ * - pollFirst by consumer threads while producer threads add keys, until
+ *   the producers are done and the set is empty. Every key added must be
+ *   polled exactly once.
+ *
+ * Usage: NavigationTest [setType [threads [millis]]], by default the sets
+ * with linearizable navigation and some of the others, 2 threads of each
+ * kind and 500 ms. Exits with status 1 after the first wrong answer.
+ */
+public class NavigationTest {
+
+    static final int RANGE = 2048;
+    // keys added per producer in the pollFirst run
+    static final int POLLED = 20000;
+
+    public static void main(String[] args) throws InterruptedException {
+        String[] setTypes = (args.length > 0) ? new String[]{args[0]}
+                            : new String[]{"KBST", "DoubleKBST", "OffHeapKBST", "TrevorBrown", "EFRBLFBST", "ScapegoatLFBST", "LFSkipList",
+                                           "ConcSkipListWrapper"};
+        int threads = (args.length > 1) ? Integer.parseInt(args[1]) : 2;
+        long millis = (args.length > 2) ? Integer.parseInt(args[2]) : 500;
+        boolean passed = true;
+        for (String setType : setTypes) {
+            String failure = runSequential(newSet(setType));
+            if (failure == null) {
+                failure = runConcurrent(newSet(setType), threads, millis);
+            }
+            if (failure == null) {
+                failure = runPollFirst(newSet(setType), threads);
+            }
+            System.out.println(setType + ": " + ((failure == null) ? "passed" : failure));
+            passed &= failure == null;
+        }
+        System.exit(passed ? 0 : 1);
+    }
+
+    static SetADT newSet(String setType) {
+        return setType.equals("ConcSkipListWrapper") ? new ConcSkipListWrapper() : BenchMark.newSet(setType, 4, false);
+    }
+
+    static String runSequential(SetADT set) {
+        if (set.first() != null || set.last() != null || set.pollFirst() != null || set.ceiling(new K(0)) != null) {
+            return "the empty set has a first key";
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        TreeSet<Double> model = new TreeSet<>();
+        for (int i = 0; i < RANGE / 4; i++) {
+            int key = random.nextInt(RANGE);
+            set.add(new K(key));
+            model.add((double) key);
+        }
+        for (int i = 0; i < 4 * RANGE; i++) {
+            double key = random.nextInt(RANGE + 2) - 1;
+            String failure = compare("ceiling", key, set.ceiling(new K(key)), model.ceiling(key));
+            if (failure == null) {
+                failure = compare("floor", key, set.floor(new K(key)), model.floor(key));
+            }
+            if (failure == null) {
+                failure = compare("higher", key, set.higher(new K(key)), model.higher(key));
+            }
+            if (failure == null) {
+                failure = compare("lower", key, set.lower(new K(key)), model.lower(key));
+            }
+            if (failure != null) {
+                return failure;
+            }
+        }
+        String failure = compare("first", 0, set.first(), model.first());
+        if (failure == null) {
+            failure = compare("last", 0, set.last(), model.last());
+        }
+        while (failure == null && ! model.isEmpty()) {
+            failure = compare("pollFirst", 0, set.pollFirst(), model.pollFirst());
+        }
+        return (failure == null && set.pollFirst() != null) ? "pollFirst of the drained set is not null" : failure;
+    }
+
+    static String compare(String name, double key, K result, Double expected) {
+        Double value = (result == null) ? null : result.getValue();
+        return (value == null ? expected == null : value.equals(expected)) ? null : name + "(" + key + ") = " + value + " instead of " + expected;
+    }
+
+    /**
+     * @return the first wrong answer, or null if there was none
+     */
+    static String runConcurrent(SetADT set, int threads, long millis) throws InterruptedException {
+        for (int key = 0; key < RANGE; key += 2) {
+            set.add(new K(key));
+        }
+        AtomicBoolean stop = new AtomicBoolean();
+        Thread[] updaters = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            updaters[t] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                while ( ! stop.get()) {
+                    K key = new K(2 * random.nextInt(RANGE / 2) + 1);
+                    if (random.nextBoolean()) {
+                        set.add(key);
+                    }
+                    else {
+                        set.remove(key);
+                    }
+                }
+            });
+            updaters[t].start();
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        String failure = null;
+        long end = System.currentTimeMillis() + millis;
+        try {
+            while (failure == null && System.currentTimeMillis() < end) {
+                int key = random.nextInt(RANGE);
+                // the even keys next to key, which are always in the set
+                int up = key + (key & 1), down = key - (key & 1);
+                failure = between("ceiling", key, set.ceiling(new K(key)), up, key);
+                if (failure == null) {
+                    failure = between("higher", key, set.higher(new K(key)), key + 2 - (key & 1), key + 1);
+                }
+                if (failure == null) {
+                    failure = between("floor", key, set.floor(new K(key)), down, key);
+                }
+                if (failure == null && key > 0) {
+                    failure = between("lower", key, set.lower(new K(key)), key - 2 + (key & 1), key - 1);
+                }
+                if (failure == null) {
+                    failure = between("first", 0, set.first(), 0, 0);
+                }
+                if (failure == null) {
+                    failure = between("last", 0, set.last(), RANGE - 2, RANGE - 1);
+                }
+            }
+        }
+        finally {
+            stop.set(true);
+            for (Thread updater : updaters) {
+                updater.join();
+            }
+        }
+        return failure;
+    }
+
+    /**
+     * The answer must be between nearest and bound, and if it is not nearest
+     * it must be odd: nearest is the even key that is always there, and the
+     * odd keys between it and bound, the nearest key the query may return,
+     * come and go.
+     */
+    static String between(String name, int key, K result, int nearest, int bound) {
+        if (nearest >= RANGE) {
+            // no key above bound is always there
+            return (result == null || (result.getValue() >= bound && ((int) result.getValue() & 1) == 1)) ? null : name + "(" + key + ") = " + result.getValue();
+        }
+        if (result == null) {
+            return name + "(" + key + ") = null";
+        }
+        double value = result.getValue();
+        return (value >= Math.min(nearest, bound) && value <= Math.max(nearest, bound) && (value == nearest || ((int) value & 1) == 1))
+               ? null
+               : name + "(" + key + ") = " + value;
+    }
+
+    /**
+     * @return the first wrong answer, or null if there was none
+     */
+    static String runPollFirst(SetADT set, int threads) throws InterruptedException {
+        AtomicReference<String> failure = new AtomicReference<>();
+        AtomicInteger producing = new AtomicInteger(threads);
+        int total = threads * POLLED;
+        // polled[k] counts the pollFirst calls that returned k
+        AtomicInteger[] polled = new AtomicInteger[total];
+        for (int i = 0; i < total; i++) {
+            polled[i] = new AtomicInteger();
+        }
+        Thread[] workers = new Thread[2 * threads];
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            workers[t] = new Thread(() -> {
+                // the keys k with k % threads == id, each once and mostly
+                // ascending, so that they land both above and below the
+                // smallest key
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                int[] order = new int[POLLED];
+                for (int i = 0; i < POLLED; i++) {
+                    order[i] = i;
+                }
+                for (int i = 0; i < POLLED; i++) {
+                    int j = Math.min(POLLED - 1, i + random.nextInt(8));
+                    int swap = order[i];
+                    order[i] = order[j];
+                    order[j] = swap;
+                }
+                for (int i : order) {
+                    set.add(new K(i * threads + id));
+                }
+                producing.decrementAndGet();
+            });
+            workers[threads + t] = new Thread(() -> {
+                while (failure.get() == null) {
+                    boolean done = producing.get() == 0;
+                    K key = set.pollFirst();
+                    if (key == null) {
+                        if (done) {
+                            break;
+                        }
+                        continue;
+                    }
+                    int k = (int) key.getValue();
+                    if (k < 0 || k >= total || polled[k].incrementAndGet() != 1) {
+                        failure.compareAndSet(null, "pollFirst() returned " + k + " twice");
+                    }
+                }
+            });
+        }
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        if (failure.get() != null) {
+            return failure.get();
+        }
+        ArrayList<Integer> lost = new ArrayList<>();
+        for (int k = 0; k < total; k++) {
+            if (polled[k].get() == 0 && ! set.contains(new K(k))) {
+                lost.add(k);
+            }
+        }
+        if ( ! lost.isEmpty()) {
+            return lost.size() + " keys were lost, the first is " + lost.get(0);
+        }
+        return (set.first() == null) ? null : "the consumers left " + set.first().getValue() + " behind";
+    }
+}
@@ -0,0 +1,105 @@
+package se.chalmers.dcs.bapic.concurrentset.test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.PrimitiveIterator;
+import java.util.function.Function;
+import se.chalmers.dcs.bapic.concurrentset.Sets.*;
+import se.chalmers.dcs.bapic.concurrentset.utils.*;
+
+/**
+ * Round trips of a LoggedSet through its snapshot and change log. The set
+ * is updated by concurrent threads as in StressTest, the log is closed and
+ * the set recovered from the files, which must give the keys the set had.
+ * The first round starts from no files at all and recovers from the log
+ * alone, the second from the snapshot the first recovery wrote and the log
+ * on top of it, which starts with the removal of all keys of the snapshot.
+ * Before each recovery one more record is written last, which is cut short
+ * in the first round and must be ignored, and followed by a part of a
+ * record in the second, which must be ignored while the record before it
+ * counts.
+ *
+ * Usage: RecoveryTest [threads [seconds]], by default 4 threads and 1
+ * second per round. Exits with status 1 after the first wrong answer.
+ */
+public class RecoveryTest {
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int threads = (args.length > 0) ? Integer.parseInt(args[0]) : 4;
+        long millis = (args.length > 1) ? 1000L * Integer.parseInt(args[1]) : 1000;
+        Path dir = Files.createTempDirectory("recovery-test");
+        boolean passed = true;
+        try {
+            passed &= run("KBST", keys -> new KBST(4, keys), dir, threads, millis);
+            passed &= run("TrevorBrown", keys -> new LockFreeKSTRQ(4, keys), dir, threads, millis);
+        }
+        finally {
+            for (String name : dir.toFile().list()) {
+                Files.delete(dir.resolve(name));
+            }
+            Files.delete(dir);
+        }
+        System.exit(passed ? 0 : 1);
+    }
+
+    static boolean run(String setType, Function<PrimitiveIterator.OfDouble, SetADT> bulkLoad, Path dir, int threads, long millis)
+            throws IOException, InterruptedException {
+        Path snapshot = dir.resolve(setType + ".snapshot"), log = dir.resolve(setType + ".log");
+        LoggedSet set = LoggedSet.recover(snapshot, log, bulkLoad, ChangeLog.FsyncPolicy.NEVER, 64);
+        String failure = (set.scanSize() == 0) ? null : "the set recovered from no files is not empty";
+        for (int round = 1; round <= 2 && failure == null; round++) {
+            // StressTest starts from an empty set, the removes go to the log
+            for (double key : keys(set)) {
+                set.remove(new K(key));
+            }
+            failure = StressTest.run(set, threads, millis);
+            if (failure != null) {
+                break;
+            }
+            boolean cut = round == 1;
+            ArrayList<Double> expected = keys(set);
+            // the records before it are written first, so this one is last
+            set.getLog().sync();
+            set.add(new K(1000000 + round));
+            if ( ! cut) {
+                expected = keys(set);
+            }
+            set.getLog().close();
+            tear(log, cut);
+            set = LoggedSet.recover(snapshot, log, bulkLoad, ChangeLog.FsyncPolicy.BATCH, 64);
+            ArrayList<Double> recovered = keys(set);
+            if ( ! recovered.equals(expected)) {
+                failure = "round " + round + " recovered " + recovered.size() + " keys instead of " + expected.size() + ": " + recovered;
+            }
+        }
+        set.getLog().close();
+        System.out.println(setType + ": " + ((failure == null) ? "passed" : failure));
+        return failure == null;
+    }
+
+    /**
+     * Tears the last record of the log, by cutting off its last 5 bytes or
+     * by appending the first 9 bytes of another record.
+     */
+    static void tear(Path log, boolean cut) throws IOException {
+        try (FileChannel channel = FileChannel.open(log, StandardOpenOption.WRITE)) {
+            if (cut) {
+                channel.truncate(channel.size() - 5);
+            }
+            else {
+                channel.position(channel.size()).write(ByteBuffer.allocate(9).put(0, (byte) ChangeLog.ADD));
+            }
+        }
+    }
+
+    static ArrayList<Double> keys(SetADT set) {
+        ArrayList<Double> keys = new ArrayList<>();
+        set.rangeScan(K.MinValue0, K.MaxValue0, key -> keys.add(key.getValue()));
+        return keys;
+    }
+}
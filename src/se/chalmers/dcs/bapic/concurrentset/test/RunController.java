@@ -27,19 +27,183 @@
  */
 package se.chalmers.dcs.bapic.concurrentset.test;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
 /**
+ * Takes the threads of one run through its phases: WAITING until run()
+ * is called, then a WARMUP window whose operations are not counted, the
+ * MEASURE window, a COOLDOWN window that keeps the threads busy while the
+ * measured window closes, and STOPPED.
+ *
+ * The threads park in awaitStart() instead of spinning, so that a run with
+ * more threads than processors does not spend them on waiting. Once running,
+ * a thread calls check() every CHECK_INTERVAL operations, or every
+ * CHECK_NANOS when it reads the clock anyway, rather than reading a volatile
+ * flag per operation. check() publishes the operations of the thread into a
+ * stripe of its own, padded like those of SizeCounter, and returns the phase;
+ * run() adds the stripes up every sampling interval into a throughput time
+ * series. The published counts lag behind by up to one check, so a sample is
+ * only as exact as the interval is long compared to a check.
+ *
+ * A controller runs once; every run takes a new one.
  *
  * @author bapic
  */
-public abstract class RunController {
+public final class RunController {
+
+    public static final int WAITING = 0, WARMUP = 1, MEASURE = 2, COOLDOWN = 3, STOPPED = 4;
+    public static final String[] PHASE_NAMES = {"waiting", "warm up", "measure", "cool down", "stopped"};
+
+    /**
+     * Operations a thread runs between two calls of check().
+     */
+    public static final int CHECK_INTERVAL = 64;
+
+    /**
+     * Nanoseconds between two calls of check(), for the threads that time
+     * their operations.
+     */
+    public static final long CHECK_NANOS = 20000;
+
+    // 64 bytes of padding on each side of a stripe
+    private static final int PAD = 8;
+    private static final int STRIDE = 2 * PAD;
+
+    private static final VarHandle OPERATIONS = MethodHandles.arrayElementVarHandle(long[].class);
+
+    private final long[] operations;
+    private final CountDownLatch start = new CountDownLatch(1);
+    private volatile int phase = WAITING;
+    private long measureBegin, measureEnd;
+    private final List<Double> samples = new ArrayList<>();
+    private final List<Integer> samplePhases = new ArrayList<>();
+    private long lastSampleTime;
+    private long lastSampleOperations;
+
+    /**
+     *
+     * @param numberOfThreads
+     */
+    public RunController(int numberOfThreads) {
+        this.operations = new long[(numberOfThreads + 1) * STRIDE];
+    }
+
+    /**
+     * Parks the calling thread until run() opens the first window.
+     *
+     * @return the phase the run starts in
+     */
+    public int awaitStart() {
+        boolean interrupted = false;
+        while (start.getCount() != 0) {
+            try {
+                start.await();
+            }
+            catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return phase;
+    }
+
+    /**
+     * Publishes the operations thread threadId has run so far.
+     *
+     * @param threadId
+     * @param numberOfOps
+     * @return the current phase
+     */
+    public int check(int threadId, long numberOfOps) {
+        OPERATIONS.setRelease(operations, PAD + threadId * STRIDE, numberOfOps);
+        return phase;
+    }
+
+    /**
+     * Releases the waiting threads and takes them through the windows, the
+     * windows of zero length being skipped, sampling the throughput every
+     * sampleMillis (not at all when it is zero). Returns once the phase is
+     * STOPPED; the caller then joins the threads.
+     *
+     * @param warmupMillis
+     * @param measureMillis
+     * @param cooldownMillis
+     * @param sampleMillis
+     * @throws InterruptedException
+     */
+    public void run(long warmupMillis, long measureMillis, long cooldownMillis, long sampleMillis) throws InterruptedException {
+        lastSampleTime = System.nanoTime();
+        phase = (warmupMillis > 0) ? WARMUP : MEASURE;
+        start.countDown();
+        if (warmupMillis > 0) {
+            window(warmupMillis, sampleMillis);
+            phase = MEASURE;
+        }
+        measureBegin = System.nanoTime();
+        window(measureMillis, sampleMillis);
+        measureEnd = System.nanoTime();
+        if (cooldownMillis > 0) {
+            phase = COOLDOWN;
+            window(cooldownMillis, sampleMillis);
+        }
+        phase = STOPPED;
+    }
+
+    /**
+     * Sleeps through the current window, taking a sample every sampleMillis
+     * and one at its end, so that no sample spans two windows.
+     */
+    private void window(long millis, long sampleMillis) throws InterruptedException {
+        if (sampleMillis <= 0) {
+            Thread.sleep(millis);
+            return;
+        }
+        long end = System.nanoTime() + millis * 1000000;
+        for (long left = millis; left > 0; left = (end - System.nanoTime()) / 1000000) {
+            Thread.sleep(Math.min(left, sampleMillis));
+            sample();
+        }
+    }
+
+    private void sample() {
+        long now = System.nanoTime();
+        long total = 0;
+        for (int i = PAD; i < operations.length; i += STRIDE) {
+            total += (long) OPERATIONS.getAcquire(operations, i);
+        }
+        samples.add((total - lastSampleOperations) / ((now - lastSampleTime) * 1e-9));
+        samplePhases.add(phase);
+        lastSampleTime = now;
+        lastSampleOperations = total;
+    }
+
+    /**
+     *
+     * @return the length of the measured window in seconds
+     */
+    public double getMeasuredTime() {
+        return (measureEnd - measureBegin) * 1e-9;
+    }
 
     /**
      *
+     * @return operations per second of every sampling interval, in order
      */
-    public static volatile boolean startFlag = false;
+    public double[] getSamples() {
+        return samples.stream().mapToDouble(Double::doubleValue).toArray();
+    }
 
     /**
      *
+     * @return the window every sample of getSamples() was taken in
      */
-    public static volatile boolean stopFlag = false;
+    public int[] getSamplePhases() {
+        return samplePhases.stream().mapToInt(Integer::intValue).toArray();
+    }
 }
@@ -28,9 +28,9 @@
 package se.chalmers.dcs.bapic.concurrentset.test;
 
 import java.io.IOException;
-import org.apache.commons.math3.distribution.*;
 import java.util.Random;
 import se.chalmers.dcs.bapic.concurrentset.utils.*;
+import se.chalmers.dcs.bapic.concurrentset.Sets.DoubleKBST;
 
 /**
  *
@@ -38,18 +38,34 @@ import se.chalmers.dcs.bapic.concurrentset.utils.*;
  */
 public class RunOperations implements Runnable {
 
+    /**
+     * Operation types, indexing the latency histograms of a thread.
+     */
+    public static final int ADD = 0, REMOVE = 1, CONTAINS = 2, NAVIGATE = 3;
+    public static final String[] OPERATION_NAMES = {"add", "remove", "contains", "navigate"};
+
     boolean testSanity;
     int threadId;
     int addPercent;
     int removePercent;
+    int navigatePercent;
     int keyRange;
     int numberOfOps;
+    int numberOfNavigations;
     SetADT set;
+    DoubleKBST primitiveSet;
     Random randOp;
     Random randKey;
-    AbstractIntegerDistribution z;
+    KeyGenerator keys;
     int[] results, numberOfAdd, numberOfRemove;
+    long[] allocations;
+    LatencyHistogram[] latencies;
     int[][] sanityAdds, sanityRemoves;
+    RunController controller;
+    // the phase this thread saw at its last check, and its counts when the measured window opened
+    int phase;
+    int opsBeforeMeasure;
+    long allocatedBeforeMeasure;
 
     /**
      *
@@ -57,77 +73,251 @@ public class RunOperations implements Runnable {
      * @param tId
      * @param aP
      * @param rP
+     * @param nP percentage of navigation queries, see navigate()
      * @param kR
+     * @param keys source of the keys of the benchmark runs
      * @param results
+     * @param allocations
+     * @param latencies per thread histograms indexed by operation type, or
+     *                  null to run without timing the operations
      * @param sanityAdds
      * @param sanityRemoves
      * @param testSanity
+     * @param controller phases of the run
      * @throws IOException
      */
-    public RunOperations(SetADT s, int tId, int aP, int rP, int kR, int[] results, int[][] sanityAdds, int[][] sanityRemoves, boolean testSanity) throws IOException {
+    public RunOperations(SetADT s, int tId, int aP, int rP, int nP, int kR, KeyGenerator keys, int[] results, long[] allocations, LatencyHistogram[][] latencies, int[][] sanityAdds, int[][] sanityRemoves, boolean testSanity, RunController controller) throws IOException {
         this.testSanity = testSanity;
         this.threadId = tId;
         this.addPercent = aP;
         this.removePercent = rP;
+        this.navigatePercent = nP;
         this.keyRange = kR;
         this.set = s;
+        this.primitiveSet = (s instanceof DoubleKBST) ? (DoubleKBST) s : null;
         this.randOp = new Random(threadId);
         this.randKey = new Random(threadId);
-        this.z = new ZipfDistribution(keyRange, 5.0);
+        this.keys = keys;
         this.numberOfOps = 0;
         this.numberOfAdd = new int[kR];
         this.numberOfRemove = new int[kR];
         this.results = results;
+        this.allocations = allocations;
+        this.latencies = (latencies != null) ? latencies[threadId] : null;
         this.sanityAdds = sanityAdds;
         this.sanityRemoves = sanityRemoves;
+        this.controller = controller;
+    }
+
+    /**
+     * Enters the phase the run starts in, once the controller releases the
+     * threads.
+     */
+    private void awaitStart() {
+        results[threadId] = 0;
+        allocations[threadId] = 0;
+        phase = RunController.WAITING;
+        enter(controller.awaitStart());
+    }
+
+    /**
+     * Checks the phase of the run, and takes the operations and allocations
+     * of this thread when it sees the measured window open or close.
+     *
+     * @return false once the run has stopped
+     */
+    private boolean proceed() {
+        enter(controller.check(threadId, numberOfOps));
+        return phase != RunController.STOPPED;
+    }
+
+    private void enter(int next) {
+        if (next == phase) {
+            return;
+        }
+        if (next == RunController.MEASURE) {
+            opsBeforeMeasure = numberOfOps;
+            allocatedBeforeMeasure = Tools.getThreadAllocatedBytes();
+        }
+        else if (phase == RunController.MEASURE) {
+            results[threadId] = numberOfOps - opsBeforeMeasure;
+            allocations[threadId] = Tools.getThreadAllocatedBytes() - allocatedBeforeMeasure;
+        }
+        phase = next;
     }
 
     private void benchMarkRun() {
-        while ( ! RunController.startFlag);
+        awaitStart();
+
+        while (proceed()) {
+            for (int i = 0; i < RunController.CHECK_INTERVAL; i ++) {
+                int chooseOperation = randOp.nextInt(100);
+                double key = keys.nextKey();
+                if (chooseOperation < addPercent) {
+                    set.add(new K(key));
+                }
+                else if (chooseOperation < addPercent + removePercent) {
+                    set.remove(new K(key));
+                }
+                else if (chooseOperation < addPercent + removePercent + navigatePercent) {
+                    navigate(key);
+                }
+                else {
+                    set.contains(new K(key));
+                }
+            }
+
+            numberOfOps += RunController.CHECK_INTERVAL;
+        }
+    }
+
+    /**
+     * Same as benchMarkRun() but calls the primitive operations of a
+     * DoubleKBST, so that no K is allocated per operation.
+     */
+    private void primitiveBenchMarkRun() {
+        awaitStart();
+
+        while (proceed()) {
+            for (int i = 0; i < RunController.CHECK_INTERVAL; i ++) {
+                int chooseOperation = randOp.nextInt(100);
+                double key = keys.nextKey();
+                if (chooseOperation < addPercent) {
+                    primitiveSet.add(key);
+                }
+                else if (chooseOperation < addPercent + removePercent) {
+                    primitiveSet.remove(key);
+                }
+                else if (chooseOperation < addPercent + removePercent + navigatePercent) {
+                    navigate(key);
+                }
+                else {
+                    primitiveSet.contains(key);
+                }
+            }
+
+            numberOfOps += RunController.CHECK_INTERVAL;
+        }
+    }
+
+    /**
+     * Same mix as benchMarkRun() and primitiveBenchMarkRun(), with every
+     * operation timed by System.nanoTime() into the histogram of its type.
+     * The loop is closed, so a stalled operation delays the next one instead
+     * of being counted against the operations that would have been issued
+     * meanwhile. Since the clock is read anyway, the phase is checked every
+     * CHECK_NANOS rather than every CHECK_INTERVAL operations, and only the
+     * operations of the measured window are recorded.
+     */
+    private void latencyBenchMarkRun() {
+        awaitStart();
 
-        while ( ! RunController.stopFlag) {
+        long nextCheck = 0;
+        while (true) {
+            long now = System.nanoTime();
+            if (now >= nextCheck) {
+                if ( ! proceed()) {
+                    break;
+                }
+                nextCheck = now + RunController.CHECK_NANOS;
+            }
             int chooseOperation = randOp.nextInt(100);
-            double key = Tools.randomInRange(randKey, 0, keyRange);//Generates a random data point from a Uniform distribution.
-//            double key = z.sample();//Generates a random data point from a Zipfian distribution with exponent 5.
+            double key = keys.nextKey();
+            int operation;
+            long start = System.nanoTime();
             if (chooseOperation < addPercent) {
-                set.add(new K(key));
+                operation = ADD;
+                if (primitiveSet != null) {
+                    primitiveSet.add(key);
+                }
+                else {
+                    set.add(new K(key));
+                }
             }
-            else if (chooseOperation < removePercent) {
-                set.remove(new K(key));
+            else if (chooseOperation < addPercent + removePercent) {
+                operation = REMOVE;
+                if (primitiveSet != null) {
+                    primitiveSet.remove(key);
+                }
+                else {
+                    set.remove(new K(key));
+                }
+            }
+            else if (chooseOperation < addPercent + removePercent + navigatePercent) {
+                operation = NAVIGATE;
+                navigate(key);
             }
             else {
-                set.contains(new K(key));
+                operation = CONTAINS;
+                if (primitiveSet != null) {
+                    primitiveSet.contains(key);
+                }
+                else {
+                    set.contains(new K(key));
+                }
+            }
+            if (phase == RunController.MEASURE) {
+                latencies[operation].record(System.nanoTime() - start);
             }
 
             numberOfOps ++;
         }
+    }
 
-        results[threadId] = numberOfOps;
+    /**
+     * One navigation query at key, the next one of ceiling(), floor(),
+     * higher(), lower(), first() and last() in turn.
+     */
+    private void navigate(double key) {
+        switch (numberOfNavigations ++ % 6) {
+            case 0:
+                set.ceiling(new K(key));
+                break;
+            case 1:
+                set.floor(new K(key));
+                break;
+            case 2:
+                set.higher(new K(key));
+                break;
+            case 3:
+                set.lower(new K(key));
+                break;
+            case 4:
+                set.first();
+                break;
+            default:
+                set.last();
+                break;
+        }
     }
 
     private void sanityRun() {
-        while ( ! RunController.startFlag);
+        awaitStart();
 
-        while ( ! RunController.stopFlag) {
-            int chooseOperation = randOp.nextInt(2);
-            int key = randKey.nextInt(keyRange);
+        while (proceed()) {
+            for (int i = 0; i < RunController.CHECK_INTERVAL; i ++) {
+                int chooseOperation = randOp.nextInt(2);
+                int key = randKey.nextInt(keyRange);
 
-            if (chooseOperation == 1) {
-                if (set.add(new K(key))) {
-                    numberOfAdd[key] ++;
+                if (chooseOperation == 1) {
+                    if (set.add(new K(key))) {
+                        numberOfAdd[key] ++;
+                    }
+                    else if (set.remove(new K(key))) {
+                        numberOfRemove[key] ++;
+                    }
                 }
-                else if (set.remove(new K(key))) {
-                    numberOfRemove[key] ++;
-                }
-            }
-            else {
-                if (set.remove(new K(key))) {
-                    numberOfRemove[key] ++;
-                }
-                else if (set.add(new K(key))) {
-                    numberOfAdd[key] ++;
+                else {
+                    if (set.remove(new K(key))) {
+                        numberOfRemove[key] ++;
+                    }
+                    else if (set.add(new K(key))) {
+                        numberOfAdd[key] ++;
+                    }
                 }
             }
+
+            numberOfOps += RunController.CHECK_INTERVAL;
         }
 
         for (int i = 0; i < keyRange; i ++) {
@@ -141,6 +331,12 @@ public class RunOperations implements Runnable {
         if (testSanity) {
             sanityRun();
         }
+        else if (latencies != null) {
+            latencyBenchMarkRun();
+        }
+        else if (primitiveSet != null) {
+            primitiveBenchMarkRun();
+        }
         else {
             benchMarkRun();
         }
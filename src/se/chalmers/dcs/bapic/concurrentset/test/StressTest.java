@@ -0,0 +1,101 @@
+package se.chalmers.dcs.bapic.concurrentset.test;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReference;
+import se.chalmers.dcs.bapic.concurrentset.utils.*;
+
+/**
+ * Checks a set for lost updates. Thread t owns the keys k with
+ * k % threads == t and keeps its own model of them, so every add, remove
+ * and contains it makes has exactly one right answer, while the keys of all
+ * threads share the leaves. The key range is small, so leaves fill, sprout
+ * and empty all the time and the cleanup of pruning deletes runs
+ * concurrently with the updates it must not lose.
+ *
+ * Usage: StressTest [setType [threads [seconds [arity]]]], by default the
+ * KBST variants, 8 threads, 2 seconds each at arity 4. Exits with status 1
+ * after the first wrong answer.
+ */
+public class StressTest {
+
+    // keys per thread
+    static final int KEYS = 16;
+
+    public static void main(String[] args) throws InterruptedException {
+        String[] setTypes = (args.length > 0) ? new String[]{args[0]} : new String[]{"KBST", "KBST+recycling", "DoubleKBST", "OffHeapKBST"};
+        int threads = (args.length > 1) ? Integer.parseInt(args[1]) : 8;
+        long millis = (args.length > 2) ? 1000L * Integer.parseInt(args[2]) : 2000;
+        int arity = (args.length > 3) ? Integer.parseInt(args[3]) : 4;
+        boolean passed = true;
+        for (String setType : setTypes) {
+            boolean recycle = setType.endsWith("+recycling");
+            SetADT set = BenchMark.newSet(recycle ? setType.substring(0, setType.indexOf('+')) : setType, arity, recycle);
+            String failure = run(set, threads, millis);
+            System.out.println(setType + ": " + ((failure == null) ? "passed" : failure));
+            passed &= failure == null;
+        }
+        System.exit(passed ? 0 : 1);
+    }
+
+    /**
+     * @return the first wrong answer, or null if there was none
+     */
+    static String run(SetADT set, int threads, long millis) throws InterruptedException {
+        AtomicReference<String> failure = new AtomicReference<>();
+        long end = System.currentTimeMillis() + millis;
+        Thread[] workers = new Thread[threads];
+        boolean[][] models = new boolean[threads][KEYS];
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            workers[t] = new Thread(() -> {
+                boolean[] model = models[id];
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long ops = 0;
+                while (failure.get() == null && ((++ops & 1023) != 0 || System.currentTimeMillis() < end)) {
+                    int i = random.nextInt(KEYS);
+                    K key = new K(i * threads + id);
+                    int op = random.nextInt(10);
+                    boolean result, expected;
+                    String name;
+                    if (op < 4) {
+                        name = "add";
+                        result = set.add(key);
+                        expected = !model[i];
+                        model[i] = true;
+                    }
+                    else if (op < 8) {
+                        name = "remove";
+                        result = set.remove(key);
+                        expected = model[i];
+                        model[i] = false;
+                    }
+                    else {
+                        name = "contains";
+                        result = set.contains(key);
+                        expected = model[i];
+                    }
+                    if (result != expected) {
+                        failure.compareAndSet(null, name + "(" + key.getValue() + ") = " + result + " after " + ops + " operations of thread " + id);
+                    }
+                }
+            });
+        }
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        if (failure.get() != null) {
+            return failure.get();
+        }
+        for (int t = 0; t < threads; t++) {
+            for (int i = 0; i < KEYS; i++) {
+                if (set.contains(new K(i * threads + t)) != models[t][i]) {
+                    return "contains(" + (i * threads + t) + ") = " + !models[t][i] + " after the run";
+                }
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,335 @@
+package se.chalmers.dcs.bapic.concurrentset.utils;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.PrimitiveIterator;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Append-only log of the successful add() and remove() calls of a set, which
+ * makes the set durable between two snapshots, see LoggedSet.
+ *
+ * An update only appends its record to a buffer of its own thread, so it
+ * stays lock-free and does no I/O. A background thread drains the buffers,
+ * writes what it found as one group and, with FsyncPolicy.BATCH, forces it
+ * to the disk before the buffers get the space back. An update only waits
+ * if its buffer is full, that is when the disk does not keep up. sync()
+ * waits until every record appended before it is written.
+ *
+ * The buffers are drained in no particular order, so the log does not
+ * record which of two updates of different threads came first. Replay does
+ * not need that: the successful add() and remove() calls of a key
+ * alternate, so after the log a key is in the set if its adds outnumber its
+ * removes, counting its presence in the snapshot as an add. That needs the
+ * snapshot to be of an instant before the first update of the log, or after
+ * the last one. A snapshot taken while no updates run is both, see
+ * LoggedSet.recover(). Should the newest records of one thread be lost, a
+ * key is counted absent below zero and present above one.
+ *
+ * The file is MAGIC followed by records of two little endian words, the
+ * operation (ADD or REMOVE) and the key as a double.
+ */
+public final class ChangeLog implements AutoCloseable {
+
+    public enum FsyncPolicy {
+        /**
+         * The records are written, the OS decides when they reach the disk.
+         */
+        NEVER,
+        /**
+         * Every group of records is forced to the disk.
+         */
+        BATCH
+    }
+
+    public static final long MAGIC = 0x4b5345544c4f4731L;
+    public static final long ADD = 1;
+    public static final long REMOVE = -1;
+    static final int HEADER = 8;
+    static final int RECORD = 16;
+    // how long the commit thread sleeps when it found nothing to write
+    static final long IDLE_NANOS = 1000000;
+    private static final int OUT = 1 << 16;
+
+    private final FileChannel channel;
+    private final FsyncPolicy policy;
+    private final int batchSize;
+    private final CopyOnWriteArrayList<Buffer> buffers = new CopyOnWriteArrayList<>();
+    private final ThreadLocal<Buffer> local = ThreadLocal.withInitial(this::register);
+    private final ByteBuffer out = ByteBuffer.allocateDirect(OUT).order(ByteOrder.LITTLE_ENDIAN);
+    private final Thread committer;
+    private volatile boolean closed;
+    private volatile IOException failure;
+
+    /**
+     * Starts an empty log in file, replacing what it held.
+     *
+     * @param file
+     * @param policy
+     * @param batchSize records a thread appends before it wakes the commit
+     *                  thread, which has room for four times as many
+     * @throws IOException
+     */
+    public ChangeLog(Path file, FsyncPolicy policy, int batchSize) throws IOException {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("the batch size must be positive");
+        }
+        this.policy = policy;
+        this.batchSize = batchSize;
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        out.putLong(MAGIC).flip();
+        while (out.hasRemaining()) {
+            channel.write(out);
+        }
+        out.clear();
+        channel.force(true);
+        committer = new Thread(this::commit, "change-log-commit");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    /**
+     * Appends a record, to be written by the commit thread.
+     *
+     * @param operation ADD or REMOVE
+     * @param key
+     */
+    public void append(long operation, double key) {
+        Buffer b = local.get();
+        long tail = b.tail;
+        while (tail - b.head == b.keys.length) {
+            checkFailure();
+            LockSupport.unpark(committer);
+            Thread.yield();
+        }
+        int i = (int) tail & (b.keys.length - 1);
+        b.keys[i] = key;
+        b.operations[i] = (byte) operation;
+        b.tail = tail + 1;
+        if (tail + 1 - b.head == batchSize) {
+            LockSupport.unpark(committer);
+        }
+    }
+
+    /**
+     * Waits until the records appended before the call are written, and
+     * forced to the disk under FsyncPolicy.BATCH.
+     *
+     * @throws IOException if the commit thread failed to write
+     */
+    public void sync() throws IOException {
+        Buffer[] pending = buffers.toArray(new Buffer[0]);
+        long[] targets = new long[pending.length];
+        for (int i = 0; i < pending.length; i ++) {
+            targets[i] = pending[i].tail;
+        }
+        LockSupport.unpark(committer);
+        for (int i = 0; i < pending.length; i ++) {
+            while (pending[i].head < targets[i]) {
+                if (failure != null) {
+                    throw failure;
+                }
+                LockSupport.parkNanos(this, IDLE_NANOS / 10);
+            }
+        }
+    }
+
+    /**
+     * Writes the remaining records and closes the file. The set must not be
+     * updated any more.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        LockSupport.unpark(committer);
+        try {
+            committer.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            if (failure != null) {
+                throw failure;
+            }
+            channel.force(true);
+        }
+        finally {
+            channel.close();
+        }
+    }
+
+    private Buffer register() {
+        Buffer b = new Buffer(Integer.highestOneBit(4 * batchSize - 1) << 1);
+        buffers.add(b);
+        return b;
+    }
+
+    private void checkFailure() {
+        if (failure != null) {
+            throw new UncheckedIOException(failure);
+        }
+    }
+
+    /**
+     * The loop of the commit thread. It only stops when it found nothing to
+     * write after close() was called.
+     */
+    private void commit() {
+        while (true) {
+            boolean stopping = closed;
+            long written = 0;
+            try {
+                for (Buffer b : buffers) {
+                    written += drain(b);
+                }
+                flush();
+                if (written > 0 && policy == FsyncPolicy.BATCH) {
+                    channel.force(false);
+                }
+            }
+            catch (IOException e) {
+                failure = e;
+                return;
+            }
+            for (Buffer b : buffers) {
+                b.head = b.drained;
+            }
+            if (written == 0) {
+                if (stopping) {
+                    return;
+                }
+                LockSupport.parkNanos(this, IDLE_NANOS);
+            }
+        }
+    }
+
+    private long drain(Buffer b) throws IOException {
+        long head = b.drained, tail = b.tail;
+        for (long t = head; t < tail; t ++) {
+            if (out.remaining() < RECORD) {
+                flush();
+            }
+            int i = (int) t & (b.keys.length - 1);
+            out.putLong(b.operations[i]).putDouble(b.keys[i]);
+        }
+        b.drained = tail;
+        return tail - head;
+    }
+
+    private void flush() throws IOException {
+        out.flip();
+        while (out.hasRemaining()) {
+            channel.write(out);
+        }
+        out.clear();
+    }
+
+    /**
+     * The keys of the set after the updates of log were applied to those of
+     * snapshot, in ascending order, for a bulk loading constructor. Either
+     * file may be missing, and a torn last record is ignored.
+     *
+     * @param snapshot
+     * @param log
+     * @return
+     * @throws IOException if a file is not a snapshot or a log
+     */
+    public static PrimitiveIterator.OfDouble recover(Path snapshot, Path log) throws IOException {
+        double[] adds = new double[0], removes = new double[0];
+        int added = 0, removed = 0;
+        if (Files.exists(log)) {
+            try (FileChannel channel = FileChannel.open(log, StandardOpenOption.READ)) {
+                ByteBuffer records = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+                if (records.remaining() < HEADER || records.getLong() != MAGIC) {
+                    throw new IOException(log + " is not a change log");
+                }
+                int count = records.remaining() / RECORD;
+                adds = new double[count];
+                removes = new double[count];
+                for (int i = 0; i < count; i ++) {
+                    long operation = records.getLong();
+                    double key = records.getDouble();
+                    if (operation == ADD) {
+                        adds[added ++] = key;
+                    }
+                    else if (operation == REMOVE) {
+                        removes[removed ++] = key;
+                    }
+                    // anything else was never completely written
+                }
+            }
+        }
+        Arrays.sort(adds, 0, added);
+        Arrays.sort(removes, 0, removed);
+        PrimitiveIterator.OfDouble base = Files.exists(snapshot)
+                                          ? Snapshot.read(snapshot)
+                                          : Arrays.stream(new double[0]).iterator();
+
+        double[] keys = new double[16];
+        int size = 0, a = 0, r = 0;
+        boolean inBase = base.hasNext();
+        double next = inBase ? base.nextDouble() : 0;
+        while (inBase || a < added || r < removed) {
+            double key = Double.POSITIVE_INFINITY;
+            if (inBase) {
+                key = next;
+            }
+            if (a < added) {
+                key = Math.min(key, adds[a]);
+            }
+            if (r < removed) {
+                key = Math.min(key, removes[r]);
+            }
+            int count = 0;
+            if (inBase && next == key) {
+                count ++;
+                inBase = base.hasNext();
+                next = inBase ? base.nextDouble() : 0;
+            }
+            for (; a < added && adds[a] == key; a ++) {
+                count ++;
+            }
+            for (; r < removed && removes[r] == key; r ++) {
+                count --;
+            }
+            if (count > 0) {
+                if (size == keys.length) {
+                    keys = Arrays.copyOf(keys, 2 * size);
+                }
+                keys[size ++] = key;
+            }
+        }
+        return Arrays.stream(keys, 0, size).iterator();
+    }
+
+    /**
+     * The records of one thread, in a ring that this thread fills and the
+     * commit thread empties.
+     */
+    private static final class Buffer {
+
+        final double[] keys;
+        final byte[] operations;
+        // written by the owner only
+        volatile long tail;
+        // written by the commit thread only, head once the records up to it are written
+        volatile long head;
+        long drained;
+
+        Buffer(int capacity) {
+            keys = new double[capacity];
+            operations = new byte[capacity];
+        }
+    }
+}
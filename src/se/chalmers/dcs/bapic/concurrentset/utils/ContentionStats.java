@@ -0,0 +1,128 @@
+package se.chalmers.dcs.bapic.concurrentset.utils;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Contention counters of the lock-free sets: CAS attempts and failures,
+ * local retries, help invocations, restarts from the root or head
+ * together with the depth the abandoned attempt had reached, and the
+ * rebuilds of ScapegoatLFBST, committed or abandoned.
+ *
+ * Every thread counts into its own stripe, padded on both sides so that two
+ * stripes never share a cache line, with plain writes; the stripes are only
+ * summed once the counting threads have been joined. Counting is switched on
+ * with -Dconcurrentset.stats=true (BenchMark -c true), read once into
+ * ENABLED. When it is off every method below reduces to a constant and is
+ * compiled away, so nothing is recorded.
+ */
+public final class ContentionStats {
+
+    public static final boolean ENABLED = Boolean.getBoolean("concurrentset.stats");
+
+    public static final int CAS_ATTEMPTS = 0, CAS_FAILURES = 1, RETRIES = 2, HELPS = 3, RESTARTS = 4, RESTART_DEPTH = 5, REBUILDS = 6, ABANDONED_REBUILDS = 7;
+    public static final String[] NAMES = {"CAS attempts", "CAS failures", "Retries", "Helps", "Restarts", "Restart depth", "Rebuilds", "Abandoned rebuilds"};
+
+    // 64 bytes of padding on each side of the counters of a stripe
+    private static final int PAD = 8;
+
+    private static final Queue<long[]> STRIPES = new ConcurrentLinkedQueue<>();
+    private static final ThreadLocal<long[]> STRIPE = ThreadLocal.withInitial(() -> {
+        long[] stripe = new long[PAD + NAMES.length + PAD];
+        STRIPES.add(stripe);
+        return stripe;
+    });
+
+    private ContentionStats() {
+    }
+
+    /**
+     * Counts a CAS and passes its result through, so that a call site can
+     * wrap the CAS itself.
+     *
+     * @param success
+     * @return success
+     */
+    public static boolean cas(boolean success) {
+        if (ENABLED) {
+            long[] stripe = STRIPE.get();
+            stripe[PAD + CAS_ATTEMPTS] ++;
+            if ( ! success) {
+                stripe[PAD + CAS_FAILURES] ++;
+            }
+        }
+        return success;
+    }
+
+    /**
+     * Counts a retry that does not go back to the root or head.
+     */
+    public static void retry() {
+        if (ENABLED) {
+            STRIPE.get()[PAD + RETRIES] ++;
+        }
+    }
+
+    /**
+     * Counts work done on behalf of another operation.
+     */
+    public static void help() {
+        if (ENABLED) {
+            STRIPE.get()[PAD + HELPS] ++;
+        }
+    }
+
+    /**
+     * Counts a restart from the root or head. Called at the top of an
+     * operation's attempt loop with the depth the previous attempt reached,
+     * or a negative depth on the first attempt, which is not a restart.
+     *
+     * @param depth
+     */
+    public static void restart(int depth) {
+        if (ENABLED && depth >= 0) {
+            long[] stripe = STRIPE.get();
+            stripe[PAD + RESTARTS] ++;
+            stripe[PAD + RESTART_DEPTH] += depth;
+        }
+    }
+
+    /**
+     * Counts a rebuild of a subtree, which either committed or was
+     * abandoned after its bounded number of attempts.
+     *
+     * @param committed
+     */
+    public static void rebuild(boolean committed) {
+        if (ENABLED) {
+            STRIPE.get()[PAD + (committed ? REBUILDS : ABANDONED_REBUILDS)] ++;
+        }
+    }
+
+    /**
+     * Sums of all stripes, indexed like NAMES. Only exact once the threads
+     * that count have been joined.
+     *
+     * @return
+     */
+    public static long[] snapshot() {
+        long[] totals = new long[NAMES.length];
+        for (long[] stripe : STRIPES) {
+            for (int i = 0; i < NAMES.length; i ++) {
+                totals[i] += stripe[PAD + i];
+            }
+        }
+        return totals;
+    }
+
+    /**
+     * Zeroes all stripes; no thread may be counting meanwhile.
+     */
+    public static void reset() {
+        for (long[] stripe : STRIPES) {
+            for (int i = 0; i < NAMES.length; i ++) {
+                stripe[PAD + i] = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,292 @@
+package se.chalmers.dcs.bapic.concurrentset.utils;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Epoch based reclamation of the nodes of one set into per-thread pools.
+ *
+ * A thread brackets every operation on the set with enter() and exit() of
+ * its Participant; nested pairs only count once. enter() announces the global epoch the thread has read.
+ * A node unlinked from the set is retired into a limbo list tagged with the
+ * global epoch read after the unlink. The global epoch only advances from e
+ * to e+1 once every thread inside an operation has announced e. So once it
+ * has reached g+2, every thread that entered before the unlink of a node
+ * retired in g has left its operation, and nobody can still hold the node.
+ * The node then moves to the free list of its bucket, and reuse() hands it
+ * out again.
+ *
+ * Limbo and free lists are private to the retiring thread, so a node is
+ * only reused by the thread that retired it. Only the announcements and the
+ * global epoch are shared. Once a thread has ended, the next thread that
+ * registers takes over its participant with the nodes in its lists, so the
+ * participants are never more than the threads that ran at the same time.
+ *
+ * Sets that keep their nodes outside the heap retire and reuse offsets
+ * instead of objects, through the long overloads.
+ *
+ * @param <T> the node type
+ */
+public final class EpochReclaimer<T> {
+
+    private static final long QUIESCENT = -1;
+    // retires of a thread between two attempts to advance the global epoch
+    private static final int ADVANCE_INTERVAL = 64;
+    // nodes kept per bucket and thread, the rest is left to the GC
+    private static final int MAX_POOLED = 1024;
+
+    private static final VarHandle EPOCH, ANNOUNCED, OWNER;
+
+    static {
+        try {
+            EPOCH = MethodHandles.lookup().findVarHandle(EpochReclaimer.class, "epoch", long.class);
+            ANNOUNCED = MethodHandles.lookup().findVarHandle(Participant.class, "announced", long.class);
+            OWNER = MethodHandles.lookup().findVarHandle(Participant.class, "owner", Thread.class);
+        }
+        catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private volatile long epoch = 0;
+    private final int buckets;
+    private final Queue<Participant<T>> participants = new ConcurrentLinkedQueue<>();
+    private final ThreadLocal<Participant<T>> participant = ThreadLocal.withInitial(this::register);
+
+    /**
+     *
+     * @param buckets number of size classes, nodes are retired into and
+     *                reused from bucket 0..buckets-1
+     */
+    public EpochReclaimer(int buckets) {
+        this.buckets = buckets;
+    }
+
+    /**
+     * The participant of the calling thread: that of a thread that has ended
+     * if there is one, otherwise a new one.
+     */
+    private Participant<T> register() {
+        Thread current = Thread.currentThread();
+        for (Participant<T> p : participants) {
+            Thread owner = p.owner;
+            // the end of owner happens-before isAlive() returns false
+            if (!owner.isAlive() && OWNER.compareAndSet(p, owner, current)) {
+                p.nesting = 0;
+                return p;
+            }
+        }
+        Participant<T> p = new Participant<>(this, current);
+        participants.add(p);
+        return p;
+    }
+
+    /**
+     * Pins the calling thread: nodes it reads from now on are not reused
+     * until it calls exit() on the returned participant.
+     *
+     * @return the participant of the calling thread
+     */
+    public Participant<T> enter() {
+        Participant<T> p = participant.get();
+        p.enter();
+        return p;
+    }
+
+    /**
+     *
+     * @return the global epoch
+     */
+    public long getEpoch() {
+        return epoch;
+    }
+
+    private void tryAdvance(long e) {
+        for (Participant<T> p : participants) {
+            long announced = (long) ANNOUNCED.getVolatile(p);
+            // a thread that has ended holds nothing, whatever it announced
+            if (announced != QUIESCENT && announced != e && p.owner.isAlive()) {
+                return;
+            }
+        }
+        EPOCH.compareAndSet(this, e, e + 1);
+    }
+
+    /**
+     * State of one thread. Only used by the thread it belongs to, apart from
+     * the announcement that tryAdvance() reads.
+     *
+     * @param <T>
+     */
+    public static final class Participant<T> {
+
+        private final EpochReclaimer<T> reclaimer;
+        // the thread the participant belongs to, replaced by register() once it has ended
+        private volatile Thread owner;
+        private volatile long announced = QUIESCENT;
+        private long seen = -1;
+        private int nesting;
+        private int retires;
+
+        // limbo[s] holds the nodes retired in epoch limboEpoch[s], s = epoch % 3,
+        // an offset is held in limboOffsets[s] with a null entry in limbo[s]
+        private final Object[][] limbo = new Object[3][16];
+        private final long[][] limboOffsets = new long[3][16];
+        private final int[][] limboBuckets = new int[3][16];
+        private final int[] limboSize = new int[3];
+        private final long[] limboEpoch = new long[3];
+
+        private final Object[][] free;
+        private final int[] freeSize;
+        private final long[][] freeOffsets;
+        private final int[] freeOffsetsSize;
+
+        Participant(EpochReclaimer<T> reclaimer, Thread owner) {
+            this.reclaimer = reclaimer;
+            this.owner = owner;
+            this.free = new Object[reclaimer.buckets][16];
+            this.freeSize = new int[reclaimer.buckets];
+            this.freeOffsets = new long[reclaimer.buckets][16];
+            this.freeOffsetsSize = new int[reclaimer.buckets];
+        }
+
+        void enter() {
+            if (nesting ++ > 0) {
+                return;
+            }
+            long e = reclaimer.epoch;
+            ANNOUNCED.setVolatile(this, e);
+            if (e != seen) {
+                seen = e;
+                for (int s = 0; s < 3; s ++) {
+                    if (limboSize[s] > 0 && limboEpoch[s] + 2 <= e) {
+                        release(s);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Unpins the thread.
+         */
+        public void exit() {
+            if (-- nesting == 0) {
+                ANNOUNCED.setRelease(this, QUIESCENT);
+            }
+        }
+
+        /**
+         * Hands a node that the calling thread has just unlinked over for
+         * reuse. It must be reachable neither from the set nor from any node
+         * that is, and no other thread may retire it as well.
+         *
+         * @param node
+         * @param bucket
+         */
+        public void retire(T node, int bucket) {
+            retire(node, 0, bucket);
+        }
+
+        /**
+         * Same as retire(T, int), for a node that is identified by its
+         * offset.
+         *
+         * @param offset
+         * @param bucket
+         */
+        public void retire(long offset, int bucket) {
+            retire(null, offset, bucket);
+        }
+
+        private void retire(T node, long offset, int bucket) {
+            long e = reclaimer.epoch;
+            int s = (int) (e % 3);
+            if (limboEpoch[s] != e) {
+                if (limboSize[s] > 0) {
+                    // e >= limboEpoch[s] + 3
+                    release(s);
+                }
+                limboEpoch[s] = e;
+            }
+            int n = limboSize[s];
+            if (n == limbo[s].length) {
+                limbo[s] = Arrays.copyOf(limbo[s], 2 * n);
+                limboOffsets[s] = Arrays.copyOf(limboOffsets[s], 2 * n);
+                limboBuckets[s] = Arrays.copyOf(limboBuckets[s], 2 * n);
+            }
+            limbo[s][n] = node;
+            limboOffsets[s][n] = offset;
+            limboBuckets[s][n] = bucket;
+            limboSize[s] = n + 1;
+            if (++ retires % ADVANCE_INTERVAL == 0) {
+                reclaimer.tryAdvance(e);
+            }
+        }
+
+        /**
+         *
+         * @param bucket
+         * @return a node of the bucket that nobody references any more, or
+         *         null if the pool of the calling thread has none
+         */
+        @SuppressWarnings("unchecked")
+        public T reuse(int bucket) {
+            int n = freeSize[bucket];
+            if (n == 0) {
+                return null;
+            }
+            freeSize[bucket] = n - 1;
+            T node = (T) free[bucket][n - 1];
+            free[bucket][n - 1] = null;
+            return node;
+        }
+
+        /**
+         *
+         * @param bucket
+         * @return the offset of a node of the bucket that nobody references
+         *         any more, or -1 if the pool of the calling thread has none
+         */
+        public long reuseOffset(int bucket) {
+            int n = freeOffsetsSize[bucket];
+            if (n == 0) {
+                return -1;
+            }
+            freeOffsetsSize[bucket] = n - 1;
+            return freeOffsets[bucket][n - 1];
+        }
+
+        private void release(int s) {
+            Object[] nodes = limbo[s];
+            long[] offsets = limboOffsets[s];
+            int[] nodeBuckets = limboBuckets[s];
+            for (int i = 0; i < limboSize[s]; i ++) {
+                int b = nodeBuckets[i];
+                if (nodes[i] == null) {
+                    // offsets are all kept, the memory behind them is not
+                    // handed back to anybody else
+                    int n = freeOffsetsSize[b];
+                    if (n == freeOffsets[b].length) {
+                        freeOffsets[b] = Arrays.copyOf(freeOffsets[b], 2 * n);
+                    }
+                    freeOffsets[b][n] = offsets[i];
+                    freeOffsetsSize[b] = n + 1;
+                    continue;
+                }
+                int n = freeSize[b];
+                if (n < MAX_POOLED) {
+                    if (n == free[b].length) {
+                        free[b] = Arrays.copyOf(free[b], 2 * n);
+                    }
+                    free[b][n] = nodes[i];
+                    freeSize[b] = n + 1;
+                }
+                nodes[i] = null;
+            }
+            limboSize[s] = 0;
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package se.chalmers.dcs.bapic.concurrentset.utils;
+
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * A concurrent map from keys to values, in the manner of
+ * ConcurrentNavigableMap. Values are never null: get() returns null for an
+ * absent key, and a value of null is rejected with a NullPointerException.
+ *
+ * An implementation provides get(), putIfAbsent() and the conditional
+ * replace() and remove(); each is linearizable on its own, and in KBSTMap
+ * and LockFreeKSTRQMap lock-free. The other updates are built from them the
+ * way ConcurrentMap builds its defaults: they read the value and retry the
+ * conditional update until no other update came in between, so each of
+ * them is atomic, and compute() may call its function more than once.
+ * keySet() gives the keys for scans, iteration and navigation.
+ *
+ * @param <V> the type of the values
+ */
+public interface MapADT<V> {
+
+    /**
+     *
+     * @param key
+     * @return the value of key, or null if it is absent
+     */
+    V get(K key);
+
+    /**
+     *
+     * @param key
+     * @return
+     */
+    default boolean containsKey(K key) {
+        return get(key) != null;
+    }
+
+    /**
+     * Maps key to value unless key is present.
+     *
+     * @param key
+     * @param value
+     * @return the value key already had, or null if it was added
+     */
+    V putIfAbsent(K key, V value);
+
+    /**
+     * Maps key to value if it is mapped to a value equal to expected.
+     *
+     * @param key
+     * @param expected
+     * @param value
+     * @return true if the value was replaced
+     */
+    boolean replace(K key, V expected, V value);
+
+    /**
+     * Removes key if it is mapped to a value equal to expected.
+     *
+     * @param key
+     * @param expected
+     * @return true if key was removed
+     */
+    boolean remove(K key, V expected);
+
+    /**
+     * The keys of the map. Its queries and scans see the keys of the map;
+     * its add() and remove() are not meant to be used.
+     *
+     * @return
+     */
+    SetADT keySet();
+
+    /**
+     * Maps key to value.
+     *
+     * @param key
+     * @param value
+     * @return the previous value of key, or null if it was absent
+     */
+    default V put(K key, V value) {
+        checkValue(value);
+        while (true) {
+            V previous = get(key);
+            if (previous == null) {
+                if ((previous = putIfAbsent(key, value)) == null) {
+                    return null;
+                }
+            }
+            if (replace(key, previous, value)) {
+                return previous;
+            }
+        }
+    }
+
+    /**
+     * Maps key to value if it is present.
+     *
+     * @param key
+     * @param value
+     * @return the previous value of key, or null if it was absent
+     */
+    default V replace(K key, V value) {
+        checkValue(value);
+        while (true) {
+            V previous = get(key);
+            if (previous == null || replace(key, previous, value)) {
+                return previous;
+            }
+        }
+    }
+
+    /**
+     * Removes key.
+     *
+     * @param key
+     * @return the value key had, or null if it was absent
+     */
+    default V remove(K key) {
+        while (true) {
+            V previous = get(key);
+            if (previous == null || remove(key, previous)) {
+                return previous;
+            }
+        }
+    }
+
+    /**
+     * Maps key to what remapping returns for key and its value, null if it
+     * is absent, or removes key if that is null.
+     *
+     * @param key
+     * @param remapping
+     * @return the new value, or null if key is absent now
+     */
+    default V compute(K key, BiFunction<? super K, ? super V, ? extends V> remapping) {
+        while (true) {
+            V previous = get(key);
+            V value = remapping.apply(key, previous);
+            if (previous == null) {
+                if (value == null || putIfAbsent(key, value) == null) {
+                    return value;
+                }
+            }
+            else if (value == null) {
+                if (remove(key, previous)) {
+                    return null;
+                }
+            }
+            else if (replace(key, previous, value)) {
+                return value;
+            }
+        }
+    }
+
+    /**
+     * Maps key to what mapping returns for it, unless that is null, if key
+     * is absent.
+     *
+     * @param key
+     * @param mapping
+     * @return the value key has now, or null if it is still absent
+     */
+    default V computeIfAbsent(K key, Function<? super K, ? extends V> mapping) {
+        V value = get(key);
+        if (value != null) {
+            return value;
+        }
+        value = mapping.apply(key);
+        if (value == null) {
+            return null;
+        }
+        V previous = putIfAbsent(key, value);
+        return (previous == null) ? value : previous;
+    }
+
+    /**
+     * Number of keys, see SetADT.estimatedSize().
+     *
+     * @return
+     */
+    default long size() {
+        return keySet().estimatedSize();
+    }
+
+    /**
+     *
+     * @param key
+     * @return the smallest key k >= key, or null
+     */
+    default K ceilingKey(K key) {
+        return keySet().ceiling(key);
+    }
+
+    /**
+     *
+     * @param key
+     * @return the largest key k <= key, or null
+     */
+    default K floorKey(K key) {
+        return keySet().floor(key);
+    }
+
+    /**
+     *
+     * @param key
+     * @return the smallest key k > key, or null
+     */
+    default K higherKey(K key) {
+        return keySet().higher(key);
+    }
+
+    /**
+     *
+     * @param key
+     * @return the largest key k < key, or null
+     */
+    default K lowerKey(K key) {
+        return keySet().lower(key);
+    }
+
+    /**
+     *
+     * @param value
+     * @throws NullPointerException if value is null
+     */
+    static void checkValue(Object value) {
+        if (value == null) {
+            throw new NullPointerException("null values are not supported");
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package se.chalmers.dcs.bapic.concurrentset.utils;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+
+/**
+ * Sizes of objects on the heap of a 64 bit HotSpot JVM, computed from the
+ * fields that their classes declare rather than measured, for the retained
+ * bytes of TreeShape. An object takes a 12 byte header (compressed class
+ * pointers, the default) and its fields, an array a 16 byte header and its
+ * elements, and both are padded to a multiple of 8 bytes. References take
+ * 4 bytes with compressed oops and 8 without. Field packing and padding
+ * between fields are left out, so a size can be a few bytes off, but no
+ * object has to be allocated or collected to get it.
+ *
+ * The size of a class is computed once and cached, so sizeOf() is cheap
+ * enough for a walk over a live set.
+ */
+public final class ObjectLayout {
+
+    private static final int HEADER = 12;
+    private static final int ARRAY_HEADER = 16;
+
+    /**
+     * Bytes of a reference.
+     */
+    public static final int REFERENCE = compressedOops() ? 4 : 8;
+
+    private static final ClassValue<Long> SIZES = new ClassValue<Long>() {
+        @Override
+        protected Long computeValue(Class<?> type) {
+            long bytes = HEADER;
+            for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    if ( ! Modifier.isStatic(field.getModifiers())) {
+                        bytes += bytesOf(field.getType());
+                    }
+                }
+            }
+            return align(bytes);
+        }
+    };
+
+    /**
+     * Bytes of a K.
+     */
+    public static final long KEY = SIZES.get(K.class);
+
+    private ObjectLayout() {
+    }
+
+    private static boolean compressedOops() {
+        try {
+            return Boolean.parseBoolean(ManagementFactory.getPlatformMXBean(com.sun.management.HotSpotDiagnosticMXBean.class)
+                                        .getVMOption("UseCompressedOops").getValue());
+        }
+        catch (RuntimeException | LinkageError e) {
+            // not HotSpot: it compresses oops by default below 32 GB of heap
+            return Runtime.getRuntime().maxMemory() < (32L << 30);
+        }
+    }
+
+    private static int bytesOf(Class<?> type) {
+        if ( ! type.isPrimitive()) {
+            return REFERENCE;
+        }
+        if (type == long.class || type == double.class) {
+            return 8;
+        }
+        if (type == int.class || type == float.class) {
+            return 4;
+        }
+        if (type == short.class || type == char.class) {
+            return 2;
+        }
+        return 1;
+    }
+
+    private static long align(long bytes) {
+        return (bytes + 7) & ~ 7L;
+    }
+
+    /**
+     * Bytes of the object o itself, without the objects it refers to; 0
+     * for null.
+     *
+     * @param o an object that is not an array
+     * @return
+     */
+    public static long sizeOf(Object o) {
+        return (o == null) ? 0 : SIZES.get(o.getClass());
+    }
+
+    /**
+     * Bytes of an array of references, without the objects in it; 0 for
+     * null.
+     *
+     * @param a
+     * @return
+     */
+    public static long sizeOf(Object[] a) {
+        return (a == null) ? 0 : referenceArray(a.length);
+    }
+
+    /**
+     *
+     * @param a
+     * @return 0 for null
+     */
+    public static long sizeOf(double[] a) {
+        return (a == null) ? 0 : align(ARRAY_HEADER + 8L * a.length);
+    }
+
+    /**
+     * Bytes of an array of length references.
+     *
+     * @param length
+     * @return
+     */
+    public static long referenceArray(int length) {
+        return align(ARRAY_HEADER + (long) REFERENCE * length);
+    }
+}
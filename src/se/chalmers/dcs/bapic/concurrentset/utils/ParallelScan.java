@@ -0,0 +1,139 @@
+package se.chalmers.dcs.bapic.concurrentset.utils;
+
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BiFunction;
+import java.util.function.BinaryOperator;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Bulk operations over the keys of a set in a range, run as fork/join
+ * tasks on a given pool. A task splits its SetADT.spliterator() for as long
+ * as the spliterator estimates more keys than a quarter of the share of
+ * one worker and is willing to split, forks the first part and goes on
+ * with the rest itself. KBST and LockFreeKSTRQ split at their internal
+ * nodes, so a scan over a large tree is shared among all workers; the
+ * spliterators of the other sets copy keys into batches to split.
+ *
+ * The keys are weakly consistent, as those of SetADT.iterator().
+ */
+public final class ParallelScan {
+
+    // fewest keys worth a task of their own
+    private static final long MIN_KEYS = 4096;
+
+    private ParallelScan() {
+    }
+
+    /**
+     * Passes every key k with lo <= k <= hi to the action, from the workers
+     * of the pool, in no particular order.
+     *
+     * @param pool
+     * @param set
+     * @param lo
+     * @param hi
+     * @param action called concurrently, so it has to be thread safe
+     */
+    public static void forEach(ForkJoinPool pool, SetADT set, K lo, K hi, Consumer<? super K> action) {
+        run(pool, set.spliterator(lo, hi), keys -> {
+            keys.forEachRemaining(action);
+            return null;
+        }, (a, b) -> null);
+    }
+
+    /**
+     * Reduces the keys k with lo <= k <= hi: each task folds its keys into
+     * identity with accumulator, and the results of the tasks are combined
+     * in key order.
+     *
+     * @param <R>
+     * @param pool
+     * @param set
+     * @param lo
+     * @param hi
+     * @param identity
+     * @param accumulator
+     * @param combiner
+     * @return
+     */
+    public static <R> R reduce(ForkJoinPool pool, SetADT set, K lo, K hi, R identity,
+            BiFunction<R, ? super K, R> accumulator, BinaryOperator<R> combiner) {
+        return run(pool, set.spliterator(lo, hi), keys -> {
+            Fold<R> fold = new Fold<>(identity, accumulator);
+            keys.forEachRemaining(fold);
+            return fold.result;
+        }, combiner);
+    }
+
+    /**
+     * Number of keys k with lo <= k <= hi.
+     *
+     * @param pool
+     * @param set
+     * @param lo
+     * @param hi
+     * @return
+     */
+    public static long countRange(ForkJoinPool pool, SetADT set, K lo, K hi) {
+        return run(pool, set.spliterator(lo, hi), keys -> {
+            long[] count = new long[1];
+            keys.forEachRemaining(key -> count[0] ++);
+            return count[0];
+        }, Long::sum);
+    }
+
+    private static <R> R run(ForkJoinPool pool, Spliterator<K> keys, Function<Spliterator<K>, R> leaf, BinaryOperator<R> combiner) {
+        long estimate = keys.estimateSize();
+        // with no estimate, split as long as the spliterator does
+        long threshold = estimate == Long.MAX_VALUE ? MIN_KEYS : Math.max(MIN_KEYS, estimate / (4L * pool.getParallelism()));
+        return pool.invoke(new ScanTask<>(keys, threshold, leaf, combiner));
+    }
+
+    private static final class ScanTask<R> extends RecursiveTask<R> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Spliterator<K> keys;
+        private final long threshold;
+        private final Function<Spliterator<K>, R> leaf;
+        private final BinaryOperator<R> combiner;
+
+        ScanTask(Spliterator<K> keys, long threshold, Function<Spliterator<K>, R> leaf, BinaryOperator<R> combiner) {
+            this.keys = keys;
+            this.threshold = threshold;
+            this.leaf = leaf;
+            this.combiner = combiner;
+        }
+
+        @Override
+        protected R compute() {
+            Spliterator<K> first;
+            if (keys.estimateSize() > threshold && (first = keys.trySplit()) != null) {
+                ScanTask<R> firstTask = new ScanTask<>(first, threshold, leaf, combiner);
+                firstTask.fork();
+                R rest = new ScanTask<>(keys, threshold, leaf, combiner).compute();
+                return combiner.apply(firstTask.join(), rest);
+            }
+            return leaf.apply(keys);
+        }
+    }
+
+    private static final class Fold<R> implements Consumer<K> {
+
+        private final BiFunction<R, ? super K, R> accumulator;
+        R result;
+
+        Fold(R identity, BiFunction<R, ? super K, R> accumulator) {
+            this.result = identity;
+            this.accumulator = accumulator;
+        }
+
+        @Override
+        public void accept(K key) {
+            result = accumulator.apply(result, key);
+        }
+    }
+}
@@ -27,6 +27,15 @@
  */
 package se.chalmers.dcs.bapic.concurrentset.utils;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
 /**
  *
  * @author bapic
@@ -59,4 +68,389 @@ public interface SetADT {
      * @return
      */
     boolean traversalTest();
+
+    /**
+     * Passes every key k with lo <= k <= hi to the consumer, in ascending
+     * order. KBST and LockFreeKSTRQ deliver a linearizable snapshot of the
+     * range; the other sets walk the structure without synchronization, so
+     * updates that run concurrently with the scan may or may not be seen.
+     *
+     * @param lo
+     * @param hi
+     * @param consumer
+     */
+    void rangeScan(K lo, K hi, Consumer<K> consumer);
+
+    /**
+     * Number of keys k with lo <= k <= hi, with the same consistency as
+     * rangeScan.
+     *
+     * @param lo
+     * @param hi
+     * @return
+     */
+    default int countRange(K lo, K hi) {
+        int[] count = new int[1];
+        rangeScan(lo, hi, key -> count[0] ++);
+        return count[0];
+    }
+
+    /**
+     * Number of keys in the set, by default scanSize(). KBST, DoubleKBST,
+     * OffHeapKBST and LockFreeKSTRQ count their keys with a linearizable
+     * range scan over all keys, so their size() is exact and linearizable.
+     *
+     * @return
+     */
+    default long size() {
+        return scanSize();
+    }
+
+    /**
+     * Number of keys in the set, counted by countRange over all keys. Where
+     * rangeScan is linearizable, as in KBST and LockFreeKSTRQ, so is
+     * scanSize(). The scan is retried only after another update has
+     * succeeded, so it is lock-free. For the other sets it is the count of a
+     * traversal.
+     *
+     * @return
+     */
+    default long scanSize() {
+        return countRange(K.MinValue0, K.MaxValue0);
+    }
+
+    /**
+     * Number of keys in the set, read without traversing the set.
+     * KBST, DoubleKBST, OffHeapKBST and LockFreeKSTRQ read their
+     * SizeCounter, which is updated by successful add() and remove() only
+     * and is exact once no update is running. The other sets fall back to
+     * scanSize().
+     *
+     * @return
+     */
+    default long estimatedSize() {
+        return scanSize();
+    }
+
+    /**
+     * Number of edges on the longest path from the root to a leaf, read
+     * like iterator() with the consistency of it. The trees with a
+     * TreeIterator walk themselves; the other sets are not trees and return
+     * -1.
+     *
+     * @return
+     */
+    default int height() {
+        return - 1;
+    }
+
+    /**
+     * Node counts, leaf fill and depths of the keys of the tree, read like
+     * iterator(), see TreeShape. Null for the sets that do not report their
+     * shape.
+     *
+     * @return
+     */
+    default TreeShape shape() {
+        return null;
+    }
+
+    /**
+     * Passes the keys k >= from to the consumer in ascending order, or only
+     * a first part of them. KBST and LockFreeKSTRQ retry a scan for as long
+     * as an update changes the part of the tree it covers, which over the
+     * whole tree may be forever, so Snapshot scans in chunks: KBST,
+     * LockFreeKSTRQ and ConcSkipListWrapper stop after about limit keys, and
+     * each chunk has the consistency of rangeScan over the keys it covers.
+     * The other sets pass all the keys at once.
+     *
+     * @param from
+     * @param limit
+     * @param consumer
+     * @return the key the next chunk starts at, or null if there are no
+     *         more keys
+     */
+    default K scanChunk(K from, int limit, Consumer<K> consumer) {
+        rangeScan(from, K.MaxValue0, consumer);
+        return null;
+    }
+
+    /**
+     * The keys of the set in ascending order, see iterator(K).
+     *
+     * @return
+     */
+    default Iterator<K> iterator() {
+        return iterator(K.MinValue0);
+    }
+
+    /**
+     * The keys k >= from in ascending order. The trees with keys in their
+     * leaves (KBST, LockFreeKSTRQ, EFRBLFBST, ScapegoatLFBST, NMLFBST and
+     * the HelpOptimal BSTs) walk the tree lazily with a TreeIterator, which is weakly
+     * consistent like the iterators of ConcurrentSkipListSet and allocates
+     * nothing per key. ConcSkipListWrapper iterates over its skip list,
+     * which is weakly consistent too. The other sets collect all the keys up
+     * front, chunk by chunk with scanChunk().
+     *
+     * @param from
+     * @return
+     */
+    default Iterator<K> iterator(K from) {
+        ArrayList<K> keys = new ArrayList<>();
+        for (K next = from; next != null; ) {
+            next = scanChunk(next, Snapshot.CHUNK, keys::add);
+        }
+        return keys.iterator();
+    }
+
+    /**
+     * The keys of the set in descending order, see descendingIterator(K).
+     *
+     * @return
+     */
+    default Iterator<K> descendingIterator() {
+        return descendingIterator(K.MaxValue0);
+    }
+
+    /**
+     * The keys k <= from in descending order, with the consistency of
+     * iterator(K). The sets with a TreeIterator walk the tree backwards,
+     * ConcSkipListWrapper iterates over the head set of its skip list, and
+     * the other sets collect the keys up front, chunk by chunk with
+     * scanChunk().
+     *
+     * @param from
+     * @return
+     */
+    default Iterator<K> descendingIterator(K from) {
+        ArrayList<K> keys = new ArrayList<>();
+        for (K next = K.MinValue0; next != null && ! from.compareTo(next); ) {
+            next = scanChunk(next, Snapshot.CHUNK, key -> {
+                if ( ! from.compareTo(key)) {
+                    keys.add(key);
+                }
+            });
+        }
+        Collections.reverse(keys);
+        return keys.iterator();
+    }
+
+    /**
+     * The smallest key k >= key, or null if there is none. KBST,
+     * DoubleKBST, OffHeapKBST and LockFreeKSTRQ find it linearizably and
+     * lock-free, validated like rangeScan over the nodes from key to the
+     * answer. The sets with a
+     * TreeIterator read it from a weakly consistent iterator, and
+     * ConcSkipListWrapper from its skip list; for the other sets it is the
+     * first key of rangeScan(key, K.MaxValue0), with the consistency of that
+     * scan.
+     *
+     * @param key
+     * @return
+     */
+    default K ceiling(K key) {
+        K[] found = new K[1];
+        rangeScan(key, K.MaxValue0, k -> {
+            if (found[0] == null) {
+                found[0] = k;
+            }
+        });
+        return found[0];
+    }
+
+    /**
+     * The smallest key k > key, or null if there is none, see ceiling().
+     *
+     * @param key
+     * @return
+     */
+    default K higher(K key) {
+        K[] found = new K[1];
+        rangeScan(key, K.MaxValue0, k -> {
+            if (found[0] == null && ! k.equals(key)) {
+                found[0] = k;
+            }
+        });
+        return found[0];
+    }
+
+    /**
+     * The largest key k <= key, or null if there is none, see ceiling();
+     * the other sets take the last key of rangeScan(K.MinValue0, key).
+     *
+     * @param key
+     * @return
+     */
+    default K floor(K key) {
+        K[] found = new K[1];
+        rangeScan(K.MinValue0, key, k -> found[0] = k);
+        return found[0];
+    }
+
+    /**
+     * The largest key k < key, or null if there is none, see floor().
+     *
+     * @param key
+     * @return
+     */
+    default K lower(K key) {
+        K[] found = new K[1];
+        rangeScan(K.MinValue0, key, k -> {
+            if ( ! k.equals(key)) {
+                found[0] = k;
+            }
+        });
+        return found[0];
+    }
+
+    /**
+     * The smallest key, or null if the set is empty, see ceiling().
+     *
+     * @return
+     */
+    default K first() {
+        return ceiling(K.MinValue0);
+    }
+
+    /**
+     * The largest key, or null if the set is empty, see floor().
+     *
+     * @return
+     */
+    default K last() {
+        return floor(K.MaxValue0);
+    }
+
+    /**
+     * Removes the smallest key and returns it, or returns null if the set is
+     * empty. It reads first() and removes that key, and reads again if
+     * another thread removed it first, so the key returned was removed by
+     * this call. This is best effort for the BSTs and lists, whose first()
+     * is a traversal that may miss keys; the k-ary trees override it on
+     * their linearizable first().
+     *
+     * @return
+     */
+    default K pollFirst() {
+        while (true) {
+            K key = first();
+            if (key == null || remove(key)) {
+                return key;
+            }
+        }
+    }
+
+    /**
+     * A spliterator over all keys, see spliterator(K, K).
+     *
+     * @return
+     */
+    default Spliterator<K> spliterator() {
+        return spliterator(K.MinValue0, K.MaxValue0);
+    }
+
+    /**
+     * A spliterator over the keys k with lo <= k <= hi, with the consistency
+     * of iterator(). KBST and LockFreeKSTRQ split it at their internal nodes,
+     * and ShardedSet at its shards; for the other sets it is iterator(lo)
+     * stopped at hi, which splits by copying keys into batches.
+     *
+     * @param lo
+     * @param hi
+     * @return
+     */
+    default Spliterator<K> spliterator(K lo, K hi) {
+        Iterator<K> keys = iterator(lo);
+        return new Spliterators.AbstractSpliterator<K>(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL) {
+            private boolean done = false;
+
+            @Override
+            public boolean tryAdvance(Consumer<? super K> action) {
+                if (done || ! keys.hasNext()) {
+                    return false;
+                }
+                K key = keys.next();
+                if (hi.compareTo(key)) {
+                    done = true;
+                    return false;
+                }
+                action.accept(key);
+                return true;
+            }
+        };
+    }
+
+    /**
+     *
+     * @return
+     */
+    default Stream<K> stream() {
+        return StreamSupport.stream(spliterator(), false);
+    }
+
+    /**
+     * A parallel stream over the keys. It runs in the common ForkJoinPool;
+     * ParallelScan runs on a given pool.
+     *
+     * @return
+     */
+    default Stream<K> parallelStream() {
+        return StreamSupport.stream(spliterator(), true);
+    }
+
+    /**
+     * Adds a batch of keys, with the same effect as calling add() for each
+     * of them in turn. Each key is linearized on its own, not the batch as a
+     * whole. KBST and LockFreeKSTRQ install the keys that fall into the same
+     * leaf with a single node replacement.
+     *
+     * @param sortedKeys strictly ascending keys
+     * @return the number of keys that were added
+     */
+    default int addAll(K[] sortedKeys) {
+        Tools.checkAscending(sortedKeys);
+        int added = 0;
+        for (K key : sortedKeys) {
+            if (add(key)) {
+                added ++;
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Removes a batch of keys, with the same effect as calling remove() for
+     * each of them in turn.
+     *
+     * @param sortedKeys strictly ascending keys
+     * @return the number of keys that were removed
+     */
+    default int removeAll(K[] sortedKeys) {
+        Tools.checkAscending(sortedKeys);
+        int removed = 0;
+        for (K key : sortedKeys) {
+            if (remove(key)) {
+                removed ++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * True if contains() holds for every key of the batch. Not atomic as a
+     * whole.
+     *
+     * @param sortedKeys strictly ascending keys
+     * @return
+     */
+    default boolean containsAll(K[] sortedKeys) {
+        Tools.checkAscending(sortedKeys);
+        for (K key : sortedKeys) {
+            if ( ! contains(key)) {
+                return false;
+            }
+        }
+        return true;
+    }
 }
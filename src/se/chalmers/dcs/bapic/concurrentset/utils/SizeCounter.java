@@ -0,0 +1,88 @@
+package se.chalmers.dcs.bapic.concurrentset.utils;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.PrimitiveIterator;
+
+/**
+ * Number of keys of one set, counted in stripes the way LongAdder counts:
+ * a thread adds into the stripe its id selects, padded on both sides so
+ * that two stripes never share a cache line, and sum() adds the stripes up.
+ * There are twice as many stripes as processors, so the threads of a
+ * benchmark, whose ids are consecutive, each get a stripe of their own
+ * until there are more of them than stripes; beyond that threads share
+ * stripes, which stays correct since every add is atomic, only slower.
+ *
+ * The sets count a key only once its add() or remove() has returned true,
+ * so the counter lags behind the set by the updates in flight, and sum()
+ * reads the stripes one after the other, not all at the same time. Once
+ * the updating threads are quiescent it is exact.
+ */
+public final class SizeCounter {
+
+    // 64 bytes of padding on each side of a stripe
+    private static final int PAD = 8;
+    private static final int STRIDE = 2 * PAD;
+    private static final int STRIPES = Integer.highestOneBit(Math.max(1, 2 * Runtime.getRuntime().availableProcessors() - 1)) << 1;
+
+    private static final VarHandle COUNTS = MethodHandles.arrayElementVarHandle(long[].class);
+
+    private final long[] counts = new long[STRIPES * STRIDE];
+
+    /**
+     *
+     * @param delta
+     */
+    public void add(long delta) {
+        COUNTS.getAndAdd(counts, PAD + ((int) Thread.currentThread().getId() & (STRIPES - 1)) * STRIDE, delta);
+    }
+
+    /**
+     * Counts a successful add().
+     */
+    public void increment() {
+        add(1);
+    }
+
+    /**
+     * Counts a successful remove().
+     */
+    public void decrement() {
+        add( - 1);
+    }
+
+    /**
+     *
+     * @return
+     */
+    public long sum() {
+        long sum = 0;
+        for (int i = PAD; i < counts.length; i += STRIDE) {
+            sum += (long) COUNTS.getVolatile(counts, i);
+        }
+        return sum;
+    }
+
+    /**
+     * Passes the keys of a bulk load through and counts them, for the bulk
+     * loading constructors of the sets.
+     *
+     * @param keys
+     * @return
+     */
+    public PrimitiveIterator.OfDouble counting(PrimitiveIterator.OfDouble keys) {
+        return new PrimitiveIterator.OfDouble() {
+            @Override
+            public boolean hasNext() {
+                return keys.hasNext();
+            }
+
+            @Override
+            public double nextDouble() {
+                double key = keys.nextDouble();
+                increment();
+                return key;
+            }
+        };
+    }
+}
@@ -0,0 +1,210 @@
+package se.chalmers.dcs.bapic.concurrentset.utils;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+/**
+ * Sorted snapshots of a set in a binary file, which are loaded back through
+ * the bulk loading constructors instead of one add() per key.
+ *
+ * The file is a header of MAGIC and the number of keys, followed by the keys
+ * as little endian doubles in ascending order. read() maps the file and
+ * hands out the doubles of the mapping as they are, so nothing is parsed and
+ * the keys are never copied into an array of their own.
+ *
+ * write() collects the keys with one SetADT.scanChunk() per CHUNK keys, from
+ * the lowest key up, and never blocks the writers. A single scan of the
+ * whole tree would give a snapshot of one instant for KBST and
+ * LockFreeKSTRQ, but their scans validate everything they collected and
+ * retry, and a million keys under a steady stream of updates never
+ * validated. So only each chunk is a snapshot of the keys it covers, and
+ * the file as a whole holds every key that was in the set during the entire
+ * write and none that was absent during all of it; the other keys may or
+ * may not be there. The file is written next to its final name and moved
+ * there when complete, so a crash never leaves half a snapshot behind.
+ */
+public final class Snapshot {
+
+    public static final long MAGIC = 0x4b53455453534e50L;
+    static final int HEADER = 16;
+    // bytes of keys per mapping, a mapping is at most Integer.MAX_VALUE bytes
+    static final int WINDOW = 1 << 30;
+    // keys per scanChunk() of write()
+    static final int CHUNK = 4096;
+    private static final int BUFFER = 1 << 16;
+
+    private Snapshot() {
+    }
+
+    /**
+     * Writes the keys of the set to file, replacing it if it exists.
+     *
+     * @param set
+     * @param file
+     * @return the number of keys written
+     * @throws IOException
+     */
+    public static long write(SetADT set, Path file) throws IOException {
+        Path partial = file.resolveSibling(file.getFileName() + ".partial");
+        long count;
+        try (FileChannel channel = FileChannel.open(partial, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            Writer writer = new Writer(channel);
+            try {
+                K from = K.MinValue0;
+                while (from != null) {
+                    from = set.scanChunk(from, CHUNK, key -> writer.put(key.getValue()));
+                }
+            }
+            catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            count = writer.finish();
+            channel.force(true);
+        }
+        Files.move(partial, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return count;
+    }
+
+    /**
+     * The number of keys of a snapshot file.
+     *
+     * @param file
+     * @return
+     * @throws IOException if file is not a complete snapshot
+     */
+    public static long size(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return readHeader(file, channel);
+        }
+    }
+
+    /**
+     * The keys of a snapshot file in ascending order, read from a mapping of
+     * the file. They can be passed straight to a bulk loading constructor,
+     * such as KBST(int, PrimitiveIterator.OfDouble).
+     *
+     * @param file
+     * @return
+     * @throws IOException if file is not a complete snapshot
+     */
+    public static PrimitiveIterator.OfDouble read(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long count = readHeader(file, channel);
+            long bytes = 8 * count;
+            DoubleBuffer[] windows = new DoubleBuffer[(int) ((bytes + WINDOW - 1) / WINDOW)];
+            for (int i = 0; i < windows.length; i ++) {
+                long start = (long) i * WINDOW;
+                // the mapping stays valid after the channel is closed
+                windows[i] = channel.map(FileChannel.MapMode.READ_ONLY, HEADER + start, Math.min(WINDOW, bytes - start))
+                        .order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+            }
+            return new Keys(windows);
+        }
+    }
+
+    private static long readHeader(Path file, FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+        while (header.hasRemaining()) {
+            if (channel.read(header, header.position()) < 0) {
+                throw new IOException(file + " is not a snapshot");
+            }
+        }
+        header.flip();
+        long magic = header.getLong();
+        long count = header.getLong();
+        if (magic != MAGIC) {
+            throw new IOException(file + " is not a snapshot");
+        }
+        if (count < 0 || channel.size() != HEADER + 8 * count) {
+            throw new IOException(file + " should hold " + count + " keys but has " + channel.size() + " bytes");
+        }
+        return count;
+    }
+
+    /**
+     * Buffers the keys and writes them behind the header, which is written
+     * last, when the count is known.
+     */
+    private static final class Writer {
+
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER).order(ByteOrder.LITTLE_ENDIAN);
+        private long count;
+        private double last = Double.NEGATIVE_INFINITY;
+
+        Writer(FileChannel channel) {
+            this.channel = channel;
+            buffer.position(HEADER);
+        }
+
+        void put(double key) {
+            if (key <= last) {
+                throw new IllegalStateException("the scan did not deliver ascending keys at " + key);
+            }
+            last = key;
+            if ( ! buffer.hasRemaining()) {
+                flush();
+            }
+            buffer.putDouble(key);
+            count ++;
+        }
+
+        long finish() throws IOException {
+            flush();
+            buffer.putLong(MAGIC).putLong(count).flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, buffer.position());
+            }
+            return count;
+        }
+
+        private void flush() {
+            buffer.flip();
+            try {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            buffer.clear();
+        }
+    }
+
+    private static final class Keys implements PrimitiveIterator.OfDouble {
+
+        private final DoubleBuffer[] windows;
+        private int window;
+
+        Keys(DoubleBuffer[] windows) {
+            this.windows = windows;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (window < windows.length &&  ! windows[window].hasRemaining()) {
+                window ++;
+            }
+            return window < windows.length;
+        }
+
+        @Override
+        public double nextDouble() {
+            if ( ! hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return windows[window].get();
+        }
+    }
+}
@@ -27,6 +27,9 @@
  */
 package se.chalmers.dcs.bapic.concurrentset.utils;
 
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.util.Random;
 import java.util.concurrent.ThreadLocalRandom;
 
@@ -69,7 +72,50 @@ public class Tools {
         long free1 = Runtime.getRuntime().freeMemory();
         long used1 = tot1 - free1;
 
-        return used1;
+        return used1 + getDirectMemUsed();
+    }
+
+    /**
+     * Bytes of the direct buffers that are still allocated, which is where
+     * OffHeapKBST keeps its nodes. getMemUsed() includes them.
+     *
+     * @return
+     */
+    public static long getDirectMemUsed() {
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if (pool.getName().equals("direct")) {
+                return pool.getMemoryUsed();
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Bytes allocated so far by the calling thread, or -1 if the JVM does not
+     * expose per-thread allocation counters.
+     *
+     * @return
+     */
+    public static long getThreadAllocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    /**
+     * Throws IllegalArgumentException unless the keys are strictly
+     * ascending, as the batch operations of SetADT require.
+     *
+     * @param keys
+     */
+    public static void checkAscending(K[] keys) {
+        for (int i = 1; i < keys.length; i ++) {
+            if ( ! keys[i - 1].compareTo(keys[i])) {
+                throw new IllegalArgumentException("keys are not strictly ascending at " + keys[i].getValue());
+            }
+        }
     }
 
     public static double randomInRange(Random random, double min, double max) {
@@ -0,0 +1,492 @@
+package se.chalmers.dcs.bapic.concurrentset.utils;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * Weakly consistent iterator over the keys of a search tree whose keys are
+ * in the leaves, in ascending order, like the iterators of
+ * ConcurrentSkipListSet: it never throws ConcurrentModificationException,
+ * returns every key at most once, returns every key that is in the tree
+ * for the whole iteration, and may or may not return keys added or removed
+ * meanwhile.
+ *
+ * The tree is walked depth first from the root with an explicit stack that
+ * holds a node and the index of its next child per level, so an unbalanced
+ * tree does not overflow the call stack. When the walk reaches a leaf, its
+ * keys are copied into a buffer that next() then hands out; leaves are only
+ * held within one step of the walk, so a set that recycles its leaves can
+ * pin the step with pin() and unpin(). Only growing the stack or the buffer
+ * allocates, never a key. Keys that are not above the last one returned
+ * are skipped, which keeps the order strict even where the walk goes into
+ * a subtree that was moved meanwhile.
+ *
+ * trySplit() hands the first half of the children left at the top of the
+ * stack to a new part, as long as nothing of this one is buffered. A node
+ * with a single child left is replaced by that child first, so a K-ary
+ * tree splits K ways at each level. Only sets that implement newPart()
+ * split.
+ *
+ * A descending iterator walks the children from the last to the first and
+ * hands out the keys of each leaf in reverse; it does not split.
+ *
+ * A set subclasses it with accessors for its own nodes.
+ *
+ * @param <N> the node type
+ */
+public abstract class TreeIterator<N> implements Iterator<K>, Spliterator<K> {
+
+    /**
+     * The order of the keys, for getComparator().
+     */
+    public static final Comparator<K> ORDER = (a, b) -> Double.compare(a.getValue(), b.getValue());
+
+    private final K from, to;
+    private final boolean descending;
+    private long estimate;
+    private Object[] nodes = new Object[32];
+    private int[] nextChild = new int[32];
+    private int[] endChild = new int[32];
+    private int depth = 0;
+    private K[] buffer = new K[8];
+    private int buffered = 0, position = 0;
+    private K last;
+
+    /**
+     *
+     * @param root
+     * @param from the smallest key to return, or null for all keys
+     */
+    protected TreeIterator(N root, K from) {
+        this(root, from, null, Long.MAX_VALUE, false);
+    }
+
+    /**
+     *
+     * @param root
+     * @param from the first key to return if it is in the tree: the
+     *        smallest one, or the largest one if descending; null for all
+     *        keys
+     * @param descending
+     */
+    protected TreeIterator(N root, K from, boolean descending) {
+        this(root, from, null, Long.MAX_VALUE, descending);
+    }
+
+    /**
+     *
+     * @param root
+     * @param from the smallest key to return, or null for no bound
+     * @param to the largest key to return, or null for no bound
+     * @param estimate the number of keys, for estimateSize()
+     */
+    protected TreeIterator(N root, K from, K to, long estimate) {
+        this(root, from, to, estimate, false);
+    }
+
+    private TreeIterator(N root, K from, K to, long estimate, boolean descending) {
+        this.from = from;
+        this.to = to;
+        this.estimate = estimate;
+        this.descending = descending;
+        push(root);
+    }
+
+    /**
+     *
+     * @param n
+     * @return
+     */
+    protected abstract boolean isLeaf(N n);
+
+    /**
+     * Number of children of the internal node n that can hold keys.
+     *
+     * @param n
+     * @return
+     */
+    protected abstract int childCount(N n);
+
+    /**
+     * Reads child i of the internal node n.
+     *
+     * @param n
+     * @param i
+     * @return the child, or null to skip it
+     */
+    protected abstract N child(N n, int i);
+
+    /**
+     * Index of the child of the internal node n whose key range holds key.
+     *
+     * @param n
+     * @param key
+     * @return
+     */
+    protected abstract int childIndex(N n, K key);
+
+    /**
+     * Passes the keys of the leaf n to buffer() in ascending order, leaving
+     * out the ones that are not in the set, like sentinels.
+     *
+     * @param n
+     */
+    protected abstract void keys(N n);
+
+    /**
+     * A part of the same tree for trySplit(), walking from node on with the
+     * given bounds; the frame of node is set up by the caller.
+     *
+     * @param node
+     * @param from
+     * @param to
+     * @param estimate
+     * @return the part, or null if this tree does not split
+     */
+    protected TreeIterator<N> newPart(N node, K from, K to, long estimate) {
+        return null;
+    }
+
+    /**
+     * Estimated bytes that the node n retains, see TreeShape, for shape():
+     * the node with its arrays and update record, by ObjectLayout, but not
+     * the keys of a leaf, which shape() adds.
+     *
+     * @param n
+     * @return 0 unless the set overrides it
+     */
+    protected long bytes(N n) {
+        return 0;
+    }
+
+    /**
+     * Most keys a leaf can hold, for shape().
+     *
+     * @return
+     */
+    protected int leafCapacity() {
+        return 1;
+    }
+
+    /**
+     * Called before each step of the walk.
+     */
+    protected void pin() {
+    }
+
+    /**
+     * Called after each step of the walk.
+     */
+    protected void unpin() {
+    }
+
+    /**
+     * Buffers a key of the leaf that keys() reads.
+     *
+     * @param key
+     */
+    protected final void buffer(K key) {
+        if (descending) {
+            // the keys of a leaf come in ascending order, so they are only
+            // checked against the keys of the leaves before, and fill()
+            // reverses them
+            if ((from != null && from.compareTo(key)) || (last != null && ! key.compareTo(last))) {
+                return;
+            }
+            append(key);
+            return;
+        }
+        if ((from != null && key.compareTo(from)) || (last != null && ! last.compareTo(key))) {
+            return;
+        }
+        if (to != null && to.compareTo(key)) {
+            // past the range, so the walk is over
+            Arrays.fill(nodes, 0, depth, null);
+            depth = 0;
+            return;
+        }
+        append(key);
+        last = key;
+    }
+
+    private void append(K key) {
+        if (buffered == buffer.length) {
+            buffer = Arrays.copyOf(buffer, 2 * buffered);
+        }
+        buffer[buffered ++] = key;
+    }
+
+    private void push(N n) {
+        if (depth == nodes.length) {
+            nodes = Arrays.copyOf(nodes, 2 * depth);
+            nextChild = Arrays.copyOf(nextChild, 2 * depth);
+            endChild = Arrays.copyOf(endChild, 2 * depth);
+        }
+        nodes[depth] = n;
+        if (descending) {
+            int count = childCount(n);
+            nextChild[depth] = from == null ? count - 1 : Math.min(count - 1, childIndex(n, from));
+            endChild[depth] = -1;
+        }
+        else {
+            nextChild[depth] = from == null ? 0 : childIndex(n, from);
+            endChild[depth] = to == null ? childCount(n) : Math.min(childCount(n), childIndex(n, to) + 1);
+        }
+        depth ++;
+    }
+
+    /**
+     * Walks on to the next leaf that has keys to return.
+     */
+    @SuppressWarnings("unchecked")
+    private boolean fill() {
+        buffered = position = 0;
+        pin();
+        try {
+            while (buffered == 0 && depth > 0) {
+                N n = (N) nodes[depth - 1];
+                int i = nextChild[depth - 1];
+                if (descending ? i <= endChild[depth - 1] : i >= endChild[depth - 1]) {
+                    nodes[-- depth] = null;
+                    continue;
+                }
+                nextChild[depth - 1] = descending ? i - 1 : i + 1;
+                N c = child(n, i);
+                if (c == null) {
+                    continue;
+                }
+                if (isLeaf(c)) {
+                    keys(c);
+                    if (descending && buffered > 0) {
+                        reverseBuffer();
+                    }
+                }
+                else {
+                    push(c);
+                }
+            }
+        }
+        finally {
+            unpin();
+        }
+        return buffered > 0;
+    }
+
+    private void reverseBuffer() {
+        for (int i = 0, j = buffered - 1; i < j; i ++, j --) {
+            K key = buffer[i];
+            buffer[i] = buffer[j];
+            buffer[j] = key;
+        }
+        last = buffer[buffered - 1];
+    }
+
+    /**
+     * Walks the rest of the tree without reading any keys, for the height()
+     * of the sets. The walk is pinned as a whole.
+     *
+     * @return the largest depth of a leaf, the root being at depth 0
+     */
+    @SuppressWarnings("unchecked")
+    public final int height() {
+        int height = 0;
+        pin();
+        try {
+            while (depth > 0) {
+                N n = (N) nodes[depth - 1];
+                int i = nextChild[depth - 1];
+                if (descending ? i <= endChild[depth - 1] : i >= endChild[depth - 1]) {
+                    nodes[-- depth] = null;
+                    continue;
+                }
+                nextChild[depth - 1] = descending ? i - 1 : i + 1;
+                N c = child(n, i);
+                if (c == null) {
+                    continue;
+                }
+                if (isLeaf(c)) {
+                    height = Math.max(height, depth);
+                }
+                else {
+                    push(c);
+                }
+            }
+        }
+        finally {
+            unpin();
+        }
+        return height;
+    }
+
+    /**
+     * Walks the rest of the tree like height() and counts its nodes, keys
+     * and bytes, for the shape() of the sets. The keys of a leaf are the
+     * ones keys() passes on, so sentinels do not count. The nodes on the
+     * stack, the root of a new iterator, count as internal nodes. Nothing
+     * is allocated per node, and the walk is pinned as a whole.
+     *
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    public final TreeShape shape() {
+        TreeShape shape = new TreeShape(leafCapacity());
+        pin();
+        try {
+            for (int d = 0; d < depth; d ++) {
+                shape.internalNode(bytes((N) nodes[d]));
+            }
+            while (depth > 0) {
+                N n = (N) nodes[depth - 1];
+                int i = nextChild[depth - 1];
+                if (descending ? i <= endChild[depth - 1] : i >= endChild[depth - 1]) {
+                    nodes[-- depth] = null;
+                    continue;
+                }
+                nextChild[depth - 1] = descending ? i - 1 : i + 1;
+                N c = child(n, i);
+                if (c == null) {
+                    continue;
+                }
+                if (isLeaf(c)) {
+                    keys(c);
+                    shape.leaf(depth, buffered, bytes(c) + buffered * ObjectLayout.KEY);
+                    buffered = 0;
+                }
+                else {
+                    shape.internalNode(bytes(c));
+                    push(c);
+                }
+            }
+        }
+        finally {
+            unpin();
+        }
+        return shape;
+    }
+
+    /**
+     * The next key, or null if there is none, for the ceiling() and floor()
+     * of the sets.
+     *
+     * @return
+     */
+    public final K nextOrNull() {
+        return hasNext() ? next() : null;
+    }
+
+    /**
+     * The first key that is not key, or null if there is none, for the
+     * higher() and lower() of the sets.
+     *
+     * @param key
+     * @return
+     */
+    public final K nextExcept(K key) {
+        while (hasNext()) {
+            K next = next();
+            if ( ! next.equals(key)) {
+                return next;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return position < buffered || fill();
+    }
+
+    @Override
+    public K next() {
+        if ( ! hasNext()) {
+            throw new NoSuchElementException();
+        }
+        K key = buffer[position];
+        buffer[position ++] = null;
+        return key;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super K> action) {
+        if ( ! hasNext()) {
+            return false;
+        }
+        action.accept(next());
+        return true;
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super K> action) {
+        while (hasNext()) {
+            action.accept(next());
+        }
+    }
+
+    /**
+     * Splits off the first half of the children left at the top of the
+     * stack, see the class comment. The estimates of both parts are shared
+     * out in proportion to their children.
+     *
+     * @return the first part, or null
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public Spliterator<K> trySplit() {
+        if (descending || depth != 1 || position < buffered) {
+            return null;
+        }
+        N n = (N) nodes[0];
+        pin();
+        try {
+            while (endChild[0] - nextChild[0] == 1) {
+                N c = child(n, nextChild[0]);
+                if (c == null || isLeaf(c)) {
+                    return null;
+                }
+                depth = 0;
+                push(c);
+                n = c;
+            }
+        }
+        finally {
+            unpin();
+        }
+        int children = endChild[0] - nextChild[0];
+        if (children < 2) {
+            return null;
+        }
+        int half = children / 2;
+        long partEstimate = estimate == Long.MAX_VALUE ? estimate : estimate * half / children;
+        TreeIterator<N> part = newPart(n, from, to, partEstimate);
+        if (part == null) {
+            return null;
+        }
+        part.nextChild[0] = nextChild[0];
+        part.endChild[0] = nextChild[0] + half;
+        part.last = last;
+        nextChild[0] += half;
+        if (estimate != Long.MAX_VALUE) {
+            estimate -= partEstimate;
+        }
+        return part;
+    }
+
+    @Override
+    public long estimateSize() {
+        return estimate;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | DISTINCT | SORTED | NONNULL | CONCURRENT;
+    }
+
+    @Override
+    public Comparator<? super K> getComparator() {
+        return descending ? ORDER.reversed() : ORDER;
+    }
+}
@@ -0,0 +1,191 @@
+package se.chalmers.dcs.bapic.concurrentset.utils;
+
+import java.util.Arrays;
+
+/**
+ * The shape of a tree that keeps its keys in the leaves, as a walk of it
+ * found it: how many internal nodes and leaves it has, how full the leaves
+ * are, how many keys sit at each depth, the root being at depth 0, and how
+ * many bytes the nodes retain by ObjectLayout. A walk that runs next to
+ * updates sees each node as it read it, like iterator() does.
+ *
+ * The bytes of a node are the node, the arrays and update records it
+ * alone refers to, and the keys of a leaf. Routing keys of internal nodes
+ * mostly are keys of leaves as well and are not counted again, nor are
+ * the values of a map or nodes that only finished update records still
+ * refer to, so the bytes are a lower bound of what the set retains.
+ */
+public final class TreeShape {
+
+    private final int leafCapacity;
+    private long internalNodes;
+    private long leaves;
+    private long emptyLeaves;
+    private long keys;
+    private long keySlots;
+    private long bytes;
+    private long[] keysAtDepth = new long[16];
+    private int height;
+
+    /**
+     *
+     * @param leafCapacity most keys a leaf can hold
+     */
+    public TreeShape(int leafCapacity) {
+        this.leafCapacity = leafCapacity;
+    }
+
+    /**
+     * Counts an internal node that retains nodeBytes.
+     *
+     * @param nodeBytes
+     */
+    public void internalNode(long nodeBytes) {
+        internalNodes ++;
+        bytes += nodeBytes;
+    }
+
+    /**
+     * Counts a leaf of keyCount keys at depth that retains nodeBytes.
+     *
+     * @param depth
+     * @param keyCount
+     * @param nodeBytes
+     */
+    public void leaf(int depth, int keyCount, long nodeBytes) {
+        leaves ++;
+        bytes += nodeBytes;
+        keySlots += leafCapacity;
+        height = Math.max(height, depth);
+        if (keyCount == 0) {
+            emptyLeaves ++;
+            return;
+        }
+        keys += keyCount;
+        if (depth >= keysAtDepth.length) {
+            keysAtDepth = Arrays.copyOf(keysAtDepth, Math.max(2 * keysAtDepth.length, depth + 1));
+        }
+        keysAtDepth[depth] += keyCount;
+    }
+
+    /**
+     * Adds the counts of other, the shape of another tree, to these, for
+     * sets split into several trees.
+     *
+     * @param other
+     */
+    public void add(TreeShape other) {
+        internalNodes += other.internalNodes;
+        leaves += other.leaves;
+        emptyLeaves += other.emptyLeaves;
+        keys += other.keys;
+        keySlots += other.keySlots;
+        bytes += other.bytes;
+        height = Math.max(height, other.height);
+        if (other.keysAtDepth.length > keysAtDepth.length) {
+            keysAtDepth = Arrays.copyOf(keysAtDepth, other.keysAtDepth.length);
+        }
+        for (int i = 0; i < other.keysAtDepth.length; i ++) {
+            keysAtDepth[i] += other.keysAtDepth[i];
+        }
+    }
+
+    /**
+     *
+     * @return
+     */
+    public long getInternalNodes() {
+        return internalNodes;
+    }
+
+    /**
+     *
+     * @return
+     */
+    public long getLeaves() {
+        return leaves;
+    }
+
+    /**
+     *
+     * @return
+     */
+    public long getEmptyLeaves() {
+        return emptyLeaves;
+    }
+
+    /**
+     *
+     * @return
+     */
+    public long getKeys() {
+        return keys;
+    }
+
+    /**
+     * Estimated bytes that the nodes retain, see the class comment.
+     *
+     * @return
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Depth of the deepest leaf.
+     *
+     * @return
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Number of keys in the leaves at depth.
+     *
+     * @param depth
+     * @return
+     */
+    public long getKeysAtDepth(int depth) {
+        return (depth < keysAtDepth.length) ? keysAtDepth[depth] : 0;
+    }
+
+    /**
+     * Mean depth of the leaf of a key, the length of the path a search for
+     * a present key takes.
+     *
+     * @return
+     */
+    public double averageDepth() {
+        long sum = 0;
+        for (int i = 0; i < keysAtDepth.length; i ++) {
+            sum += i * keysAtDepth[i];
+        }
+        return (keys == 0) ? 0 : (double) sum / keys;
+    }
+
+    /**
+     * Fraction of the key slots of all leaves, empty ones included, that
+     * hold a key.
+     *
+     * @return
+     */
+    public double averageFill() {
+        return (keySlots == 0) ? 0 : (double) keys / keySlots;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%d internal nodes, %d leaves (%d empty), %d bytes (%.1f bytes/key), average fill = %.1f%%, average depth of a key = %.2f, keys by depth = {",
+                internalNodes, leaves, emptyLeaves, bytes, (keys == 0) ? 0 : (double) bytes / keys, 100 * averageFill(), averageDepth()));
+        String separator = "";
+        for (int i = 0; i < keysAtDepth.length; i ++) {
+            if (keysAtDepth[i] > 0) {
+                sb.append(separator).append(i).append(": ").append(keysAtDepth[i]);
+                separator = ", ";
+            }
+        }
+        return sb.append("}").toString();
+    }
+}